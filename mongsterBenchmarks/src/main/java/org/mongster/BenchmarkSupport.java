@@ -0,0 +1,107 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * In-process MongoDB stand-in and sample messages shared by the benchmarks.
+ * Uses mongo-java-server with its memory backend, so no mongod is needed.
+ * Absolute numbers for MongoDB operations are therefore only indicative;
+ * use them to compare revisions, not to size deployments.
+ */
+final class BenchmarkSupport {
+
+    private final MongoServer server;
+    private final String address;
+
+    BenchmarkSupport() {
+        server = new MongoServer(new MemoryBackend());
+        final InetSocketAddress bound = server.bind();
+        address = bound.getHostString() + ":" + bound.getPort();
+    }
+
+    /**
+     * @return configuration pointing at the in-process server, with a fresh
+     * directory for the file store
+     */
+    MongsterConfig config() {
+        final MongsterConfig config = new MongsterConfig();
+        config.setMongoHost(address);
+        try {
+            config.setFileStoreDirectory(Files.createTempDirectory("mongster-bench").toString());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return config;
+    }
+
+    void shutdown() {
+        server.shutdownNow();
+    }
+
+    /**
+     * Builds a raw single-part text message.
+     *
+     * @param bodySize approximate size of the body in bytes
+     * @param subject subject header value
+     * @return raw message bytes
+     */
+    static byte[] message(int bodySize, String subject) {
+        final StringBuilder raw = new StringBuilder(bodySize + 1024);
+        raw.append("Received: from localhost (localhost [127.0.0.1])\r\n")
+           .append("\tby mongster with SMTP ID 1234 for <anyone@anywhere.com>;\r\n")
+           .append("\tMon, 1 Jun 2015 00:00:00 -0000 (UTC)\r\n")
+           .append("Received: from somewhereelse.com (somewhereelse.com [10.0.0.1])\r\n")
+           .append("\tby localhost with ESMTP; Mon, 1 Jun 2015 00:00:00 -0000 (UTC)\r\n")
+           .append("Date: Mon, 1 Jun 2015 00:00:00 -0000 (UTC)\r\n")
+           .append("From: someone@somewhereelse.com\r\n")
+           .append("To: anyone@anywhere.com\r\n")
+           .append("Message-ID: <1234.5678@somewhereelse.com>\r\n")
+           .append("Subject: ").append(subject).append("\r\n")
+           .append("MIME-Version: 1.0\r\n")
+           .append("Content-Type: text/plain; charset=us-ascii\r\n")
+           .append("Content-Transfer-Encoding: 7bit\r\n")
+           .append("\r\n");
+        final String line = "The quick brown fox jumps over the lazy dog 0123456789.\r\n";
+        while (raw.length() < bodySize) {
+            raw.append(line);
+        }
+        return raw.toString().getBytes();
+    }
+
+    static WiserMessage wiserMessage(Wiser wiser, byte[] data) {
+        return Mongster.newWiserMessage(wiser, "someone@somewhereelse.com", "anyone@anywhere.com", data);
+    }
+
+    static int freePort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
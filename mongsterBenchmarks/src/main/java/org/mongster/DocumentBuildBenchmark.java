@@ -0,0 +1,144 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.mongster.MongsterConfig.ContentExtraction;
+import org.mongster.MongsterConfig.RawStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Cost of turning received bytes into a MongoDB document: reading the data
+ * stream, parsing headers, decoding the body and encoding raw bytes.
+ * Nothing is sent to MongoDB.
+ * <p>
+ * Run with {@code -prof gc} to see allocation per operation; header names
+ * come from a shared cache, so {@link #appendHeaders()} should allocate
+ * little more than the document and the header values.</p>
+ * <p>
+ * {@link #encodeDocument()} and {@link #encodeRaw()} compare building a
+ * {@code Document} and encoding it, as the driver does on insert, with
+ * encoding straight to BSON ({@code rawBsonEncoding}).</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentBuildBenchmark {
+
+    @Param({"1024", "65536"})
+    private int bodySize;
+
+    @Param({"BASE64", "BINARY"})
+    private RawStorage rawStorage;
+
+    @Param({"HEADERS_ONLY", "FULL"})
+    private ContentExtraction contentExtraction;
+
+    private BenchmarkSupport support;
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+    private MongoMessageStore mongoStore;
+    private MongoMessageStore rawStore;
+    private byte[] data;
+    private WiserMessage message;
+    private ParsedMessage parsed;
+
+    @Setup
+    public void setUp() {
+        support = new BenchmarkSupport();
+        final MongsterConfig config = support.config();
+        config.setRawStorage(rawStorage);
+        config.setContentExtraction(contentExtraction);
+        final Wiser wiser = new Wiser();
+        mongoStore = new MongoMessageStore(wiser, config, null);
+        config.setRawBsonEncoding(true);
+        rawStore = new MongoMessageStore(wiser, config, null);
+        data = BenchmarkSupport.message(bodySize, "barf");
+        message = BenchmarkSupport.wiserMessage(wiser, data);
+        parsed = ParsedMessage.parse(data);
+    }
+
+    @TearDown
+    public void tearDown() {
+        support.shutdown();
+    }
+
+    /** Reading the SMTP data stream with the single-pass header scan */
+    @Benchmark
+    public ParsedMessage readStream() throws IOException {
+        return ParsedMessage.read(new ByteArrayInputStream(data));
+    }
+
+    /** Building the document from already parsed headers */
+    @Benchmark
+    public Document buildDocument() {
+        return mongoStore.toDocument(message, parsed, 0);
+    }
+
+    /** Building the document and encoding it to BSON */
+    @Benchmark
+    public RawBsonDocument encodeDocument() {
+        return new RawBsonDocument(mongoStore.toDocument(message, parsed, 0), DOCUMENT_CODEC);
+    }
+
+    /** Encoding the document straight to BSON from already parsed headers */
+    @Benchmark
+    public RawBsonDocument encodeRaw() {
+        return rawStore.toRawDocument(message, parsed, 0);
+    }
+
+    /** Header parse alone, with header names from the cache */
+    @Benchmark
+    public ParsedMessage parseHeaders() {
+        return ParsedMessage.parse(data);
+    }
+
+    /** Writing parsed headers into a document, repeated headers as arrays */
+    @Benchmark
+    public Document appendHeaders() {
+        final Document doc = new Document();
+        parsed.appendHeaders(doc);
+        return doc;
+    }
+
+    /** Header parse plus document build, as on the {@code add(WiserMessage)} path */
+    @Benchmark
+    public Document parseAndBuild() {
+        return mongoStore.toDocument(message, ParsedMessage.parse(data), 0);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mongster.MongsterConfig.EvictionPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * In-memory message path: adding to a full, bounded {@link InMemoryMessageStore}
+ * (so every add evicts) and reading messages back. {@link #touchAndAdd()}
+ * reads a message before each add, so with LRU eviction the victim is taken
+ * from the middle of the store. No MongoDB involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InMemoryStoreBenchmark {
+
+    private static final int CAPACITY = 10000;
+
+    @Param({"FIFO", "LRU"})
+    private EvictionPolicy evictionPolicy;
+
+    @Param({"false", "true"})
+    private boolean offHeapPayloads;
+
+    private InMemoryMessageStore store;
+    private WiserMessage message;
+    private ParsedMessage parsed;
+    private int next;
+    private long seq;
+
+    @Setup
+    public void setUp() {
+        final Wiser wiser = new Wiser();
+        final MongsterConfig config = new MongsterConfig();
+        config.setInMemoryMaxMessages(CAPACITY);
+        config.setEvictionPolicy(evictionPolicy);
+        config.setOffHeapPayloads(offHeapPayloads);
+        store = new InMemoryMessageStore(wiser, config);
+        final byte[] data = BenchmarkSupport.message(2048, "barf");
+        message = BenchmarkSupport.wiserMessage(wiser, data);
+        parsed = ParsedMessage.parse(data);
+        for (int i = 0; i < CAPACITY; i++) {
+            store.add(message, parsed, seq++);
+        }
+    }
+
+    @Benchmark
+    public void add() {
+        store.add(message, parsed, seq++);
+    }
+
+    @Benchmark
+    public void touchAndAdd() {
+        next = (next + 7919) % CAPACITY;
+        store.get(next);
+        store.add(message, parsed, seq++);
+    }
+
+    @Benchmark
+    public WiserMessage get() {
+        next = (next + 7919) % CAPACITY;
+        return store.get(next);
+    }
+
+    @Benchmark
+    public int findBySubject() {
+        return store.count(MessageQuery.header("Subject", "barf"));
+    }
+}
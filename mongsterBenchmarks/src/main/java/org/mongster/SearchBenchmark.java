@@ -0,0 +1,89 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mongster.MongsterConfig.ContentExtraction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Query time of the in-process {@link TextIndex} holding many messages, each
+ * with an order number in its subject and a body drawn from a fixed
+ * vocabulary. Searching for an order number touches one short posting list;
+ * a common word touches most messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SearchBenchmark {
+
+    private static final int VOCABULARY = 5000;
+    private static final int BODY_WORDS = 20;
+
+    @Param({"100000", "1000000"})
+    private int messageCount;
+
+    private TextIndex index;
+    private Random random;
+
+    @Setup
+    public void setUp() {
+        index = new TextIndex(ContentExtraction.TEXT);
+        random = new Random(42);
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < messageCount; i++) {
+            body.setLength(0);
+            for (int j = 0; j < BODY_WORDS; j++) {
+                body.append("word").append(random.nextInt(VOCABULARY)).append(' ');
+            }
+            body.append(i % 10 == 0 ? "shipped" : "pending");
+            index.add(i, "Order ORD-" + i + " update", body.toString());
+        }
+    }
+
+    /** One order number */
+    @Benchmark
+    public Object searchOrderNumber() {
+        return index.search("ORD-" + random.nextInt(messageCount), 10);
+    }
+
+    /** A word in a tenth of the messages */
+    @Benchmark
+    public Object searchCommonWord() {
+        return index.search("shipped", 10);
+    }
+
+    /** An order number with a vocabulary word, ranked together */
+    @Benchmark
+    public Object searchTwoTerms() {
+        return index.search(random.nextInt(messageCount) + " word" + random.nextInt(VOCABULARY), 10);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.mongster.MongsterConfig.StorageBackend;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end delivery: a JavaMail client sends a message over SMTP to a
+ * running Mongster, which stores it in the in-process MongoDB or another
+ * storage backend.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SmtpDeliveryBenchmark {
+
+    @Param({"true", "false"})
+    private boolean inMemory;
+
+    @Param({"false", "true"})
+    private boolean asyncWrites;
+
+    @Param({"MONGO", "FILE"})
+    private StorageBackend storageBackend;
+
+    private BenchmarkSupport support;
+    private Mongster mongster;
+    private MimeMessage message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        support = new BenchmarkSupport();
+        final MongsterConfig config = support.config();
+        config.setInMemory(inMemory);
+        config.setAsyncWrites(asyncWrites);
+        config.setStorageBackend(storageBackend);
+        config.setSmtpPort(BenchmarkSupport.freePort());
+        mongster = new Mongster(config);
+        mongster.start();
+        final Properties props = new Properties();
+        props.setProperty("mail.smtp.host", "localhost");
+        props.setProperty("mail.smtp.port", Integer.toString(config.getSmtpPort()));
+        message = new MimeMessage(Session.getInstance(props));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("anyone@anywhere.com"));
+        message.setFrom(new InternetAddress("someone@somewhereelse.com"));
+        message.setSubject("barf");
+        message.setText(new String(BenchmarkSupport.message(4096, "barf")));
+    }
+
+    @Setup(Level.Iteration)
+    public void clear() {
+        mongster.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mongster.stop();
+        support.shutdown();
+    }
+
+    @Benchmark
+    public void send() throws MessagingException {
+        Transport.send(message);
+    }
+}
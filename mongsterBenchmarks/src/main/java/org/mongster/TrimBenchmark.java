@@ -0,0 +1,99 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mongster.Mongster.PersistedMessageList;
+import org.mongster.MongsterConfig.StorageBackend;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Duration of {@code tail} and {@code truncate} on collections of various
+ * sizes, for each storage backend. The collection is refilled before every invocation, so each
+ * measurement is a single call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TrimBenchmark {
+
+    @Param({"1000", "10000"})
+    private int collectionSize;
+
+    @Param({"MONGO", "MEMORY", "FILE"})
+    private StorageBackend storageBackend;
+
+    private BenchmarkSupport support;
+    private PersistedMessageList messageList;
+    private WiserMessage message;
+    private ParsedMessage parsed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        support = new BenchmarkSupport();
+        final MongsterConfig config = support.config();
+        config.setInMemory(false);
+        config.setAsyncWrites(true);
+        config.setStorageBackend(storageBackend);
+        final Wiser wiser = new Wiser();
+        messageList = new PersistedMessageList(wiser, config);
+        final byte[] data = BenchmarkSupport.message(1024, "barf");
+        message = BenchmarkSupport.wiserMessage(wiser, data);
+        parsed = ParsedMessage.parse(data);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        messageList.clear();
+        for (int i = 0; i < collectionSize; i++) {
+            messageList.add(message, parsed);
+        }
+        messageList.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        support.shutdown();
+    }
+
+    @Benchmark
+    public void tail() {
+        messageList.tail(collectionSize / 2);
+    }
+
+    @Benchmark
+    public void truncate() {
+        messageList.truncate(collectionSize / 2);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mongster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+
+import org.mongster.Mongster.PersistedMessageList;
+import org.mongster.MongsterConfig.BackpressurePolicy;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Background writer that drains a bounded queue of received messages into
+ * the {@link MessageStore} in batches ({@code insertMany} for MongoDB). A batch is sent as soon as it holds
+ * {@code writeBatchSize} messages or {@code writeBatchDelayMillis} have
+ * elapsed since its first message was taken from the queue.
+ * <p>
+ * When the queue is full, {@link #submit(WiserMessage, ParsedMessage, long)} behaves according
+ * to the configured {@link BackpressurePolicy}.</p>
+ * <p>
+ * Messages dropped from the queue, and messages of a batch the backend
+ * failed to store, are handed back to the list with
+ * {@link PersistedMessageList#discarded(long)}, so they are not counted or
+ * kept in memory as if they had been stored.</p>
+ */
+class AsyncMessageWriter implements Runnable {
+
+    /** SMTP reply code used when a message is refused because the queue is full */
+    static final int QUEUE_FULL_REPLY_CODE = 451;
+
+    private final PersistedMessageList messageList;
+    private final MessageStore backend;
+    private final BlockingQueue<ReceivedMessage> queue;
+    private final int batchSize;
+    private final long batchDelayMillis;
+    private final BackpressurePolicy policy;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /** Guards submitted / completed */
+    private final Object progressLock = new Object();
+
+    /** Number of messages accepted by {@link #submit(WiserMessage, ParsedMessage, long)} */
+    private long submitted = 0;
+
+    /** Number of submitted messages that have been written, dropped or failed */
+    private long completed = 0;
+
+    AsyncMessageWriter(PersistedMessageList messageList, MessageStore backend,
+                       MongsterConfig config, String threadName) {
+        this.messageList = messageList;
+        this.backend = backend;
+        this.queue = new ArrayBlockingQueue<ReceivedMessage>(config.getWriteQueueCapacity());
+        this.batchSize = config.getWriteBatchSize();
+        this.batchDelayMillis = config.getWriteBatchDelayMillis();
+        this.policy = config.getBackpressurePolicy();
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a message to be written.
+     *
+     * @param message message to write
+     * @param parsed raw bytes and headers of {@code message}
+     * @param sequenceNumber sequence number assigned to the message
+     * @throws RejectException if the queue is full and the policy is {@code REJECT},
+     * or the writer has been shut down
+     */
+    void submit(WiserMessage message, ParsedMessage parsed, long sequenceNumber) {
+        if (!running) {
+            throw new RejectException(QUEUE_FULL_REPLY_CODE, "Requested action aborted: message store stopped");
+        }
+        final ReceivedMessage pending = new ReceivedMessage(message, parsed, sequenceNumber);
+        synchronized (progressLock) {
+            submitted++;
+        }
+        switch (policy) {
+            case REJECT:
+                if (!queue.offer(pending)) {
+                    withdraw();
+                    throw new RejectException(QUEUE_FULL_REPLY_CODE,
+                            "Requested action aborted: message store busy, try again later");
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(pending)) {
+                    final ReceivedMessage dropped = queue.poll();
+                    if (dropped != null) {
+                        if (messageList.metrics != null) {
+                            messageList.metrics.messageDropped();
+                        }
+                        messageList.discarded(dropped.sequenceNumber);
+                        complete(1);
+                    }
+                }
+                break;
+            default:
+                try {
+                    queue.put(pending);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    withdraw();
+                    throw new RejectException(QUEUE_FULL_REPLY_CODE,
+                            "Requested action aborted: interrupted while queueing message");
+                }
+        }
+    }
+
+    /**
+     * Blocks until every message submitted before this call has been written
+     * (or dropped, or failed).
+     */
+    void flush() {
+        synchronized (progressLock) {
+            final long target = submitted;
+            while (completed < target && thread.isAlive()) {
+                try {
+                    progressLock.wait(batchDelayMillis + 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes any queued messages and stops the writer thread.
+     */
+    void shutdown() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of messages waiting to be written
+     */
+    int queueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public void run() {
+        final List<ReceivedMessage> batch = new ArrayList<ReceivedMessage>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                final ReceivedMessage first = queue.poll(batchDelayMillis, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchDelayMillis);
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    final ReceivedMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes a batch of messages to the backend.
+     *
+     * @param batch messages to write
+     */
+    private void write(List<ReceivedMessage> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final MongsterMetrics metrics = messageList.metrics;
+        final long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            backend.addAll(batch);
+            if (metrics != null) {
+                metrics.insert.recordSince(start);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            final List<ReceivedMessage> failed = unwritten(batch, e);
+            if (metrics != null) {
+                metrics.mongoError(failed.size());
+            }
+            for (ReceivedMessage received : failed) {
+                messageList.discarded(received.sequenceNumber);
+            }
+        } finally {
+            complete(batch.size());
+        }
+    }
+
+    /**
+     * Unordered inserts store every message they can, so the server reports
+     * which messages of the batch it failed to insert.
+     *
+     * @return messages of {@code batch} that were not stored
+     */
+    private static List<ReceivedMessage> unwritten(List<ReceivedMessage> batch, RuntimeException e) {
+        if (!(e instanceof MongoBulkWriteException)) {
+            return batch;
+        }
+        final List<ReceivedMessage> failed = new ArrayList<ReceivedMessage>();
+        for (BulkWriteError error : ((MongoBulkWriteException) e).getWriteErrors()) {
+            failed.add(batch.get(error.getIndex()));
+        }
+        return failed;
+    }
+
+    private void withdraw() {
+        synchronized (progressLock) {
+            submitted--;
+        }
+    }
+
+    private void complete(int count) {
+        synchronized (progressLock) {
+            completed += count;
+            progressLock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.mongster.MongsterConfig.ContentExtraction;
+
+/**
+ * Extracts the text and attachments of a message into its MongoDB document,
+ * walking the MIME tree once. Adds
+ * <pre>
+ *   body          first text/plain part, or the first other text part if
+ *                 there is no plain text
+ *   html          first text/html part
+ *   attachments   for each other part: filename, contentType, disposition,
+ *                 contentId, size (encoded bytes) and, if configured, the
+ *                 decoded bytes under "data"
+ * </pre>
+ * depending on the configured {@link ContentExtraction}. Nothing is decoded
+ * for {@code HEADERS_ONLY}.
+ * <p>
+ * The body of a single-part text message is decoded straight from the raw
+ * bytes. Other messages are parsed over a {@link SharedByteArrayInputStream},
+ * so parts are sliced from the raw bytes rather than copied, and attachment
+ * content is only decoded when it is stored.</p>
+ */
+class ContentExtractor {
+
+    static final String BODY = "body";
+    static final String HTML = "html";
+    static final String ATTACHMENTS = "attachments";
+
+    private static final Session SESSION = Session.getInstance(new Properties());
+
+    private final ContentExtraction extraction;
+    private final boolean storeAttachmentContent;
+
+    ContentExtractor(MongsterConfig config) {
+        this(config.getContentExtraction(), config.isAttachmentContentStored());
+    }
+
+    ContentExtractor(ContentExtraction extraction, boolean storeAttachmentContent) {
+        this.extraction = extraction;
+        this.storeAttachmentContent = storeAttachmentContent;
+    }
+
+    /**
+     * Adds the extracted content of a message to its document.
+     *
+     * @param parsed raw bytes and headers of the message
+     * @param doc message document
+     */
+    void extract(ParsedMessage parsed, Document doc) {
+        final Extracted extracted = extract(parsed);
+        if (extracted == null) {
+            return;
+        }
+        if (extracted.body() != null) {
+            doc.append(BODY, extracted.body());
+        }
+        if (extracted.html != null) {
+            doc.append(HTML, extracted.html);
+        }
+        if (!extracted.attachments.isEmpty()) {
+            doc.append(ATTACHMENTS, extracted.attachments);
+        }
+    }
+
+    /**
+     * Extracts the content of a message without building a document.
+     *
+     * @param parsed raw bytes and headers of the message
+     * @return extracted content, or null if nothing is extracted
+     */
+    Extracted extract(ParsedMessage parsed) {
+        if (extraction == ContentExtraction.HEADERS_ONLY) {
+            return null;
+        }
+        final Extracted extracted = new Extracted();
+        final String text = parsed.getTextBody();
+        if (text != null) {
+            extracted.plain = text;
+            if (isHtml(parsed.getHeader("Content-Type"))) {
+                extracted.html = text;
+            }
+            return extracted;
+        }
+        try {
+            walk(new MimeMessage(SESSION, new SharedByteArrayInputStream(parsed.getData())), extracted);
+        } catch (IOException | MessagingException e) {
+            e.printStackTrace();
+        }
+        return extracted;
+    }
+
+    private void walk(Part part, Extracted extracted) throws IOException, MessagingException {
+        if (part.isMimeType("multipart/*")) {
+            final Multipart multipart = (Multipart) part.getContent();
+            for (int i = 0; i < multipart.getCount(); i++) {
+                walk(multipart.getBodyPart(i), extracted);
+            }
+            return;
+        }
+        final boolean inline = !Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()) &&
+            part.getFileName() == null;
+        if (inline && part.isMimeType("text/plain") && extracted.plain == null) {
+            extracted.plain = text(part);
+        } else if (inline && part.isMimeType("text/html") && extracted.html == null) {
+            extracted.html = text(part);
+        } else if (inline && part.isMimeType("text/*") && extracted.otherText == null) {
+            extracted.otherText = text(part);
+        } else if (extraction == ContentExtraction.FULL) {
+            extracted.attachments.add(attachment(part));
+        }
+    }
+
+    private Document attachment(Part part) throws IOException, MessagingException {
+        final Document doc = new Document();
+        doc.append("filename", part.getFileName());
+        doc.append("contentType", baseType(part.getContentType()));
+        doc.append("disposition", part.getDisposition());
+        final String[] contentId = part.getHeader("Content-ID");
+        doc.append("contentId", contentId == null ? null : contentId[0]);
+        doc.append("size", part.getSize());
+        if (storeAttachmentContent) {
+            doc.append("data", new Binary(readAll(part.getInputStream())));
+        }
+        return doc;
+    }
+
+    private static String text(Part part) throws IOException, MessagingException {
+        final Object content = part.getContent();
+        return content instanceof String ? (String) content :
+            new String(readAll(part.getInputStream()), "ISO-8859-1");
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            bytes.write(buf, 0, n);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    private static boolean isHtml(String contentType) {
+        return contentType != null && baseType(contentType).equalsIgnoreCase("text/html");
+    }
+
+    private static String baseType(String contentType) {
+        try {
+            return new ContentType(contentType).getBaseType().toLowerCase();
+        } catch (MessagingException | RuntimeException e) {
+            return contentType;
+        }
+    }
+
+    /**
+     * Parts found while walking a message.
+     */
+    static class Extracted {
+        String plain;
+        String html;
+        String otherText;
+        /** Empty unless extraction is {@code FULL} */
+        final List<Document> attachments = new ArrayList<Document>();
+
+        /**
+         * @return text stored under {@code body}, or null if there is none
+         */
+        String body() {
+            return plain != null ? plain : otherText != null ? otherText : html;
+        }
+    }
+}
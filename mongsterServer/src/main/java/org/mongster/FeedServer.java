@@ -0,0 +1,182 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves {@link MessageSubscription}s as server-sent events, so browsers
+ * ({@code EventSource}) and other clients can follow new messages instead
+ * of polling. {@code GET /feed?since=N} streams the messages after sequence
+ * number N, stored ones first, then new ones as they arrive; without
+ * {@code since}, only new ones. Each event's {@code id} is the message's
+ * sequence number and its data the listed document as JSON; reconnecting
+ * clients send the last id back as {@code Last-Event-ID}. A {@code reset}
+ * event precedes the first message after a clear.
+ * <p>
+ * {@code namespace} selects a namespace; the other parameters are those of
+ * {@link MessageListing#fromQueryString(String)}.</p>
+ */
+class FeedServer {
+
+    /** Seconds between keep-alive comments on an idle stream */
+    static final int HEARTBEAT_SECONDS = 15;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Set<MessageSubscription> open =
+        ConcurrentHashMap.<MessageSubscription>newKeySet();
+
+    /**
+     * Starts serving the feed.
+     *
+     * @param mongster server whose messages to publish
+     * @param port port to listen on, 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    FeedServer(final Mongster mongster, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        // Each open stream holds a thread
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "mongster-feed");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/feed", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                stream(mongster, exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @return port the endpoint listens on
+     */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        for (MessageSubscription subscription : open) {
+            subscription.close();
+        }
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void stream(Mongster mongster, HttpExchange exchange) throws IOException {
+        final MessageSubscription subscription;
+        long last;
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                throw new IllegalArgumentException("Use GET");
+            }
+            final String query = exchange.getRequestURI().getRawQuery();
+            final String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+            final String since = lastEventId != null ? lastEventId : param(query, "since");
+            last = since == null ? -1 : parseSince(since);
+            final MessageListing listing = MessageListing.fromQueryString(query);
+            final MessageNamespace namespace = mongster.namespace(param(query, "namespace"));
+            subscription = since == null ? namespace.subscribe(listing) : namespace.subscribe(listing, last);
+        } catch (IllegalArgumentException e) {
+            final byte[] body = (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(400, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+            return;
+        }
+        open.add(subscription);
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        exchange.sendResponseHeaders(200, 0);
+        final OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(": mongster feed\n\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            while (true) {
+                final Document doc = subscription.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                if (doc == null) {
+                    if (subscription.isClosed()) {
+                        break; // stopping
+                    }
+                    out.write(": keep-alive\n\n".getBytes(StandardCharsets.UTF_8));
+                } else {
+                    final long seq = doc.getLong(MongoMessageStore.SEQUENCE_NUMBER);
+                    if (seq <= last) {
+                        out.write("event: reset\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8));
+                    }
+                    last = seq;
+                    out.write(("id: " + seq + "\ndata: " + MessageSubscription.toJson(doc) + "\n\n")
+                              .getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            }
+        } catch (IOException | IllegalStateException | InterruptedException e) {
+            // Client went away, fell behind or the server is stopping; clients reconnect
+        } finally {
+            open.remove(subscription);
+            subscription.close();
+            exchange.close();
+        }
+    }
+
+    private static long parseSince(String since) {
+        try {
+            return Long.parseLong(since.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid since: " + since);
+        }
+    }
+
+    /**
+     * @return decoded value of a query string parameter, or null if absent
+     */
+    private static String param(String query, String name) throws IOException {
+        if (query == null) {
+            return null;
+        }
+        for (String param : query.split("&")) {
+            if (param.startsWith(name + "=")) {
+                return URLDecoder.decode(param.substring(name.length() + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.bson.Document;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Embedded message store made of append-only segment files and a
+ * memory-mapped index, so Mongster can persist messages without a MongoDB
+ * server. Stored messages survive a restart.
+ * <p>
+ * Files in the store directory:
+ * <pre>
+ *   segment-&lt;n&gt;.log   records: int length, long sequenceNumber,
+ *                      envelope sender, envelope receiver, int size, raw bytes
+ *   index.idx          header: int magic, int version, long count,
+ *                      long baseSequenceNumber, long reserved
+ *                      entries: long sequenceNumber, long segment, long offset
+ * </pre>
+ * Index entries are kept in sequence order. A new segment is started once
+ * the current one reaches {@code fileStoreSegmentBytes}. It is named after
+ * the sequence number of its first record, or one past the newest segment's
+ * name if that is higher (numbering restarts after {@link #removeFrom(long)}),
+ * so it is always a new file. {@link #removeBefore(long)} and
+ * {@link #removeFrom(long)} only rewrite the index; segment files no longer
+ * referenced by it are deleted.</p>
+ * <p>
+ * Queries read and parse every stored message. If text search is enabled,
+ * subjects and bodies are kept in a {@link TextIndex} keyed by sequence
+ * number, built from the stored messages when the store is opened.</p>
+ */
+class FileMessageStore implements MessageStore {
+
+    static final String INDEX_FILE = "index.idx";
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int MAGIC = 0x4d4e5354;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int COUNT_OFFSET = 8;
+    private static final int BASE_OFFSET = 16;
+    private static final int ENTRY_BYTES = 24;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final Wiser wiser;
+    private final File directory;
+    private final long segmentBytes;
+    private final FileChannel indexChannel;
+
+    /** Null unless text search is enabled */
+    private final TextIndex textIndex;
+
+    /** Index file, mapped to hold {@code capacity} entries */
+    private MappedByteBuffer index;
+    private int capacity;
+    private int count;
+
+    /** Open segment files by name (first sequence number) */
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<Long, FileChannel>();
+
+    /** Name of the segment being appended to, or -1 if there is none */
+    private long activeSegment = -1;
+
+    /** Total record bytes of the messages in the index */
+    private long bytes = 0;
+
+    FileMessageStore(Wiser wiser, MongsterConfig config) {
+        this.wiser = wiser;
+        this.segmentBytes = config.getFileStoreSegmentBytes();
+        this.textIndex = config.isTextSearchEnabled() ? new TextIndex(config.getContentExtraction()) : null;
+        directory = config.getFileStoreDirectory() != null ? new File(config.getFileStoreDirectory()) :
+            new File(new File(new File(System.getProperty("java.io.tmpdir"), "mongster"),
+                              config.getMongoDatabase()), config.getMongoCollection());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Unable to create file store directory " + directory);
+        }
+        try {
+            indexChannel = new RandomAccessFile(new File(directory, INDEX_FILE), "rw").getChannel();
+            final long existing = indexChannel.size();
+            capacity = (int) Math.max(INITIAL_CAPACITY, (existing - HEADER_BYTES) / ENTRY_BYTES);
+            map();
+            if (existing >= HEADER_BYTES && index.getInt(0) == MAGIC) {
+                count = (int) index.getLong(COUNT_OFFSET);
+            } else {
+                index.putInt(0, MAGIC);
+                index.putInt(4, VERSION);
+                writeHeader(0, 0);
+            }
+            final File[] files = directory.listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                final String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    final long segment = Long.parseLong(
+                        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(segment, new RandomAccessFile(file, "rw").getChannel());
+                }
+            }
+            activeSegment = segments.isEmpty() ? -1 : segments.lastKey();
+            for (int i = 0; i < count; i++) {
+                bytes += recordLength(i);
+                if (textIndex != null) {
+                    textIndex.add(sequenceNumber(i), ParsedMessage.parse(read(i).getData()));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open file store in " + directory, e);
+        }
+    }
+
+    /**
+     * @return directory holding the segment and index files
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public synchronized void add(WiserMessage message, ParsedMessage parsed, long seq) {
+        append(message, parsed, seq);
+    }
+
+    @Override
+    public synchronized void addAll(List<ReceivedMessage> batch) {
+        for (ReceivedMessage received : batch) {
+            append(received.message, received.parsed, received.sequenceNumber);
+        }
+    }
+
+    @Override
+    public synchronized long count() {
+        return count;
+    }
+
+    @Override
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized long lastSequenceNumber() {
+        return count == 0 ? -1 : sequenceNumber(count - 1);
+    }
+
+    @Override
+    public synchronized long baseSequenceNumber() {
+        return index.getLong(BASE_OFFSET);
+    }
+
+    @Override
+    public synchronized Long sequenceNumberAt(long position) {
+        return position < count ? sequenceNumber((int) position) : null;
+    }
+
+    @Override
+    public synchronized void clear() {
+        count = 0;
+        bytes = 0;
+        writeHeader(0, 0);
+        dropUnreferencedSegments(true);
+        if (textIndex != null) {
+            textIndex.clear();
+        }
+    }
+
+    @Override
+    public synchronized void removeFrom(long seq) {
+        final int from = position(seq);
+        for (int i = from; i < count; i++) {
+            unindex(i);
+        }
+        count = from;
+        writeHeader(count, baseSequenceNumber());
+        dropUnreferencedSegments(false);
+    }
+
+    @Override
+    public synchronized long removeBefore(long seq) {
+        final int first = position(seq);
+        for (int i = 0; i < first; i++) {
+            unindex(i);
+        }
+        // Shift surviving entries to the front, copying forward
+        for (int i = first; i < count; i++) {
+            final int from = HEADER_BYTES + i * ENTRY_BYTES;
+            final int to = HEADER_BYTES + (i - first) * ENTRY_BYTES;
+            index.putLong(to, index.getLong(from));
+            index.putLong(to + 8, index.getLong(from + 8));
+            index.putLong(to + 16, index.getLong(from + 16));
+        }
+        count -= first;
+        writeHeader(count, seq);
+        dropUnreferencedSegments(false);
+        return first;
+    }
+
+    @Override
+    public synchronized List<WiserMessage> find(MessageMatcher matcher, int limit) {
+        final List<WiserMessage> found = new ArrayList<WiserMessage>();
+        for (int i = 0; i < count && found.size() < limit; i++) {
+            final WiserMessage message = read(i);
+            if (matches(matcher, message)) {
+                found.add(message);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized MessagePage list(MessageListing listing) {
+        final List<Document> docs = new ArrayList<Document>();
+        final Long cursor = listing.getCursor();
+        final int step = listing.isDescending() ? -1 : 1;
+        int i = listing.isDescending() ? (cursor == null ? count : position(cursor)) - 1 :
+            (cursor == null ? 0 : position(cursor + 1));
+        for (; i >= 0 && i < count; i += step) {
+            final WiserMessage message = read(i);
+            final long seq = sequenceNumber(i);
+            final ParsedMessage headers = ParsedMessage.parse(message.getData());
+            if (listing.accepts(seq, message.getEnvelopeSender(), message.getEnvelopeReceiver(), headers)) {
+                if (docs.size() == listing.getLimit()) {
+                    return new MessagePage(docs, true);
+                }
+                docs.add(listing.summarize(seq, message.getEnvelopeSender(),
+                                           message.getEnvelopeReceiver(), headers));
+            }
+        }
+        return new MessagePage(docs, false);
+    }
+
+    @Override
+    public synchronized long count(MessageMatcher matcher) {
+        long matching = 0;
+        for (int i = 0; i < count; i++) {
+            if (matches(matcher, read(i))) {
+                matching++;
+            }
+        }
+        return matching;
+    }
+
+    @Override
+    public synchronized List<WiserMessage> search(String query, int limit) {
+        final List<WiserMessage> found = new ArrayList<WiserMessage>();
+        for (long seq : textIndex.search(query, limit)) {
+            found.add(read(position(seq)));
+        }
+        return found;
+    }
+
+    private static boolean matches(MessageMatcher matcher, WiserMessage message) {
+        if (matcher instanceof MessageQuery) {
+            final MessageQuery query = (MessageQuery) matcher;
+            return query.matches(message.getEnvelopeSender(), message.getEnvelopeReceiver(),
+                                 ParsedMessage.parse(message.getData()));
+        }
+        return matcher.matches(message);
+    }
+
+    /**
+     * Appends a record to the active segment and adds its index entry.
+     *
+     * @param parsed headers of {@code message}, or null to parse them if needed
+     */
+    private void append(WiserMessage message, ParsedMessage parsed, long seq) {
+        final byte[] record = encode(message, seq);
+        try {
+            FileChannel segment = activeSegment < 0 ? null : segments.get(activeSegment);
+            if (segment == null || (segment.size() > 0 && segment.size() + record.length > segmentBytes)) {
+                // Never reopen an older segment, which may be full or hold dropped records
+                activeSegment = segments.isEmpty() ? seq : Math.max(seq, segments.lastKey() + 1);
+                segment = new RandomAccessFile(segmentFile(activeSegment), "rw").getChannel();
+                segments.put(activeSegment, segment);
+            }
+            final long offset = segment.size();
+            final ByteBuffer buffer = ByteBuffer.wrap(record);
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                position += segment.write(buffer, position);
+            }
+            addEntry(seq, activeSegment, offset);
+            bytes += record.length;
+            if (textIndex != null) {
+                textIndex.add(seq, parsed != null ? parsed : ParsedMessage.parse(message.getData()));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write message " + seq + " to " + directory, e);
+        }
+    }
+
+    /**
+     * Inserts an index entry, keeping entries in sequence order.
+     */
+    private void addEntry(long seq, long segment, long offset) throws IOException {
+        if (count == capacity) {
+            capacity *= 2;
+            map();
+        }
+        int i = count;
+        while (i > 0 && sequenceNumber(i - 1) > seq) {
+            final int from = HEADER_BYTES + (i - 1) * ENTRY_BYTES;
+            index.putLong(from + ENTRY_BYTES, index.getLong(from));
+            index.putLong(from + ENTRY_BYTES + 8, index.getLong(from + 8));
+            index.putLong(from + ENTRY_BYTES + 16, index.getLong(from + 16));
+            i--;
+        }
+        final int at = HEADER_BYTES + i * ENTRY_BYTES;
+        index.putLong(at, seq);
+        index.putLong(at + 8, segment);
+        index.putLong(at + 16, offset);
+        count++;
+        index.putLong(COUNT_OFFSET, count);
+    }
+
+    /**
+     * Reads the message at a position in the index.
+     */
+    private WiserMessage read(int position) {
+        final int at = HEADER_BYTES + position * ENTRY_BYTES;
+        final long segment = index.getLong(at + 8);
+        final long offset = index.getLong(at + 16);
+        final FileChannel channel = segments.get(segment);
+        if (channel == null) {
+            throw new IllegalStateException("Missing segment " + segmentFile(segment));
+        }
+        try {
+            final ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(channel, length, offset);
+            final ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+            readFully(channel, record, offset + 4);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array()));
+            in.readLong();
+            final String envelopeSender = readString(in);
+            final String envelopeReceiver = readString(in);
+            final byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return Mongster.newWiserMessage(wiser, envelopeSender, envelopeReceiver, data);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read message at " + segment + ":" + offset +
+                                            " in " + directory, e);
+        }
+    }
+
+    /**
+     * Takes the message at a position in the index off the byte count and
+     * the text index, before its entry is dropped.
+     */
+    private void unindex(int position) {
+        bytes -= recordLength(position);
+        if (textIndex != null) {
+            textIndex.remove(sequenceNumber(position));
+        }
+    }
+
+    /**
+     * @return size of the record at a position in the index, including its length prefix
+     */
+    private long recordLength(int position) {
+        final int at = HEADER_BYTES + position * ENTRY_BYTES;
+        final FileChannel channel = segments.get(index.getLong(at + 8));
+        if (channel == null) {
+            return 0;
+        }
+        try {
+            final ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(channel, length, index.getLong(at + 16));
+            return 4 + length.getInt(0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read record length in " + directory, e);
+        }
+    }
+
+    private static byte[] encode(WiserMessage message, long seq) {
+        final byte[] data = message.getData();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 128);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0); // length, filled in below
+            out.writeLong(seq);
+            writeString(out, message.getEnvelopeSender());
+            writeString(out, message.getEnvelopeReceiver());
+            out.writeInt(data.length);
+            out.write(data);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by in-memory streams
+        }
+        final byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length - 4);
+        return record;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+            position += n;
+        }
+    }
+
+    private long sequenceNumber(int position) {
+        return index.getLong(HEADER_BYTES + position * ENTRY_BYTES);
+    }
+
+    /**
+     * @return index position of the first entry with sequence number at or above {@code seq}
+     */
+    private int position(long seq) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (sequenceNumber(mid) < seq) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void writeHeader(long count, long base) {
+        index.putLong(COUNT_OFFSET, count);
+        index.putLong(BASE_OFFSET, base);
+    }
+
+    private void map() throws IOException {
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) capacity * ENTRY_BYTES);
+    }
+
+    /**
+     * Closes and deletes segment files that no index entry refers to.
+     *
+     * @param all true to delete every segment, including the active one
+     */
+    private void dropUnreferencedSegments(boolean all) {
+        final Set<Long> referenced = new HashSet<Long>();
+        for (int i = 0; i < count; i++) {
+            referenced.add(index.getLong(HEADER_BYTES + i * ENTRY_BYTES + 8));
+        }
+        final Iterator<Map.Entry<Long, FileChannel>> it = segments.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Long, FileChannel> segment = it.next();
+            if (referenced.contains(segment.getKey()) || (!all && segment.getKey() == activeSegment)) {
+                continue;
+            }
+            try {
+                segment.getValue().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!segmentFile(segment.getKey()).delete()) {
+                System.err.println("Unable to delete " + segmentFile(segment.getKey()));
+            }
+            it.remove();
+        }
+        if (all) {
+            activeSegment = -1;
+        }
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.nio.charset.Charset;
+
+/**
+ * Bounded cache of header names, looked up by their raw bytes. A hit returns
+ * the same {@link Name} every time, holding the name as it appears in the
+ * message and its document field name, so parsing headers seen before
+ * allocates no strings for their names.
+ * <p>
+ * The cache is a direct-mapped table: a name hashing to an occupied slot
+ * replaces the entry there, so memory stays bounded however many distinct
+ * names arrive. Entries are immutable (final fields), so the table is read
+ * and written without locks.</p>
+ */
+final class HeaderNames {
+
+    /** Number of cached names - a power of two */
+    static final int SLOTS = 1024;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final Name[] TABLE = new Name[SLOTS];
+
+    private HeaderNames() {
+    }
+
+    /**
+     * A header name and its document field name.
+     */
+    static final class Name {
+        private final byte[] bytes;
+        /** Name as it appears in the message */
+        final String name;
+        /** Lower-case, dash-free name used as the document key */
+        final String fieldName;
+
+        private Name(byte[] bytes, String name) {
+            this.bytes = bytes;
+            this.name = name;
+            this.fieldName = fieldName(name);
+        }
+
+        private boolean matches(byte[] data, int offset, int length) {
+            if (bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != data[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the cached name for a range of ISO-8859-1 header bytes, adding
+     * it if it is not cached.
+     *
+     * @param data buffer holding the name
+     * @param offset start of the name
+     * @param length length of the name in bytes
+     * @return name with its field name
+     */
+    static Name lookup(byte[] data, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (SLOTS - 1);
+        final Name cached = TABLE[slot];
+        if (cached != null && cached.matches(data, offset, length)) {
+            return cached;
+        }
+        final byte[] bytes = new byte[length];
+        System.arraycopy(data, offset, bytes, 0, length);
+        final Name name = new Name(bytes, new String(bytes, ISO_8859_1));
+        TABLE[slot] = name;
+        return name;
+    }
+
+    /**
+     * @param name header name
+     * @return cached name equal to {@code name}
+     */
+    static Name lookup(String name) {
+        final byte[] bytes = name.getBytes(ISO_8859_1);
+        return lookup(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Converts a header name to all lower case and eliminates embedded dashes,
+     * making a valid json name that is simple to use in client code.
+     *
+     * @param headerName header name to fix
+     * @return lower-case, dash-free header name
+     */
+    static String fieldName(String headerName) {
+        return headerName.toLowerCase().replace("-", "");
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal HTTP endpoint for container health checks. {@code GET /health}
+ * answers 200 while the SMTP server is running, {@code GET /ready} answers
+ * 200 once {@link Mongster#isReady()} is true; both answer 503 otherwise.
+ */
+class HealthServer {
+
+    private final HttpServer server;
+
+    /**
+     * Starts serving health checks.
+     *
+     * @param mongster server to report on
+     * @param port port to listen on, 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    HealthServer(final Mongster mongster, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/health", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, mongster.isRunning(), "UP", "DOWN");
+            }
+        });
+        server.createContext("/ready", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, mongster.isReady(), "READY", "NOT READY");
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @return port the endpoint listens on
+     */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, boolean ok, String up, String down)
+        throws IOException {
+        final byte[] body = ((ok ? up : down) + "\n").getBytes(StandardCharsets.US_ASCII);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(ok ? 200 : 503, body.length);
+        final OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+}
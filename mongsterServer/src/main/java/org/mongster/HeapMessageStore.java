@@ -0,0 +1,227 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Keeps stored messages on the Java heap, in sequence order. Nothing survives
+ * a restart. Queries scan the stored messages, using the headers parsed on
+ * receipt. If text search is enabled, subjects and bodies are kept in a
+ * {@link TextIndex} keyed by sequence number.
+ */
+class HeapMessageStore implements MessageStore {
+
+    /** Stored messages ordered by sequence number */
+    private final List<ReceivedMessage> messages = new ArrayList<ReceivedMessage>();
+
+    private long baseSequenceNumber = 0;
+
+    /** Total raw bytes of stored messages */
+    private long bytes = 0;
+
+    /** Null unless text search is enabled */
+    private final TextIndex textIndex;
+
+    HeapMessageStore() {
+        textIndex = null;
+    }
+
+    HeapMessageStore(MongsterConfig config) {
+        textIndex = config.isTextSearchEnabled() ? new TextIndex(config.getContentExtraction()) : null;
+    }
+
+    @Override
+    public synchronized void add(WiserMessage message, ParsedMessage parsed, long seq) {
+        insert(new ReceivedMessage(message, parsed, seq));
+    }
+
+    @Override
+    public synchronized void addAll(List<ReceivedMessage> batch) {
+        for (ReceivedMessage received : batch) {
+            insert(received);
+        }
+    }
+
+    /**
+     * Appends a message, moving it back past any message with a higher
+     * sequence number (concurrent writers may deliver slightly out of order).
+     */
+    private void insert(ReceivedMessage received) {
+        int i = messages.size();
+        while (i > 0 && messages.get(i - 1).sequenceNumber > received.sequenceNumber) {
+            i--;
+        }
+        messages.add(i, received);
+        bytes += received.message.getData().length;
+        if (textIndex != null) {
+            textIndex.add(received.sequenceNumber, received.parsed);
+        }
+    }
+
+    /**
+     * Returns a stored message, for lists served directly from this store.
+     *
+     * @param position 0-based position in sequence order
+     * @return the message
+     */
+    synchronized WiserMessage get(int position) {
+        return messages.get(position).message;
+    }
+
+    @Override
+    public synchronized long count() {
+        return messages.size();
+    }
+
+    @Override
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized long lastSequenceNumber() {
+        return messages.isEmpty() ? -1 : messages.get(messages.size() - 1).sequenceNumber;
+    }
+
+    @Override
+    public synchronized long baseSequenceNumber() {
+        return baseSequenceNumber;
+    }
+
+    @Override
+    public synchronized Long sequenceNumberAt(long position) {
+        return position < messages.size() ? messages.get((int) position).sequenceNumber : null;
+    }
+
+    @Override
+    public synchronized void clear() {
+        messages.clear();
+        baseSequenceNumber = 0;
+        bytes = 0;
+        if (textIndex != null) {
+            textIndex.clear();
+        }
+    }
+
+    @Override
+    public synchronized void removeFrom(long seq) {
+        remove(messages.subList(position(seq), messages.size()));
+    }
+
+    @Override
+    public synchronized long removeBefore(long seq) {
+        final List<ReceivedMessage> removed = messages.subList(0, position(seq));
+        final int count = removed.size();
+        remove(removed);
+        baseSequenceNumber = seq;
+        return count;
+    }
+
+    private void remove(List<ReceivedMessage> range) {
+        for (ReceivedMessage received : range) {
+            bytes -= received.message.getData().length;
+            if (textIndex != null) {
+                textIndex.remove(received.sequenceNumber);
+            }
+        }
+        range.clear();
+    }
+
+    @Override
+    public synchronized List<WiserMessage> find(MessageMatcher matcher, int limit) {
+        final List<WiserMessage> found = new ArrayList<WiserMessage>();
+        for (int i = 0; i < messages.size() && found.size() < limit; i++) {
+            final ReceivedMessage received = messages.get(i);
+            if (matches(matcher, received)) {
+                found.add(received.message);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized MessagePage list(MessageListing listing) {
+        final List<Document> docs = new ArrayList<Document>();
+        final Long cursor = listing.getCursor();
+        final int step = listing.isDescending() ? -1 : 1;
+        int i = listing.isDescending() ? (cursor == null ? messages.size() : position(cursor)) - 1 :
+            (cursor == null ? 0 : position(cursor + 1));
+        for (; i >= 0 && i < messages.size(); i += step) {
+            final ReceivedMessage received = messages.get(i);
+            final String sender = received.message.getEnvelopeSender();
+            final String receiver = received.message.getEnvelopeReceiver();
+            if (listing.accepts(received.sequenceNumber, sender, receiver, received.parsed)) {
+                if (docs.size() == listing.getLimit()) {
+                    return new MessagePage(docs, true);
+                }
+                docs.add(listing.summarize(received.sequenceNumber, sender, receiver,
+                                           received.parsed));
+            }
+        }
+        return new MessagePage(docs, false);
+    }
+
+    @Override
+    public synchronized long count(MessageMatcher matcher) {
+        long count = 0;
+        for (ReceivedMessage received : messages) {
+            if (matches(matcher, received)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized List<WiserMessage> search(String query, int limit) {
+        final List<WiserMessage> found = new ArrayList<WiserMessage>();
+        for (long seq : textIndex.search(query, limit)) {
+            found.add(messages.get(position(seq)).message);
+        }
+        return found;
+    }
+
+    private static boolean matches(MessageMatcher matcher, ReceivedMessage received) {
+        if (matcher instanceof MessageQuery) {
+            return ((MessageQuery) matcher).matches(received.message.getEnvelopeSender(),
+                                                    received.message.getEnvelopeReceiver(),
+                                                    received.parsed);
+        }
+        return matcher.matches(received.message);
+    }
+
+    /**
+     * @return index of the first message with sequence number at or above {@code seq}
+     */
+    private int position(long seq) {
+        int low = 0;
+        int high = messages.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (messages.get(mid).sequenceNumber < seq) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
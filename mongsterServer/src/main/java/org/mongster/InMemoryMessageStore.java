@@ -0,0 +1,742 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mongster;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.mongster.MongsterConfig.EvictionPolicy;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Bounded in-memory store of received messages, kept in order of receipt.
+ * <p>
+ * Messages are held in an array of slots in receipt order. A removed message
+ * leaves its slot empty until the array fills up and is compacted, so a
+ * message is removed from any position, as LRU eviction does, without
+ * shifting the others. A Fenwick tree counting the occupied slots finds the
+ * message at a position in logarithmic time (constant time while no slot
+ * is empty). When {@code inMemoryMaxMessages} or
+ * {@code inMemoryMaxBytes} would be exceeded, messages are evicted according
+ * to the configured {@link EvictionPolicy}: the oldest received message (FIFO)
+ * or the message least recently returned by {@link #get(int)} (LRU). A zero
+ * limit means unbounded. The most recently added message is always retained,
+ * even if it alone exceeds the byte limit.</p>
+ * <p>
+ * Only raw message bytes and envelope addresses are kept; {@link WiserMessage}
+ * parses the {@code MimeMessage} on demand. If {@code offHeapPayloads} is set,
+ * raw bytes are copied into large direct {@code ByteBuffer} segments and a
+ * {@code WiserMessage} is recreated when the message is read.</p>
+ * <p>
+ * If {@code payloadDeduplication} is set, messages with the same
+ * {@link ParsedMessage#getPayloadId() payload id} share one copy of their
+ * raw bytes (one off-heap slice), counted once against
+ * {@code inMemoryMaxBytes} and released with the last message using it.</p>
+ * <p>
+ * Hash indexes on envelope recipient, envelope sender and Message-ID, and a
+ * sorted index on subject, answer {@link MessageQuery} lookups without
+ * scanning. Header queries on other headers scan the store. If text search
+ * is enabled, a {@link TextIndex} keyed by receipt id answers
+ * {@link #search(String, int)}.</p>
+ * <p>
+ * All methods are synchronized on the store.</p>
+ */
+class InMemoryMessageStore {
+
+    private final Wiser wiser;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final boolean lru;
+    private final PayloadArena arena;
+
+    /** Entries in receipt order, null where an entry was removed */
+    private Entry[] slots = new Entry[16];
+
+    /** Fenwick tree over {@code slots} (1-based) counting occupied slots */
+    private int[] occupied = new int[17];
+
+    /** First and one past the last occupied slot */
+    private int start = 0;
+    private int end = 0;
+
+    private int count = 0;
+    private long bytes = 0;
+    private long evicted = 0;
+
+    /** Least recently used entry (LRU policy only) */
+    private Entry lruHead;
+
+    /** Most recently used entry (LRU policy only) */
+    private Entry lruTail;
+
+    /** Receipt counter ordering query results and keying the text index */
+    private long nextId = 0;
+
+    private final Map<String, Set<Entry>> byRecipient = new HashMap<String, Set<Entry>>();
+    private final Map<String, Set<Entry>> bySender = new HashMap<String, Set<Entry>>();
+    private final Map<String, Set<Entry>> byMessageId = new HashMap<String, Set<Entry>>();
+    private final TreeMap<String, Set<Entry>> bySubject = new TreeMap<String, Set<Entry>>();
+
+    /** Null unless text search is enabled */
+    private final TextIndex textIndex;
+
+    /** Shared payloads by payload id - null unless payloadDeduplication is set */
+    private final Map<String, Payload> payloads;
+
+    /** Entries by receipt id, for text search results - null unless text search is enabled */
+    private final Map<Long, Entry> byId;
+
+    InMemoryMessageStore(Wiser wiser, MongsterConfig config) {
+        this.wiser = wiser;
+        this.maxMessages = config.getInMemoryMaxMessages();
+        this.maxBytes = config.getInMemoryMaxBytes();
+        this.lru = config.getEvictionPolicy() == EvictionPolicy.LRU;
+        this.arena = config.isOffHeapPayloads() ? new PayloadArena(config.getOffHeapSegmentBytes()) : null;
+        this.textIndex = config.isTextSearchEnabled() ? new TextIndex(config.getContentExtraction()) : null;
+        this.payloads = config.isPayloadDeduplication() ? new HashMap<String, Payload>() : null;
+        this.byId = textIndex != null ? new HashMap<Long, Entry>() : null;
+    }
+
+    /**
+     * Adds a message, evicting older ones if a limit would be exceeded.
+     *
+     * @param message message to add
+     */
+    void add(WiserMessage message) {
+        add(message, ParsedMessage.parse(message.getData()), -1);
+    }
+
+    /**
+     * Adds a message whose headers have already been parsed.
+     *
+     * @param message message to add
+     * @param parsed raw bytes and headers of {@code message}
+     * @param seq sequence number assigned to the message, -1 if none
+     */
+    synchronized void add(WiserMessage message, ParsedMessage parsed, long seq) {
+        final int length = message.getData().length;
+        final String payloadId = payloads == null ? null : parsed.getPayloadId();
+        while (count > 0 && ((maxMessages > 0 && count >= maxMessages) ||
+                             (maxBytes > 0 && bytes + (isHeld(payloadId) ? 0 : length) > maxBytes))) {
+            evictOne();
+        }
+        final Entry entry;
+        if (payloadId == null) {
+            entry = arena == null ? new Entry(message, length) :
+                new Entry(message.getEnvelopeSender(), message.getEnvelopeReceiver(), arena.store(message.getData()), length);
+            bytes += length;
+        } else {
+            Payload payload = payloads.get(payloadId);
+            if (payload == null) {
+                payload = arena == null ? new Payload(message.getData(), null) :
+                    new Payload(null, arena.store(message.getData()));
+                payloads.put(payloadId, payload);
+                bytes += length;
+            }
+            payload.refs++;
+            if (arena != null) {
+                entry = new Entry(message.getEnvelopeSender(), message.getEnvelopeReceiver(), payload.slice, length);
+            } else if (message.getData() != payload.data) {
+                entry = new Entry(Mongster.newWiserMessage(wiser, message.getEnvelopeSender(),
+                                                           message.getEnvelopeReceiver(), payload.data), length);
+            } else {
+                entry = new Entry(message, length);
+            }
+            entry.payloadId = payloadId;
+        }
+        entry.id = nextId++;
+        entry.seq = seq;
+        entry.receivedAt = System.currentTimeMillis();
+        entry.subject = parsed.getHeader("Subject");
+        entry.messageId = parsed.getHeader("Message-ID");
+        index(entry);
+        if (textIndex != null) {
+            textIndex.add(entry.id, parsed);
+            byId.put(entry.id, entry);
+        }
+        if (end == slots.length) {
+            compact();
+        }
+        entry.slot = end++;
+        slots[entry.slot] = entry;
+        mark(entry.slot, 1);
+        count++;
+        if (lru) {
+            linkLast(entry);
+        }
+    }
+
+    /**
+     * Returns the message at the given position in receipt order.
+     *
+     * @param index 0-based position among retained messages
+     * @return the message
+     */
+    synchronized WiserMessage get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        }
+        final Entry entry = slots[slotAt(index)];
+        if (lru) {
+            unlink(entry);
+            linkLast(entry);
+        }
+        return entry.toMessage();
+    }
+
+    /**
+     * Returns retained messages matching a query, in receipt order.
+     *
+     * @param query query to run
+     * @return matching messages
+     */
+    synchronized List<WiserMessage> find(MessageQuery query) {
+        final List<Entry> found = lookup(query);
+        final List<WiserMessage> result = new ArrayList<WiserMessage>(found.size());
+        for (Entry entry : found) {
+            result.add(entry.toMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Checks retained messages against a matcher in receipt order, under the
+     * store's lock so concurrent eviction cannot shift them. Unlike
+     * {@link #get(int)}, this does not count as use for LRU eviction.
+     *
+     * @param matcher condition to check
+     * @param limit maximum number of messages to return
+     * @return up to {@code limit} matching messages
+     */
+    synchronized List<WiserMessage> scan(MessageMatcher matcher, int limit) {
+        final List<WiserMessage> found = new ArrayList<WiserMessage>();
+        for (int i = start; i < end && found.size() < limit; i++) {
+            if (slots[i] != null) {
+                final WiserMessage message = slots[i].toMessage();
+                if (matcher.matches(message)) {
+                    found.add(message);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param query query to run
+     * @return number of retained messages matching the query
+     */
+    synchronized int count(MessageQuery query) {
+        return lookup(query).size();
+    }
+
+    /**
+     * Full-text search over retained messages.
+     *
+     * @param query search terms
+     * @param limit maximum number of messages to return
+     * @return up to {@code limit} matching messages, best match first
+     */
+    synchronized List<WiserMessage> search(String query, int limit) {
+        final List<Long> ids = textIndex.search(query, limit);
+        final List<WiserMessage> result = new ArrayList<WiserMessage>(ids.size());
+        for (long id : ids) {
+            result.add(byId.get(id).toMessage());
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return total raw bytes of retained messages
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return number of messages evicted to stay within limits
+     */
+    synchronized long evictedCount() {
+        return evicted;
+    }
+
+    synchronized void clear() {
+        for (int i = start; i < end; i++) {
+            if (slots[i] != null) {
+                release(slots[i]);
+            }
+        }
+        if (payloads != null) {
+            payloads.clear();
+        }
+        slots = new Entry[16];
+        occupied = new int[17];
+        start = 0;
+        end = 0;
+        count = 0;
+        bytes = 0;
+        lruHead = null;
+        lruTail = null;
+        byRecipient.clear();
+        bySender.clear();
+        byMessageId.clear();
+        bySubject.clear();
+        if (textIndex != null) {
+            textIndex.clear();
+            byId.clear();
+        }
+    }
+
+    /**
+     * Drops a message that was not stored after all. Searches from the most
+     * recent message, as the message is one that was only just added.
+     *
+     * @param seq sequence number of the message
+     * @return true if the message was held
+     */
+    synchronized boolean remove(long seq) {
+        for (int i = end - 1; i >= start; i--) {
+            if (slots[i] != null && slots[i].seq == seq) {
+                remove(slots[i]);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops messages after position {@code numMessages}.
+     *
+     * @param numMessages number of (earliest) messages to keep
+     */
+    synchronized void truncate(int numMessages) {
+        while (count > numMessages) {
+            remove(slots[end - 1]);
+        }
+    }
+
+    /**
+     * Drops all but the last {@code numMessages} messages.
+     *
+     * @param numMessages number of (latest) messages to keep
+     */
+    synchronized void tail(int numMessages) {
+        while (count > numMessages) {
+            remove(slots[start]);
+        }
+    }
+
+    /**
+     * Drops up to {@code limit} of the earliest messages that were received
+     * before {@code cutoffMillis} or are beyond a retention count or byte
+     * limit. Bounding the work done per call keeps the store's lock short.
+     *
+     * @param cutoffMillis drop messages received before this time
+     * @param maxMessages number of messages to keep, 0 for no limit
+     * @param maxBytes raw bytes to keep, 0 for no limit
+     * @param limit maximum number of messages to drop
+     * @return number of messages dropped
+     */
+    synchronized int trim(long cutoffMillis, long maxMessages, long maxBytes, int limit) {
+        int dropped = 0;
+        while (count > 0 && dropped < limit &&
+               (slots[start].receivedAt < cutoffMillis ||
+                (maxMessages > 0 && count > maxMessages) || (maxBytes > 0 && bytes > maxBytes))) {
+            remove(slots[start]);
+            dropped++;
+        }
+        return dropped;
+    }
+
+    private void evictOne() {
+        remove(lru ? lruHead : slots[start]);
+        evicted++;
+    }
+
+    /**
+     * Empties an entry's slot. The first and last occupied slots move past
+     * any empty ones, so they always hold entries unless the store is empty.
+     */
+    private void remove(Entry entry) {
+        drop(entry);
+        slots[entry.slot] = null;
+        mark(entry.slot, -1);
+        count--;
+        while (start < end && slots[start] == null) {
+            start++;
+        }
+        while (end > start && slots[end - 1] == null) {
+            end--;
+        }
+        if (count == 0) {
+            start = 0;
+            end = 0;
+        }
+    }
+
+    /**
+     * Finds the slot of the entry at a position in receipt order.
+     */
+    private int slotAt(int index) {
+        if (end - start == count) {
+            return start + index;
+        }
+        // Highest slot with fewer than index + 1 entries before it
+        int slot = 0;
+        int remaining = index + 1;
+        for (int step = Integer.highestOneBit(slots.length); step > 0; step >>= 1) {
+            if (slot + step <= slots.length && occupied[slot + step] < remaining) {
+                slot += step;
+                remaining -= occupied[slot];
+            }
+        }
+        return slot;
+    }
+
+    private void mark(int slot, int delta) {
+        for (int i = slot + 1; i <= slots.length; i += i & -i) {
+            occupied[i] += delta;
+        }
+    }
+
+    /**
+     * Moves the entries to the front of the slots, into a twice as large
+     * array if they fill more than half of it, and rebuilds the Fenwick tree.
+     * At least half the slots are free afterwards, so the cost is amortized
+     * over the adds that fill them.
+     */
+    private void compact() {
+        final Entry[] target = count > slots.length / 2 ? new Entry[slots.length * 2] : slots;
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            if (slots[i] != null) {
+                slots[i].slot = n;
+                target[n++] = slots[i];
+            }
+        }
+        Arrays.fill(target, n, target.length, null);
+        slots = target;
+        start = 0;
+        end = n;
+        occupied = new int[slots.length + 1];
+        for (int i = 1; i <= slots.length; i++) {
+            if (i <= n) {
+                occupied[i]++;
+            }
+            final int parent = i + (i & -i);
+            if (parent <= slots.length) {
+                occupied[parent] += occupied[i];
+            }
+        }
+    }
+
+    private void drop(Entry entry) {
+        unindex(entry);
+        if (textIndex != null) {
+            textIndex.remove(entry.id);
+            byId.remove(entry.id);
+        }
+        if (lru) {
+            unlink(entry);
+        }
+        release(entry);
+    }
+
+    /**
+     * Releases the raw bytes of a dropped entry, unless other entries share them.
+     */
+    private void release(Entry entry) {
+        if (entry.payloadId != null) {
+            final Payload payload = payloads.get(entry.payloadId);
+            if (payload == null || --payload.refs > 0) {
+                return;
+            }
+            payloads.remove(entry.payloadId);
+        }
+        bytes -= entry.length;
+        if (entry.segment != null) {
+            entry.segment.release();
+        }
+    }
+
+    private boolean isHeld(String payloadId) {
+        return payloadId != null && payloads.containsKey(payloadId);
+    }
+
+    private List<Entry> lookup(MessageQuery query) {
+        final String value = query.getValue();
+        switch (query.getKind()) {
+            case RECIPIENT:
+                return sorted(byRecipient.get(value));
+            case SENDER:
+                return sorted(bySender.get(value));
+            case SUBJECT_PREFIX:
+                final SortedMap<String, Set<Entry>> range = value.isEmpty() ? bySubject :
+                    bySubject.subMap(value, value + Character.MAX_VALUE);
+                final List<Entry> matches = new ArrayList<Entry>();
+                for (Set<Entry> entries : range.values()) {
+                    matches.addAll(entries);
+                }
+                Collections.sort(matches, RECEIPT_ORDER);
+                return matches;
+            default:
+                if (query.getName().equalsIgnoreCase("Subject")) {
+                    return sorted(bySubject.get(value));
+                }
+                if (query.getName().equalsIgnoreCase("Message-ID")) {
+                    return sorted(byMessageId.get(value));
+                }
+                final List<Entry> scanned = new ArrayList<Entry>();
+                for (int i = start; i < end; i++) {
+                    final Entry entry = slots[i];
+                    if (entry != null && query.matches(entry.toMessage())) {
+                        scanned.add(entry);
+                    }
+                }
+                return scanned;
+        }
+    }
+
+    private static List<Entry> sorted(Set<Entry> entries) {
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        // Index sets iterate in insertion order, which is receipt order
+        return new ArrayList<Entry>(entries);
+    }
+
+    private static final Comparator<Entry> RECEIPT_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return Long.compare(e1.id, e2.id);
+        }
+    };
+
+    private void index(Entry entry) {
+        put(byRecipient, entry.envelopeReceiver(), entry);
+        put(bySender, entry.envelopeSender(), entry);
+        put(byMessageId, entry.messageId, entry);
+        put(bySubject, entry.subject, entry);
+    }
+
+    private void unindex(Entry entry) {
+        remove(byRecipient, entry.envelopeReceiver(), entry);
+        remove(bySender, entry.envelopeSender(), entry);
+        remove(byMessageId, entry.messageId, entry);
+        remove(bySubject, entry.subject, entry);
+    }
+
+    private static void put(Map<String, Set<Entry>> index, String key, Entry entry) {
+        if (key == null) {
+            return;
+        }
+        Set<Entry> entries = index.get(key);
+        if (entries == null) {
+            entries = new LinkedHashSet<Entry>(2);
+            index.put(key, entries);
+        }
+        entries.add(entry);
+    }
+
+    private static void remove(Map<String, Set<Entry>> index, String key, Entry entry) {
+        if (key == null) {
+            return;
+        }
+        final Collection<Entry> entries = index.get(key);
+        if (entries != null) {
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private void linkLast(Entry entry) {
+        entry.prev = lruTail;
+        entry.next = null;
+        if (lruTail == null) {
+            lruHead = entry;
+        } else {
+            lruTail.next = entry;
+        }
+        lruTail = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.prev == null) {
+            lruHead = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if (entry.next == null) {
+            lruTail = entry.prev;
+        } else {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    /**
+     * Stored message. Either holds the received {@code WiserMessage} (on-heap) or
+     * the envelope plus the location of the raw bytes in an off-heap segment.
+     */
+    private class Entry {
+        final WiserMessage message;
+        final String envelopeSender;
+        final String envelopeReceiver;
+        final Segment segment;
+        final int offset;
+        final int length;
+        long id;
+        /** Position in {@code slots} */
+        int slot;
+        /** -1 if the message was added without a sequence number */
+        long seq;
+        long receivedAt;
+        /** Null unless payloads are shared */
+        String payloadId;
+        String subject;
+        String messageId;
+        Entry prev;
+        Entry next;
+
+        Entry(WiserMessage message, int length) {
+            this.message = message;
+            this.envelopeSender = null;
+            this.envelopeReceiver = null;
+            this.segment = null;
+            this.offset = 0;
+            this.length = length;
+        }
+
+        Entry(String envelopeSender, String envelopeReceiver, Slice slice, int length) {
+            this.message = null;
+            this.envelopeSender = envelopeSender;
+            this.envelopeReceiver = envelopeReceiver;
+            this.segment = slice.segment;
+            this.offset = slice.offset;
+            this.length = length;
+        }
+
+        String envelopeSender() {
+            return message != null ? message.getEnvelopeSender() : envelopeSender;
+        }
+
+        String envelopeReceiver() {
+            return message != null ? message.getEnvelopeReceiver() : envelopeReceiver;
+        }
+
+        WiserMessage toMessage() {
+            if (message != null) {
+                return message;
+            }
+            final byte[] data = new byte[length];
+            final ByteBuffer view = segment.buffer.duplicate();
+            view.position(offset);
+            view.get(data);
+            return Mongster.newWiserMessage(wiser, envelopeSender, envelopeReceiver, data);
+        }
+    }
+
+    /**
+     * Bump allocator over direct {@code ByteBuffer} segments. A segment is
+     * dropped once every payload stored in it has been released and it is no
+     * longer the segment being filled. Payloads larger than the segment size
+     * get a segment of their own.
+     */
+    private static class PayloadArena {
+        private final int segmentBytes;
+        private Segment current;
+
+        PayloadArena(int segmentBytes) {
+            this.segmentBytes = segmentBytes;
+        }
+
+        Slice store(byte[] data) {
+            if (current == null || current.buffer.remaining() < data.length) {
+                if (current != null) {
+                    current.sealed = true;
+                    current.releaseIfUnused();
+                }
+                current = new Segment(ByteBuffer.allocateDirect(Math.max(segmentBytes, data.length)));
+            }
+            final int offset = current.buffer.position();
+            current.buffer.put(data);
+            current.live++;
+            return new Slice(current, offset);
+        }
+    }
+
+    private static class Segment {
+        ByteBuffer buffer;
+        int live = 0;
+        boolean sealed = false;
+
+        Segment(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void release() {
+            live--;
+            releaseIfUnused();
+        }
+
+        /** Once sealed and empty, drops the buffer so it can be reclaimed */
+        void releaseIfUnused() {
+            if (sealed && live == 0) {
+                buffer = null;
+            }
+        }
+    }
+
+    /**
+     * Raw bytes shared by the entries with the same payload id.
+     */
+    private static class Payload {
+        final byte[] data;
+        final Slice slice;
+        int refs = 0;
+
+        Payload(byte[] data, Slice slice) {
+            this.data = data;
+            this.slice = slice;
+        }
+    }
+
+    private static class Slice {
+        final Segment segment;
+        final int offset;
+        Slice(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+}
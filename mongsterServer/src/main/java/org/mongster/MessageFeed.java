@@ -0,0 +1,230 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.mongster.Mongster.PersistedMessageList;
+import org.mongster.MongsterConfig.ContentExtraction;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Passes messages added to a {@link PersistedMessageList} on to
+ * {@link MessageSubscription}s in sequence number order. Concurrent SMTP
+ * sessions can finish out of order, so a message is held back until every
+ * lower sequence number has been added or given up. A sequence number that
+ * never shows up (a rejected or failed delivery) holds later messages back
+ * for at most {@link #GAP_MILLIS}.
+ * <p>
+ * Documents are built by the SMTP session thread that added the message,
+ * outside the feed's lock, which is only held to order and queue them.</p>
+ * <p>
+ * Created by the list when the first subscription is made; until then
+ * messages are not parsed or buffered for the feed.</p>
+ */
+class MessageFeed implements PersistedMessageList.MessageListener {
+
+    /** Longest time a missing sequence number holds back later messages */
+    static final long GAP_MILLIS = 500;
+
+    private final PersistedMessageList list;
+
+    /** Extracts {@code body} and {@code html} for subscriptions that list them */
+    private final ContentExtractor extractor;
+
+    /** Added messages waiting for lower sequence numbers; null values mark skipped numbers */
+    private final TreeMap<Long, Prepared> pending = new TreeMap<Long, Prepared>();
+
+    /** Sequence number of the next message to publish */
+    private long next = 0;
+
+    /** Whether the first pending message is waiting on a gap, and since when */
+    private boolean stalled = false;
+    private long stalledSince = 0;
+
+    /** Copied on write, so messages are prepared without holding the feed's lock */
+    private final List<MessageSubscription> subscriptions = new CopyOnWriteArrayList<MessageSubscription>();
+
+    MessageFeed(PersistedMessageList list, ContentExtraction extraction) {
+        this.list = list;
+        this.extractor = new ContentExtractor(extraction, false);
+    }
+
+    PersistedMessageList list() {
+        return list;
+    }
+
+    /**
+     * Starts a subscription. Messages published from now on are queued for
+     * it; earlier ones after {@code since} are read back from the backend.
+     */
+    synchronized MessageSubscription subscribe(MessageListing listing, long since, int capacity) {
+        final MessageSubscription subscription = new MessageSubscription(this, listing, since, next, capacity);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    synchronized void unsubscribe(MessageSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * Builds the message's documents for the current subscriptions on the
+     * calling SMTP session's thread, then takes the feed's lock only to put
+     * the message in order and queue the documents.
+     */
+    @Override
+    public void messageAdded(WiserMessage message, long seq) {
+        final Prepared prepared = new Prepared(message, seq);
+        for (MessageSubscription subscription : subscriptions) {
+            prepared.summarize(subscription);
+        }
+        synchronized (this) {
+            if (seq < next) {
+                // Late: its gap was given up on, or it was numbered before a reset
+                publish(prepared);
+                return;
+            }
+            pending.put(seq, prepared);
+            drain();
+        }
+    }
+
+    /**
+     * Records that a sequence number was assigned to a message that will
+     * not be added, so later messages need not wait for it.
+     */
+    synchronized void skip(long seq) {
+        if (seq >= next) {
+            pending.put(seq, null);
+            drain();
+        }
+    }
+
+    /**
+     * Gives up on missing sequence numbers that have held back later
+     * messages for {@link #GAP_MILLIS} or more. Called by waiting subscribers.
+     */
+    synchronized void releaseStalled() {
+        if (stalled && System.nanoTime() - stalledSince >= TimeUnit.MILLISECONDS.toNanos(GAP_MILLIS)) {
+            next = pending.firstKey();
+            drain();
+        }
+    }
+
+    /**
+     * Restarts numbering after the list is cleared or truncated. Pending
+     * messages are dropped, and subscriptions stop reading back from the
+     * backend.
+     *
+     * @param next sequence number the list will assign next
+     */
+    synchronized void reset(long next) {
+        this.next = next;
+        pending.clear();
+        stalled = false;
+        for (MessageSubscription subscription : subscriptions) {
+            subscription.reset(next);
+        }
+    }
+
+    private void drain() {
+        boolean progress = false;
+        while (!pending.isEmpty() && pending.firstKey() == next) {
+            final Map.Entry<Long, Prepared> first = pending.pollFirstEntry();
+            if (first.getValue() != null) {
+                publish(first.getValue());
+            }
+            next++;
+            progress = true;
+        }
+        if (pending.isEmpty()) {
+            stalled = false;
+        } else if (progress || !stalled) {
+            stalled = true;
+            stalledSince = System.nanoTime();
+        }
+    }
+
+    private void publish(Prepared prepared) {
+        for (MessageSubscription subscription : subscriptions) {
+            if (prepared.seq < subscription.liveFrom()) {
+                continue;
+            }
+            // Subscriptions made while the message was prepared get theirs here
+            final Document doc = prepared.summarize(subscription);
+            if (doc != null && !subscription.offer(doc)) {
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * An added message and its documents, by subscription. Used by one
+     * thread at a time: the adding thread, then the one holding the lock.
+     */
+    private class Prepared {
+        final WiserMessage message;
+        final long seq;
+        private final Map<MessageSubscription, Document> docs =
+            new IdentityHashMap<MessageSubscription, Document>();
+        private ParsedMessage parsed;
+        private ContentExtractor.Extracted extracted;
+
+        Prepared(WiserMessage message, long seq) {
+            this.message = message;
+            this.seq = seq;
+        }
+
+        /**
+         * @return the subscription's document, or null if its filters do not match
+         */
+        Document summarize(MessageSubscription subscription) {
+            if (docs.containsKey(subscription)) {
+                return docs.get(subscription);
+            }
+            if (parsed == null) {
+                parsed = ParsedMessage.parse(message.getData());
+            }
+            final String sender = message.getEnvelopeSender();
+            final String receiver = message.getEnvelopeReceiver();
+            final MessageListing listing = subscription.listing;
+            Document doc = null;
+            if (listing.matches(sender, receiver, parsed)) {
+                doc = listing.summarize(seq, sender, receiver, parsed);
+                if (listing.lists(ContentExtractor.BODY) || listing.lists(ContentExtractor.HTML)) {
+                    if (extracted == null) {
+                        extracted = extractor.extract(parsed);
+                    }
+                    if (extracted != null && extracted.body() != null && listing.lists(ContentExtractor.BODY)) {
+                        doc.append(ContentExtractor.BODY, extracted.body());
+                    }
+                    if (extracted != null && extracted.html != null && listing.lists(ContentExtractor.HTML)) {
+                        doc.append(ContentExtractor.HTML, extracted.html);
+                    }
+                }
+            }
+            docs.put(subscription, doc);
+            return doc;
+        }
+    }
+}
@@ -0,0 +1,664 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Write-ahead journal for received messages. Each message is appended to a
+ * memory-mapped segment file before the SMTP reply; a background replayer
+ * writes journaled messages to the {@link MessageStore} in batches and
+ * records its progress in a checkpoint file. If the backend fails, the
+ * replayer retries with increasing delays, so messages are accepted while
+ * MongoDB is unavailable. Messages not yet replayed when the server stops
+ * (or crashes) are replayed on the next start.
+ * <p>
+ * Files in the journal directory:
+ * <pre>
+ *   journal-&lt;n&gt;.log   fixed-size, zero-filled segments of records:
+ *                      int length, int crc32, long sequenceNumber,
+ *                      envelope sender, envelope receiver, raw bytes
+ *   checkpoint         long segment, int offset of the first record not replayed
+ * </pre>
+ * A record's length is written last, so a zero length marks the end of the
+ * journal. Records with a bad checksum (torn writes) are treated as the end
+ * of their segment. Segments before the checkpoint are deleted.</p>
+ * <p>
+ * Sequence numbers are assigned as messages are appended, so journal order
+ * is sequence order. After a crash between a backend write and the following
+ * checkpoint, recovered records already in the backend are recognised by
+ * sequence number and skipped. Finding them needs the backend's last
+ * sequence number, which is read by whoever starts the replayer (see
+ * {@link #setReplayFloor(long)}), not when the journal is opened, so that
+ * opening the journal does not wait for MongoDB.</p>
+ */
+class MessageJournal implements Runnable {
+
+    static final String SEGMENT_PREFIX = "journal-";
+    static final String SEGMENT_SUFFIX = ".log";
+    static final String CHECKPOINT_FILE = "checkpoint";
+
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5000;
+
+    /** Longest time {@link #drain()} waits for the replayer */
+    static final long DRAIN_TIMEOUT_MILLIS = 2 * MAX_RETRY_DELAY_MILLIS;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Wiser wiser;
+    private final MessageStore backend;
+    private final MongsterMetrics metrics;
+    private final File directory;
+    private final int segmentBytes;
+    private final int batchSize;
+    private final long retryDelayMillis;
+    private final boolean force;
+    private final FileChannel checkpointChannel;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Everything below is guarded by this
+
+    /** Segment being appended to and the offset of the next record */
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+
+    /** Segment being replayed; its position is the next record to read */
+    private long readSegment;
+    private MappedByteBuffer readBuffer;
+
+    /** Records appended (or recovered) and records replayed (or skipped) */
+    private long appended = 0;
+    private long replayed = 0;
+
+    /** Highest sequence number appended, -1 if none */
+    private long lastSequenceNumber = -1;
+
+    /**
+     * Recovered records with sequence numbers at or below {@code replayFloor}
+     * are already in the backend. Only applies while {@code recovered} is
+     * positive, as sequence numbers restart after a clear.
+     */
+    private long replayFloor = -1;
+    private long recovered = 0;
+
+    /** Sequence numbers of the recovered records, until the replay floor is set */
+    private List<Long> recoveredSequenceNumbers = new ArrayList<Long>();
+
+    /** Number of recovered records not already in the backend */
+    private long pendingAtOpen = 0;
+
+    /** True while the replayer is writing a batch */
+    private boolean inFlight = false;
+
+    /** Set by {@link #clear()} to abandon the batch in flight */
+    private boolean discarded = false;
+
+    /** True while {@link #clear()} waits for the batch in flight */
+    private boolean clearing = false;
+
+    /** True while the last backend write failed */
+    private boolean failing = false;
+
+    MessageJournal(Wiser wiser, MessageStore backend, MongsterConfig config, MongsterMetrics metrics) {
+        this.wiser = wiser;
+        this.backend = backend;
+        this.metrics = metrics;
+        this.segmentBytes = config.getJournalSegmentBytes();
+        this.batchSize = Math.max(1, config.getWriteBatchSize());
+        this.retryDelayMillis = Math.max(1, config.getWriteBatchDelayMillis());
+        this.force = config.isJournalForce();
+        directory = config.getJournalDirectory() != null ? new File(config.getJournalDirectory()) :
+            new File(new File(new File(System.getProperty("java.io.tmpdir"), "mongster"),
+                              config.getMongoDatabase()), config.getMongoCollection() + "-journal");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Unable to create journal directory " + directory);
+        }
+        try {
+            checkpointChannel = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw").getChannel();
+            recover();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open journal in " + directory, e);
+        }
+        thread = new Thread(this, "mongster-journal-" + config.getMongoCollection());
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Records the backend's last sequence number, so that recovered records
+     * already written are skipped, and counts the recovered records that are
+     * not. Call before {@link #start()}; until then every recovered record
+     * counts as pending.
+     *
+     * @param floor highest sequence number in the backend, or -1 if it is empty
+     */
+    synchronized void setReplayFloor(long floor) {
+        if (recoveredSequenceNumbers == null) {
+            return;
+        }
+        replayFloor = floor;
+        pendingAtOpen = 0;
+        for (long seq : recoveredSequenceNumbers) {
+            if (seq > floor) {
+                pendingAtOpen++;
+            }
+        }
+    }
+
+    /**
+     * Starts replaying journaled messages to the backend.
+     */
+    void start() {
+        synchronized (this) {
+            recoveredSequenceNumbers = null;
+        }
+        thread.start();
+    }
+
+    /**
+     * Appends a message to the journal, assigning its sequence number.
+     *
+     * @param message received message
+     * @param sequence counter to take the message's sequence number from
+     * @return sequence number assigned to the message
+     */
+    long append(WiserMessage message, AtomicLong sequence) {
+        final byte[] data = message.getData();
+        final byte[] sender = encode(message.getEnvelopeSender());
+        final byte[] receiver = encode(message.getEnvelopeReceiver());
+        final int length = 8 + 4 + (sender == null ? 0 : sender.length) +
+            4 + (receiver == null ? 0 : receiver.length) + data.length;
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        synchronized (this) {
+            final long seq = sequence.getAndIncrement();
+            final ByteBuffer header = ByteBuffer.allocate(length - data.length);
+            header.putLong(seq);
+            putString(header, sender);
+            putString(header, receiver);
+            crc.update(header.array());
+            try {
+                if (writeBuffer.remaining() < RECORD_HEADER_BYTES + length) {
+                    roll(RECORD_HEADER_BYTES + length);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to start journal segment in " + directory, e);
+            }
+            final int offset = writeBuffer.position();
+            writeBuffer.position(offset + RECORD_HEADER_BYTES);
+            writeBuffer.put(header.array());
+            writeBuffer.put(data);
+            writeBuffer.putInt(offset + 4, (int) crc.getValue());
+            writeBuffer.putInt(offset, length);
+            if (force) {
+                writeBuffer.force();
+            }
+            appended++;
+            lastSequenceNumber = seq;
+            notifyAll();
+            return seq;
+        }
+    }
+
+    /**
+     * @return highest sequence number in the journal, or -1 if it is empty
+     */
+    synchronized long lastSequenceNumber() {
+        return lastSequenceNumber;
+    }
+
+    /**
+     * @return number of journaled messages not yet written to the backend
+     */
+    synchronized long pending() {
+        return appended - replayed;
+    }
+
+    /**
+     * @return number of messages found in the journal at startup that were not
+     * yet in the backend
+     */
+    synchronized long recoveredPending() {
+        return pendingAtOpen;
+    }
+
+    /**
+     * Blocks until every message appended before this call has been written
+     * to the backend, unless backend writes are currently failing.
+     */
+    synchronized void flush() {
+        final long target = appended;
+        while (replayed < target && !failing && thread.isAlive()) {
+            try {
+                wait(retryDelayMillis + 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits for every message appended before this call to be written to the
+     * backend, even while backend writes are failing: the replayer is woken
+     * to retry at once. Gives up after {@link #DRAIN_TIMEOUT_MILLIS}.
+     *
+     * @return true if nothing appended before the call is left to replay
+     */
+    synchronized boolean drain() {
+        final long target = appended;
+        final long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (replayed < target && thread.isAlive()) {
+            final long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                break;
+            }
+            notifyAll();
+            try {
+                wait(Math.min(left, retryDelayMillis + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return replayed >= target;
+    }
+
+    /**
+     * Discards every journaled message that has not been replayed, waiting
+     * for a backend write in progress to finish or be abandoned.
+     */
+    synchronized void clear() {
+        discarded = inFlight;
+        // Keeps the replayer from reading on from the old position meanwhile
+        clearing = true;
+        while (inFlight) {
+            notifyAll();
+            try {
+                wait(retryDelayMillis + 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        clearing = false;
+        try {
+            readSegment = writeSegment;
+            readBuffer = map(writeSegment, writeBuffer.capacity());
+            readBuffer.position(writeBuffer.position());
+            checkpoint();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to clear journal in " + directory, e);
+        }
+        deleteSegmentsBefore(readSegment);
+        replayed = appended;
+        recovered = 0;
+        notifyAll();
+    }
+
+    /**
+     * Stops the replayer after it writes pending messages, or at once if
+     * backend writes are failing. Unreplayed messages stay in the journal.
+     * The journal can still be cleared afterwards.
+     */
+    void shutdown() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return directory holding the journal segments and checkpoint
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final List<ReceivedMessage> batch = new ArrayList<ReceivedMessage>(batchSize);
+            final int read;
+            try {
+                read = nextBatch(batch);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (read < 0) {
+                return;
+            }
+            if (write(batch)) {
+                commit(read);
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits for journaled messages and reads up to {@code batchSize} of them.
+     *
+     * @param batch list to add messages to - recovered messages already in the
+     * backend are read but not added
+     * @return number of records read, or -1 if the replayer should stop
+     */
+    private synchronized int nextBatch(List<ReceivedMessage> batch) throws InterruptedException {
+        while (replayed == appended || clearing) {
+            if (!running) {
+                return -1;
+            }
+            wait(retryDelayMillis);
+        }
+        int read = 0;
+        try {
+            while (read < batchSize && replayed + read < appended) {
+                final byte[] payload = readRecord(readBuffer, readBuffer.position());
+                if (payload == null) {
+                    if (readSegment >= writeSegment) {
+                        throw new IllegalStateException("Journal record missing at " + readSegment + ":" +
+                                                        readBuffer.position() + " in " + directory);
+                    }
+                    readSegment++;
+                    readBuffer = map(readSegment, 0);
+                    continue;
+                }
+                readBuffer.position(readBuffer.position() + RECORD_HEADER_BYTES + payload.length);
+                read++;
+                final ReceivedMessage received = decode(payload);
+                if (recovered > 0 && received.sequenceNumber <= replayFloor) {
+                    continue;
+                }
+                batch.add(received);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read journal segment " + readSegment +
+                                            " in " + directory, e);
+        }
+        inFlight = true;
+        return read;
+    }
+
+    /**
+     * Writes a batch to the backend, retrying until it succeeds.
+     *
+     * @return true if the batch was written (or discarded by a clear), false
+     * if the journal was shut down while the backend was failing
+     */
+    private boolean write(List<ReceivedMessage> batch) {
+        long delay = retryDelayMillis;
+        while (!batch.isEmpty()) {
+            final long start = metrics == null ? 0 : System.nanoTime();
+            try {
+                backend.addAll(batch);
+                if (metrics != null) {
+                    metrics.insert.recordSince(start);
+                }
+                synchronized (this) {
+                    failing = false;
+                }
+                return true;
+            } catch (RuntimeException e) {
+                if (metrics != null) {
+                    metrics.mongoError(batch.size());
+                }
+                synchronized (this) {
+                    if (!failing) {
+                        e.printStackTrace();
+                    }
+                    failing = true;
+                    notifyAll();
+                    if (discarded) {
+                        return true;
+                    }
+                    if (!running) {
+                        inFlight = false;
+                        notifyAll();
+                        return false;
+                    }
+                    try {
+                        wait(delay);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        inFlight = false;
+                        return false;
+                    }
+                    if (discarded) {
+                        return true;
+                    }
+                }
+                delay = Math.min(delay * 2, MAX_RETRY_DELAY_MILLIS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records that {@code read} records have been replayed, unless the batch
+     * was discarded, and deletes segments that have been fully replayed.
+     */
+    private synchronized void commit(int read) {
+        inFlight = false;
+        if (discarded) {
+            discarded = false;
+            notifyAll();
+            return;
+        }
+        replayed += read;
+        recovered = Math.max(0, recovered - read);
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        deleteSegmentsBefore(readSegment);
+        notifyAll();
+    }
+
+    /**
+     * Opens the segments after the checkpoint, counting the records left to
+     * replay and finding where the next record goes.
+     */
+    private void recover() throws IOException {
+        final TreeSet<Long> ids = new TreeSet<Long>();
+        final File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            final String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                ids.add(Long.parseLong(
+                    name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        int offset = 0;
+        if (checkpointChannel.size() >= 12) {
+            final ByteBuffer checkpoint = ByteBuffer.allocate(12);
+            checkpointChannel.read(checkpoint, 0);
+            readSegment = checkpoint.getLong(0);
+            offset = checkpoint.getInt(8);
+        } else {
+            readSegment = ids.isEmpty() ? 0 : ids.first();
+        }
+        deleteSegmentsBefore(readSegment);
+        readBuffer = map(readSegment, 0);
+        readBuffer.position(Math.min(offset, readBuffer.capacity()));
+        int position = readBuffer.position();
+        final long last = ids.isEmpty() ? readSegment : Math.max(readSegment, ids.last());
+        for (long id = readSegment; id <= last; id++) {
+            final MappedByteBuffer buffer = map(id, 0);
+            byte[] payload;
+            while ((payload = readRecord(buffer, position)) != null) {
+                final long seq = ByteBuffer.wrap(payload).getLong(0);
+                appended++;
+                lastSequenceNumber = Math.max(lastSequenceNumber, seq);
+                recoveredSequenceNumbers.add(seq);
+                pendingAtOpen++;
+                position += RECORD_HEADER_BYTES + payload.length;
+            }
+            writeSegment = id;
+            writeBuffer = buffer;
+            if (id < last) {
+                position = 0;
+            }
+        }
+        recovered = appended;
+        // Zero anything after the last good record, such as a torn write
+        for (int i = position; i < writeBuffer.capacity() && i < position + RECORD_HEADER_BYTES; i++) {
+            writeBuffer.put(i, (byte) 0);
+        }
+        writeBuffer.position(position);
+    }
+
+    /**
+     * Starts a new segment big enough for a record of {@code required} bytes.
+     */
+    private void roll(int required) throws IOException {
+        writeSegment++;
+        writeBuffer = map(writeSegment, Math.max(segmentBytes, required));
+    }
+
+    /**
+     * Maps a segment file, creating it if necessary.
+     *
+     * @param id segment number
+     * @param size size of a new segment, 0 for the default
+     */
+    private MappedByteBuffer map(long id, int size) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(segmentFile(id), "rw");
+        try {
+            final long length = file.length() > 0 ? file.length() : Math.max(size, segmentBytes);
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        final ByteBuffer checkpoint = ByteBuffer.allocate(12);
+        checkpoint.putLong(0, readSegment);
+        checkpoint.putInt(8, readBuffer.position());
+        checkpointChannel.write(checkpoint, 0);
+        if (force) {
+            checkpointChannel.force(false);
+        }
+    }
+
+    private void deleteSegmentsBefore(long id) {
+        final File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            final String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) &&
+                Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                              name.length() - SEGMENT_SUFFIX.length())) < id &&
+                !file.delete()) {
+                System.err.println("Unable to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads the payload of the record at {@code offset}.
+     *
+     * @return record payload, or null if there is no valid record there
+     */
+    private static byte[] readRecord(ByteBuffer buffer, int offset) {
+        if (offset + RECORD_HEADER_BYTES > buffer.capacity()) {
+            return null;
+        }
+        final int length = buffer.getInt(offset);
+        if (length <= 0 || length > buffer.capacity() - offset - RECORD_HEADER_BYTES) {
+            return null;
+        }
+        final byte[] payload = new byte[length];
+        final ByteBuffer record = buffer.duplicate();
+        record.position(offset + RECORD_HEADER_BYTES);
+        record.get(payload);
+        // The checksum covers the raw bytes followed by the fields before them
+        final ByteBuffer fields = ByteBuffer.wrap(payload);
+        try {
+            fields.getLong();
+            skipString(fields);
+            skipString(fields);
+        } catch (RuntimeException e) {
+            return null; // garbled field lengths
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(payload, fields.position(), length - fields.position());
+        crc.update(payload, 0, fields.position());
+        return (int) crc.getValue() == buffer.getInt(offset + 4) ? payload : null;
+    }
+
+    private ReceivedMessage decode(byte[] payload) {
+        final ByteBuffer fields = ByteBuffer.wrap(payload);
+        final long seq = fields.getLong();
+        final String envelopeSender = getString(fields);
+        final String envelopeReceiver = getString(fields);
+        final byte[] data = new byte[fields.remaining()];
+        fields.get(data);
+        return new ReceivedMessage(Mongster.newWiserMessage(wiser, envelopeSender, envelopeReceiver, data),
+                                   ParsedMessage.parse(data), seq);
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(UTF8);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        buffer.putInt(value == null ? -1 : value.length);
+        if (value != null) {
+            buffer.put(value);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final String value = new String(buffer.array(), buffer.position(), length, UTF8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length > 0) {
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+
+/**
+ * Request for one page of stored messages, for browsing large mailboxes.
+ * Pages are ordered by {@code sequenceNumber}, oldest first unless
+ * {@link #descending()} is set, and continue after a cursor: pass the
+ * {@link MessagePage#getNextCursor()} of one page to {@link #after(long)} to
+ * get the next. Unlike offsets, cursors stay valid while messages arrive or
+ * are trimmed.
+ * <p>
+ * Listed documents never include raw message bytes ({@code bytes64},
+ * {@code raw}, {@code rawFileId}) or attachment content. {@link #fields}
+ * narrows them further to the named fields (plus {@code sequenceNumber}).
+ * With the MONGO backend the documents are the stored documents; the other
+ * backends list the envelope and headers only.</p>
+ */
+public final class MessageListing {
+
+    /** Page size used unless {@link #limit(int)} is called */
+    public static final int DEFAULT_LIMIT = 50;
+
+    /** Largest page size */
+    public static final int MAX_LIMIT = 1000;
+
+    /** Fields never listed */
+    static final List<String> RAW_FIELDS = Collections.unmodifiableList(Arrays.asList(
+        RawContentStore.BYTES64, RawContentStore.RAW, RawContentStore.RAW_FILE_ID,
+        ContentExtractor.ATTACHMENTS + ".data"));
+
+    /** Attachment fields listed when "attachments" is requested */
+    private static final String[] ATTACHMENT_METADATA = {"filename", "contentType", "disposition", "contentId", "size"};
+
+    private int limit = DEFAULT_LIMIT;
+    private Long cursor = null;
+    private boolean descending = false;
+    private final List<MessageQuery> filters = new ArrayList<MessageQuery>();
+    private List<String> fields = null;
+
+    /**
+     * @return listing of the first {@link #DEFAULT_LIMIT} messages, oldest first
+     */
+    public static MessageListing first() {
+        return new MessageListing();
+    }
+
+    /**
+     * Parses a URL query string such as
+     * {@code limit=20&after=1041&order=desc&recipient=a%40b.com&fields=subject,date}.
+     * Other parameters are {@code sender}, {@code subject} (prefix) and
+     * {@code header} (as {@code name:value}). Unknown parameters are ignored.
+     *
+     * @param query query string, with or without a leading '?'; may be null
+     * @return listing described by the parameters
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    public static MessageListing fromQueryString(String query) {
+        final MessageListing listing = new MessageListing();
+        if (query == null) {
+            return listing;
+        }
+        for (String param : query.replaceFirst("^\\?", "").split("&")) {
+            final int eq = param.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            final String name = param.substring(0, eq);
+            final String value = decode(param.substring(eq + 1));
+            if (value.isEmpty()) {
+                continue;
+            }
+            try {
+                switch (name) {
+                    case "limit":
+                        listing.limit(Integer.parseInt(value));
+                        break;
+                    case "after":
+                        listing.after(Long.parseLong(value));
+                        break;
+                    case "order":
+                        if (value.equalsIgnoreCase("desc")) {
+                            listing.descending();
+                        }
+                        break;
+                    case "recipient":
+                        listing.matching(MessageQuery.recipient(value));
+                        break;
+                    case "sender":
+                        listing.matching(MessageQuery.sender(value));
+                        break;
+                    case "subject":
+                        listing.matching(MessageQuery.subjectPrefix(value));
+                        break;
+                    case "header":
+                        final int colon = value.indexOf(':');
+                        if (colon <= 0) {
+                            throw new IllegalArgumentException("Expecting header=name:value, got " + value);
+                        }
+                        listing.matching(MessageQuery.header(value.substring(0, colon),
+                                                             value.substring(colon + 1)));
+                        break;
+                    case "fields":
+                        listing.fields(value.split(","));
+                        break;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + name + ": " + value);
+            }
+        }
+        return listing;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always supported
+        }
+    }
+
+    /**
+     * @param limit maximum number of messages on the page, at most {@link #MAX_LIMIT}
+     * @return this listing
+     */
+    public MessageListing limit(int limit) {
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("Page limit must be between 1 and " + MAX_LIMIT);
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * @param cursor sequence number of the last message already seen
+     * @return this listing
+     */
+    public MessageListing after(long cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    /**
+     * Lists the newest messages first.
+     *
+     * @return this listing
+     */
+    public MessageListing descending() {
+        this.descending = true;
+        return this;
+    }
+
+    /**
+     * Only lists messages matching {@code query}, in addition to any other
+     * queries given.
+     *
+     * @param query condition listed messages must satisfy
+     * @return this listing
+     */
+    public MessageListing matching(MessageQuery query) {
+        filters.add(query);
+        return this;
+    }
+
+    /**
+     * @param fields document fields to list (header fields use the stored,
+     * lower-case dash-free names)
+     * @return this listing
+     */
+    public MessageListing fields(String... fields) {
+        final List<String> names = new ArrayList<String>();
+        for (String field : fields) {
+            if (!field.trim().isEmpty()) {
+                names.add(field.trim());
+            }
+        }
+        this.fields = names;
+        return this;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    Long getCursor() {
+        return cursor;
+    }
+
+    boolean isDescending() {
+        return descending;
+    }
+
+    List<MessageQuery> getFilters() {
+        return filters;
+    }
+
+    /**
+     * @return MongoDB filter combining the queries and the cursor
+     */
+    Bson toFilter() {
+        final List<Bson> clauses = new ArrayList<Bson>();
+        for (MessageQuery query : filters) {
+            clauses.add(query.toFilter());
+        }
+        if (cursor != null) {
+            clauses.add(descending ? Filters.lt(MongoMessageStore.SEQUENCE_NUMBER, cursor) :
+                        Filters.gt(MongoMessageStore.SEQUENCE_NUMBER, cursor));
+        }
+        return clauses.isEmpty() ? new Document() : Filters.and(clauses);
+    }
+
+    /**
+     * @return MongoDB projection leaving out raw bytes, or keeping only the requested fields
+     */
+    Bson toProjection() {
+        if (fields == null) {
+            return Projections.exclude(RAW_FIELDS);
+        }
+        final List<String> include = new ArrayList<String>(fields);
+        include.removeAll(RAW_FIELDS);
+        if (include.remove(ContentExtractor.ATTACHMENTS)) {
+            // Attachment metadata without content
+            for (String field : ATTACHMENT_METADATA) {
+                include.add(ContentExtractor.ATTACHMENTS + "." + field);
+            }
+        }
+        include.add(MongoMessageStore.SEQUENCE_NUMBER);
+        return Projections.include(include);
+    }
+
+    /**
+     * Checks a message held by a backend without documents against the
+     * cursor and queries.
+     */
+    boolean accepts(long seq, String sender, String receiver, ParsedMessage parsed) {
+        if (cursor != null && (descending ? seq >= cursor : seq <= cursor)) {
+            return false;
+        }
+        return matches(sender, receiver, parsed);
+    }
+
+    /**
+     * Checks a message against the queries only, ignoring the cursor.
+     */
+    boolean matches(String sender, String receiver, ParsedMessage parsed) {
+        for (MessageQuery query : filters) {
+            if (!query.matches(sender, receiver, parsed)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether {@code field} was named in {@link #fields}
+     */
+    boolean lists(String field) {
+        return fields != null && fields.contains(field);
+    }
+
+    /**
+     * Builds the listed document for a message held by a backend without
+     * documents: envelope, headers and sequence number, narrowed to the
+     * requested fields.
+     */
+    Document summarize(long seq, String sender, String receiver, ParsedMessage parsed) {
+        final Document doc = new Document();
+        parsed.appendHeaders(doc);
+        doc.append("envelopeSender", sender);
+        doc.append("envelopeReceiver", receiver);
+        doc.append(MongoMessageStore.SEQUENCE_NUMBER, seq);
+        if (fields != null) {
+            doc.keySet().retainAll(fields);
+            doc.append(MongoMessageStore.SEQUENCE_NUMBER, seq);
+        }
+        return doc;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mongster;
+
+import java.util.function.Predicate;
+
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Condition on a received message, used to wait for a message with
+ * {@link Mongster#awaitMessage(Predicate, long, java.util.concurrent.TimeUnit)}.
+ * Any {@code Predicate<WiserMessage>} can be used there; {@link MessageQuery}
+ * instances are matchers that can also be answered from indexes.
+ */
+public interface MessageMatcher extends Predicate<WiserMessage> {
+
+    /**
+     * @param message received message
+     * @return true if the message satisfies this condition
+     */
+    boolean matches(WiserMessage message);
+
+    @Override
+    default boolean test(WiserMessage message) {
+        return matches(message);
+    }
+
+    /**
+     * @param predicate condition on a received message
+     * @return {@code predicate} if it is a matcher, otherwise a matcher testing it
+     */
+    static MessageMatcher of(Predicate<? super WiserMessage> predicate) {
+        if (predicate instanceof MessageMatcher) {
+            return (MessageMatcher) predicate;
+        }
+        return predicate::test;
+    }
+}
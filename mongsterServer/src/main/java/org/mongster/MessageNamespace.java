@@ -0,0 +1,318 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import org.mongster.Mongster.PersistedMessageList;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Messages routed to one namespace - a collection or database of their own,
+ * with their own sequence numbers (see
+ * {@link MongsterConfig#setNamespaceRouting(MongsterConfig.NamespaceRouting)}).
+ * Clearing, truncating or waiting on one namespace does not affect or wait
+ * on any other, so parallel test suites can share a Mongster server.
+ * <p>
+ * Messages that are not routed go to the default namespace, whose name is
+ * the empty string; the {@link Mongster} methods of the same names act on
+ * it.</p>
+ */
+public class MessageNamespace {
+
+    private final String name;
+    private final PersistedMessageList list;
+
+    MessageNamespace(String name, PersistedMessageList list) {
+        this.name = name;
+        this.list = list;
+    }
+
+    /**
+     * @return namespace name, empty for the default namespace
+     */
+    public String getName() {
+        return name;
+    }
+
+    PersistedMessageList list() {
+        return list;
+    }
+
+    /**
+     * @return messages held in memory, empty if {@code inMemory} is false
+     */
+    public List<WiserMessage> getMessages() {
+        return list.list();
+    }
+
+    /**
+     * @return number of stored messages
+     */
+    public int size() {
+        return list.size();
+    }
+
+    public void clear() {
+        list.clear();
+    }
+
+    public void truncate(int numMessages) {
+        list.truncate(numMessages);
+    }
+
+    public void tail(int numMessages) {
+        list.tail(numMessages);
+    }
+
+    /**
+     * Returns the stored sequence number of the first retained message. This
+     * is 0 until {@link #tail(int)} drops messages from the front.
+     * 
+     * @return offset to subtract from stored sequence numbers to get positions
+     */
+    public long getBaseSequenceNumber() {
+        return list.getBaseSequenceNumber();
+    }
+
+    /**
+     * Returns the retained messages matching a query, in order of receipt.
+     * 
+     * @param query query to run
+     * @return matching messages
+     */
+    public List<WiserMessage> find(MessageQuery query) {
+        return list.find(query);
+    }
+
+    /**
+     * Full-text search over subjects and text bodies (see {@link Mongster#search(String, int)}).
+     * 
+     * @param query search terms
+     * @param limit maximum number of messages to return
+     * @return up to {@code limit} matching messages, best match first
+     */
+    public List<WiserMessage> search(String query, int limit) {
+        return list.search(query, limit);
+    }
+
+    /**
+     * @param query query to run
+     * @return number of retained messages matching the query
+     */
+    public long countMatching(MessageQuery query) {
+        return list.count(query);
+    }
+
+    /**
+     * @param listing page to return
+     * @return one page of stored message documents, without raw bytes
+     */
+    public MessagePage list(MessageListing listing) {
+        return list.list(listing);
+    }
+
+    /**
+     * Subscribes to the messages added after {@code since}: stored messages
+     * are returned first, then new messages as they arrive.
+     *
+     * @param listing filters and fields of the returned documents
+     * @param since sequence number of the last message already seen, -1 for all
+     * @return open subscription - close it when done
+     */
+    public MessageSubscription subscribe(MessageListing listing, long since) {
+        return list.subscribe(listing, since);
+    }
+
+    /**
+     * Subscribes to messages added from now on.
+     *
+     * @param listing filters and fields of the returned documents
+     * @return open subscription - close it when done
+     */
+    public MessageSubscription subscribe(MessageListing listing) {
+        return list.subscribe(listing, Long.MAX_VALUE);
+    }
+
+    /**
+     * Waits for a message satisfying {@code condition}. Messages already received
+     * are checked first, so this does not race with delivery.
+     * 
+     * @param condition condition the message must satisfy
+     * @param timeout maximum time to wait
+     * @param unit unit of {@code timeout}
+     * @return the first matching message, or null if none arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public WiserMessage awaitMessage(Predicate<? super WiserMessage> condition, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        final MessageMatcher matcher = MessageMatcher.of(condition);
+        final AtomicReference<WiserMessage> found = new AtomicReference<WiserMessage>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final PersistedMessageList.MessageListener listener = new PersistedMessageList.MessageListener() {
+            @Override
+            public void messageAdded(WiserMessage message, long seq) {
+                if (latch.getCount() > 0 && matcher.matches(message) &&
+                    found.compareAndSet(null, message)) {
+                    latch.countDown();
+                }
+            }
+        };
+        // Listen before looking at stored messages so nothing slips in between
+        list.addListener(listener);
+        try {
+            final WiserMessage existing = list.findFirst(matcher);
+            if (existing != null) {
+                return existing;
+            }
+            latch.await(timeout, unit);
+            return found.get();
+        } finally {
+            list.removeListener(listener);
+        }
+    }
+
+    /**
+     * Waits until at least {@code count} messages are retained. Waiting threads
+     * are woken as messages arrive rather than polling. With a bounded in-memory
+     * cache, only messages still held in memory are counted.
+     * 
+     * @param count number of messages to wait for
+     * @param timeout maximum time to wait
+     * @param unit unit of {@code timeout}
+     * @return true if there are {@code count} messages, false on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitMessages(int count, long timeout, TimeUnit unit) throws InterruptedException {
+        return await(null, count, timeout, unit);
+    }
+
+    /**
+     * Waits until at least {@code count} retained messages satisfy
+     * {@code condition}. Conditions other than {@link MessageQuery} are checked
+     * against every retained message each time a matching message arrives.
+     * 
+     * @param condition condition messages must satisfy
+     * @param count number of matching messages to wait for
+     * @param timeout maximum time to wait
+     * @param unit unit of {@code timeout}
+     * @return true if there are {@code count} matching messages, false on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitMatching(Predicate<? super WiserMessage> condition, int count, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return await(MessageMatcher.of(condition), count, timeout, unit);
+    }
+
+    /**
+     * @see #awaitMessage(Predicate, long, TimeUnit)
+     */
+    public WiserMessage awaitMessage(Predicate<? super WiserMessage> condition, Duration timeout)
+        throws InterruptedException {
+        return awaitMessage(condition, timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @see #awaitMessages(int, long, TimeUnit)
+     */
+    public boolean awaitMessages(int count, Duration timeout) throws InterruptedException {
+        return awaitMessages(count, timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @see #awaitMatching(Predicate, int, long, TimeUnit)
+     */
+    public boolean awaitMatching(Predicate<? super WiserMessage> condition, int count, Duration timeout)
+        throws InterruptedException {
+        return awaitMatching(condition, count, timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    private boolean await(final MessageMatcher matcher, int count, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        final long[] arrivals = new long[1];
+        final PersistedMessageList.MessageListener listener = new PersistedMessageList.MessageListener() {
+            @Override
+            public void messageAdded(WiserMessage message, long seq) {
+                if (matcher == null || matcher.matches(message)) {
+                    synchronized (arrivals) {
+                        arrivals[0]++;
+                        arrivals.notifyAll();
+                    }
+                }
+            }
+        };
+        list.addListener(listener);
+        try {
+            while (true) {
+                final long seen;
+                synchronized (arrivals) {
+                    seen = arrivals[0];
+                }
+                if (list.countMatching(matcher) >= count) {
+                    return true;
+                }
+                synchronized (arrivals) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    if (arrivals[0] == seen) {
+                        TimeUnit.NANOSECONDS.timedWait(arrivals, remaining);
+                    }
+                }
+            }
+        } finally {
+            list.removeListener(listener);
+        }
+    }
+
+    /**
+     * Returns the difference between the number of messages stored in this
+     * namespace and the number the storage backend holds. Waits for pending
+     * asynchronous writes first.
+     * 
+     * @return local count minus backend count
+     */
+    public long getCountDrift() {
+        return list.countDrift();
+    }
+
+    /**
+     * Blocks until all messages received so far in this namespace have been
+     * written to the storage backend.
+     */
+    public void flush() {
+        list.flush();
+    }
+
+    /**
+     * @return ingestion metrics for this namespace, or null unless enabled
+     */
+    public MongsterMetrics getMetrics() {
+        return list.metrics;
+    }
+
+    @Override
+    public String toString() {
+        return name.isEmpty() ? "(default)" : name;
+    }
+}
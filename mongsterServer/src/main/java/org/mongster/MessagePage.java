@@ -0,0 +1,72 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+/**
+ * One page of a {@link MessageListing}.
+ */
+public final class MessagePage {
+
+    static final JsonWriterSettings JSON_SETTINGS =
+        JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+
+    private final List<Document> messages;
+    private final Long nextCursor;
+
+    /**
+     * @param messages documents on this page, in listing order
+     * @param more whether further messages follow this page
+     */
+    MessagePage(List<Document> messages, boolean more) {
+        this.messages = messages;
+        this.nextCursor = more && !messages.isEmpty() ?
+            messages.get(messages.size() - 1).getLong(MongoMessageStore.SEQUENCE_NUMBER) : null;
+    }
+
+    /**
+     * @return message documents on this page
+     */
+    public List<Document> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return cursor for the next page, or null if this is the last page
+     */
+    public Long getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @return {@code {"messages": [...], "nextCursor": n}} in relaxed extended JSON
+     */
+    public String toJson() {
+        final StringBuilder json = new StringBuilder("{\"messages\": [");
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                json.append(", ");
+            }
+            json.append(messages.get(i).toJson(JSON_SETTINGS));
+        }
+        return json.append("], \"nextCursor\": ").append(nextCursor).append('}').toString();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mongster;
+
+import org.bson.conversions.Bson;
+import org.subethamail.wiser.WiserMessage;
+
+import com.mongodb.client.model.Filters;
+
+/**
+ * Query for received messages by envelope recipient, envelope sender, header
+ * value or subject prefix. Queries are answered from MongoDB indexes, or from
+ * the in-memory indexes kept by {@link InMemoryMessageStore} when messages are
+ * held in memory.
+ * <p>
+ * Header values are compared exactly as stored, i.e. as they appear in the
+ * message (not decoded).</p>
+ */
+public final class MessageQuery implements MessageMatcher {
+
+    enum Kind { RECIPIENT, SENDER, HEADER, SUBJECT_PREFIX }
+
+    private final Kind kind;
+    private final String name;
+    private final String value;
+
+    private MessageQuery(Kind kind, String name, String value) {
+        this.kind = kind;
+        this.name = name;
+        this.value = value;
+    }
+
+    /**
+     * @param recipient envelope recipient address
+     * @return query for messages delivered to {@code recipient}
+     */
+    public static MessageQuery recipient(String recipient) {
+        return new MessageQuery(Kind.RECIPIENT, null, recipient);
+    }
+
+    /**
+     * @param sender envelope sender address
+     * @return query for messages with envelope sender {@code sender}
+     */
+    public static MessageQuery sender(String sender) {
+        return new MessageQuery(Kind.SENDER, null, sender);
+    }
+
+    /**
+     * @param name header name (case-insensitive)
+     * @param value header value
+     * @return query for messages having a {@code name} header equal to {@code value}
+     */
+    public static MessageQuery header(String name, String value) {
+        return new MessageQuery(Kind.HEADER, name, value);
+    }
+
+    /**
+     * @param prefix start of the subject
+     * @return query for messages whose subject starts with {@code prefix}
+     */
+    public static MessageQuery subjectPrefix(String prefix) {
+        return new MessageQuery(Kind.SUBJECT_PREFIX, "Subject", prefix);
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getValue() {
+        return value;
+    }
+
+    /**
+     * @return MongoDB filter selecting the matching message documents
+     */
+    Bson toFilter() {
+        switch (kind) {
+            case RECIPIENT:
+                return Filters.eq("envelopeReceiver", value);
+            case SENDER:
+                return Filters.eq("envelopeSender", value);
+            case HEADER:
+                return Filters.eq(HeaderNames.fieldName(name), value);
+            default:
+                return Filters.regex("subject", "^" + escapeRegex(value));
+        }
+    }
+
+    @Override
+    public boolean matches(WiserMessage message) {
+        if (kind == Kind.RECIPIENT || kind == Kind.SENDER) {
+            return matches(message.getEnvelopeSender(), message.getEnvelopeReceiver(), null);
+        }
+        return matches(message.getEnvelopeSender(), message.getEnvelopeReceiver(),
+                       ParsedMessage.parse(message.getData()));
+    }
+
+    /**
+     * Checks a message whose headers have already been parsed.
+     *
+     * @param envelopeSender envelope sender
+     * @param envelopeReceiver envelope receiver
+     * @param parsed message headers (not used for envelope queries)
+     * @return true if the message matches
+     */
+    boolean matches(String envelopeSender, String envelopeReceiver, ParsedMessage parsed) {
+        switch (kind) {
+            case RECIPIENT:
+                return value.equals(envelopeReceiver);
+            case SENDER:
+                return value.equals(envelopeSender);
+            default:
+                for (int i = 0; i < parsed.getHeaderCount(); i++) {
+                    final String header = parsed.getHeaderValue(i);
+                    if (parsed.getHeaderName(i).equalsIgnoreCase(name) &&
+                        (kind == Kind.HEADER ? header.equals(value) : header.startsWith(value))) {
+                        return true;
+                    }
+                }
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return kind + (name == null ? "" : " " + name) + " " + value;
+    }
+
+    /**
+     * Escapes regular expression metacharacters so a prefix match can use the
+     * subject index.
+     */
+    private static String escapeRegex(String literal) {
+        final StringBuilder escaped = new StringBuilder(literal.length() + 8);
+        for (int i = 0; i < literal.length(); i++) {
+            final char c = literal.charAt(i);
+            if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.util.List;
+
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Storage backend for received messages, selected by
+ * {@link MongsterConfig#getStorageBackend()}. {@code PersistedMessageList}
+ * assigns sequence numbers and keeps the stored-message count; a backend
+ * only stores messages and answers positional and query lookups.
+ * <p>
+ * Messages are ordered by sequence number. A position is a 0-based index into
+ * the retained messages in that order.</p>
+ * <p>
+ * Implementations must be safe for concurrent calls to {@link #add} and
+ * {@link #addAll}. {@link #clear()} and {@link #removeFrom(long)} are never
+ * called concurrently with adds; {@link #removeBefore(long)} may be (by the
+ * retention trimmer), for sequence numbers below those being added.</p>
+ */
+interface MessageStore {
+
+    /**
+     * Stores one message.
+     *
+     * @param message received message
+     * @param parsed raw bytes and headers of {@code message}
+     * @param seq sequence number assigned to the message
+     */
+    void add(WiserMessage message, ParsedMessage parsed, long seq);
+
+    /**
+     * Stores a batch of messages. A failed batch is taken to have stored
+     * nothing, unless a {@code MongoBulkWriteException} reports the
+     * positions in the batch of the only messages that were not stored.
+     *
+     * @param batch messages with their sequence numbers
+     */
+    void addAll(List<ReceivedMessage> batch);
+
+    /**
+     * @return number of stored messages, as known to the backend itself
+     */
+    long count();
+
+    /**
+     * @return approximate total size in bytes of the stored messages
+     */
+    long bytes();
+
+    /**
+     * @return false while startup work that does not block writes (such as
+     * index creation) is still under way
+     */
+    default boolean isReady() {
+        return true;
+    }
+
+    /**
+     * @return highest stored sequence number, or -1 if the store is empty
+     */
+    long lastSequenceNumber();
+
+    /**
+     * @return sequence number of the first retained message as of the last
+     * {@link #removeBefore(long)}, or 0 if messages were never dropped from the front
+     */
+    long baseSequenceNumber();
+
+    /**
+     * Returns the sequence number of the message at a position.
+     *
+     * @param position 0-based position
+     * @return sequence number, or null if there are not that many messages
+     */
+    Long sequenceNumberAt(long position);
+
+    /**
+     * Removes all messages and resets the base sequence number to 0.
+     */
+    void clear();
+
+    /**
+     * Removes messages with sequence numbers at or above {@code seq}.
+     *
+     * @param seq first sequence number to remove
+     */
+    void removeFrom(long seq);
+
+    /**
+     * Removes messages with sequence numbers below {@code seq} and records
+     * {@code seq} as the new base sequence number.
+     *
+     * @param seq sequence number of the first message to keep
+     * @return number of messages removed
+     */
+    long removeBefore(long seq);
+
+    /**
+     * Returns stored messages satisfying a matcher, in sequence order.
+     * {@link MessageQuery} matchers may be answered from indexes.
+     *
+     * @param matcher condition to check
+     * @param limit maximum number of messages to return
+     * @return up to {@code limit} matching messages
+     */
+    List<WiserMessage> find(MessageMatcher matcher, int limit);
+
+    /**
+     * Returns one page of stored message documents.
+     *
+     * @param listing page to return
+     * @return up to {@code listing}'s limit documents, with a cursor for the next page
+     */
+    MessagePage list(MessageListing listing);
+
+    /**
+     * @param matcher condition to check
+     * @return number of stored messages satisfying the matcher
+     */
+    long count(MessageMatcher matcher);
+
+    /**
+     * Full-text search over subjects and text bodies (see {@link TextIndex}).
+     * Only called when text search is enabled.
+     *
+     * @param query search terms - a message matches if it contains any of them
+     * @param limit maximum number of messages to return
+     * @return up to {@code limit} matching messages, best match first
+     */
+    List<WiserMessage> search(String query, int limit);
+}
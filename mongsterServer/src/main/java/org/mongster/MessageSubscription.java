@@ -0,0 +1,211 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+
+/**
+ * Incremental feed of the messages added to a namespace, in sequence number
+ * order. A subscription made {@link MessageNamespace#subscribe(MessageListing, long)
+ * since} a sequence number first returns the stored messages after it, read
+ * back a page at a time with the listing, then each message as it is added.
+ * Pass the {@code sequenceNumber} of the last document seen as
+ * {@code since} to pick up where a closed subscription left off.
+ * <p>
+ * Documents are those of the listing: stored documents for stored messages
+ * with the MONGO backend, otherwise the envelope, headers and sequence
+ * number, plus {@code body} and {@code html} if they are among the listed
+ * fields. The listing's filters apply throughout; it must not be descending,
+ * and its cursor is set by the subscription.</p>
+ * <p>
+ * Sequence numbers restart after the namespace is cleared, so a document
+ * whose {@code sequenceNumber} is not above the previous one follows a
+ * clear or truncate. A subscriber more than {@link #DEFAULT_CAPACITY}
+ * messages behind is dropped. Not safe for concurrent polling.</p>
+ */
+public final class MessageSubscription implements Closeable {
+
+    /** Messages queued for a subscriber before it is dropped */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final MessageFeed feed;
+    final MessageListing listing;
+    private final int capacity;
+
+    /** Messages added since the subscription was made */
+    private final ArrayDeque<Document> queue = new ArrayDeque<Document>();
+
+    /** Current page of stored messages being read back */
+    private final ArrayDeque<Document> backfilled = new ArrayDeque<Document>();
+
+    /** Last sequence number read back, null once reading back is done */
+    private Long backfillCursor;
+
+    /** Lowest sequence number delivered from the feed rather than read back */
+    private volatile long liveFrom;
+
+    private boolean flushed = false;
+    private boolean overflowed = false;
+    private boolean closed = false;
+
+    MessageSubscription(MessageFeed feed, MessageListing listing, long since, long liveFrom, int capacity) {
+        if (listing.isDescending()) {
+            throw new IllegalArgumentException("Message feeds are in ascending order");
+        }
+        this.feed = feed;
+        this.listing = listing;
+        this.capacity = capacity;
+        this.liveFrom = liveFrom;
+        this.backfillCursor = since < liveFrom - 1 ? since : null;
+    }
+
+    /**
+     * Returns the next message document, waiting for one to be added if
+     * necessary.
+     *
+     * @param timeout maximum time to wait
+     * @param unit unit of {@code timeout}
+     * @return next document, or null if none arrived in time or the subscription is closed
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the subscriber fell too far behind and was dropped
+     */
+    public Document poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            final Document stored = nextBackfilled();
+            if (stored != null) {
+                return stored;
+            }
+            feed.releaseStalled();
+            synchronized (this) {
+                if (overflowed) {
+                    throw new IllegalStateException("Subscriber fell more than " + capacity + " messages behind");
+                }
+                if (!queue.isEmpty()) {
+                    return queue.poll();
+                }
+                final long remaining = deadline - System.nanoTime();
+                if (closed || remaining <= 0) {
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, Math.min(remaining,
+                    TimeUnit.MILLISECONDS.toNanos(MessageFeed.GAP_MILLIS)));
+            }
+        }
+    }
+
+    /**
+     * @param doc document returned by {@link #poll}
+     * @return {@code doc} in relaxed extended JSON, as {@link MessagePage#toJson()} writes documents
+     */
+    public static String toJson(Document doc) {
+        return doc.toJson(MessagePage.JSON_SETTINGS);
+    }
+
+    /**
+     * Stops the subscription. Waiting polls return null.
+     */
+    @Override
+    public void close() {
+        feed.unsubscribe(this);
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return next stored message read back, or null once all have been
+     */
+    private Document nextBackfilled() {
+        while (true) {
+            final Long cursor;
+            synchronized (this) {
+                if (!backfilled.isEmpty()) {
+                    return backfilled.poll();
+                }
+                if (backfillCursor == null || closed) {
+                    return null;
+                }
+                cursor = backfillCursor;
+            }
+            if (!flushed) {
+                // Queued messages numbered below liveFrom must be stored before reading back
+                feed.list().flush();
+                flushed = true;
+            }
+            final MessagePage page = feed.list().list(listing.after(cursor));
+            synchronized (this) {
+                if (!cursor.equals(backfillCursor)) {
+                    continue; // reset while reading
+                }
+                backfillCursor = page.getNextCursor();
+                for (Document doc : page.getMessages()) {
+                    final long seq = doc.getLong(MongoMessageStore.SEQUENCE_NUMBER);
+                    if (seq >= liveFrom) {
+                        backfillCursor = null;
+                        break;
+                    }
+                    backfilled.add(doc);
+                }
+                if (backfillCursor != null && backfillCursor >= liveFrom - 1) {
+                    backfillCursor = null;
+                }
+            }
+        }
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    long liveFrom() {
+        return liveFrom;
+    }
+
+    /**
+     * Queues a message from the feed.
+     *
+     * @return false if the subscription is closed or has overflowed
+     */
+    synchronized boolean offer(Document doc) {
+        if (closed || overflowed) {
+            return false;
+        }
+        if (queue.size() >= capacity) {
+            overflowed = true;
+            notifyAll();
+            return false;
+        }
+        queue.add(doc);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Stops reading back stored messages, which no longer exist, and takes
+     * all further messages from the feed.
+     */
+    synchronized void reset(long next) {
+        liveFrom = next;
+        backfillCursor = null;
+        notifyAll();
+    }
+}
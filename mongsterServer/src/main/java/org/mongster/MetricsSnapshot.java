@@ -0,0 +1,140 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+/**
+ * Values of all {@link MongsterMetrics} taken at one point in time, for
+ * test assertions and periodic reporting. See {@link MongsterMetricsMXBean}
+ * for the meaning of each value.
+ */
+public final class MetricsSnapshot {
+
+    private final long timestamp;
+    private final long messagesReceived;
+    private final long bytesReceived;
+    private final double messagesPerSecond;
+    private final double bytesPerSecond;
+    private final int queueDepth;
+    private final long mongoErrors;
+    private final long messagesDropped;
+    private final int inMemoryMessages;
+    private final long inMemoryBytes;
+    private final LatencySnapshot receiveLatency;
+    private final LatencySnapshot parseLatency;
+    private final LatencySnapshot buildLatency;
+    private final LatencySnapshot insertLatency;
+    private final LatencySnapshot truncateLatency;
+    private final LatencySnapshot tailLatency;
+
+    MetricsSnapshot(MongsterMetrics metrics) {
+        timestamp = System.currentTimeMillis();
+        messagesReceived = metrics.getMessagesReceived();
+        bytesReceived = metrics.getBytesReceived();
+        messagesPerSecond = metrics.getMessagesPerSecond();
+        bytesPerSecond = metrics.getBytesPerSecond();
+        queueDepth = metrics.getQueueDepth();
+        mongoErrors = metrics.getMongoErrors();
+        messagesDropped = metrics.getMessagesDropped();
+        inMemoryMessages = metrics.getInMemoryMessages();
+        inMemoryBytes = metrics.getInMemoryBytes();
+        receiveLatency = metrics.getReceiveLatency();
+        parseLatency = metrics.getParseLatency();
+        buildLatency = metrics.getBuildLatency();
+        insertLatency = metrics.getInsertLatency();
+        truncateLatency = metrics.getTruncateLatency();
+        tailLatency = metrics.getTailLatency();
+    }
+
+    /**
+     * @return time the snapshot was taken, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getMongoErrors() {
+        return mongoErrors;
+    }
+
+    public long getMessagesDropped() {
+        return messagesDropped;
+    }
+
+    public int getInMemoryMessages() {
+        return inMemoryMessages;
+    }
+
+    public long getInMemoryBytes() {
+        return inMemoryBytes;
+    }
+
+    public LatencySnapshot getReceiveLatency() {
+        return receiveLatency;
+    }
+
+    public LatencySnapshot getParseLatency() {
+        return parseLatency;
+    }
+
+    public LatencySnapshot getBuildLatency() {
+        return buildLatency;
+    }
+
+    public LatencySnapshot getInsertLatency() {
+        return insertLatency;
+    }
+
+    public LatencySnapshot getTruncateLatency() {
+        return truncateLatency;
+    }
+
+    public LatencySnapshot getTailLatency() {
+        return tailLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "messages=" + messagesReceived + " (" + messagesPerSecond + "/s) bytes=" + bytesReceived +
+            " (" + bytesPerSecond + "/s) queueDepth=" + queueDepth + " mongoErrors=" + mongoErrors +
+            " dropped=" + messagesDropped + " inMemory=" + inMemoryMessages + "/" + inMemoryBytes + "B\n" +
+            "  receive  " + receiveLatency + "\n" +
+            "  parse    " + parseLatency + "\n" +
+            "  build    " + buildLatency + "\n" +
+            "  insert   " + insertLatency + "\n" +
+            "  truncate " + truncateLatency + "\n" +
+            "  tail     " + tailLatency;
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Stores messages as documents in a MongoDB collection, using headers as keys
+ * and putting the text content under "body" and "html" (see {@link Mongster} for the document
+ * layout).
+ * <p>
+ * To make sure json names are valid and to simplify client code, header names
+ * are lower-cased and dashes are removed (see {@link HeaderNames}). Repeated
+ * headers such as {@code Received} are stored as arrays.</p>
+ * <p>
+ * Indexes on {@code sequenceNumber} and the {@link #QUERY_FIELDS} are created
+ * at startup by a background thread, so a slow or unavailable server does not
+ * hold up startup; {@link #isReady()} turns true once they exist. The base sequence number is kept in the
+ * {@code <collection>_state} collection.</p>
+ * <p>
+ * Each document records when it was received under {@code receivedAt}. If a
+ * retention maximum age is configured, a TTL index on that field lets MongoDB
+ * expire old messages itself.</p>
+ * <p>
+ * If text search is enabled, a text index named {@link #TEXT_INDEX} covers
+ * {@code subject} (weight {@link TextIndex#SUBJECT_WEIGHT}) and {@code body},
+ * with language {@code none} so that terms are matched as {@link TextIndex}
+ * matches them. It is not created if the collection already has a text
+ * index.</p>
+ * <p>
+ * With {@code rawBsonEncoding} on, documents are encoded by a
+ * {@link RawMessageEncoder} and inserted as {@link RawBsonDocument}s; the
+ * stored documents are the same either way.</p>
+ * <p>
+ * With {@code payloadDeduplication} on, raw bytes are stored once per
+ * distinct payload by a {@link PayloadStore} and documents reference them
+ * by {@code payloadId}; headers and extracted content stay in each
+ * document so that queries, listings and text search are unchanged.
+ * Documents of either form are read.</p>
+ */
+class MongoMessageStore implements MessageStore {
+
+    static final String SEQUENCE_NUMBER = "sequenceNumber";
+    static final String BASE_SEQUENCE_NUMBER = "baseSequenceNumber";
+    static final String RECEIVED_AT = "receivedAt";
+    static final String TEXT_INDEX = "messageText";
+
+    /** Name under which search results carry their text score */
+    private static final String SCORE = "score";
+
+    /**
+     * Appended to the message collection name to name the collection holding
+     * the base sequence number.
+     */
+    static final String STATE_COLLECTION_SUFFIX = "_state";
+
+    /**
+     * Fields indexed at startup, besides {@link #SEQUENCE_NUMBER}.
+     */
+    static final String[] QUERY_FIELDS = {"envelopeReceiver", "envelopeSender", "subject", "messageid"};
+
+    private MongoDatabase db;
+    private final Wiser wiser;
+    /** Shared by the stores of all namespaces */
+    final MongoClient mongoClient;
+    private final String mongoCollection;
+
+    /** Lifetime of message documents in seconds, 0 for no TTL index */
+    private final long expireAfterSeconds;
+
+    private final boolean textSearchEnabled;
+
+    /** Set once the indexes have been created */
+    private volatile boolean indexed = false;
+
+    /** Longest wait between attempts to create the indexes */
+    private static final long MAX_INDEX_RETRY_MILLIS = 5000;
+
+    /**
+     * Writes and reads raw message bytes in the configured format.
+     */
+    final RawContentStore rawContent;
+
+    /**
+     * Decodes message content into documents.
+     */
+    private final ContentExtractor contentExtractor;
+
+    /**
+     * Encodes documents directly to BSON - null unless raw encoding is enabled.
+     */
+    private final RawMessageEncoder rawEncoder;
+
+    /**
+     * Reads and removes shared payloads; new messages only use it if
+     * {@code payloadDeduplication} is set.
+     */
+    final PayloadStore payloads;
+
+    private final boolean payloadDeduplication;
+
+    /**
+     * Ingestion metrics - null unless enabled.
+     */
+    private final MongsterMetrics metrics;
+
+    MongoMessageStore(Wiser wiser, MongsterConfig config, MongsterMetrics metrics) {
+        this(wiser, config, metrics, null);
+    }
+
+    /**
+     * @param mongoClient client to use, or null to connect as configured
+     */
+    MongoMessageStore(Wiser wiser, MongsterConfig config, MongsterMetrics metrics, MongoClient mongoClient) {
+        this.wiser = wiser;
+        this.metrics = metrics;
+        this.mongoCollection = config.getMongoCollection();
+        this.expireAfterSeconds = (config.getRetentionMaxAgeMillis() + 999) / 1000;
+        this.textSearchEnabled = config.isTextSearchEnabled();
+        this.mongoClient = mongoClient != null ? mongoClient : new MongoClient(config.getMongoClientURI());
+        try {
+            db = this.mongoClient.getDatabase(config.getMongoDatabase());
+        } catch (Exception ex) {
+            this.mongoClient.close();
+        }
+        rawContent = new RawContentStore(this.mongoClient, config);
+        payloads = new PayloadStore(db, mongoCollection, rawContent);
+        payloadDeduplication = config.isPayloadDeduplication();
+        contentExtractor = new ContentExtractor(config);
+        rawEncoder = config.isRawBsonEncoding() ?
+            new RawMessageEncoder(contentExtractor, rawContent, payloadDeduplication, metrics) : null;
+        final Thread indexer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                createIndexesWithRetry();
+            }
+        }, "mongster-indexes-" + mongoCollection);
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * @return true once the indexes have been created
+     */
+    @Override
+    public boolean isReady() {
+        return indexed;
+    }
+
+    @Override
+    public void add(WiserMessage message, ParsedMessage parsed, long seq) {
+        if (payloadDeduplication) {
+            payloads.save(Collections.singletonList(new ReceivedMessage(message, parsed, seq)));
+        }
+        if (rawEncoder != null) {
+            rawCollection().insertOne(toRawDocument(message, parsed, seq));
+        } else {
+            collection().insertOne(toDocument(message, parsed, seq));
+        }
+    }
+
+    @Override
+    public void addAll(List<ReceivedMessage> batch) {
+        if (payloadDeduplication) {
+            try {
+                payloads.save(batch);
+            } catch (MongoBulkWriteException e) {
+                // Its write errors are positions among the payloads, not the batch
+                throw new MongoException("Could not save message payloads", e);
+            }
+        }
+        if (rawEncoder != null) {
+            final List<RawBsonDocument> docs = new ArrayList<RawBsonDocument>(batch.size());
+            for (ReceivedMessage received : batch) {
+                docs.add(toRawDocument(received.message, received.parsed, received.sequenceNumber));
+            }
+            rawCollection().insertMany(docs, new InsertManyOptions().ordered(false));
+            return;
+        }
+        final List<Document> docs = new ArrayList<Document>(batch.size());
+        for (ReceivedMessage received : batch) {
+            docs.add(toDocument(received.message, received.parsed, received.sequenceNumber));
+        }
+        collection().insertMany(docs, new InsertManyOptions().ordered(false));
+    }
+
+    /**
+     * Creates the MongoDB document representing a received message.
+     *
+     * @param message received message
+     * @param parsed raw bytes and headers of {@code message}
+     * @param seq sequence number to store with the message
+     * @return document to insert
+     */
+    Document toDocument(WiserMessage message, ParsedMessage parsed, long seq) {
+        final long start = metrics == null ? 0 : System.nanoTime();
+        Document doc = new Document();
+        parsed.appendHeaders(doc);
+        // Add text parts and attachment metadata, as configured
+        final long parseStart = metrics == null ? 0 : System.nanoTime();
+        contentExtractor.extract(parsed, doc);
+        final long parseNanos = metrics == null ? 0 : System.nanoTime() - parseStart;
+        // Add WiserMessage attributes
+        doc.append("envelopeSender", message.getEnvelopeSender());
+        doc.append("envelopeReceiver", message.getEnvelopeReceiver());
+        if (payloadDeduplication) {
+            doc.append(PayloadStore.PAYLOAD_ID, parsed.getPayloadId());
+        } else {
+            rawContent.write(doc, parsed.getData(), seq);
+        }
+        doc.append(SEQUENCE_NUMBER, seq);
+        doc.append(RECEIVED_AT, new Date());
+        if (metrics != null) {
+            metrics.parse.record(parseNanos);
+            metrics.build.record(System.nanoTime() - start - parseNanos);
+        }
+        return doc;
+    }
+
+    /**
+     * Encodes the MongoDB document representing a received message directly
+     * to BSON, going through {@link #toDocument(WiserMessage, ParsedMessage, long)}
+     * only for messages the encoder cannot handle.
+     *
+     * @param message received message
+     * @param parsed raw bytes and headers of {@code message}
+     * @param seq sequence number to store with the message
+     * @return encoded document to insert
+     */
+    RawBsonDocument toRawDocument(WiserMessage message, ParsedMessage parsed, long seq) {
+        final RawBsonDocument raw = rawEncoder.encode(message, parsed, seq);
+        return raw != null ? raw : rawEncoder.encode(toDocument(message, parsed, seq));
+    }
+
+    @Override
+    public long count() {
+        return collection().estimatedDocumentCount();
+    }
+
+    /**
+     * Data size reported by {@code collStats}, not counting GridFS files,
+     * plus the size of the shared payloads if payloads are deduplicated.
+     */
+    @Override
+    public long bytes() {
+        final Object size = db.runCommand(new Document("collStats", mongoCollection)).get("size");
+        return (size instanceof Number ? ((Number) size).longValue() : 0) +
+            (payloadDeduplication ? payloads.bytes() : 0);
+    }
+
+    @Override
+    public long lastSequenceNumber() {
+        final Document last = collection().find().projection(Projections.include(SEQUENCE_NUMBER))
+            .sort(Sorts.descending(SEQUENCE_NUMBER)).limit(1).first();
+        return last != null && last.get(SEQUENCE_NUMBER) instanceof Number ?
+            ((Number) last.get(SEQUENCE_NUMBER)).longValue() : -1;
+    }
+
+    @Override
+    public long baseSequenceNumber() {
+        final Document state = stateCollection().find(Filters.eq("_id", mongoCollection)).first();
+        return state != null && state.get(BASE_SEQUENCE_NUMBER) instanceof Number ?
+            ((Number) state.get(BASE_SEQUENCE_NUMBER)).longValue() : 0;
+    }
+
+    /**
+     * Walks the sequence number index in order, skipping {@code position}
+     * entries, as failed writes leave gaps in the numbering. Positions beyond
+     * the range of {@code skip} are reached in several steps.
+     */
+    @Override
+    public Long sequenceNumberAt(long position) {
+        Bson filter = new Document();
+        long remaining = position;
+        while (true) {
+            final int skip = (int) Math.min(remaining, Integer.MAX_VALUE);
+            final Document doc = collection().find(filter)
+                .projection(Projections.include(SEQUENCE_NUMBER))
+                .sort(Sorts.ascending(SEQUENCE_NUMBER)).skip(skip).first();
+            if (doc == null) {
+                return null;
+            }
+            final long seq = ((Number) doc.get(SEQUENCE_NUMBER)).longValue();
+            remaining -= skip;
+            if (remaining == 0) {
+                return seq;
+            }
+            // Continue after the document just found, which is one more position
+            filter = Filters.gt(SEQUENCE_NUMBER, seq);
+            remaining--;
+        }
+    }
+
+    @Override
+    public void clear() {
+        collection().deleteMany(new Document());
+        rawContent.remove(null, null);
+        payloads.clear();
+        saveBaseSequenceNumber(0);
+    }
+
+    @Override
+    public void removeFrom(long seq) {
+        collection().deleteMany(Filters.gte(SEQUENCE_NUMBER, seq));
+        rawContent.remove(seq, null);
+        payloads.removeFrom(seq);
+    }
+
+    /**
+     * Range delete only - survivors keep their sequence numbers.
+     */
+    @Override
+    public long removeBefore(long seq) {
+        final long removed = collection().deleteMany(Filters.lt(SEQUENCE_NUMBER, seq)).getDeletedCount();
+        rawContent.remove(null, seq);
+        payloads.removeBefore(seq);
+        saveBaseSequenceNumber(seq);
+        return removed;
+    }
+
+    @Override
+    public List<WiserMessage> find(MessageMatcher matcher, int limit) {
+        final List<WiserMessage> found = new ArrayList<WiserMessage>();
+        final Map<String, byte[]> shared = new HashMap<String, byte[]>();
+        if (matcher instanceof MessageQuery) {
+            FindIterable<Document> docs = collection().find(((MessageQuery) matcher).toFilter())
+                .sort(new Document(SEQUENCE_NUMBER, 1));
+            if (limit < Integer.MAX_VALUE) {
+                docs = docs.limit(limit);
+            }
+            for (Document doc : docs) {
+                found.add(toMessage(doc, shared));
+            }
+            return found;
+        }
+        for (Document doc : collection().find().sort(new Document(SEQUENCE_NUMBER, 1))) {
+            final WiserMessage message = toMessage(doc, shared);
+            if (matcher.matches(message)) {
+                found.add(message);
+                if (found.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Uses the sequence number index, or a query field index if the listing
+     * has queries.
+     */
+    @Override
+    public MessagePage list(MessageListing listing) {
+        final List<Document> docs = new ArrayList<Document>(listing.getLimit() + 1);
+        // One extra document tells whether there is a next page
+        collection().find(listing.toFilter()).projection(listing.toProjection())
+            .sort(new Document(SEQUENCE_NUMBER, listing.isDescending() ? -1 : 1))
+            .limit(listing.getLimit() + 1).into(docs);
+        final boolean more = docs.size() > listing.getLimit();
+        return new MessagePage(more ? docs.subList(0, listing.getLimit()) : docs, more);
+    }
+
+    @Override
+    public long count(MessageMatcher matcher) {
+        if (matcher instanceof MessageQuery) {
+            return collection().countDocuments(((MessageQuery) matcher).toFilter());
+        }
+        return find(matcher, Integer.MAX_VALUE).size();
+    }
+
+    /**
+     * Uses the text index. Terms are passed to {@code $text} as split by
+     * {@link TextIndex#terms(String)}, so quotes and dashes in the query have
+     * no special meaning. Equal scores go to the most recent message.
+     */
+    @Override
+    public List<WiserMessage> search(String query, int limit) {
+        final List<WiserMessage> found = new ArrayList<WiserMessage>();
+        final Map<String, byte[]> shared = new HashMap<String, byte[]>();
+        final StringBuilder terms = new StringBuilder();
+        for (String term : TextIndex.terms(query)) {
+            terms.append(terms.length() == 0 ? "" : " ").append(term);
+        }
+        if (terms.length() == 0 || limit <= 0) {
+            return found;
+        }
+        for (Document doc : collection().find(Filters.text(terms.toString()))
+                 .projection(Projections.metaTextScore(SCORE))
+                 .sort(Sorts.orderBy(Sorts.metaTextScore(SCORE), Sorts.descending(SEQUENCE_NUMBER)))
+                 .limit(limit)) {
+            found.add(toMessage(doc, shared));
+        }
+        return found;
+    }
+
+    /**
+     * Recreates a received message from its MongoDB document.
+     *
+     * @param shared raw bytes of the payloads already read, by payload id
+     */
+    private WiserMessage toMessage(Document doc, Map<String, byte[]> shared) {
+        final String payloadId = doc.getString(PayloadStore.PAYLOAD_ID);
+        byte[] data;
+        if (payloadId == null) {
+            data = rawContent.read(doc);
+        } else {
+            data = shared.get(payloadId);
+            if (data == null) {
+                data = payloads.read(payloadId);
+                shared.put(payloadId, data);
+            }
+        }
+        return Mongster.newWiserMessage(wiser, doc.getString("envelopeSender"),
+                                        doc.getString("envelopeReceiver"), data);
+    }
+
+    /**
+     * Returns the raw bytes of a stored message, whether in the document or
+     * in a shared payload.
+     *
+     * @param doc message document
+     * @return raw message bytes, or null if there are none
+     */
+    byte[] rawBytes(Document doc) {
+        final String payloadId = doc.getString(PayloadStore.PAYLOAD_ID);
+        return payloadId == null ? rawContent.read(doc) : payloads.read(payloadId);
+    }
+
+    /**
+     * Creates the indexes, retrying with backoff until MongoDB is reachable.
+     * Gives up if the client is closed.
+     */
+    private void createIndexesWithRetry() {
+        long delay = 100;
+        boolean reported = false;
+        while (true) {
+            try {
+                createIndexes();
+                indexed = true;
+                return;
+            } catch (IllegalStateException ex) {
+                return; // client closed
+            } catch (RuntimeException ex) {
+                if (!reported) {
+                    ex.printStackTrace();
+                    reported = true;
+                }
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            delay = Math.min(delay * 2, MAX_INDEX_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Ensures the sequence number, query and (if enabled) text indexes
+     * exist, and that the TTL index on {@link #RECEIVED_AT} matches the
+     * configured maximum age. Payloads get sequence number range indexes
+     * and the same TTL index.
+     */
+    private void createIndexes() {
+        final MongoCollection<Document> coll = collection();
+        coll.createIndex(new Document(SEQUENCE_NUMBER, 1));
+        for (String field : QUERY_FIELDS) {
+            coll.createIndex(new Document(field, 1));
+        }
+        boolean text = false;
+        for (Document index : coll.listIndexes()) {
+            final Object key = index.get("key");
+            text |= key instanceof Document && ((Document) key).containsValue("text");
+        }
+        if (textSearchEnabled && !text) {
+            coll.createIndex(Indexes.compoundIndex(Indexes.text("subject"), Indexes.text(ContentExtractor.BODY)),
+                             new IndexOptions().name(TEXT_INDEX).defaultLanguage("none")
+                                 .weights(new Document("subject", TextIndex.SUBJECT_WEIGHT)
+                                          .append(ContentExtractor.BODY, 1)));
+        }
+        updateTtlIndex(coll, mongoCollection);
+        if (payloadDeduplication) {
+            final MongoCollection<Document> payloadColl = payloads.collection();
+            payloadColl.createIndex(new Document(PayloadStore.FIRST_SEQUENCE_NUMBER, 1));
+            payloadColl.createIndex(new Document(PayloadStore.LAST_SEQUENCE_NUMBER, 1));
+            updateTtlIndex(payloadColl, mongoCollection + PayloadStore.COLLECTION_SUFFIX);
+        }
+    }
+
+    /**
+     * Makes the TTL index on {@link #RECEIVED_AT} match the configured
+     * maximum age, creating or dropping it as needed.
+     */
+    private void updateTtlIndex(MongoCollection<Document> coll, String name) {
+        Document ttl = null;
+        for (Document index : coll.listIndexes()) {
+            if (new Document(RECEIVED_AT, 1).equals(index.get("key"))) {
+                ttl = index;
+            }
+        }
+        final Object current = ttl == null ? null : ttl.get("expireAfterSeconds");
+        if (expireAfterSeconds <= 0) {
+            if (current != null) {
+                coll.dropIndex(ttl.getString("name"));
+            }
+        } else if (ttl == null) {
+            coll.createIndex(new Document(RECEIVED_AT, 1),
+                             new IndexOptions().expireAfter(expireAfterSeconds, TimeUnit.SECONDS));
+        } else if (!(current instanceof Number) || ((Number) current).longValue() != expireAfterSeconds) {
+            // Change the lifetime in place rather than rebuilding the index
+            db.runCommand(new Document("collMod", name)
+                          .append("index", new Document("keyPattern", new Document(RECEIVED_AT, 1))
+                                  .append("expireAfterSeconds", expireAfterSeconds)));
+        }
+    }
+
+    /**
+     * Records a new base offset in the state collection.
+     *
+     * @param base sequence number of the first retained message
+     */
+    private void saveBaseSequenceNumber(long base) {
+        stateCollection().replaceOne(Filters.eq("_id", mongoCollection),
+                                     new Document("_id", mongoCollection).append(BASE_SEQUENCE_NUMBER, base),
+                                     new ReplaceOptions().upsert(true));
+    }
+
+    private MongoCollection<Document> collection() {
+        return db.getCollection(mongoCollection);
+    }
+
+    private MongoCollection<RawBsonDocument> rawCollection() {
+        return collection().withDocumentClass(RawBsonDocument.class);
+    }
+
+    /**
+     * @return collection holding per-message-collection bookkeeping (base offsets)
+     */
+    private MongoCollection<Document> stateCollection() {
+        return db.getCollection(mongoCollection + STATE_COLLECTION_SUFFIX);
+    }
+}
@@ -15,24 +15,37 @@
 package org.mongster;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.List;
-
-import javax.mail.Header;
-import javax.mail.MessagingException;
-import javax.mail.internet.MimeMessage;
-
-import org.subethamail.smtp.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 
 import org.bson.Document;
+import org.mongster.MongsterConfig.ContentExtraction;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
+import org.subethamail.smtp.server.SMTPServer;
 import org.subethamail.wiser.Wiser;
 import org.subethamail.wiser.WiserMessage;
 
-import com.mongodb.MongoClient;
-import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Filters;
 
 /**
  * Extends {@link Wiser} to persist received messages to a MongoDB database.
@@ -45,18 +58,109 @@ import com.mongodb.client.model.Filters;
  * The {@link #clear()} and {@link #truncate(int)} methods affect both the
  * in-memory cache and the MongoDB collection.</p>
  * <p>
+ * The in-memory cache can be bounded by message count and total bytes (see
+ * {@link MongsterConfig#setInMemoryMaxMessages(int)}); messages evicted from
+ * memory remain in MongoDB.</p>
+ * <p>
  * Messages are stored in Mongo with the following attributes: <pre>
  *   envelopeSender      sender
  *   envelopeReceiver    receiver
- *   body                message content
+ *   body                text content (text/plain part, else the first other text part)
+ *   html                text/html part, if any
+ *   attachments         metadata (and optionally content) of other parts
+ *                       (see {@link ContentExtractor} and contentExtraction)
  *   bytes64             Base64 raw bytes of the entire message (headers and content)
+ *   raw / rawFileId     raw bytes as BSON binary / GridFS file id, replacing
+ *                       bytes64 if rawStorage is BINARY (see {@link RawContentStore})
  *   sequenceNumber      order of message receipt since last clear
+ *   receivedAt          time of receipt (TTL indexed if retentionMaxAgeMillis is set)
  * All headers are also appended to message documents with header names as keys.
  * </pre></p>
+ * <p>
+ * Sequence numbers are never rewritten. {@link #tail(int)} moves a base offset
+ * forward instead, so the 0-based position of a stored message is its
+ * {@code sequenceNumber} minus {@link #getBaseSequenceNumber()}. The base offset
+ * is kept in the {@code <collection>_state} collection.</p>
+ * <p>
+ * Instead of calling {@link #tail(int)}, messages can be dropped automatically
+ * by age, count or total size (see {@link MongsterConfig#setRetentionMaxAgeMillis},
+ * {@link MongsterConfig#setRetentionMaxMessages} and
+ * {@link MongsterConfig#setRetentionMaxBytes}). A background thread trims the
+ * oldest messages in the same way as {@link #tail(int)}, without blocking
+ * message receipt.</p>
+ * <p>
+ * MongoDB is the default storage backend. {@link MongsterConfig#setStorageBackend}
+ * selects a heap-only store or an embedded file store instead, which lets
+ * Mongster run without a MongoDB server; see {@link MessageStore}. The
+ * document layout above applies to the MongoDB backend only.</p>
+ * <p>
+ * If {@link MongsterConfig#isAsyncWrites()} is true, received messages are
+ * handed off to a background writer that inserts them in batches. Use
+ * {@link #flush()} to wait for pending writes before inspecting the MongoDB
+ * collection.</p>
+ * <p>
+ * If {@link MongsterConfig#isJournalEnabled()} is true, each message is
+ * appended to a local write-ahead journal before the SMTP reply and written to
+ * the storage backend in the background (see {@link MessageJournal}), so mail
+ * is still accepted while MongoDB is down or restarting.</p>
+ * <p>
+ * {@link #find(MessageQuery)}, {@link #countMatching(MessageQuery)} and
+ * {@link #awaitMessage(Predicate, long, TimeUnit)} look up received
+ * messages for test assertions. Queries are answered from the in-memory
+ * indexes if {@code inMemory} is true and from the storage backend otherwise; indexes on
+ * {@code envelopeReceiver}, {@code envelopeSender}, {@code subject},
+ * {@code messageid} and {@code sequenceNumber} are created at startup.</p>
+ * <p>
+ * {@link #awaitMessages(int, long, TimeUnit)} and
+ * {@link #awaitMatching(Predicate, int, long, TimeUnit)} block until
+ * enough messages have arrived. They are woken by each received message, so
+ * tests need not poll {@link #getMessages()}. Each also takes a
+ * {@code java.time.Duration} timeout. Any {@code Predicate<WiserMessage>}
+ * can be the condition; {@link MessageQuery} conditions use the indexes.</p>
+ * <p>
+ * Received mail can be routed by recipient domain, recipient prefix or header
+ * to separate namespaces, each with its own collection (or database) and
+ * sequence numbers (see {@link MongsterConfig#setNamespaceRouting}). Use
+ * {@link #namespace(String)} to query or clear one namespace; the methods of
+ * this class act on the default namespace. Names that would share a
+ * collection with the state or payloads of another namespace are reserved
+ * (see {@link #isReservedNamespace(String)}); mail routed to one is rejected.</p>
+ * <p>
+ * If {@link MongsterConfig#isMetricsEnabled()} is true, ingestion counters
+ * and per-stage latency histograms are available from {@link #getMetrics()}
+ * and over JMX while the server is running.</p>
+ * <p>
+ * Besides {@code smtpPort}, Mongster can accept connections on further
+ * addresses and ports ({@link MongsterConfig#setSmtpListeners}); all listeners
+ * deliver to the same store. SMTP sessions run on one shared executor, which
+ * can be a pool of virtual threads on JDK 21 and later (see
+ * {@link MongsterConfig#setSessionExecutor}).</p>
  *
  */
 public class Mongster extends Wiser {
     
+    private final MongsterConfig config;
+    
+    /**
+     * Namespaces by normalized name. The default namespace, named "", holds
+     * the messages in Wiser's {@code messages} list.
+     */
+    private final Map<String, MessageNamespace> namespaces = new ConcurrentHashMap<String, MessageNamespace>();
+    
+    private final MessageNamespace defaultNamespace;
+    
+    /** Guarded by {@code namespaces} */
+    private boolean started = false;
+    
+    /** Runs the SMTP sessions of all listeners */
+    private final ExecutorService sessionExecutor;
+    
+    /** Listeners besides Wiser's server, from smtpListeners */
+    private final List<SMTPServer> extraServers = new ArrayList<SMTPServer>();
+    
+    /** Shares payloads between recipients - null unless payloadDeduplication is set */
+    private final PayloadInterner payloads;
+    
     /**
      * Creates a Mongster that stores received messages in memory and uses
      * the default MongoDB configuration (localhost, standard port, "mongster"
@@ -73,9 +177,24 @@ public class Mongster extends Wiser {
      */
     public Mongster(MongsterConfig config) {
         super();
+        this.config = config;
+        sessionExecutor = config.getSessionExecutorService() != null ?
+            config.getSessionExecutorService() : newSessionExecutor(config);
+        final SMTPServer server = new SMTPServer(new SimpleMessageListenerAdapter(this), null, sessionExecutor);
+        configureServer(server, config.getSmtpBindAddress());
+        setServer(server);
         setPort(config.getSmtpPort());
-        messages = new PersistedMessageList(config.isInMemory(), config.getMongoHost(), config.getMongoPort(),
-                                            config.getMongoDatabase(), config.getMongoCollection());
+        for (String listener : config.getSmtpListeners()) {
+            final SMTPServer extra = new SMTPServer(server.getMessageHandlerFactory(), null, sessionExecutor);
+            final int colon = listener.lastIndexOf(':');
+            configureServer(extra, colon < 0 ? null : listener.substring(0, colon));
+            extra.setPort(Integer.parseInt(listener.substring(colon + 1).trim()));
+            extraServers.add(extra);
+        }
+        payloads = config.isPayloadDeduplication() ? new PayloadInterner() : null;
+        messages = new PersistedMessageList(this, config);
+        defaultNamespace = new MessageNamespace("", (PersistedMessageList) messages);
+        namespaces.put("", defaultNamespace);
     }
     
     /**
@@ -94,110 +213,1061 @@ public class Mongster extends Wiser {
      */
     @Override
     public List<WiserMessage> getMessages() {
-        return ((PersistedMessageList) messages).list();
+        return defaultNamespace.getMessages();
     }
     
     public void clear() {
-        messages.clear();
+        defaultNamespace.clear();
     }
     
     public void truncate(int numMessages) {
-        ((PersistedMessageList) messages).truncate(numMessages);
+        defaultNamespace.truncate(numMessages);
     }
     
     public void tail(int numMessages) {
-        ((PersistedMessageList) messages).tail(numMessages);
+        defaultNamespace.tail(numMessages);
+    }
+
+    /**
+     * Returns the stored sequence number of the first retained message. This
+     * is 0 until {@link #tail(int)} drops messages from the front.
+     * 
+     * @return offset to subtract from stored sequence numbers to get positions
+     */
+    public long getBaseSequenceNumber() {
+        return defaultNamespace.getBaseSequenceNumber();
+    }
+    
+    /**
+     * Returns the raw bytes of a message document read from MongoDB, whichever
+     * of the {@code bytes64}, {@code raw} or {@code rawFileId} forms it uses.
+     * 
+     * @param doc message document
+     * @return raw message bytes (headers and content), or null if there are none
+     */
+    public byte[] getRawBytes(Document doc) {
+        return ((PersistedMessageList) messages).rawBytes(doc);
+    }
+    
+    /**
+     * Returns the retained messages matching a query, in order of receipt.
+     * 
+     * @param query query to run
+     * @return matching messages
+     */
+    public List<WiserMessage> find(MessageQuery query) {
+        return defaultNamespace.find(query);
+    }
+    
+    /**
+     * @param recipient envelope recipient address
+     * @return retained messages delivered to {@code recipient}
+     */
+    public List<WiserMessage> findByRecipient(String recipient) {
+        return find(MessageQuery.recipient(recipient));
+    }
+    
+    /**
+     * @param name header name (case-insensitive)
+     * @param value header value, as it appears in the message
+     * @return retained messages having a {@code name} header equal to {@code value}
+     */
+    public List<WiserMessage> findByHeader(String name, String value) {
+        return find(MessageQuery.header(name, value));
+    }
+    
+    /**
+     * @param prefix start of the subject
+     * @return retained messages whose subject starts with {@code prefix}
+     */
+    public List<WiserMessage> findBySubjectPrefix(String prefix) {
+        return find(MessageQuery.subjectPrefix(prefix));
+    }
+    
+    /**
+     * @param query query to run
+     * @return number of retained messages matching the query
+     */
+    public long countMatching(MessageQuery query) {
+        return defaultNamespace.countMatching(query);
+    }
+    
+    /**
+     * Full-text search over the subjects and text bodies of retained
+     * messages. A message matches if it contains any of the query's terms
+     * (runs of letters and digits, case-insensitive); messages with more,
+     * rarer and subject matches rank higher. Requires
+     * {@link MongsterConfig#setTextSearchEnabled(boolean)}.
+     * 
+     * @param query search terms, for example an order number
+     * @param limit maximum number of messages to return
+     * @return up to {@code limit} matching messages, best match first
+     * @throws IllegalStateException if text search is not enabled
+     */
+    public List<WiserMessage> search(String query, int limit) {
+        return defaultNamespace.search(query, limit);
     }
     
+    /**
+     * Returns one page of stored message documents, without raw bytes. Use
+     * this rather than {@link #getMessages()} to browse large mailboxes.
+     * 
+     * @param listing page to return
+     * @return requested page, with a cursor for the next one
+     */
+    public MessagePage list(MessageListing listing) {
+        return defaultNamespace.list(listing);
+    }
     
-    /** Starts up the server. */
+    /**
+     * Subscribes to the messages added after {@code since}, for clients that
+     * want new messages as they arrive rather than polling {@link #list}.
+     * 
+     * @param listing filters and fields of the returned documents
+     * @param since sequence number of the last message already seen, -1 for all
+     * @return open subscription - close it when done
+     */
+    public MessageSubscription subscribe(MessageListing listing, long since) {
+        return defaultNamespace.subscribe(listing, since);
+    }
+    
+    /**
+     * Subscribes to messages added from now on.
+     * 
+     * @param listing filters and fields of the returned documents
+     * @return open subscription - close it when done
+     */
+    public MessageSubscription subscribe(MessageListing listing) {
+        return defaultNamespace.subscribe(listing);
+    }
+    
+    /**
+     * Waits for a message satisfying {@code condition}. Messages already received
+     * are checked first, so this does not race with delivery.
+     * 
+     * @param condition condition the message must satisfy
+     * @param timeout maximum time to wait
+     * @param unit unit of {@code timeout}
+     * @return the first matching message, or null if none arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public WiserMessage awaitMessage(Predicate<? super WiserMessage> condition, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return defaultNamespace.awaitMessage(condition, timeout, unit);
+    }
+    
+    /**
+     * @see #awaitMessage(Predicate, long, TimeUnit)
+     */
+    public WiserMessage awaitMessage(Predicate<? super WiserMessage> condition, Duration timeout)
+        throws InterruptedException {
+        return defaultNamespace.awaitMessage(condition, timeout);
+    }
+    
+    /**
+     * Waits until at least {@code count} messages are retained. Waiting threads
+     * are woken as messages arrive rather than polling. With a bounded in-memory
+     * cache, only messages still held in memory are counted.
+     * 
+     * @param count number of messages to wait for
+     * @param timeout maximum time to wait
+     * @param unit unit of {@code timeout}
+     * @return true if there are {@code count} messages, false on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitMessages(int count, long timeout, TimeUnit unit) throws InterruptedException {
+        return defaultNamespace.awaitMessages(count, timeout, unit);
+    }
+    
+    /**
+     * @see #awaitMessages(int, long, TimeUnit)
+     */
+    public boolean awaitMessages(int count, Duration timeout) throws InterruptedException {
+        return defaultNamespace.awaitMessages(count, timeout);
+    }
+    
+    /**
+     * Waits until at least {@code count} retained messages satisfy
+     * {@code condition}. Conditions other than {@link MessageQuery} are checked
+     * against every retained message each time a matching message arrives.
+     * 
+     * @param condition condition messages must satisfy
+     * @param count number of matching messages to wait for
+     * @param timeout maximum time to wait
+     * @param unit unit of {@code timeout}
+     * @return true if there are {@code count} matching messages, false on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitMatching(Predicate<? super WiserMessage> condition, int count, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return defaultNamespace.awaitMatching(condition, count, timeout, unit);
+    }
+    
+    /**
+     * @see #awaitMatching(Predicate, int, long, TimeUnit)
+     */
+    public boolean awaitMatching(Predicate<? super WiserMessage> condition, int count, Duration timeout)
+        throws InterruptedException {
+        return defaultNamespace.awaitMatching(condition, count, timeout);
+    }
+    
+    /**
+     * Returns the difference between the number of messages Mongster has
+     * stored and the number of documents in the MongoDB collection. This is
+     * 0 unless inserts failed or the collection was changed by something
+     * else. Waits for pending asynchronous writes first.
+     * 
+     * @return local count minus server count
+     */
+    public long getCountDrift() {
+        return defaultNamespace.getCountDrift();
+    }
+    
+    /**
+     * Blocks until all messages received so far, in every namespace, have
+     * been written to MongoDB. Returns immediately unless asynchronous writes
+     * are enabled.
+     */
+    public void flush() {
+        for (MessageNamespace namespace : namespaces.values()) {
+            namespace.flush();
+        }
+    }
+
+    /**
+     * @return true between {@link #start()} and {@link #stop()}
+     */
+    public boolean isRunning() {
+        synchronized (namespaces) {
+            return started;
+        }
+    }
+    
+    /**
+     * Returns true once the server is running and the storage backends of all
+     * namespaces have finished their startup work (MongoDB index creation
+     * runs in the background). Use this as a readiness check.
+     * 
+     * @return true if ready to receive and query mail
+     */
+    public boolean isReady() {
+        synchronized (namespaces) {
+            if (!started) {
+                return false;
+            }
+            for (MessageNamespace namespace : namespaces.values()) {
+                if (!namespace.list().isReady()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Returns ingestion metrics for the default namespace, or null unless
+     * {@link MongsterConfig#isMetricsEnabled()} is true.
+     * 
+     * @return metrics for this server
+     */
+    public MongsterMetrics getMetrics() {
+        return defaultNamespace.getMetrics();
+    }
+    
+    /**
+     * Returns a namespace, opening its collection (or database) if this is
+     * the first time it is used. Names are normalized as routed names are:
+     * lower-cased, with characters other than letters, digits, '-' and '_'
+     * replaced by '_'.
+     * 
+     * @param name namespace name - null or empty for the default namespace
+     * @return the namespace
+     * @throws IllegalArgumentException if the name is reserved
+     */
+    public MessageNamespace namespace(String name) {
+        final String normalized = normalizeNamespace(name);
+        MessageNamespace namespace = namespaces.get(normalized);
+        if (namespace == null) {
+            if (isReservedNamespace(normalized)) {
+                throw new IllegalArgumentException("Namespace name " + normalized + " is reserved");
+            }
+            synchronized (namespaces) {
+                namespace = namespaces.get(normalized);
+                if (namespace == null) {
+                    namespace = new MessageNamespace(normalized, new PersistedMessageList(
+                        this, config.forNamespace(normalized), (PersistedMessageList) messages));
+                    if (namespace.getMetrics() != null && started) {
+                        namespace.getMetrics().register();
+                    }
+                    namespaces.put(normalized, namespace);
+                }
+            }
+        }
+        return namespace;
+    }
+    
+    /**
+     * @return names of the namespaces opened so far, including the default ("")
+     */
+    public Set<String> getNamespaces() {
+        return new TreeSet<String>(namespaces.keySet());
+    }
+
+    /**
+     * Starts the SMTP server and, if metrics are enabled, registers them
+     * with JMX.
+     */
+    @Override
+    public void start() {
+        super.start();
+        for (SMTPServer server : extraServers) {
+            server.start();
+        }
+        synchronized (namespaces) {
+            started = true;
+            for (MessageNamespace namespace : namespaces.values()) {
+                if (namespace.getMetrics() != null) {
+                    namespace.getMetrics().register();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the SMTP server, waits for pending MongoDB writes and stops the
+     * background writers and journal replayers, if there are any.
+     */
+    @Override
+    public void stop() {
+        for (SMTPServer server : extraServers) {
+            server.stop();
+        }
+        super.stop();
+        if (config.getSessionExecutorService() == null) {
+            sessionExecutor.shutdown();
+        }
+        flush();
+        synchronized (namespaces) {
+            started = false;
+            for (MessageNamespace namespace : namespaces.values()) {
+                namespace.list().close();
+                if (namespace.getMetrics() != null) {
+                    namespace.getMetrics().unregister();
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Reads the message data stream once, parsing headers as the bytes arrive,
+     * and adds the message to the message list of the namespace it is routed
+     * to. Unlike {@link Wiser}, the raw bytes are not copied again and the
+     * message is not re-parsed to build its MongoDB document. With
+     * {@code payloadDeduplication}, recipients of the same message share
+     * one copy of it.
+     */
+    @Override
+    public void deliver(String from, String recipient, InputStream data)
+        throws TooMuchDataException, IOException {
+        final long start = config.isMetricsEnabled() ? System.nanoTime() : 0;
+        final ParsedMessage parsed = payloads == null ? ParsedMessage.read(data) :
+            payloads.intern(ParsedMessage.read(data));
+        // Routing may need the headers, so receive time is booked once the route is known
+        final String route = route(recipient, parsed);
+        if (route != null && isReservedNamespace(normalizeNamespace(route))) {
+            throw new RejectException(553, "Requested action not taken: mailbox name not allowed");
+        }
+        final PersistedMessageList list = route == null ? (PersistedMessageList) messages :
+            namespace(route).list();
+        if (list.metrics != null) {
+            list.metrics.receive.recordSince(start);
+        }
+        list.add(newWiserMessage(this, from, recipient, parsed.getData()), parsed);
+    }
+    
+    /**
+     * Picks the namespace a message goes to, as configured.
+     * 
+     * @param recipient envelope recipient
+     * @param parsed raw bytes and headers of the message
+     * @return namespace name, or null for the default namespace
+     */
+    private String route(String recipient, ParsedMessage parsed) {
+        final String value;
+        switch (config.getNamespaceRouting()) {
+            case RECIPIENT_DOMAIN: {
+                final int at = recipient == null ? -1 : recipient.lastIndexOf('@');
+                value = at < 0 ? null : recipient.substring(at + 1);
+                break;
+            }
+            case RECIPIENT_PREFIX: {
+                final int at = recipient == null ? -1 : recipient.lastIndexOf('@');
+                final String local = at < 0 ? recipient : recipient.substring(0, at);
+                final int plus = local == null ? -1 : local.indexOf('+');
+                value = plus <= 0 ? null : local.substring(0, plus);
+                break;
+            }
+            case HEADER: {
+                final String header = parsed.getHeader(config.getNamespaceHeader());
+                value = header == null ? null : header.trim();
+                break;
+            }
+            default:
+                return null;
+        }
+        return value == null || value.isEmpty() ? null : value;
+    }
+    
+    /**
+     * Checks whether a namespace's collection name, the message collection
+     * name plus "_" and the namespace, would end in a suffix that
+     * {@link MongoMessageStore} or {@link PayloadStore} append to message
+     * collection names: "state" would share {@code <collection>_state} with
+     * the default namespace, "a_payloads" the payloads of namespace "a".
+     * 
+     * @param normalized normalized namespace name
+     * @return true if the name may not be used
+     */
+    static boolean isReservedNamespace(String normalized) {
+        final String suffix = "_" + normalized;
+        return suffix.endsWith(MongoMessageStore.STATE_COLLECTION_SUFFIX) ||
+            suffix.endsWith(PayloadStore.COLLECTION_SUFFIX);
+    }
+    
+    /**
+     * @param name namespace name as given or routed
+     * @return lower-cased name with unsafe characters replaced, "" for null
+     */
+    static String normalizeNamespace(String name) {
+        if (name == null) {
+            return "";
+        }
+        final StringBuilder normalized = new StringBuilder(name.length());
+        for (char c : name.trim().toLowerCase().toCharArray()) {
+            normalized.append((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' ? c : '_');
+        }
+        return normalized.toString();
+    }
+    
+    private static final Constructor<WiserMessage> WISER_MESSAGE_CONSTRUCTOR;
+    static {
+        try {
+            WISER_MESSAGE_CONSTRUCTOR = WiserMessage.class.getDeclaredConstructor(
+                    Wiser.class, String.class, String.class, byte[].class);
+            WISER_MESSAGE_CONSTRUCTOR.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    private static final Field WISER_SERVER;
+    static {
+        try {
+            WISER_SERVER = Wiser.class.getDeclaredField("server");
+            WISER_SERVER.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    /**
+     * Replaces the SMTP server created by Wiser, which always uses its own
+     * thread pool. The field is package-private, so this goes through
+     * reflection.
+     * 
+     * @param server server delivering to this Mongster
+     */
+    private void setServer(SMTPServer server) {
+        try {
+            WISER_SERVER.set(this, server);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to replace Wiser's SMTP server", e);
+        }
+    }
+    
+    /**
+     * Applies the configured connection limits and bind address.
+     * 
+     * @param server server to configure
+     * @param bindAddress address or host name, optionally in brackets; null
+     * or empty for all local addresses
+     */
+    private void configureServer(SMTPServer server, String bindAddress) {
+        server.setMaxConnections(config.getSmtpMaxConnections());
+        server.setBacklog(config.getSmtpBacklog());
+        if (bindAddress != null && !bindAddress.trim().isEmpty()) {
+            final String host = bindAddress.trim().replace("[", "").replace("]", "");
+            try {
+                server.setBindAddress(InetAddress.getByName(host));
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Unknown SMTP bind address: " + bindAddress, e);
+            }
+        }
+    }
+    
+    /**
+     * Creates the executor for SMTP sessions. Virtual threads are looked up
+     * reflectively, so Mongster still runs on JDKs without them.
+     * 
+     * @param config configuration naming the kind of executor
+     * @return new executor, shut down by {@link #stop()}
+     */
+    static ExecutorService newSessionExecutor(MongsterConfig config) {
+        switch (config.getSessionExecutor()) {
+            case FIXED:
+                return Executors.newFixedThreadPool(Math.max(1, config.getSessionThreads()));
+            case VIRTUAL:
+                try {
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    // No virtual threads before JDK 21 - use platform threads
+                }
+                return Executors.newCachedThreadPool();
+            default:
+                return Executors.newCachedThreadPool();
+        }
+    }
+    
+    /**
+     * @return SMTP servers of all listeners, Wiser's own ({@link #getServer()}) first
+     */
+    public List<SMTPServer> getServers() {
+        final List<SMTPServer> servers = new ArrayList<SMTPServer>();
+        servers.add(getServer());
+        servers.addAll(extraServers);
+        return servers;
+    }
+    
+    /**
+     * Sets the host name announced by all listeners.
+     */
+    @Override
+    public void setHostname(String hostname) {
+        super.setHostname(hostname);
+        for (SMTPServer server : extraServers) {
+            server.setHostName(hostname);
+        }
+    }
+    
+    /**
+     * Creates a {@code WiserMessage}. Its constructor is package-private, so this
+     * goes through reflection.
+     * 
+     * @param wiser server the message belongs to (used to get a mail session)
+     * @param envelopeSender envelope sender
+     * @param envelopeReceiver envelope receiver
+     * @param data raw message bytes
+     * @return new WiserMessage
+     */
+    static WiserMessage newWiserMessage(Wiser wiser, String envelopeSender,
+                                        String envelopeReceiver, byte[] data) {
+        try {
+            return WISER_MESSAGE_CONSTRUCTOR.newInstance(wiser, envelopeSender, envelopeReceiver, data);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to create WiserMessage", e);
+        }
+    }
+    
+    /**
+     * Starts up the server, configured from the command line, environment and
+     * an optional properties file (see {@link MongsterLauncher}).
+     */
     public static void main(String[] args) throws Exception {
-        Mongster mongster = new Mongster();
-        mongster.start();
+        MongsterLauncher.main(args);
     }
     
     /**
-     * Subclass ArrayList to make {@link #add(WiserMessage)} also add to a MongoDB
-     * collection. Also overrides {@link #clear()} to remove all documents from Mongo
-     * and adds {@link #truncate(int)} and {@link #tail(int)} methods. Stores messages
-     * in Mongo using headers as keys and puts body under "body".
+     * List of received messages that also adds them to a {@link MessageStore}
+     * backend (MongoDB by default). The in-memory part is an
+     * {@link InMemoryMessageStore}, which may evict messages to stay within the
+     * limits set in {@link MongsterConfig}; eviction does not remove messages
+     * from the backend. Overrides {@link #clear()} to remove all stored messages
+     * and adds {@link #truncate(int)} and {@link #tail(int)} methods.
      * <p>
-     * To make sure json names are valid and to simplify client code, header names
-     * are lower-cased and dashes are removed.</p>
+     * Sequence numbers and the stored-message count are kept here; the backend
+     * only stores messages.</p>
      * <p>
      * THIS CLASS IS NOT INTENDED FOR REUSE. Only the methods actually used by
      * the parent class are correctly overridden.  List methods such as iterators
      * and indexed accessors / mutators act only on the in-memory list. </p>
      * 
      */
-    static class PersistedMessageList extends ArrayList<WiserMessage> {
-        private static final long serialVersionUID = 1L;
+    static class PersistedMessageList extends AbstractList<WiserMessage> {
+        
+        /**
+         * Notified after each message is added.
+         */
+        interface MessageListener {
+            void messageAdded(WiserMessage message, long seq);
+        }
         
-        private MongoDatabase db;
-        private final MongoClient mongoClient;
-        private final String mongoCollection;
         private final boolean inMemory;
         
+        private final boolean textSearchEnabled;
+        
         /**
-         * Sequence numbers attached to received messages in MongoDB.
+         * Messages kept in memory - null if {@code inMemory} is false, or if
+         * the backend already keeps them on the heap.
          */
-        private long sequenceNumber = 0;
+        private final InMemoryMessageStore store;
         
-        public PersistedMessageList(boolean inMemory, String mongoHost, int mongoPort,
-                                    String mongoDatabase, String mongoCollection) {
-            this.mongoCollection = mongoCollection;
-            mongoClient = new MongoClient(mongoHost);
-            try {
-                db = mongoClient.getDatabase(mongoDatabase);
-            } catch (Exception ex) {
-                mongoClient.close();
+        /**
+         * The backend, if it is the MEMORY backend and {@code inMemory} is
+         * true: in-memory reads are then served from it instead of a copy.
+         */
+        private final HeapMessageStore heap;
+        
+        /**
+         * Where messages are persisted.
+         */
+        final MessageStore backend;
+
+        /**
+         * Background batch writers - null unless asynchronous writes are configured.
+         * A message goes to the writer at index {@code sequenceNumber % writers.length}.
+         */
+        private final AsyncMessageWriter[] writers;
+        
+        /**
+         * Write-ahead journal - null unless enabled in the configuration. When
+         * there is a journal, it assigns sequence numbers and writes to the
+         * backend, and there are no background writers.
+         */
+        private final MessageJournal journal;
+        
+        /**
+         * Applies retention limits - null unless a limit is configured.
+         */
+        private final RetentionTrimmer trimmer;
+        private final long retentionMaxAgeMillis;
+        private final long retentionMaxMessages;
+        private final long retentionMaxBytes;
+
+        /**
+         * Sequence numbers attached to received messages. This is a receipt
+         * counter - stored messages are never renumbered.
+         */
+        private final AtomicLong sequenceNumber = new AtomicLong();
+        
+        /**
+         * Sequence number of the first retained message. The 0-based position
+         * of a stored message is its sequence number minus this offset.
+         */
+        private volatile long baseSequenceNumber = 0;
+        
+        /**
+         * Number of stored messages, counting messages still queued for a
+         * background writer. Maintained by add, clear, truncate and tail so that
+         * {@link #size()} does not need a server round trip; reconciled with
+         * the backend's count at startup.
+         */
+        private final AtomicLong storedCount = new AtomicLong();
+        
+        /**
+         * Longest time {@link #add} and the administrative methods wait for
+         * {@link #restoreSequence()} before giving up.
+         */
+        static final long RESTORE_WAIT_MILLIS = 2000;
+        
+        /** Longest wait between attempts to restore the sequence */
+        private static final long MAX_RESTORE_RETRY_MILLIS = 5000;
+        
+        /**
+         * Counted down once {@link #restoreSequence()} has succeeded. It reads
+         * the backend, so it runs on a background thread rather than holding
+         * up startup while MongoDB is slow or unreachable.
+         */
+        private final CountDownLatch restored = new CountDownLatch(1);
+        
+        /** Set by {@link #close()} while holding {@link #restored} */
+        private volatile boolean closing = false;
+        
+        /**
+         * Message ingestion holds the read lock, so SMTP sessions proceed in
+         * parallel; {@link #clear()}, {@link #truncate(int)} and {@link #tail(int)}
+         * hold the write lock.
+         */
+        private final ReentrantReadWriteLock adminLock = new ReentrantReadWriteLock();
+        
+        private final List<MessageListener> listeners = new CopyOnWriteArrayList<MessageListener>();
+        
+        /** Created by the first {@link #subscribe} */
+        private volatile MessageFeed feed;
+        
+        private final ContentExtraction contentExtraction;
+        
+        /**
+         * Ingestion metrics - null unless enabled in the configuration.
+         */
+        final MongsterMetrics metrics;
+        
+        public PersistedMessageList(Wiser wiser, MongsterConfig config) {
+            this(wiser, config, null);
+        }
+        
+        /**
+         * Creates a list that shares the MongoDB client of another list, if
+         * both use the MONGO backend.
+         * 
+         * @param shareWith list whose MongoDB client to reuse, or null
+         */
+        PersistedMessageList(Wiser wiser, MongsterConfig config, PersistedMessageList shareWith) {
+            this.inMemory = config.isInMemory();
+            this.textSearchEnabled = config.isTextSearchEnabled();
+            this.contentExtraction = config.getContentExtraction();
+            metrics = config.isMetricsEnabled() ?
+                new MongsterMetrics(this, config.getMongoDatabase() + "." + config.getMongoCollection()) : null;
+            switch (config.getStorageBackend()) {
+                case MEMORY:
+                    backend = new HeapMessageStore(config);
+                    break;
+                case FILE:
+                    backend = new FileMessageStore(wiser, config);
+                    break;
+                default:
+                    backend = new MongoMessageStore(wiser, config, metrics,
+                        shareWith != null && shareWith.backend instanceof MongoMessageStore ?
+                            ((MongoMessageStore) shareWith.backend).mongoClient : null);
             }
-            this.inMemory = inMemory;
+            heap = inMemory && backend instanceof HeapMessageStore ? (HeapMessageStore) backend : null;
+            store = inMemory && heap == null ? new InMemoryMessageStore(wiser, config) : null;
+            journal = config.isJournalEnabled() ? new MessageJournal(wiser, backend, config, metrics) : null;
+            if (journal != null) {
+                // Started once the sequence is restored
+                writers = null;
+            } else if (config.isAsyncWrites()) {
+                writers = new AsyncMessageWriter[Math.max(1, config.getWriterThreads())];
+                for (int i = 0; i < writers.length; i++) {
+                    writers[i] = new AsyncMessageWriter(this, backend, config, "mongster-writer-" + i);
+                }
+            } else {
+                writers = null;
+            }
+            retentionMaxAgeMillis = config.getRetentionMaxAgeMillis();
+            retentionMaxMessages = config.getRetentionMaxMessages();
+            retentionMaxBytes = config.getRetentionMaxBytes();
+            trimmer = config.isRetentionEnabled() ?
+                new RetentionTrimmer(this, config, "mongster-retention-" + config.getMongoCollection()) : null;
+            final Thread restorer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    restoreWithRetry();
+                }
+            }, "mongster-restore-" + config.getMongoCollection());
+            restorer.setDaemon(true);
+            restorer.start();
         }
 
+        /**
+         * Adds a message to the in-memory list (if {@code inMemory} is true) and
+         * writes it to the backend. If the journal is enabled, the message is
+         * appended to it and written to the backend by the journal's replayer;
+         * otherwise, if asynchronous writes are enabled, the message is
+         * queued for a background writer instead of being inserted directly.
+         * Concurrent calls do not block each other.
+         *
+         * @throws org.subethamail.smtp.RejectException if the write queue is full
+         * and the backpressure policy is {@code REJECT}, or if the sequence
+         * has not been restored within {@link #RESTORE_WAIT_MILLIS}
+         */
         @Override
         public boolean add(WiserMessage message) {
-            synchronized (this) {
-                if (!inMemory || super.add(message)) { // Short-circuit -> no add if inMemory is false
-                    final MongoCollection<Document> coll = db.getCollection(mongoCollection); 
-                    Document doc = new Document();
-                    List<MailHeader> headers = null;
+            return add(message, ParsedMessage.parse(message.getData()));
+        }
+        
+        /**
+         * Adds a message whose headers have already been parsed.
+         * 
+         * @param message received message
+         * @param parsed raw bytes and headers of {@code message}
+         * @return true
+         */
+        public boolean add(WiserMessage message, ParsedMessage parsed) {
+            if (!awaitRestored()) {
+                throw new RejectException(AsyncMessageWriter.QUEUE_FULL_REPLY_CODE,
+                    "Requested action aborted: message store not ready");
+            }
+            long seq = -1;
+            boolean counted = false;
+            adminLock.readLock().lock();
+            try {
+                seq = journal != null ? journal.append(message, sequenceNumber) :
+                    sequenceNumber.getAndIncrement();
+                if (metrics != null) {
+                    metrics.messageReceived(parsed.getData().length);
+                }
+                // Counted once written or journaled, but before it is queued, as a
+                // background writer may discard it straight away - taken back if rejected
+                final boolean queued = journal == null && writers != null;
+                if (queued) {
+                    counted = true;
+                    record(message, parsed, seq);
+                }
+                if (journal != null) {
+                    // Written to the backend by the journal's replayer
+                } else if (queued) {
+                    writers[(int) (seq % writers.length)].submit(message, parsed, seq);
+                } else if (metrics == null) {
+                    backend.add(message, parsed, seq);
+                } else {
+                    final long start = System.nanoTime();
                     try {
-                        headers = getHeadersFromMimeMessage(message.getMimeMessage());
-                    } catch (MessagingException e) {
-                        e.printStackTrace();
+                        backend.add(message, parsed, seq);
+                    } catch (RuntimeException e) {
+                        metrics.mongoError(1);
+                        throw e;
                     }
-                    for (MailHeader header : headers) {
-                        doc.append(fixHeaderName(header.name), header.value);
+                    metrics.insert.recordSince(start);
+                }
+                if (!queued) {
+                    counted = true;
+                    record(message, parsed, seq);
+                }
+            } catch (RuntimeException e) {
+                if (counted) {
+                    storedCount.decrementAndGet();
+                    if (store != null) {
+                        store.remove(seq);
                     }
-                    // Add message body FIXME: verify the content is text/plain and if not, handle specially
-                    try {
-                        doc.append("body", message.getMimeMessage().getContent());
-                    } catch (IOException | MessagingException e) {
-                        e.printStackTrace();
+                }
+                final MessageFeed feed = this.feed;
+                if (feed != null && seq >= 0) {
+                    feed.skip(seq);
+                }
+                throw e;
+            } finally {
+                adminLock.readLock().unlock();
+            }
+            for (MessageListener listener : listeners) {
+                listener.messageAdded(message, seq);
+            }
+            return true;
+        }
+        
+        /**
+         * Counts a stored message and keeps it in memory.
+         */
+        private void record(WiserMessage message, ParsedMessage parsed, long seq) {
+            storedCount.incrementAndGet();
+            if (store != null) {
+                store.add(message, parsed, seq);
+            }
+        }
+        
+        /**
+         * Takes back a message that a background writer dropped or failed to
+         * write: it is no longer counted or kept in memory, and subscribers
+         * stop waiting for its sequence number. Called by the writer thread
+         * (or, for dropped messages, a submitting session) without the admin
+         * lock, before the message is reported complete to {@link #flush()}.
+         *
+         * @param seq sequence number of the message
+         */
+        void discarded(long seq) {
+            storedCount.decrementAndGet();
+            if (store != null) {
+                store.remove(seq);
+            }
+            final MessageFeed feed = this.feed;
+            if (feed != null) {
+                feed.skip(seq);
+            }
+        }
+        
+        void addListener(MessageListener listener) {
+            listeners.add(listener);
+        }
+        
+        void removeListener(MessageListener listener) {
+            listeners.remove(listener);
+        }
+        
+        /**
+         * Subscribes to messages added after {@code since}, stored ones first.
+         * 
+         * @param listing filters and fields of the documents returned
+         * @param since sequence number of the last message already seen
+         * @return open subscription
+         */
+        public MessageSubscription subscribe(MessageListing listing, long since) {
+            checkRestored();
+            MessageFeed feed = this.feed;
+            if (feed == null) {
+                synchronized (this) {
+                    feed = this.feed;
+                    if (feed == null) {
+                        feed = new MessageFeed(this, contentExtraction);
+                        // Messages numbered before the feed existed are read back from the backend
+                        synchronized (feed) {
+                            addListener(feed);
+                            feed.reset(sequenceNumber.get());
+                        }
+                        this.feed = feed;
                     }
-                    // Add WiserMessage attributes
-                    doc.append("envelopeSender", message.getEnvelopeSender());
-                    doc.append("envelopeReceiver", message.getEnvelopeReceiver());
-                    doc.append("bytes64", Base64.encodeToString(message.getData(),true));
-                    doc.append("sequenceNumber", sequenceNumber++);
-                    coll.insertOne(doc);
-                    return true;
-                } else {
-                    return false;
                 }
             }
+            return feed.subscribe(listing, since, MessageSubscription.DEFAULT_CAPACITY);
+        }
+        
+        /**
+         * Returns retained messages matching a query, in order of receipt.
+         * 
+         * @param query query to run
+         * @return matching messages
+         */
+        public List<WiserMessage> find(MessageQuery query) {
+            if (store != null) {
+                return store.find(query);
+            }
+            flush();
+            return backend.find(query, Integer.MAX_VALUE);
+        }
+        
+        /**
+         * Full-text search over subjects and text bodies, answered from memory
+         * if messages are kept there and otherwise by the backend.
+         * 
+         * @param query search terms
+         * @param limit maximum number of messages to return
+         * @return up to {@code limit} matching messages, best match first
+         * @throws IllegalStateException if text search is not enabled
+         */
+        public List<WiserMessage> search(String query, int limit) {
+            if (!textSearchEnabled) {
+                throw new IllegalStateException("Text search is not enabled (see MongsterConfig.setTextSearchEnabled)");
+            }
+            if (store != null) {
+                return store.search(query, limit);
+            }
+            flush();
+            return backend.search(query, limit);
         }
         
+        /**
+         * Returns a page of stored message documents from the backend.
+         * Messages still queued for a background writer are not listed yet.
+         * 
+         * @param listing page to return
+         * @return requested page
+         */
+        public MessagePage list(MessageListing listing) {
+            return backend.list(listing);
+        }
+        
+        /**
+         * @param query query to run
+         * @return number of retained messages matching the query
+         */
+        public long count(MessageQuery query) {
+            if (store != null) {
+                return store.count(query);
+            }
+            flush();
+            return backend.count(query);
+        }
+        
+        /**
+         * Returns the earliest retained message satisfying a matcher. Matchers
+         * other than {@link MessageQuery} are checked against every message.
+         * 
+         * @param matcher condition to check
+         * @return first matching message, or null if there is none
+         */
+        WiserMessage findFirst(MessageMatcher matcher) {
+            final List<WiserMessage> found;
+            if (matcher instanceof MessageQuery && store != null) {
+                found = store.find((MessageQuery) matcher);
+            } else {
+                found = scan(matcher, 1);
+            }
+            return found.isEmpty() ? null : found.get(0);
+        }
+        
+        /**
+         * Counts retained messages satisfying a matcher.
+         * 
+         * @param matcher condition to check, or null to count all messages
+         * @return number of matching messages
+         */
+        long countMatching(MessageMatcher matcher) {
+            if (matcher == null) {
+                return size();
+            }
+            if (matcher instanceof MessageQuery) {
+                return count((MessageQuery) matcher);
+            }
+            return scan(matcher, Integer.MAX_VALUE).size();
+        }
+        
+        /**
+         * Checks retained messages against a matcher in order of receipt.
+         * 
+         * @param matcher condition to check
+         * @param limit maximum number of messages to return
+         * @return up to {@code limit} matching messages
+         */
+        private List<WiserMessage> scan(MessageMatcher matcher, int limit) {
+            if (store != null) {
+                return store.scan(matcher, limit);
+            }
+            flush();
+            return backend.find(matcher, limit);
+        }
+
+        /**
+         * Waits for the background writers, if there are any, to write all queued
+         * messages. With a journal, waits for journaled messages to be replayed
+         * unless backend writes are failing or the journal has not started.
+         */
+        public void flush() {
+            if (journal != null && restored.getCount() == 0) {
+                journal.flush();
+            }
+            if (writers != null) {
+                for (AsyncMessageWriter writer : writers) {
+                    writer.flush();
+                }
+            }
+        }
+
+        /**
+         * Like {@link #flush()}, but also waits for journaled messages while
+         * backend writes are failing, as positions count messages the
+         * journal has not replayed yet.
+         * 
+         * @throws IllegalStateException if journaled messages are still not
+         * in the backend after {@link MessageJournal#DRAIN_TIMEOUT_MILLIS}
+         */
+        private void drain() {
+            if (journal != null && !journal.drain()) {
+                throw new IllegalStateException(journal.pending() +
+                    " journaled messages not yet written to the backend");
+            }
+            flush();
+        }
+
         @Override
         public void clear() {
-            synchronized (this) {
-                sequenceNumber = 0;
-                if (inMemory) {
-                    super.clear();
+            checkRestored();
+            adminLock.writeLock().lock();
+            try {
+                if (journal != null) {
+                    journal.clear();
+                }
+                flush();
+                sequenceNumber.set(0);
+                if (feed != null) {
+                    feed.reset(0);
                 }
-                final MongoCollection<Document> coll = db.getCollection("messages");
-                coll.deleteMany(new Document());
+                storedCount.set(0);
+                if (store != null) {
+                    store.clear();
+                }
+                backend.clear();
+                baseSequenceNumber = 0;
+            } finally {
+                adminLock.writeLock().unlock();
             }
         }
         
@@ -215,16 +1285,92 @@ public class Mongster extends Wiser {
             }
         }
         
+        /**
+         * Returns a message held in memory.
+         * 
+         * @param index position among messages in memory
+         * @return the message
+         * @throws IndexOutOfBoundsException if {@code inMemory} is false
+         */
+        @Override
+        public WiserMessage get(int index) {
+            if (!inMemory) {
+                throw new IndexOutOfBoundsException("Messages are not kept in memory");
+            }
+            return heap != null ? heap.get(index) : store.get(index);
+        }
+        
         /**
          * The number of received messages since last {@link #clear()}
-         * or {@link #truncate(long)}.
+         * or {@link #truncate(long)}. If {@code inMemory} is false, this is
+         * the locally maintained count of stored messages. With the MEMORY
+         * backend, waits for pending writes so that every message counted
+         * can be read with {@link #get(int)}.
          */ 
         @Override
         public int size() {
-            if (inMemory) {
-                return super.size();
+            awaitRestored();
+            if (heap != null) {
+                flush();
+                return (int) heap.count();
+            } else if (inMemory) {
+                return store.size();
             } else {
-                return (int) db.getCollection("messages").count();
+                return (int) storedCount.get();
+            }
+        }
+        
+        /**
+         * @return number of messages waiting for background writers
+         */
+        int queueDepth() {
+            int depth = journal == null ? 0 : (int) journal.pending();
+            if (writers != null) {
+                for (AsyncMessageWriter writer : writers) {
+                    depth += writer.queueDepth();
+                }
+            }
+            return depth;
+        }
+        
+        /**
+         * @return number of messages held in memory
+         */
+        int inMemorySize() {
+            return heap != null ? (int) heap.count() : inMemory ? store.size() : 0;
+        }
+        
+        /**
+         * @return raw bytes of messages held in memory
+         */
+        long inMemoryBytes() {
+            return heap != null ? heap.bytes() : inMemory ? store.bytes() : 0;
+        }
+        
+        /**
+         * @return number of stored messages, as tracked locally
+         */
+        public long storedCount() {
+            awaitRestored();
+            return storedCount.get();
+        }
+        
+        /**
+         * Compares the local count of stored messages with the backend's count.
+         * A non-zero result means inserts failed or the collection was modified
+         * outside of Mongster.
+         * 
+         * @return local count minus backend count, after pending writes complete
+         */
+        public long countDrift() {
+            checkRestored();
+            // Excludes the retention trimmer, which removes documents before uncounting them
+            adminLock.writeLock().lock();
+            try {
+                flush();
+                return storedCount.get() - backend.count();
+            } finally {
+                adminLock.writeLock().unlock();
             }
         }
         
@@ -236,16 +1382,33 @@ public class Mongster extends Wiser {
          * @param numMessages the number of messages to retain in the list.
          */
         public void truncate(int numMessages) {
-            final int currentSize = size();
-            if (numMessages >= currentSize) {
-                return; //No-op if we are under the limit
-            }
-            synchronized(this) {
-                if (inMemory) {
-                    super.removeRange(numMessages, currentSize);
+            checkRestored();
+            final long start = metrics == null ? 0 : System.nanoTime();
+            adminLock.writeLock().lock();
+            try {
+                drain();
+                if (store != null) {
+                    store.truncate(numMessages);
+                }
+                if (numMessages >= storedCount.get()) {
+                    return; //No-op if we are under the limit
+                }
+                // First sequence number to drop - null if the backend has fewer
+                // messages than we think
+                final Long cut = backend.sequenceNumberAt(numMessages);
+                if (cut != null) {
+                    backend.removeFrom(cut);
+                    sequenceNumber.set(cut);
+                    if (feed != null) {
+                        feed.reset(cut);
+                    }
+                }
+                storedCount.set(Math.max(0, numMessages));
+            } finally {
+                adminLock.writeLock().unlock();
+                if (metrics != null) {
+                    metrics.truncate.recordSince(start);
                 }
-                db.getCollection("messages").deleteMany(Filters.gt("sequenceNumber", numMessages - 1));
-                sequenceNumber = numMessages - 1;
             }
         }
         
@@ -256,63 +1419,255 @@ public class Mongster extends Wiser {
          * @param numMessages the number of messages to retain in the list.
          */
         public void tail(int numMessages) {
-            final int currentSize = size();
-            if (numMessages >= currentSize) {
-                return; //No-op if we are under the limit
+            checkRestored();
+            final long start = metrics == null ? 0 : System.nanoTime();
+            adminLock.writeLock().lock();
+            try {
+                drain();
+                if (store != null) {
+                    store.tail(numMessages);
+                }
+                final long currentSize = storedCount.get();
+                if (numMessages >= currentSize) {
+                    return; //No-op if we are under the limit
+                }
+                // Range delete only - survivors keep their sequence numbers and
+                // the base offset moves forward instead
+                final Long newBase = backend.sequenceNumberAt(currentSize - numMessages);
+                if (newBase != null) {
+                    backend.removeBefore(newBase);
+                    baseSequenceNumber = newBase;
+                }
+                storedCount.set(Math.max(0, numMessages));
+            } finally {
+                adminLock.writeLock().unlock();
+                if (metrics != null) {
+                    metrics.tail.recordSince(start);
+                }
+            }
+        }
+        
+        /**
+         * Returns the sequence number of the first retained message. Subtract
+         * this from a stored {@code sequenceNumber} to get the message's 0-based
+         * position since the last {@link #clear()}.
+         * 
+         * @return sequence number offset of the first retained message
+         */
+        public long getBaseSequenceNumber() {
+            awaitRestored();
+            return baseSequenceNumber;
+        }
+        
+        /**
+         * Converts a stored sequence number to a 0-based position.
+         * 
+         * @param storedSequenceNumber value of a document's {@code sequenceNumber}
+         * @return position of the message among retained messages
+         */
+        public long position(long storedSequenceNumber) {
+            return storedSequenceNumber - baseSequenceNumber;
+        }
+        
+        /**
+         * Returns the raw bytes of a message document read from MongoDB.
+         * 
+         * @param doc message document
+         * @return raw message bytes, or null if there are none
+         * @throws IllegalStateException if the backend is not MongoDB
+         */
+        byte[] rawBytes(Document doc) {
+            if (!(backend instanceof MongoMessageStore)) {
+                throw new IllegalStateException("Message documents are only stored by the MONGO backend");
+            }
+            return ((MongoMessageStore) backend).rawBytes(doc);
+        }
+        
+        /**
+         * Picks up the receipt counter, stored message count and base offset
+         * left by a previous run.
+         */
+        private void restoreSequence() {
+            long last = backend.lastSequenceNumber();
+            long count = backend.count();
+            if (journal != null) {
+                journal.setReplayFloor(last);
+                last = Math.max(last, journal.lastSequenceNumber());
+                count += journal.recoveredPending();
+            }
+            sequenceNumber.set(last + 1);
+            storedCount.set(count);
+            baseSequenceNumber = backend.baseSequenceNumber();
+        }
+        
+        /**
+         * Runs {@link #restoreSequence()} until it succeeds or the list is
+         * closed, then starts the journal's replayer, if there is a journal and
+         * the list is still open, and releases waiting callers.
+         */
+        private void restoreWithRetry() {
+            long delay = 100;
+            boolean reported = false;
+            while (true) {
+                try {
+                    restoreSequence();
+                    break;
+                } catch (IllegalStateException ex) {
+                    return; // client closed
+                } catch (RuntimeException ex) {
+                    if (!reported) {
+                        ex.printStackTrace();
+                        reported = true;
+                    }
+                }
+                if (closing) {
+                    return;
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                delay = Math.min(delay * 2, MAX_RESTORE_RETRY_MILLIS);
             }
-            synchronized(this) {
-                final int toCut = currentSize - numMessages;
-                if (inMemory) {
-                    super.removeRange(0, toCut);
+            synchronized (restored) {
+                if (journal != null && !closing) {
+                    journal.start();
                 }
-                final MongoCollection<Document> coll = db.getCollection("messages");
-                coll.deleteMany(Filters.lt("sequenceNumber", toCut));
-                // Renumber - subtract toCut from every sequence number
-                coll.updateMany(new Document(), new Document("$inc",
-                                                  new Document("sequenceNumber", -toCut)));
-                sequenceNumber = numMessages - 1;
+                restored.countDown();
             }
         }
-
+        
         /**
-         * Converts header name to all lower case and eliminates embedded dashes.
+         * Waits up to {@link #RESTORE_WAIT_MILLIS} for {@link #restoreSequence()}.
          * 
-         * @param headerName header name to fix
-         * @return lower-case, dash-free header name
+         * @return true if the sequence has been restored
          */
-        private static String fixHeaderName(String headerName) {
-            return headerName.toLowerCase().replace("-", "");  
+        private boolean awaitRestored() {
+            try {
+                return restored.await(RESTORE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return restored.getCount() == 0;
+            }
         }
         
         /**
-         * Extracts headers as MailHeader instances from a MimeMessage.
+         * @throws IllegalStateException if the sequence has not been restored
+         * within {@link #RESTORE_WAIT_MILLIS}
+         */
+        private void checkRestored() {
+            if (!awaitRestored()) {
+                throw new IllegalStateException("Stored messages not counted yet - is the backend reachable?");
+            }
+        }
+        
+        /**
+         * Makes one retention pass: drops up to {@link RetentionTrimmer#BATCH_SIZE}
+         * of the oldest messages beyond the configured count and byte limits
+         * from the backend, accounts for messages MongoDB has expired, and
+         * trims the in-memory cache. Removal is by sequence number range, so
+         * surviving messages are not touched.
+         * <p>
+         * Message ingestion is not blocked: this only takes the read lock, and
+         * skips the pass if {@link #clear()}, {@link #truncate(int)} or
+         * {@link #tail(int)} is running.</p>
          * 
-         * @param message MimeMessage to get headers from
-         * @return list of MailHeaders
+         * @return number of messages removed from the backend or memory
+         */
+        long retain() {
+            if (restored.getCount() > 0 || !adminLock.readLock().tryLock()) {
+                return 0;
+            }
+            try {
+                long removed = 0;
+                if (retentionMaxAgeMillis > 0 && backend instanceof MongoMessageStore) {
+                    removed += followExpired();
+                }
+                final long count = storedCount.get() - queueDepth();
+                long drop = retentionMaxMessages > 0 ? count - retentionMaxMessages : 0;
+                if (retentionMaxBytes > 0 && count > 0) {
+                    final long bytes = backend.bytes();
+                    if (bytes > retentionMaxBytes) {
+                        // Drop enough average-sized messages to get under the limit
+                        final long over = (long) Math.ceil((bytes - retentionMaxBytes) * (double) count / bytes);
+                        drop = Math.max(drop, over);
+                    }
+                }
+                drop = Math.min(drop, RetentionTrimmer.BATCH_SIZE);
+                // Null if writes are still in flight - retry on the next pass
+                final Long newBase = drop > 0 ? backend.sequenceNumberAt(drop) : null;
+                if (newBase != null) {
+                    final long dropped = backend.removeBefore(newBase);
+                    storedCount.addAndGet(-dropped);
+                    baseSequenceNumber = newBase;
+                    removed += dropped;
+                }
+                if (store != null) {
+                    final long cutoff = retentionMaxAgeMillis > 0 ?
+                        System.currentTimeMillis() - retentionMaxAgeMillis : Long.MIN_VALUE;
+                    removed = Math.max(removed, store.trim(cutoff, retentionMaxMessages,
+                                                           retentionMaxBytes, RetentionTrimmer.BATCH_SIZE));
+                }
+                return removed;
+            } finally {
+                adminLock.readLock().unlock();
+            }
+        }
+        
+        /**
+         * Moves the base offset past documents removed by the TTL index and
+         * takes them off the stored count. Sequence numbers below the first
+         * remaining document are taken to have expired.
          * 
-         * @throws MessagingException
+         * @return number of messages found to have expired
          */
-        private List<MailHeader> getHeadersFromMimeMessage(MimeMessage message) throws MessagingException {
-            ArrayList<MailHeader> headerList = new ArrayList<MailHeader>();
-            @SuppressWarnings("unchecked")
-            Enumeration<Header> headers = message.getAllHeaders();
-            while (headers.hasMoreElements()) {
-                final Header header = headers.nextElement();
-                headerList.add(new MailHeader(header.getName(),header.getValue()));
+        private long followExpired() {
+            final long base = baseSequenceNumber;
+            Long first = backend.sequenceNumberAt(0);
+            if (first == null) {
+                // Everything written so far has expired
+                first = base + Math.max(0, storedCount.get() - queueDepth());
+            }
+            if (first <= base) {
+                return 0;
             }
-            return headerList;
+            storedCount.addAndGet(-(first - base));
+            baseSequenceNumber = first;
+            return first - base;
         }
-    }
-
-    /**
-     * MIME header as name/value pair of strings.
-     */
-    static class MailHeader {
-        final String name;
-        final String value;
-        public MailHeader(String name, String value) {
-            this.name = name;
-            this.value = value;
+        
+        /**
+         * @return true once the sequence has been restored and the backend
+         * has finished its startup work
+         */
+        boolean isReady() {
+            return restored.getCount() == 0 && backend.isReady();
+        }
+        
+        /**
+         * Stops the background writers, the journal's replayer and the
+         * retention thread, if there are any. Restoring the sequence is not
+         * retried after close, but an attempt in progress completes, so that
+         * {@link #clear()} still works. Writers finish their queues
+         * first; messages the journal has not replayed are replayed on the
+         * next start.
+         */
+        void close() {
+            synchronized (restored) {
+                closing = true;
+            }
+            if (writers != null) {
+                for (AsyncMessageWriter writer : writers) {
+                    writer.shutdown();
+                }
+            }
+            if (trimmer != null) {
+                trimmer.shutdown();
+            }
+            if (journal != null) {
+                journal.shutdown();
+            }
         }
     }
 
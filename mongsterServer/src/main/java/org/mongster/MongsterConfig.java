@@ -14,22 +14,180 @@
 
 package org.mongster;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+
 /**
  * Config for a Mongster server.
  */
-public class MongsterConfig {
+public class MongsterConfig implements Cloneable {
     public static final String DEFAULT_MONGO_HOST = "localhost";
     public static final String DEFAULT_MONGO_DATABASE = "mongster";
     public static final String DEFAULT_MONGO_COLLECTION = "messages";
     public static final int DEFAULT_MONGO_PORT = 27017;
     public static final int DEFAULT_SMTP_PORT = 25;
+    public static final int DEFAULT_SMTP_MAX_CONNECTIONS = 1000;
+    public static final int DEFAULT_SMTP_BACKLOG = 50;
+    public static final int DEFAULT_WRITE_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_WRITE_BATCH_SIZE = 500;
+    public static final long DEFAULT_WRITE_BATCH_DELAY_MILLIS = 50;
+    public static final int DEFAULT_OFF_HEAP_SEGMENT_BYTES = 16 * 1024 * 1024;
+    public static final int DEFAULT_GRIDFS_THRESHOLD = 8 * 1024 * 1024;
+    public static final long DEFAULT_FILE_STORE_SEGMENT_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_JOURNAL_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final String DEFAULT_NAMESPACE_HEADER = "X-Mongster-Namespace";
+    public static final long DEFAULT_RETENTION_INTERVAL_MILLIS = 1000;
+    
+    /**
+     * What to do with a received message when the asynchronous write queue is full.
+     */
+    public enum BackpressurePolicy {
+        /** Block the SMTP session thread until there is room in the queue */
+        BLOCK,
+        /** Discard the oldest queued (not yet persisted) message to make room; it is also dropped from memory */
+        DROP_OLDEST,
+        /** Refuse the message with a transient (4xx) SMTP reply */
+        REJECT
+    }
+    
+    /**
+     * Which message to drop when the in-memory store is full.
+     */
+    public enum EvictionPolicy {
+        /** Drop the earliest received message */
+        FIFO,
+        /** Drop the message least recently returned from {@code getMessages()} */
+        LRU
+    }
+    
+    /**
+     * How the raw bytes of each message are stored in MongoDB.
+     */
+    public enum RawStorage {
+        /** Base64 string under "bytes64" */
+        BASE64,
+        /** BSON binary under "raw", or a GridFS file (id under "rawFileId") above gridFsThreshold */
+        BINARY
+    }
+    
+    /**
+     * How much of each message's content is extracted into its MongoDB document.
+     */
+    public enum ContentExtraction {
+        /** Headers and raw bytes only - the body is not decoded */
+        HEADERS_ONLY,
+        /** Also decode text/plain and text/html parts into "body" and "html" */
+        TEXT,
+        /** Also record attachment metadata under "attachments" */
+        FULL
+    }
+    
+    /**
+     * How received messages are routed to namespaces (see {@link MessageNamespace}).
+     */
+    public enum NamespaceRouting {
+        /** Everything goes to the default namespace */
+        NONE,
+        /** Envelope recipient domain, e.g. "suite1.example.com" */
+        RECIPIENT_DOMAIN,
+        /** Envelope recipient local part before the first '+', e.g. "suite1" for suite1+bob@example.com */
+        RECIPIENT_PREFIX,
+        /** Value of the namespaceHeader header */
+        HEADER
+    }
+    
+    /**
+     * What a namespace gets of its own.
+     */
+    public enum NamespaceScope {
+        /** Collection {@code <mongoCollection>_<namespace>} in mongoDatabase */
+        COLLECTION,
+        /** Database {@code <mongoDatabase>_<namespace>}, with collection mongoCollection */
+        DATABASE
+    }
+    
+    /**
+     * Where received messages are persisted.
+     */
+    public enum StorageBackend {
+        /** MongoDB collection (the original behavior) */
+        MONGO,
+        /** Java heap only - nothing survives a restart */
+        MEMORY,
+        /** Append-only segment files with a memory-mapped index in fileStoreDirectory */
+        FILE
+    }
+    
+    /**
+     * What runs SMTP sessions. All listeners share one executor.
+     */
+    public enum SessionExecutor {
+        /** Unbounded pool of platform threads, one per open connection (SubEthaSMTP's default) */
+        CACHED,
+        /** Fixed pool of sessionThreads platform threads */
+        FIXED,
+        /**
+         * One virtual thread per connection, on JDKs that have them (21+);
+         * CACHED otherwise
+         */
+        VIRTUAL
+    }
     
     private boolean inMemory = true; 
     private String mongoHost = DEFAULT_MONGO_HOST; 
     private int mongoPort = DEFAULT_MONGO_PORT ;
     private String mongoDatabase = DEFAULT_MONGO_DATABASE; 
     private String mongoCollection = DEFAULT_MONGO_COLLECTION;
+    private String mongoUri = null;
+    private MongoClientOptions mongoClientOptions = null;
     private int smtpPort = DEFAULT_SMTP_PORT;
+    private String smtpBindAddress = null;
+    private List<String> smtpListeners = Collections.emptyList();
+    private int smtpMaxConnections = DEFAULT_SMTP_MAX_CONNECTIONS;
+    private int smtpBacklog = DEFAULT_SMTP_BACKLOG;
+    private SessionExecutor sessionExecutor = SessionExecutor.CACHED;
+    private int sessionThreads = Runtime.getRuntime().availableProcessors() * 16;
+    private ExecutorService sessionExecutorService = null;
+    private boolean asyncWrites = false;
+    private int writeQueueCapacity = DEFAULT_WRITE_QUEUE_CAPACITY;
+    private int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+    private long writeBatchDelayMillis = DEFAULT_WRITE_BATCH_DELAY_MILLIS;
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+    private int writerThreads = 1;
+    private int inMemoryMaxMessages = 0;
+    private long inMemoryMaxBytes = 0;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.FIFO;
+    private boolean offHeapPayloads = false;
+    private int offHeapSegmentBytes = DEFAULT_OFF_HEAP_SEGMENT_BYTES;
+    private RawStorage rawStorage = RawStorage.BASE64;
+    private int gridFsThreshold = DEFAULT_GRIDFS_THRESHOLD;
+    private boolean rawBsonEncoding = false;
+    private boolean payloadDeduplication = false;
+    private boolean metricsEnabled = false;
+    private ContentExtraction contentExtraction = ContentExtraction.FULL;
+    private boolean attachmentContentStored = false;
+    private boolean textSearchEnabled = false;
+    private StorageBackend storageBackend = StorageBackend.MONGO;
+    private String fileStoreDirectory = null;
+    private long fileStoreSegmentBytes = DEFAULT_FILE_STORE_SEGMENT_BYTES;
+    private boolean journalEnabled = false;
+    private String journalDirectory = null;
+    private int journalSegmentBytes = DEFAULT_JOURNAL_SEGMENT_BYTES;
+    private boolean journalForce = false;
+    private NamespaceRouting namespaceRouting = NamespaceRouting.NONE;
+    private String namespaceHeader = DEFAULT_NAMESPACE_HEADER;
+    private NamespaceScope namespaceScope = NamespaceScope.COLLECTION;
+    private long retentionMaxAgeMillis = 0;
+    private long retentionMaxMessages = 0;
+    private long retentionMaxBytes = 0;
+    private long retentionIntervalMillis = DEFAULT_RETENTION_INTERVAL_MILLIS;
     
     public MongsterConfig() {
         super();
@@ -87,6 +245,57 @@ public class MongsterConfig {
         this.mongoCollection = mongoCollection;
     }
     
+    /**
+     * MongoDB connection string, for example
+     * {@code mongodb://host1,host2/?replicaSet=rs0&maxPoolSize=50&w=majority&compressors=zlib}.
+     * If null, {@code mongodb://<mongoHost>:<mongoPort>} is used. A database
+     * named in the connection string is only used for authentication; messages
+     * are stored in {@code mongoDatabase}.
+     * 
+     * @return MongoDB connection string, or null to use mongoHost and mongoPort
+     */
+    public String getMongoUri() {
+        return mongoUri;
+    }
+    
+    public void setMongoUri(String mongoUri) {
+        this.mongoUri = mongoUri;
+    }
+    
+    /**
+     * Options for the MongoDB client - pool sizes, connect and socket
+     * timeouts, write concern, read preference, compressors and so on. Options
+     * given in the connection string take precedence over these.
+     * 
+     * @return MongoDB client options, or null for the driver defaults
+     */
+    public MongoClientOptions getMongoClientOptions() {
+        return mongoClientOptions;
+    }
+    
+    public void setMongoClientOptions(MongoClientOptions mongoClientOptions) {
+        this.mongoClientOptions = mongoClientOptions;
+    }
+    
+    /**
+     * Combines the connection string (or mongoHost and mongoPort) with the
+     * client options.
+     * 
+     * @return connection string and options used to connect to MongoDB
+     */
+    public MongoClientURI getMongoClientURI() {
+        final String uri;
+        if (mongoUri != null) {
+            uri = mongoUri;
+        } else if (mongoHost.indexOf(':') >= 0) {
+            uri = "mongodb://" + mongoHost; // host:port given as the host
+        } else {
+            uri = "mongodb://" + mongoHost + ":" + mongoPort;
+        }
+        return new MongoClientURI(uri, mongoClientOptions == null ?
+            MongoClientOptions.builder() : MongoClientOptions.builder(mongoClientOptions));
+    }
+    
     public int getSmtpPort() {
         return smtpPort;
     }
@@ -95,4 +304,560 @@ public class MongsterConfig {
         this.smtpPort = smptPort;
     }
     
+    /**
+     * @return address the smtpPort listener binds to, null for all local addresses
+     */
+    public String getSmtpBindAddress() {
+        return smtpBindAddress;
+    }
+    
+    public void setSmtpBindAddress(String smtpBindAddress) {
+        this.smtpBindAddress = smtpBindAddress;
+    }
+    
+    /**
+     * Additional addresses on which to accept SMTP connections, each as
+     * {@code [address:]port} (IPv6 addresses in brackets). Messages received on
+     * any listener go to the same store.
+     * 
+     * @return additional listen addresses, empty by default
+     */
+    public List<String> getSmtpListeners() {
+        return smtpListeners;
+    }
+    
+    public void setSmtpListeners(List<String> smtpListeners) {
+        this.smtpListeners = Collections.unmodifiableList(new ArrayList<String>(smtpListeners));
+    }
+    
+    public void setSmtpListeners(String... smtpListeners) {
+        setSmtpListeners(Arrays.asList(smtpListeners));
+    }
+    
+    /**
+     * Connections beyond this limit wait in the accept backlog. The limit
+     * applies to each listener.
+     * 
+     * @return maximum number of open SMTP connections per listener
+     */
+    public int getSmtpMaxConnections() {
+        return smtpMaxConnections;
+    }
+    
+    public void setSmtpMaxConnections(int smtpMaxConnections) {
+        this.smtpMaxConnections = smtpMaxConnections;
+    }
+    
+    /**
+     * Connections arriving while the backlog is full are refused, so raise
+     * this along with smtpMaxConnections for bursts of connections.
+     * 
+     * @return length of each listener's accept queue
+     */
+    public int getSmtpBacklog() {
+        return smtpBacklog;
+    }
+    
+    public void setSmtpBacklog(int smtpBacklog) {
+        this.smtpBacklog = smtpBacklog;
+    }
+    
+    /**
+     * @return kind of executor running SMTP sessions, {@code CACHED} by default
+     */
+    public SessionExecutor getSessionExecutor() {
+        return sessionExecutor;
+    }
+    
+    public void setSessionExecutor(SessionExecutor sessionExecutor) {
+        this.sessionExecutor = sessionExecutor;
+    }
+    
+    /**
+     * @return number of threads when sessionExecutor is {@code FIXED}
+     */
+    public int getSessionThreads() {
+        return sessionThreads;
+    }
+    
+    public void setSessionThreads(int sessionThreads) {
+        this.sessionThreads = sessionThreads;
+    }
+    
+    /**
+     * Executor to run SMTP sessions on, overriding sessionExecutor. Mongster
+     * does not shut it down.
+     * 
+     * @return session executor supplied by the application, or null
+     */
+    public ExecutorService getSessionExecutorService() {
+        return sessionExecutorService;
+    }
+    
+    public void setSessionExecutorService(ExecutorService sessionExecutorService) {
+        this.sessionExecutorService = sessionExecutorService;
+    }
+    
+    /**
+     * Whether or not messages are handed off to a background writer that
+     * inserts them into MongoDB in batches. Defaults to false (each message
+     * is inserted by the SMTP session thread that received it).
+     * 
+     * @return true if MongoDB writes are asynchronous
+     */
+    public boolean isAsyncWrites() {
+        return asyncWrites;
+    }
+    
+    public void setAsyncWrites(boolean asyncWrites) {
+        this.asyncWrites = asyncWrites;
+    }
+    
+    /**
+     * @return maximum number of messages waiting to be written when {@code asyncWrites} is true
+     */
+    public int getWriteQueueCapacity() {
+        return writeQueueCapacity;
+    }
+    
+    public void setWriteQueueCapacity(int writeQueueCapacity) {
+        this.writeQueueCapacity = writeQueueCapacity;
+    }
+    
+    /**
+     * @return maximum number of documents sent in a single {@code insertMany}
+     */
+    public int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+    
+    public void setWriteBatchSize(int writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
+    }
+    
+    /**
+     * @return maximum time in milliseconds the writer waits to fill a batch
+     */
+    public long getWriteBatchDelayMillis() {
+        return writeBatchDelayMillis;
+    }
+    
+    public void setWriteBatchDelayMillis(long writeBatchDelayMillis) {
+        this.writeBatchDelayMillis = writeBatchDelayMillis;
+    }
+    
+    /**
+     * Number of background writers when {@code asyncWrites} is true. Messages
+     * are assigned to writers by sequence number, each writer having its own
+     * queue of {@code writeQueueCapacity} messages.
+     * 
+     * @return number of parallel MongoDB writer threads
+     */
+    public int getWriterThreads() {
+        return writerThreads;
+    }
+    
+    public void setWriterThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+    }
+    
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+    
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        this.backpressurePolicy = backpressurePolicy;
+    }
+    
+    /**
+     * @return maximum number of messages kept in memory, 0 for no limit
+     */
+    public int getInMemoryMaxMessages() {
+        return inMemoryMaxMessages;
+    }
+    
+    public void setInMemoryMaxMessages(int inMemoryMaxMessages) {
+        this.inMemoryMaxMessages = inMemoryMaxMessages;
+    }
+    
+    /**
+     * @return maximum total raw bytes of messages kept in memory, 0 for no limit
+     */
+    public long getInMemoryMaxBytes() {
+        return inMemoryMaxBytes;
+    }
+    
+    public void setInMemoryMaxBytes(long inMemoryMaxBytes) {
+        this.inMemoryMaxBytes = inMemoryMaxBytes;
+    }
+    
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+    
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+    
+    /**
+     * Whether or not raw bytes of in-memory messages are kept in direct
+     * (off-heap) buffers rather than on the Java heap.
+     * 
+     * @return true if in-memory payloads are stored off-heap
+     */
+    public boolean isOffHeapPayloads() {
+        return offHeapPayloads;
+    }
+    
+    public void setOffHeapPayloads(boolean offHeapPayloads) {
+        this.offHeapPayloads = offHeapPayloads;
+    }
+    
+    /**
+     * @return size of each direct buffer allocated for off-heap payloads
+     */
+    public int getOffHeapSegmentBytes() {
+        return offHeapSegmentBytes;
+    }
+    
+    public void setOffHeapSegmentBytes(int offHeapSegmentBytes) {
+        this.offHeapSegmentBytes = offHeapSegmentBytes;
+    }
+    
+    public RawStorage getRawStorage() {
+        return rawStorage;
+    }
+    
+    public void setRawStorage(RawStorage rawStorage) {
+        this.rawStorage = rawStorage;
+    }
+    
+    /**
+     * @return size in bytes above which raw message bytes are stored in GridFS
+     * rather than in the message document (BINARY storage only)
+     */
+    public int getGridFsThreshold() {
+        return gridFsThreshold;
+    }
+    
+    public void setGridFsThreshold(int gridFsThreshold) {
+        this.gridFsThreshold = gridFsThreshold;
+    }
+    
+    /**
+     * Whether or not message documents are encoded straight to BSON rather
+     * than built as {@code Document}s and encoded by the driver (see
+     * {@link RawMessageEncoder}). Stored documents are the same either way.
+     * 
+     * @return true if documents are encoded directly
+     */
+    public boolean isRawBsonEncoding() {
+        return rawBsonEncoding;
+    }
+    
+    public void setRawBsonEncoding(boolean rawBsonEncoding) {
+        this.rawBsonEncoding = rawBsonEncoding;
+    }
+    
+    /**
+     * Whether or not identical message bytes are stored once. Wiser delivers
+     * a copy of a message for each recipient; with this set, the copies are
+     * recognized by a SHA-256 hash of their raw bytes and share one payload:
+     * in memory, one byte array (and off-heap slice); with the MONGO backend,
+     * one document in the {@code <collection>_payloads} collection, which
+     * message documents reference by {@code payloadId} instead of carrying
+     * raw bytes (see {@link PayloadStore}).
+     * <p>
+     * Only the raw bytes are shared. Each recipient still gets a full message
+     * document, with headers and extracted body, html and attachments, as
+     * queries, listings and text search read them there; envelope-only
+     * records referencing a shared message are not implemented.</p>
+     * 
+     * @return true if payloads are deduplicated
+     */
+    public boolean isPayloadDeduplication() {
+        return payloadDeduplication;
+    }
+    
+    public void setPayloadDeduplication(boolean payloadDeduplication) {
+        this.payloadDeduplication = payloadDeduplication;
+    }
+    
+    /**
+     * Whether or not ingestion metrics are recorded and published over JMX
+     * (see {@link MongsterMetrics}). Nothing is recorded when this is false.
+     * 
+     * @return true if metrics are enabled
+     */
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+    
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+    
+    public ContentExtraction getContentExtraction() {
+        return contentExtraction;
+    }
+    
+    public void setContentExtraction(ContentExtraction contentExtraction) {
+        this.contentExtraction = contentExtraction;
+    }
+    
+    /**
+     * Whether or not subjects and text bodies are indexed for
+     * {@link Mongster#search(String, int)}: with a MongoDB text index, and an
+     * in-process index over messages kept in memory or on the heap.
+     * 
+     * @return true if full-text search is enabled
+     */
+    public boolean isTextSearchEnabled() {
+        return textSearchEnabled;
+    }
+    
+    public void setTextSearchEnabled(boolean textSearchEnabled) {
+        this.textSearchEnabled = textSearchEnabled;
+    }
+    
+    /**
+     * Whether or not decoded attachment bytes are stored with attachment
+     * metadata (FULL content extraction only). Defaults to false - the raw
+     * message bytes are always stored.
+     * 
+     * @return true if attachment content is stored
+     */
+    public boolean isAttachmentContentStored() {
+        return attachmentContentStored;
+    }
+    
+    public void setAttachmentContentStored(boolean attachmentContentStored) {
+        this.attachmentContentStored = attachmentContentStored;
+    }
+    
+    /**
+     * Where messages are persisted. With {@code MEMORY}, the messages
+     * returned by {@code getMessages()} are read from the heap store itself,
+     * so the in-memory cache settings ({@code inMemoryMaxMessages},
+     * {@code inMemoryMaxBytes}, {@code evictionPolicy},
+     * {@code offHeapPayloads}) do not apply.
+     * 
+     * @return storage backend, MONGO by default
+     */
+    public StorageBackend getStorageBackend() {
+        return storageBackend;
+    }
+    
+    public void setStorageBackend(StorageBackend storageBackend) {
+        this.storageBackend = storageBackend;
+    }
+    
+    /**
+     * Directory holding the FILE backend's segment and index files. If null,
+     * {@code <java.io.tmpdir>/mongster/<mongoDatabase>/<mongoCollection>} is used.
+     * 
+     * @return file store directory, or null for the default
+     */
+    public String getFileStoreDirectory() {
+        return fileStoreDirectory;
+    }
+    
+    public void setFileStoreDirectory(String fileStoreDirectory) {
+        this.fileStoreDirectory = fileStoreDirectory;
+    }
+    
+    /**
+     * @return size in bytes at which the FILE backend starts a new segment file
+     */
+    public long getFileStoreSegmentBytes() {
+        return fileStoreSegmentBytes;
+    }
+    
+    public void setFileStoreSegmentBytes(long fileStoreSegmentBytes) {
+        this.fileStoreSegmentBytes = fileStoreSegmentBytes;
+    }
+    
+    /**
+     * Whether or not each received message is appended to a local journal
+     * before the SMTP reply, and written to the storage backend by a background
+     * replayer (see {@link MessageJournal}). Messages accepted while the backend
+     * is unavailable are written once it comes back, or on the next start.
+     * {@code asyncWrites} is ignored when this is true.
+     * 
+     * @return true if messages are journaled
+     */
+    public boolean isJournalEnabled() {
+        return journalEnabled;
+    }
+    
+    public void setJournalEnabled(boolean journalEnabled) {
+        this.journalEnabled = journalEnabled;
+    }
+    
+    /**
+     * Directory holding journal segments and the replay checkpoint. If null,
+     * {@code <java.io.tmpdir>/mongster/<mongoDatabase>/<mongoCollection>-journal} is used.
+     * 
+     * @return journal directory, or null for the default
+     */
+    public String getJournalDirectory() {
+        return journalDirectory;
+    }
+    
+    public void setJournalDirectory(String journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+    
+    /**
+     * @return size in bytes of each memory-mapped journal segment file
+     */
+    public int getJournalSegmentBytes() {
+        return journalSegmentBytes;
+    }
+    
+    public void setJournalSegmentBytes(int journalSegmentBytes) {
+        this.journalSegmentBytes = journalSegmentBytes;
+    }
+    
+    /**
+     * Whether or not each journal append is forced to disk before the SMTP
+     * reply. Without this, journaled messages survive a JVM crash but not an
+     * operating system crash or power loss.
+     * 
+     * @return true if journal appends are forced to disk
+     */
+    public boolean isJournalForce() {
+        return journalForce;
+    }
+    
+    public void setJournalForce(boolean journalForce) {
+        this.journalForce = journalForce;
+    }
+    
+    /**
+     * How received messages are routed to namespaces. Messages with no
+     * routing value (no '+' in the recipient, no header) go to the default
+     * namespace, which uses mongoDatabase and mongoCollection as configured.
+     * 
+     * @return namespace routing, NONE by default
+     */
+    public NamespaceRouting getNamespaceRouting() {
+        return namespaceRouting;
+    }
+    
+    public void setNamespaceRouting(NamespaceRouting namespaceRouting) {
+        this.namespaceRouting = namespaceRouting;
+    }
+    
+    /**
+     * @return name of the header holding the namespace for HEADER routing
+     */
+    public String getNamespaceHeader() {
+        return namespaceHeader;
+    }
+    
+    public void setNamespaceHeader(String namespaceHeader) {
+        this.namespaceHeader = namespaceHeader;
+    }
+    
+    public NamespaceScope getNamespaceScope() {
+        return namespaceScope;
+    }
+    
+    public void setNamespaceScope(NamespaceScope namespaceScope) {
+        this.namespaceScope = namespaceScope;
+    }
+    
+    /**
+     * Maximum age of stored messages. With the MONGO backend this is enforced
+     * by a TTL index on {@code receivedAt}, so documents expire within about
+     * a minute of reaching this age; the in-memory cache is trimmed by the
+     * retention thread. Not applied to the MEMORY and FILE backends.
+     * 
+     * @return maximum message age in milliseconds, 0 for no limit
+     */
+    public long getRetentionMaxAgeMillis() {
+        return retentionMaxAgeMillis;
+    }
+    
+    public void setRetentionMaxAgeMillis(long retentionMaxAgeMillis) {
+        this.retentionMaxAgeMillis = retentionMaxAgeMillis;
+    }
+    
+    /**
+     * @return number of most recent messages the retention thread keeps, 0 for no limit
+     */
+    public long getRetentionMaxMessages() {
+        return retentionMaxMessages;
+    }
+    
+    public void setRetentionMaxMessages(long retentionMaxMessages) {
+        this.retentionMaxMessages = retentionMaxMessages;
+    }
+    
+    /**
+     * Total size of stored messages above which the retention thread drops
+     * the oldest ones. Sizes are as reported by the backend ({@code collStats}
+     * for MongoDB), so the limit is approximate.
+     * 
+     * @return maximum stored bytes, 0 for no limit
+     */
+    public long getRetentionMaxBytes() {
+        return retentionMaxBytes;
+    }
+    
+    public void setRetentionMaxBytes(long retentionMaxBytes) {
+        this.retentionMaxBytes = retentionMaxBytes;
+    }
+    
+    /**
+     * @return time between retention passes in milliseconds
+     */
+    public long getRetentionIntervalMillis() {
+        return retentionIntervalMillis;
+    }
+    
+    public void setRetentionIntervalMillis(long retentionIntervalMillis) {
+        this.retentionIntervalMillis = retentionIntervalMillis;
+    }
+    
+    /**
+     * @return true if any retention limit is set
+     */
+    boolean isRetentionEnabled() {
+        return retentionMaxAgeMillis > 0 || retentionMaxMessages > 0 || retentionMaxBytes > 0;
+    }
+    
+    /**
+     * Returns a copy of this config for a namespace: its collection (or
+     * database) name gets the namespace as a suffix, and configured file
+     * store and journal directories get a subdirectory named after it.
+     * 
+     * @param namespace normalized namespace name, empty for the default
+     * @return config for the namespace
+     */
+    MongsterConfig forNamespace(String namespace) {
+        if (namespace.isEmpty()) {
+            return this;
+        }
+        final MongsterConfig copy;
+        try {
+            copy = (MongsterConfig) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e); // we are Cloneable
+        }
+        if (namespaceScope == NamespaceScope.DATABASE) {
+            copy.mongoDatabase = mongoDatabase + "_" + namespace;
+        } else {
+            copy.mongoCollection = mongoCollection + "_" + namespace;
+        }
+        if (fileStoreDirectory != null) {
+            copy.fileStoreDirectory = new File(fileStoreDirectory, namespace).getPath();
+        }
+        if (journalDirectory != null) {
+            copy.journalDirectory = new File(journalDirectory, namespace).getPath();
+        }
+        return copy;
+    }
+    
 }
@@ -0,0 +1,331 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Command line entry point. Builds a {@link MongsterConfig} from, in
+ * increasing order of precedence, its defaults, a properties file,
+ * {@code MONGSTER_*} environment variables and {@code --name=value} arguments,
+ * then starts a {@link Mongster} and, if {@code healthPort} or
+ * {@code feedPort} is set, a {@link HealthServer} or {@link FeedServer}.
+ * <p>
+ * Setting names are the MongsterConfig property names ({@code smtpPort},
+ * {@code storageBackend}, ...). In the environment they are upper case with
+ * words separated by underscores and prefixed by {@code MONGSTER_}
+ * ({@code MONGSTER_SMTP_PORT}). Enum values are given by name and lists as
+ * comma-separated values. Settings that take objects
+ * ({@code mongoClientOptions}, {@code sessionExecutorService}) can only be
+ * set in code.</p>
+ * <p>
+ * Three more settings belong to the launcher itself: {@code config} names the
+ * properties file, {@code healthPort} the HTTP port for health checks and
+ * {@code feedPort} the HTTP port for the server-sent event feed of new
+ * messages.</p>
+ */
+public class MongsterLauncher {
+
+    static final String ENV_PREFIX = "MONGSTER_";
+    static final String CONFIG = "config";
+    static final String HEALTH_PORT = "healthPort";
+    static final String FEED_PORT = "feedPort";
+
+    private MongsterLauncher() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String arg : args) {
+            if (arg.equals("--help") || arg.equals("-h")) {
+                System.out.println(usage());
+                return;
+            }
+        }
+        try {
+            start(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(usage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Configures and starts a Mongster, stopping it again on JVM shutdown.
+     *
+     * @param args {@code --name=value} or {@code --name value} settings
+     * @return running server
+     * @throws IllegalArgumentException if a setting is unknown or has an invalid value
+     * @throws IOException if the properties file cannot be read or the health
+     * or feed port cannot be bound
+     */
+    public static Mongster start(String[] args) throws IOException {
+        final Map<String, String> settings = settings(args, System.getenv());
+        final String healthPort = settings.remove(HEALTH_PORT);
+        final String feedPort = settings.remove(FEED_PORT);
+        final Mongster mongster = new Mongster(configure(settings));
+        mongster.start();
+        final HealthServer health = healthPort == null ? null :
+            new HealthServer(mongster, toInt(HEALTH_PORT, healthPort));
+        final FeedServer feed = feedPort == null ? null :
+            new FeedServer(mongster, toInt(FEED_PORT, feedPort));
+        Runtime.getRuntime().addShutdownHook(new Thread("mongster-shutdown") {
+            @Override
+            public void run() {
+                if (health != null) {
+                    health.stop();
+                }
+                if (feed != null) {
+                    feed.stop();
+                }
+                mongster.stop();
+            }
+        });
+        System.out.println("Mongster listening on SMTP port " + mongster.getServer().getPort() +
+                           (health == null ? "" : ", health checks on port " + health.getPort()) +
+                           (feed == null ? "" : ", message feed on port " + feed.getPort()));
+        return mongster;
+    }
+
+    /**
+     * Merges the settings from all sources, highest precedence last: the
+     * properties file named by {@code config}, then the environment, then
+     * the arguments. {@code config} itself is not returned.
+     *
+     * @param args command line arguments
+     * @param env environment variables
+     * @return settings by name
+     * @throws IOException if the properties file cannot be read
+     */
+    static Map<String, String> settings(String[] args, Map<String, String> env) throws IOException {
+        final Map<String, String> fromArgs = parseArgs(args);
+        final Map<String, String> fromEnv = new LinkedHashMap<String, String>();
+        for (String name : names()) {
+            final String value = env.get(envName(name));
+            if (value != null) {
+                fromEnv.put(name, value);
+            }
+        }
+        final Map<String, String> settings = new LinkedHashMap<String, String>();
+        String file = fromArgs.remove(CONFIG);
+        final String envFile = fromEnv.remove(CONFIG);
+        file = file != null ? file : envFile;
+        if (file != null) {
+            final Properties props = new Properties();
+            final InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            for (String name : props.stringPropertyNames()) {
+                settings.put(name, props.getProperty(name).trim());
+            }
+        }
+        settings.putAll(fromEnv);
+        settings.putAll(fromArgs);
+        return settings;
+    }
+
+    /**
+     * Parses {@code --name=value}, {@code --name value} and {@code --name}
+     * (true) arguments.
+     */
+    private static Map<String, String> parseArgs(String[] args) {
+        final Map<String, String> settings = new LinkedHashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || args[i].length() == 2) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            final String arg = args[i].substring(2);
+            final int eq = arg.indexOf('=');
+            if (eq >= 0) {
+                settings.put(arg.substring(0, eq), arg.substring(eq + 1));
+            } else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                settings.put(arg, args[++i]);
+            } else {
+                settings.put(arg, "true");
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Creates a config with the given settings applied to its defaults.
+     *
+     * @param settings values by MongsterConfig property name
+     * @return new config
+     * @throws IllegalArgumentException if a setting is unknown or has an invalid value
+     */
+    static MongsterConfig configure(Map<String, String> settings) {
+        final Map<String, PropertyDescriptor> properties = properties();
+        final MongsterConfig config = new MongsterConfig();
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            final PropertyDescriptor property = properties.get(setting.getKey());
+            if (property == null) {
+                throw new IllegalArgumentException("Unknown setting: " + setting.getKey());
+            }
+            try {
+                property.getWriteMethod().invoke(config, convert(property, setting.getValue()));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            } catch (InvocationTargetException e) {
+                throw new IllegalArgumentException("Invalid value for " + setting.getKey() + ": " +
+                                                   setting.getValue(), e.getCause());
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Converts a string setting to the type of a config property.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object convert(PropertyDescriptor property, String value) {
+        final Class<?> type = property.getPropertyType();
+        final String name = property.getName();
+        final String trimmed = value.trim();
+        if (type == String.class) {
+            return trimmed.isEmpty() ? null : trimmed;
+        } else if (type == int.class) {
+            return toInt(name, trimmed);
+        } else if (type == long.class) {
+            try {
+                return Long.parseLong(trimmed);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+            }
+        } else if (type == boolean.class) {
+            if (!trimmed.equalsIgnoreCase("true") && !trimmed.equalsIgnoreCase("false")) {
+                throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+            }
+            return Boolean.parseBoolean(trimmed);
+        } else if (type.isEnum()) {
+            try {
+                return Enum.valueOf((Class<? extends Enum>) type, trimmed.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+            }
+        } else {
+            // List<String>
+            final List<String> values = new ArrayList<String>();
+            for (String item : trimmed.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    values.add(item.trim());
+                }
+            }
+            return values;
+        }
+    }
+
+    private static int toInt(String name, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    /**
+     * @return writable config properties that can be set from a string, by name
+     */
+    private static Map<String, PropertyDescriptor> properties() {
+        final BeanInfo info;
+        try {
+            info = Introspector.getBeanInfo(MongsterConfig.class);
+        } catch (IntrospectionException e) {
+            throw new IllegalStateException(e);
+        }
+        final Map<String, PropertyDescriptor> properties = new TreeMap<String, PropertyDescriptor>();
+        for (PropertyDescriptor property : info.getPropertyDescriptors()) {
+            final Class<?> type = property.getPropertyType();
+            if (property.getWriteMethod() != null &&
+                (type == String.class || type == int.class || type == long.class ||
+                 type == boolean.class || type.isEnum() || type == List.class)) {
+                properties.put(property.getName(), property);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * @return names of all settings, including the launcher's own
+     */
+    private static List<String> names() {
+        final List<String> names = new ArrayList<String>(properties().keySet());
+        names.add(CONFIG);
+        names.add(HEALTH_PORT);
+        names.add(FEED_PORT);
+        return names;
+    }
+
+    /**
+     * Converts a setting name to its environment variable name, e.g.
+     * {@code smtpPort} to {@code MONGSTER_SMTP_PORT}.
+     *
+     * @param name setting name
+     * @return environment variable name
+     */
+    static String envName(String name) {
+        final StringBuilder env = new StringBuilder(ENV_PREFIX);
+        for (char c : name.toCharArray()) {
+            if (Character.isUpperCase(c)) {
+                env.append('_');
+            }
+            env.append(Character.toUpperCase(c));
+        }
+        return env.toString();
+    }
+
+    /**
+     * @return help text listing all settings with their defaults
+     */
+    static String usage() {
+        final MongsterConfig defaults = new MongsterConfig();
+        final StringBuilder usage = new StringBuilder(
+            "Usage: java -jar mongster.jar [--setting=value ...]\n" +
+            "Settings (environment variable in parentheses):\n");
+        for (PropertyDescriptor property : properties().values()) {
+            Object value;
+            try {
+                value = property.getReadMethod().invoke(defaults);
+            } catch (ReflectiveOperationException e) {
+                value = "?";
+            }
+            usage.append(String.format("  --%-28s (%s) default: %s%n", property.getName(),
+                                       envName(property.getName()), value));
+        }
+        usage.append(String.format("  --%-28s (%s) properties file%n", CONFIG, envName(CONFIG)));
+        usage.append(String.format("  --%-28s (%s) HTTP port for /health and /ready%n",
+                                   HEALTH_PORT, envName(HEALTH_PORT)));
+        usage.append(String.format("  --%-28s (%s) HTTP port for the /feed of new messages%n",
+                                   FEED_PORT, envName(FEED_PORT)));
+        return usage.toString();
+    }
+}
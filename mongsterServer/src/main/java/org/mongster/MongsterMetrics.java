@@ -0,0 +1,254 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.mongster.Mongster.PersistedMessageList;
+
+/**
+ * Ingestion metrics for a Mongster, created only if
+ * {@link MongsterConfig#isMetricsEnabled()} is true. When metrics are
+ * disabled, {@link Mongster#getMetrics()} returns null and the message path
+ * skips all timing.
+ * <p>
+ * Counters and histograms are lock-free. Values can be pulled as a
+ * consistent-enough {@link MetricsSnapshot} with {@link #snapshot()}, or read
+ * over JMX through {@link MongsterMetricsMXBean}.</p>
+ */
+public final class MongsterMetrics implements MongsterMetricsMXBean {
+
+    /** JMX domain metrics are registered under */
+    public static final String JMX_DOMAIN = "org.mongster";
+
+    private final PersistedMessageList messageList;
+    private final String name;
+
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong mongoErrors = new AtomicLong();
+    private final AtomicLong messagesDropped = new AtomicLong();
+    private final RateMeter messageRate = new RateMeter();
+    private final RateMeter byteRate = new RateMeter();
+
+    final LatencyHistogram receive = new LatencyHistogram();
+    final LatencyHistogram parse = new LatencyHistogram();
+    final LatencyHistogram build = new LatencyHistogram();
+    final LatencyHistogram insert = new LatencyHistogram();
+    final LatencyHistogram truncate = new LatencyHistogram();
+    final LatencyHistogram tail = new LatencyHistogram();
+
+    private ObjectName objectName;
+
+    /**
+     * @param messageList list whose queue and in-memory store are reported
+     * @param name database and collection name, used in the JMX object name
+     */
+    MongsterMetrics(PersistedMessageList messageList, String name) {
+        this.messageList = messageList;
+        this.name = name;
+    }
+
+    /**
+     * Counts a received message.
+     *
+     * @param bytes size of the raw message
+     */
+    void messageReceived(int bytes) {
+        messagesReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+        messageRate.mark(1);
+        byteRate.mark(bytes);
+    }
+
+    /**
+     * Counts failed MongoDB inserts.
+     *
+     * @param messages number of messages in the failed insert
+     */
+    void mongoError(int messages) {
+        mongoErrors.addAndGet(messages);
+    }
+
+    /**
+     * Counts a message dropped from a full write queue.
+     */
+    void messageDropped() {
+        messagesDropped.incrementAndGet();
+    }
+
+    /**
+     * @return current values of all metrics
+     */
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(this);
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public double getMessagesPerSecond() {
+        return messageRate.rate();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return byteRate.rate();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return messageList.queueDepth();
+    }
+
+    @Override
+    public long getMongoErrors() {
+        return mongoErrors.get();
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return messagesDropped.get();
+    }
+
+    @Override
+    public int getInMemoryMessages() {
+        return messageList.inMemorySize();
+    }
+
+    @Override
+    public long getInMemoryBytes() {
+        return messageList.inMemoryBytes();
+    }
+
+    @Override
+    public long getCountDrift() {
+        return messageList.countDrift();
+    }
+
+    @Override
+    public LatencySnapshot getReceiveLatency() {
+        return receive.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getParseLatency() {
+        return parse.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getBuildLatency() {
+        return build.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getInsertLatency() {
+        return insert.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getTruncateLatency() {
+        return truncate.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getTailLatency() {
+        return tail.snapshot();
+    }
+
+    /**
+     * Registers this object with the platform MBean server. Failures are
+     * reported but do not prevent the server from starting.
+     */
+    synchronized void register() {
+        if (objectName != null) {
+            return;
+        }
+        try {
+            final ObjectName candidate = new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, candidate);
+            objectName = candidate;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes this object from the platform MBean server, if it was registered.
+     */
+    synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        objectName = null;
+    }
+
+    /**
+     * Approximate event rate over the last few whole seconds, kept in one
+     * counter per second. Counts arriving while a slot is being recycled may
+     * be lost.
+     */
+    private static final class RateMeter {
+
+        private static final int WINDOW_SECONDS = 5;
+
+        /** One slot per second in the window, plus the current second */
+        private final AtomicLongArray counts = new AtomicLongArray(WINDOW_SECONDS + 1);
+        private final AtomicLongArray seconds = new AtomicLongArray(WINDOW_SECONDS + 1);
+
+        void mark(long n) {
+            final long second = System.currentTimeMillis() / 1000;
+            final int slot = (int) (second % counts.length());
+            final long stamp = seconds.get(slot);
+            if (stamp != second && seconds.compareAndSet(slot, stamp, second)) {
+                counts.set(slot, 0);
+            }
+            counts.addAndGet(slot, n);
+        }
+
+        double rate() {
+            final long second = System.currentTimeMillis() / 1000;
+            long total = 0;
+            for (int i = 1; i <= WINDOW_SECONDS; i++) {
+                final int slot = (int) ((second - i) % counts.length());
+                if (seconds.get(slot) == second - i) {
+                    total += counts.get(slot);
+                }
+            }
+            return (double) total / WINDOW_SECONDS;
+        }
+    }
+}
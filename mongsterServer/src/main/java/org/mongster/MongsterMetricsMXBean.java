@@ -0,0 +1,75 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+/**
+ * JMX view of {@link MongsterMetrics}. Registered as
+ * {@code org.mongster:type=Metrics,name=<database>.<collection>} while a
+ * Mongster with metrics enabled is running.
+ */
+public interface MongsterMetricsMXBean {
+
+    /** @return messages received since startup */
+    long getMessagesReceived();
+
+    /** @return raw message bytes received since startup */
+    long getBytesReceived();
+
+    /** @return messages received per second over the last few seconds */
+    double getMessagesPerSecond();
+
+    /** @return raw bytes received per second over the last few seconds */
+    double getBytesPerSecond();
+
+    /** @return messages waiting for a background writer */
+    int getQueueDepth();
+
+    /** @return messages whose insert into MongoDB (or another storage backend) failed */
+    long getMongoErrors();
+
+    /** @return messages dropped from a full write queue (DROP_OLDEST backpressure policy) */
+    long getMessagesDropped();
+
+    /** @return messages held in memory */
+    int getInMemoryMessages();
+
+    /** @return raw bytes of messages held in memory */
+    long getInMemoryBytes();
+
+    /**
+     * @return local stored-message count minus the storage backend's count
+     * (waits for pending writes and queries the server)
+     */
+    long getCountDrift();
+
+    /** @return time to read the SMTP data stream and scan headers */
+    LatencySnapshot getReceiveLatency();
+
+    /** @return time to extract the message body */
+    LatencySnapshot getParseLatency();
+
+    /** @return time to build the MongoDB document, excluding body extraction */
+    LatencySnapshot getBuildLatency();
+
+    /** @return time per MongoDB insert (one message, or one batch if writes are asynchronous) */
+    LatencySnapshot getInsertLatency();
+
+    /** @return duration of {@link Mongster#truncate(int)} calls */
+    LatencySnapshot getTruncateLatency();
+
+    /** @return duration of {@link Mongster#tail(int)} calls */
+    LatencySnapshot getTailLatency();
+}
@@ -0,0 +1,391 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mongster;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+
+import org.bson.Document;
+import org.mongster.HeaderNames.Name;
+
+/**
+ * Raw bytes of a received message together with its headers, parsed in a
+ * single pass as the bytes are read from the SMTP data stream.
+ * <p>
+ * Header values match what {@code MimeMessage.getAllHeaders()} returns:
+ * header bytes are read as ISO-8859-1, folded lines are kept (joined with
+ * CRLF) and whitespace following the colon is dropped. Headers are kept in
+ * the order they appear in the message.</p>
+ * <p>
+ * Header names come from {@link HeaderNames}, so the names of common
+ * headers are shared rather than allocated for each message. Names and
+ * values are kept in arrays and written straight into message documents by
+ * {@link #appendHeaders(Document)}.</p>
+ * <p>
+ * The body of a single-part {@code text/*} message can be decoded directly
+ * from the raw bytes with {@link #getTextBody()}, without building a
+ * {@code MimeMessage}.</p>
+ */
+class ParsedMessage {
+
+    private static final int CHUNK_SIZE = 8192;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private byte[] data;
+    private int length = 0;
+    private Name[] headerNames = new Name[16];
+    private String[] headerValues = new String[16];
+    private int headerCount = 0;
+
+    /** Offset of the first byte of the body, -1 until the end of headers is seen */
+    private int bodyOffset = -1;
+
+    /** Offset of the first byte not yet scanned for header lines */
+    private int scanned = 0;
+
+    /** Start of the header being accumulated, -1 if there is none */
+    private int pendingStart = -1;
+
+    /** End of the last line (before its line break) of the header being accumulated */
+    private int pendingEnd;
+
+    /** Hex SHA-256 of the raw bytes, computed on first use */
+    private volatile String payloadId;
+
+    private ParsedMessage(int initialCapacity) {
+        data = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * Reads a message from the SMTP data stream, parsing headers as bytes arrive.
+     *
+     * @param in message data stream
+     * @return parsed message
+     * @throws IOException if an error occurs reading the stream
+     */
+    static ParsedMessage read(InputStream in) throws IOException {
+        final ParsedMessage parsed = new ParsedMessage(CHUNK_SIZE);
+        int n;
+        while (true) {
+            parsed.ensureCapacity(parsed.length + CHUNK_SIZE);
+            n = in.read(parsed.data, parsed.length, CHUNK_SIZE);
+            if (n < 0) {
+                break;
+            }
+            parsed.length += n;
+            parsed.scanHeaders(false);
+        }
+        parsed.scanHeaders(true);
+        if (parsed.data.length != parsed.length) {
+            parsed.data = Arrays.copyOf(parsed.data, parsed.length);
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses the headers of a message that has already been read.
+     *
+     * @param data raw message bytes - not copied
+     * @return parsed message
+     */
+    static ParsedMessage parse(byte[] data) {
+        final ParsedMessage parsed = new ParsedMessage(0);
+        parsed.data = data;
+        parsed.length = data.length;
+        parsed.scanHeaders(true);
+        return parsed;
+    }
+
+    /**
+     * @return raw message bytes
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Content address of the raw bytes: messages with the same bytes have
+     * the same id. Computed once, then cached.
+     *
+     * @return lower-case hex SHA-256 digest of {@link #getData()}
+     */
+    String getPayloadId() {
+        String id = payloadId;
+        if (id == null) {
+            final byte[] digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256").digest(data);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // SHA-256 is always supported
+            }
+            final char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[2 * i] = Character.forDigit((digest[i] >> 4) & 0xf, 16);
+                hex[2 * i + 1] = Character.forDigit(digest[i] & 0xf, 16);
+            }
+            id = new String(hex);
+            payloadId = id;
+        }
+        return id;
+    }
+
+    /**
+     * @return number of headers
+     */
+    int getHeaderCount() {
+        return headerCount;
+    }
+
+    /**
+     * @param i header index, in message order
+     * @return name of the header, as it appears in the message
+     */
+    String getHeaderName(int i) {
+        return headerNames[i].name;
+    }
+
+    /**
+     * @param i header index, in message order
+     * @return document field name of the header (see {@link HeaderNames#fieldName(String)})
+     */
+    String getHeaderFieldName(int i) {
+        return headerNames[i].fieldName;
+    }
+
+    /**
+     * @param i header index, in message order
+     * @return value of the header
+     */
+    String getHeaderValue(int i) {
+        return headerValues[i];
+    }
+
+    /**
+     * Returns the value of the first header with the given name.
+     *
+     * @param name header name (case-insensitive)
+     * @return header value or null if there is no such header
+     */
+    String getHeader(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (headerNames[i].name.equalsIgnoreCase(name)) {
+                return headerValues[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the values of all headers with the given name.
+     *
+     * @param name header name (case-insensitive)
+     * @return header values in message order, empty if there are none
+     */
+    List<String> getHeaders(String name) {
+        final List<String> values = new ArrayList<String>(1);
+        for (int i = 0; i < headerCount; i++) {
+            if (headerNames[i].name.equalsIgnoreCase(name)) {
+                values.add(headerValues[i]);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Appends the headers to a document, keyed by field name (see
+     * {@link HeaderNames#fieldName(String)}). A header that occurs more than
+     * once, such as {@code Received}, gets an array of its values in message
+     * order.
+     *
+     * @param doc document to add the headers to
+     */
+    @SuppressWarnings("unchecked")
+    void appendHeaders(Document doc) {
+        for (int i = 0; i < headerCount; i++) {
+            final String field = headerNames[i].fieldName;
+            final Object existing = doc.get(field);
+            if (existing == null) {
+                doc.append(field, headerValues[i]);
+            } else if (existing instanceof List) {
+                ((List<Object>) existing).add(headerValues[i]);
+            } else {
+                final List<Object> values = new ArrayList<Object>(4);
+                values.add(existing);
+                values.add(headerValues[i]);
+                doc.put(field, values);
+            }
+        }
+    }
+
+    /**
+     * Decodes the body if this is a single-part text message. Matches what
+     * {@code MimeMessage.getContent()} returns for {@code text/*} content.
+     *
+     * @return decoded body, or null if the message is not single-part text
+     * or its body cannot be decoded without a full MIME parse
+     */
+    String getTextBody() {
+        try {
+            final String contentType = getHeader("Content-Type");
+            final ContentType type = new ContentType(contentType == null ? "text/plain" : contentType);
+            if (!type.getPrimaryType().equalsIgnoreCase("text")) {
+                return null;
+            }
+            String charset = type.getParameter("charset");
+            if (charset == null) {
+                charset = "us-ascii";
+            }
+            final int start = bodyOffset < 0 ? length : bodyOffset;
+            InputStream body = new ByteArrayInputStream(data, start, length - start);
+            final String encoding = getHeader("Content-Transfer-Encoding");
+            if (encoding != null) {
+                body = MimeUtility.decode(body, encoding.trim());
+            }
+            final Reader reader = new InputStreamReader(body, MimeUtility.javaCharset(charset));
+            final StringBuilder text = new StringBuilder(length - start);
+            final char[] buf = new char[CHUNK_SIZE];
+            int n;
+            while ((n = reader.read(buf)) >= 0) {
+                text.append(buf, 0, n);
+            }
+            return text.toString();
+        } catch (MessagingException | IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+        }
+    }
+
+    /**
+     * Consumes complete header lines from the unscanned part of the buffer.
+     *
+     * @param endOfData true if no more bytes will arrive, so a trailing
+     * unterminated line is complete
+     */
+    private void scanHeaders(boolean endOfData) {
+        while (bodyOffset < 0) {
+            int eol = scanned;
+            while (eol < length && data[eol] != '\n') {
+                eol++;
+            }
+            if (eol == length && !endOfData) {
+                return; // wait for the rest of the line
+            }
+            int end = eol;
+            if (end > scanned && data[end - 1] == '\r') {
+                end--;
+            }
+            final int next = Math.min(eol + 1, length);
+            if (end == scanned) {
+                // blank line - end of headers
+                endHeader();
+                bodyOffset = next;
+                return;
+            }
+            if ((data[scanned] == ' ' || data[scanned] == '\t') && pendingStart >= 0) {
+                pendingEnd = end; // folded continuation line
+            } else {
+                endHeader();
+                pendingStart = scanned;
+                pendingEnd = end;
+            }
+            scanned = next;
+            if (eol == length) {
+                endHeader();
+                bodyOffset = length;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds the header being accumulated, if any, to the header arrays. The
+     * name is looked up in {@link HeaderNames} without making a string.
+     */
+    private void endHeader() {
+        if (pendingStart < 0) {
+            return;
+        }
+        final int start = pendingStart;
+        final int end = pendingEnd;
+        pendingStart = -1;
+        int colon = start;
+        while (colon < end && data[colon] != ':') {
+            colon++;
+        }
+        if (colon == end) {
+            final String line = text(start, end);
+            addHeader(HeaderNames.lookup(line.trim()), line);
+            return;
+        }
+        int nameStart = start;
+        int nameEnd = colon;
+        while (nameStart < nameEnd && (data[nameStart] & 0xff) <= ' ') {
+            nameStart++;
+        }
+        while (nameEnd > nameStart && (data[nameEnd - 1] & 0xff) <= ' ') {
+            nameEnd--;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end) {
+            final byte c = data[valueStart];
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                break;
+            }
+            valueStart++;
+        }
+        addHeader(HeaderNames.lookup(data, nameStart, nameEnd - nameStart), text(valueStart, end));
+    }
+
+    private void addHeader(Name name, String value) {
+        if (headerCount == headerNames.length) {
+            headerNames = Arrays.copyOf(headerNames, headerCount * 2);
+            headerValues = Arrays.copyOf(headerValues, headerCount * 2);
+        }
+        headerNames[headerCount] = name;
+        headerValues[headerCount] = value;
+        headerCount++;
+    }
+
+    /**
+     * Decodes header bytes. Folded lines are joined with CRLF, as they are
+     * when the message uses bare LF line breaks too.
+     */
+    private String text(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == '\n' && (i == from || data[i - 1] != '\r')) {
+                return new String(data, from, to - from, ISO_8859_1).replaceAll("(?<!\r)\n", "\r\n");
+            }
+        }
+        return new String(data, from, to - from, ISO_8859_1);
+    }
+}
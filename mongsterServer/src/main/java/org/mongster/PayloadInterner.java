@@ -0,0 +1,84 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps received messages to one shared copy per distinct payload, by
+ * {@link ParsedMessage#getPayloadId()}. Wiser delivers a message once for
+ * each recipient; interned, the copies share their raw bytes and parsed
+ * headers, and the payload is hashed once. Copies are held weakly, so a
+ * payload is forgotten once no stored message uses it.
+ */
+class PayloadInterner {
+
+    private final Map<String, PayloadRef> payloads = new HashMap<String, PayloadRef>();
+    private final ReferenceQueue<ParsedMessage> collected = new ReferenceQueue<ParsedMessage>();
+
+    /**
+     * Hashes the message outside the lock, so concurrent sessions only
+     * serialize on the map lookup.
+     *
+     * @param parsed newly received message
+     * @return the copy already held for the same payload, or {@code parsed} if there is none
+     */
+    ParsedMessage intern(ParsedMessage parsed) {
+        final String id = parsed.getPayloadId();
+        synchronized (this) {
+            expunge();
+            final PayloadRef ref = payloads.get(id);
+            final ParsedMessage held = ref == null ? null : ref.get();
+            if (held != null) {
+                return held;
+            }
+            payloads.put(id, new PayloadRef(id, parsed, collected));
+            return parsed;
+        }
+    }
+
+    /**
+     * @return number of payloads held
+     */
+    synchronized int size() {
+        expunge();
+        return payloads.size();
+    }
+
+    /**
+     * Drops the entries of collected payloads.
+     */
+    private void expunge() {
+        PayloadRef ref;
+        while ((ref = (PayloadRef) collected.poll()) != null) {
+            if (payloads.get(ref.id) == ref) {
+                payloads.remove(ref.id);
+            }
+        }
+    }
+
+    private static class PayloadRef extends WeakReference<ParsedMessage> {
+        final String id;
+
+        PayloadRef(String id, ParsedMessage parsed, ReferenceQueue<ParsedMessage> queue) {
+            super(parsed, queue);
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Content-addressed storage of raw message bytes for the MONGO backend,
+ * used with {@code payloadDeduplication}. Each distinct payload is stored
+ * once in the {@code <collection>_payloads} collection:
+ * <pre>
+ *   _id                  payload id (hex SHA-256 of the raw bytes)
+ *   bytes64, raw or rawFileId
+ *                        raw bytes, as {@link RawContentStore} writes them
+ *   firstSequenceNumber  lowest sequence number of a message using it
+ *   lastSequenceNumber   highest sequence number of a message using it
+ *   receivedAt           receipt time of the latest message using it
+ * </pre>
+ * Message documents carry {@code payloadId} instead of raw bytes, but keep
+ * their headers and extracted content, so only the raw bytes are shared.
+ * A payload is removed once the sequence number range removals have removed every
+ * message in its range, and expires with the last of its messages if a
+ * retention maximum age is set. GridFS files of payloads are tagged with
+ * {@code metadata.payloadId} rather than a sequence number, so range
+ * removals of message files leave them alone.
+ * <p>
+ * Payload documents are written with upserts; the bytes are only sent for
+ * payloads not already known to be stored.</p>
+ */
+class PayloadStore {
+
+    static final String PAYLOAD_ID = "payloadId";
+    static final String COLLECTION_SUFFIX = "_payloads";
+    static final String FIRST_SEQUENCE_NUMBER = "firstSequenceNumber";
+    static final String LAST_SEQUENCE_NUMBER = "lastSequenceNumber";
+
+    /** Number of stored payload ids remembered */
+    static final int KNOWN_IDS = 10000;
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoDatabase db;
+    private final String collectionName;
+    private final RawContentStore rawContent;
+
+    /** Ids of payloads known to be stored, least recently used first */
+    private final Map<String, Boolean> known = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > KNOWN_IDS;
+        }
+    };
+
+    PayloadStore(MongoDatabase db, String messageCollection, RawContentStore rawContent) {
+        this.db = db;
+        this.collectionName = messageCollection + COLLECTION_SUFFIX;
+        this.rawContent = rawContent;
+    }
+
+    /**
+     * Stores the payloads of a batch of messages that are not stored yet and
+     * extends the sequence number ranges of those that are, in one bulk write.
+     *
+     * @param batch messages about to be inserted
+     */
+    void save(List<ReceivedMessage> batch) {
+        // Sequence number range and one message for each distinct payload
+        final Map<String, long[]> ranges = new LinkedHashMap<String, long[]>();
+        final Map<String, ParsedMessage> payloads = new LinkedHashMap<String, ParsedMessage>();
+        for (ReceivedMessage received : batch) {
+            final String id = received.parsed.getPayloadId();
+            final long[] range = ranges.get(id);
+            if (range == null) {
+                ranges.put(id, new long[] {received.sequenceNumber, received.sequenceNumber});
+                payloads.put(id, received.parsed);
+            } else {
+                range[0] = Math.min(range[0], received.sequenceNumber);
+                range[1] = Math.max(range[1], received.sequenceNumber);
+            }
+        }
+        save(ranges, payloads, true);
+    }
+
+    private void save(Map<String, long[]> ranges, Map<String, ParsedMessage> payloads, boolean retry) {
+        final Date now = new Date();
+        final List<WriteModel<Document>> models = new ArrayList<WriteModel<Document>>(ranges.size());
+        final List<String> ids = new ArrayList<String>(ranges.size());
+        // GridFS files written for new payloads, by model index
+        final Map<Integer, ObjectId> files = new LinkedHashMap<Integer, ObjectId>();
+        int updates = 0;
+        for (Map.Entry<String, long[]> entry : ranges.entrySet()) {
+            final String id = entry.getKey();
+            final List<Bson> update = new ArrayList<Bson>();
+            update.add(Updates.min(FIRST_SEQUENCE_NUMBER, entry.getValue()[0]));
+            update.add(Updates.max(LAST_SEQUENCE_NUMBER, entry.getValue()[1]));
+            update.add(Updates.max(MongoMessageStore.RECEIVED_AT, now));
+            if (isKnown(id)) {
+                models.add(new UpdateOneModel<Document>(Filters.eq("_id", id), Updates.combine(update)));
+                updates++;
+            } else {
+                final Document raw = new Document();
+                rawContent.writePayload(raw, payloads.get(id).getData(), id);
+                for (Map.Entry<String, Object> field : raw.entrySet()) {
+                    update.add(Updates.setOnInsert(field.getKey(), field.getValue()));
+                }
+                if (raw.get(RawContentStore.RAW_FILE_ID) instanceof ObjectId) {
+                    files.put(models.size(), raw.getObjectId(RawContentStore.RAW_FILE_ID));
+                }
+                models.add(new UpdateOneModel<Document>(Filters.eq("_id", id), Updates.combine(update),
+                                                        new UpdateOptions().upsert(true)));
+            }
+            ids.add(id);
+        }
+        final BulkWriteResult result;
+        try {
+            result = collection().bulkWrite(models, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            // Upserts that succeeded reference their files, keep those
+            removeUnused(files, e.getWriteResult().getUpserts());
+            if (retry && onlyDuplicateKeys(e)) {
+                // Concurrent upserts of the same new payload: one insert wins
+                save(ranges, payloads, false);
+                return;
+            }
+            throw e;
+        }
+        // Files of payloads another message stored first are not needed
+        final Set<Integer> inserted = removeUnused(files, result.getUpserts());
+        if (updates > 0 && result.getMatchedCount() + inserted.size() < models.size()) {
+            // Some payloads thought stored were removed in the meantime
+            forget();
+            save(ranges, payloads, retry);
+            return;
+        }
+        synchronized (known) {
+            for (String id : ids) {
+                known.put(id, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Removes the GridFS files written for payloads that were not inserted.
+     *
+     * @param files GridFS files written, by model index
+     * @param upserts upserts that inserted a payload
+     * @return model indexes of the inserted payloads
+     */
+    private Set<Integer> removeUnused(Map<Integer, ObjectId> files, List<BulkWriteUpsert> upserts) {
+        final Set<Integer> inserted = new HashSet<Integer>();
+        for (BulkWriteUpsert upsert : upserts) {
+            inserted.add(upsert.getIndex());
+        }
+        final List<ObjectId> unused = new ArrayList<ObjectId>();
+        for (Map.Entry<Integer, ObjectId> file : files.entrySet()) {
+            if (!inserted.contains(file.getKey())) {
+                unused.add(file.getValue());
+            }
+        }
+        rawContent.removeFiles(unused);
+        return inserted;
+    }
+
+    private static boolean onlyDuplicateKeys(MongoBulkWriteException e) {
+        for (BulkWriteError error : e.getWriteErrors()) {
+            if (error.getCode() != DUPLICATE_KEY) {
+                return false;
+            }
+        }
+        return e.getWriteConcernError() == null;
+    }
+
+    private boolean isKnown(String id) {
+        synchronized (known) {
+            return known.get(id) != null;
+        }
+    }
+
+    private void forget() {
+        synchronized (known) {
+            known.clear();
+        }
+    }
+
+    /**
+     * @param id payload id
+     * @return raw message bytes, or null if the payload is not stored
+     */
+    byte[] read(String id) {
+        final Document payload = collection().find(Filters.eq("_id", id)).first();
+        return payload == null ? null : rawContent.read(payload);
+    }
+
+    void clear() {
+        remove(new Document());
+    }
+
+    /**
+     * Removes the payloads used only by messages numbered {@code seq} or
+     * higher. Payloads also used by earlier messages get their ranges cut
+     * back.
+     */
+    void removeFrom(long seq) {
+        remove(Filters.gte(FIRST_SEQUENCE_NUMBER, seq));
+        collection().updateMany(Filters.gte(LAST_SEQUENCE_NUMBER, seq),
+                                Updates.set(LAST_SEQUENCE_NUMBER, seq - 1));
+    }
+
+    /**
+     * Removes the payloads used only by messages numbered below {@code seq}.
+     */
+    void removeBefore(long seq) {
+        remove(Filters.lt(LAST_SEQUENCE_NUMBER, seq));
+    }
+
+    private void remove(Bson filter) {
+        final List<ObjectId> fileIds = new ArrayList<ObjectId>();
+        for (Document payload : collection().find(Filters.and(filter, Filters.exists(RawContentStore.RAW_FILE_ID)))
+                 .projection(Projections.include(RawContentStore.RAW_FILE_ID))) {
+            fileIds.add(payload.getObjectId(RawContentStore.RAW_FILE_ID));
+        }
+        collection().deleteMany(filter);
+        rawContent.removeFiles(fileIds);
+        forget();
+    }
+
+    /**
+     * Data size reported by {@code collStats}, not counting GridFS files.
+     */
+    long bytes() {
+        final Object size = db.runCommand(new Document("collStats", collectionName)).get("size");
+        return size instanceof Number ? ((Number) size).longValue() : 0;
+    }
+
+    MongoCollection<Document> collection() {
+        return db.getCollection(collectionName);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mongster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.bson.BsonBinary;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.mongster.MongsterConfig.RawStorage;
+import org.subethamail.smtp.util.Base64;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
+
+/**
+ * Writes and reads the raw bytes of messages stored in MongoDB.
+ * <p>
+ * Depending on {@link MongsterConfig#getRawStorage()}, raw bytes are stored as
+ * <pre>
+ *   bytes64     Base64 string (BASE64, the original format)
+ *   raw         BSON binary (BINARY)
+ *   rawFileId   id of a GridFS file in the bucket named after the message
+ *               collection (BINARY, messages larger than gridFsThreshold)
+ * </pre>
+ * GridFS files carry the message sequence number as
+ * {@code metadata.sequenceNumber} so they can be removed along with their
+ * message documents, or, for payloads shared by several messages (see
+ * {@link PayloadStore}), the payload id as {@code metadata.payloadId}.</p>
+ * <p>
+ * {@link #read(Document)} understands all three forms, so documents written
+ * before the storage format was changed remain readable.</p>
+ */
+class RawContentStore {
+
+    static final String BYTES64 = "bytes64";
+    static final String RAW = "raw";
+    static final String RAW_FILE_ID = "rawFileId";
+
+    private final RawStorage rawStorage;
+    private final int gridFsThreshold;
+    private final MongoClient mongoClient;
+    private final String databaseName;
+    private final String bucket;
+
+    /** Created on first use - the legacy GridFS API needs a {@code DB} handle */
+    private GridFS gridFs;
+
+    RawContentStore(MongoClient mongoClient, MongsterConfig config) {
+        this.mongoClient = mongoClient;
+        this.databaseName = config.getMongoDatabase();
+        this.bucket = config.getMongoCollection();
+        this.rawStorage = config.getRawStorage();
+        this.gridFsThreshold = config.getGridFsThreshold();
+    }
+
+    /**
+     * Adds the raw bytes of a message to its document.
+     *
+     * @param doc message document
+     * @param data raw message bytes
+     * @param seq sequence number of the message
+     */
+    void write(Document doc, byte[] data, long seq) {
+        if (rawStorage == RawStorage.BASE64) {
+            doc.append(BYTES64, Base64.encodeToString(data, true));
+        } else if (data.length > gridFsThreshold) {
+            doc.append(RAW_FILE_ID, saveFile(data, new BasicDBObject(MongoMessageStore.SEQUENCE_NUMBER, seq)));
+        } else {
+            doc.append(RAW, new Binary(data));
+        }
+    }
+
+    /**
+     * Adds the raw bytes of a shared payload to its payload document.
+     *
+     * @param doc payload document
+     * @param data raw message bytes
+     * @param payloadId id of the payload
+     */
+    void writePayload(Document doc, byte[] data, String payloadId) {
+        if (rawStorage == RawStorage.BASE64) {
+            doc.append(BYTES64, Base64.encodeToString(data, true));
+        } else if (data.length > gridFsThreshold) {
+            doc.append(RAW_FILE_ID, saveFile(data, new BasicDBObject(PayloadStore.PAYLOAD_ID, payloadId)));
+        } else {
+            doc.append(RAW, new Binary(data));
+        }
+    }
+
+    /**
+     * Writes the raw bytes of a message as the next field of a document
+     * being encoded. Produces the same field as {@link #write(Document, byte[], long)}.
+     *
+     * @param writer writer positioned inside the message document
+     * @param data raw message bytes
+     * @param seq sequence number of the message
+     * @return id of the GridFS file the bytes were saved to, or null if they
+     * are in the document
+     */
+    ObjectId write(BsonWriter writer, byte[] data, long seq) {
+        if (rawStorage == RawStorage.BASE64) {
+            writer.writeString(BYTES64, Base64.encodeToString(data, true));
+        } else if (data.length > gridFsThreshold) {
+            final ObjectId fileId = saveFile(data, new BasicDBObject(MongoMessageStore.SEQUENCE_NUMBER, seq));
+            writer.writeObjectId(RAW_FILE_ID, fileId);
+            return fileId;
+        } else {
+            writer.writeBinaryData(RAW, new BsonBinary(data));
+        }
+        return null;
+    }
+
+    /**
+     * Saves raw bytes as a GridFS file.
+     *
+     * @param metadata message sequence number or payload id
+     * @return id of the new file
+     */
+    private ObjectId saveFile(byte[] data, BasicDBObject metadata) {
+        final GridFSInputFile file = gridFs().createFile(data);
+        file.put("metadata", metadata);
+        file.save();
+        return (ObjectId) file.getId();
+    }
+
+    /**
+     * Returns the raw bytes of a stored message.
+     *
+     * @param doc message document
+     * @return raw message bytes, or null if the document has none
+     */
+    byte[] read(Document doc) {
+        final Object raw = doc.get(RAW);
+        if (raw instanceof Binary) {
+            return ((Binary) raw).getData();
+        }
+        if (raw instanceof byte[]) {
+            return (byte[]) raw;
+        }
+        final Object fileId = doc.get(RAW_FILE_ID);
+        if (fileId instanceof ObjectId) {
+            final GridFSDBFile file = gridFs().findOne((ObjectId) fileId);
+            return file == null ? null : readFully(file);
+        }
+        final String bytes64 = doc.getString(BYTES64);
+        return bytes64 == null ? null : Base64.decode(bytes64);
+    }
+
+    /**
+     * Removes spilled-over files for messages with sequence numbers in a range.
+     *
+     * @param from first sequence number to remove, or null for no lower bound
+     * @param to sequence number to stop at (exclusive), or null for no upper bound
+     */
+    void remove(Long from, Long to) {
+        if (rawStorage == RawStorage.BASE64) {
+            return;
+        }
+        final BasicDBObject range = new BasicDBObject();
+        if (from != null) {
+            range.append("$gte", from);
+        }
+        if (to != null) {
+            range.append("$lt", to);
+        }
+        final DBObject query = range.isEmpty() ? new BasicDBObject() :
+            new BasicDBObject("metadata." + MongoMessageStore.SEQUENCE_NUMBER, range);
+        gridFs().remove(query);
+    }
+
+    /**
+     * Removes GridFS files by id.
+     *
+     * @param fileIds ids of the files to remove
+     */
+    void removeFiles(List<ObjectId> fileIds) {
+        if (!fileIds.isEmpty()) {
+            gridFs().remove(new BasicDBObject("_id", new BasicDBObject("$in", fileIds)));
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private synchronized GridFS gridFs() {
+        if (gridFs == null) {
+            gridFs = new GridFS(mongoClient.getDB(databaseName), bucket);
+        }
+        return gridFs;
+    }
+
+    private static byte[] readFully(GridFSDBFile file) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.getLength());
+        try {
+            final InputStream in = file.getInputStream();
+            final byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            in.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read GridFS file " + file.getId(), e);
+        }
+        return out.toByteArray();
+    }
+}
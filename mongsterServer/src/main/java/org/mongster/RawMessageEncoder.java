@@ -0,0 +1,271 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonBinaryWriterSettings;
+import org.bson.BsonWriter;
+import org.bson.BsonWriterSettings;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.mongster.ContentExtractor.Extracted;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Encodes message documents straight to BSON, skipping the {@link Document}
+ * built by {@link MongoMessageStore#toDocument(WiserMessage, ParsedMessage, long)}
+ * and the driver's second pass over it. The bytes written are the same as the
+ * driver writes for that document: {@code _id} first, then headers, content,
+ * envelope, raw bytes, {@code sequenceNumber} and {@code receivedAt}.
+ * <p>
+ * Header field names come precomputed from {@link HeaderNames}, and each
+ * thread encodes into its own reusable {@link BasicOutputBuffer}, so the only
+ * per-message allocation beyond field values is the finished document. The
+ * buffer is emptied before each use, so an encode that failed half way does
+ * not leave bytes behind for the next one. Documents over the server's
+ * {@link #MAX_DOCUMENT_SIZE} fail while being encoded; a GridFS file saved
+ * for the raw bytes of a document that fails is removed again.</p>
+ * <p>
+ * A message whose header field names could clash with the fixed fields, or
+ * that the driver would reject, is not encoded directly; callers build its
+ * {@code Document} instead and pass it to {@link #encode(Document)}.</p>
+ */
+class RawMessageEncoder {
+
+    /** Buffers larger than this are not kept for reuse */
+    static final int MAX_RETAINED_BUFFER = 1 << 20;
+
+    /** Largest document MongoDB accepts */
+    static final int MAX_DOCUMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final BsonBinaryWriterSettings WRITER_SETTINGS = new BsonBinaryWriterSettings(MAX_DOCUMENT_SIZE);
+
+    /** Fields written after the headers, which a header could otherwise overwrite */
+    private static final Set<String> FIXED_FIELDS = new HashSet<String>(Arrays.asList(
+        "_id", ContentExtractor.BODY, ContentExtractor.HTML, ContentExtractor.ATTACHMENTS,
+        "envelopeSender", "envelopeReceiver", RawContentStore.BYTES64, RawContentStore.RAW,
+        RawContentStore.RAW_FILE_ID, PayloadStore.PAYLOAD_ID, MongoMessageStore.SEQUENCE_NUMBER,
+        MongoMessageStore.RECEIVED_AT));
+
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+    private static final EncoderContext NESTED = EncoderContext.builder().build();
+
+    private static final EncoderContext COLLECTIBLE =
+        EncoderContext.builder().isEncodingCollectibleDocument(true).build();
+
+    private static final ThreadLocal<BasicOutputBuffer> BUFFERS = new ThreadLocal<BasicOutputBuffer>() {
+        @Override
+        protected BasicOutputBuffer initialValue() {
+            return new BasicOutputBuffer();
+        }
+    };
+
+    private final ContentExtractor contentExtractor;
+    private final RawContentStore rawContent;
+    private final boolean payloadIds;
+    private final MongsterMetrics metrics;
+
+    /**
+     * @param payloadIds write {@code payloadId} references instead of raw bytes
+     * @param metrics ingestion metrics, or null if disabled
+     */
+    RawMessageEncoder(ContentExtractor contentExtractor, RawContentStore rawContent, boolean payloadIds,
+                      MongsterMetrics metrics) {
+        this.contentExtractor = contentExtractor;
+        this.rawContent = rawContent;
+        this.payloadIds = payloadIds;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Encodes the document representing a received message.
+     *
+     * @param message received message
+     * @param parsed raw bytes and headers of {@code message}
+     * @param seq sequence number to store with the message
+     * @return encoded document, or null if the message has to go through
+     * {@link #encode(Document)}
+     */
+    RawBsonDocument encode(WiserMessage message, ParsedMessage parsed, long seq) {
+        if (!isEncodable(parsed)) {
+            return null;
+        }
+        final long start = metrics == null ? 0 : System.nanoTime();
+        long parseNanos = 0;
+        final BasicOutputBuffer buffer = BUFFERS.get();
+        buffer.truncateToPosition(0);
+        final BsonBinaryWriter writer = newWriter(buffer);
+        ObjectId fileId = null;
+        try {
+            writer.writeStartDocument();
+            writer.writeObjectId("_id", new ObjectId());
+            writeHeaders(writer, parsed);
+            final long parseStart = metrics == null ? 0 : System.nanoTime();
+            final Extracted extracted = contentExtractor.extract(parsed);
+            parseNanos = metrics == null ? 0 : System.nanoTime() - parseStart;
+            if (extracted != null) {
+                writeContent(writer, extracted);
+            }
+            writeString(writer, "envelopeSender", message.getEnvelopeSender());
+            writeString(writer, "envelopeReceiver", message.getEnvelopeReceiver());
+            if (payloadIds) {
+                writer.writeString(PayloadStore.PAYLOAD_ID, parsed.getPayloadId());
+            } else {
+                fileId = rawContent.write(writer, parsed.getData(), seq);
+            }
+            writer.writeInt64(MongoMessageStore.SEQUENCE_NUMBER, seq);
+            writer.writeDateTime(MongoMessageStore.RECEIVED_AT, System.currentTimeMillis());
+            writer.writeEndDocument();
+        } catch (RuntimeException e) {
+            if (fileId != null) {
+                try {
+                    rawContent.removeFiles(Collections.singletonList(fileId));
+                } catch (RuntimeException removeFailure) {
+                    e.addSuppressed(removeFailure);
+                }
+            }
+            throw e;
+        } finally {
+            writer.close();
+        }
+        final RawBsonDocument doc = finish(buffer);
+        if (metrics != null) {
+            metrics.parse.record(parseNanos);
+            metrics.build.record(System.nanoTime() - start - parseNanos);
+        }
+        return doc;
+    }
+
+    /**
+     * Encodes a message document the way the driver does on insert, adding
+     * an {@code _id} if it has none.
+     *
+     * @param doc message document
+     * @return encoded document
+     */
+    RawBsonDocument encode(Document doc) {
+        DOCUMENT_CODEC.generateIdIfAbsentFromDocument(doc);
+        final BasicOutputBuffer buffer = BUFFERS.get();
+        buffer.truncateToPosition(0);
+        final BsonBinaryWriter writer = newWriter(buffer);
+        try {
+            DOCUMENT_CODEC.encode(writer, doc, COLLECTIBLE);
+        } finally {
+            writer.close();
+        }
+        return finish(buffer);
+    }
+
+    private static BsonBinaryWriter newWriter(BasicOutputBuffer buffer) {
+        return new BsonBinaryWriter(new BsonWriterSettings(), WRITER_SETTINGS, buffer);
+    }
+
+    /**
+     * Copies the encoded bytes out and readies the buffer for the next message.
+     */
+    private static RawBsonDocument finish(BasicOutputBuffer buffer) {
+        final RawBsonDocument doc = new RawBsonDocument(buffer.toByteArray());
+        if (buffer.getInternalBuffer().length > MAX_RETAINED_BUFFER) {
+            BUFFERS.remove();
+        } else {
+            buffer.truncateToPosition(0);
+        }
+        return doc;
+    }
+
+    /**
+     * @return true if every header field name is one the driver accepts and
+     * none clashes with a fixed field
+     */
+    private static boolean isEncodable(ParsedMessage parsed) {
+        for (int i = 0; i < parsed.getHeaderCount(); i++) {
+            final String field = parsed.getHeaderFieldName(i);
+            if (field.isEmpty() || field.charAt(0) == '$' || field.indexOf('.') >= 0 ||
+                field.indexOf('\0') >= 0 || FIXED_FIELDS.contains(field)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes headers in message order, a repeated header as an array at the
+     * position of its first occurrence.
+     */
+    private static void writeHeaders(BsonWriter writer, ParsedMessage parsed) {
+        final int count = parsed.getHeaderCount();
+        headers:
+        for (int i = 0; i < count; i++) {
+            final String field = parsed.getHeaderFieldName(i);
+            for (int j = 0; j < i; j++) {
+                if (parsed.getHeaderFieldName(j).equals(field)) {
+                    continue headers;
+                }
+            }
+            int next = i + 1;
+            while (next < count && !parsed.getHeaderFieldName(next).equals(field)) {
+                next++;
+            }
+            if (next == count) {
+                writer.writeString(field, parsed.getHeaderValue(i));
+                continue;
+            }
+            writer.writeStartArray(field);
+            writer.writeString(parsed.getHeaderValue(i));
+            for (int j = next; j < count; j++) {
+                if (parsed.getHeaderFieldName(j).equals(field)) {
+                    writer.writeString(parsed.getHeaderValue(j));
+                }
+            }
+            writer.writeEndArray();
+        }
+    }
+
+    private static void writeContent(BsonWriter writer, Extracted extracted) {
+        final String body = extracted.body();
+        if (body != null) {
+            writer.writeString(ContentExtractor.BODY, body);
+        }
+        if (extracted.html != null) {
+            writer.writeString(ContentExtractor.HTML, extracted.html);
+        }
+        if (!extracted.attachments.isEmpty()) {
+            writer.writeStartArray(ContentExtractor.ATTACHMENTS);
+            for (Document attachment : extracted.attachments) {
+                DOCUMENT_CODEC.encode(writer, attachment, NESTED);
+            }
+            writer.writeEndArray();
+        }
+    }
+
+    private static void writeString(BsonWriter writer, String name, String value) {
+        if (value == null) {
+            writer.writeNull(name);
+        } else {
+            writer.writeString(name, value);
+        }
+    }
+}
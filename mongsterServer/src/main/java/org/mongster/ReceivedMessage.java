@@ -0,0 +1,35 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * A received message with its parsed headers and assigned sequence number,
+ * as queued for background writers and handed to {@link MessageStore}s.
+ */
+class ReceivedMessage {
+
+    final WiserMessage message;
+    final ParsedMessage parsed;
+    final long sequenceNumber;
+
+    ReceivedMessage(WiserMessage message, ParsedMessage parsed, long sequenceNumber) {
+        this.message = message;
+        this.parsed = parsed;
+        this.sequenceNumber = sequenceNumber;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import org.mongster.Mongster.PersistedMessageList;
+
+/**
+ * Background thread that applies the retention limits in
+ * {@link MongsterConfig} to a message list every
+ * {@code retentionIntervalMillis}, by calling
+ * {@link PersistedMessageList#retain()}. Each pass removes at most
+ * {@link #BATCH_SIZE} messages, so a large backlog is worked off
+ * incrementally rather than in one long delete.
+ */
+class RetentionTrimmer implements Runnable {
+
+    /** Maximum number of messages removed per pass */
+    static final int BATCH_SIZE = 1000;
+
+    private final PersistedMessageList messageList;
+    private final long intervalMillis;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    RetentionTrimmer(PersistedMessageList messageList, MongsterConfig config, String threadName) {
+        this.messageList = messageList;
+        this.intervalMillis = Math.max(1, config.getRetentionIntervalMillis());
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the trimmer, waiting for a pass in progress to finish.
+     */
+    void shutdown() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // Keep going without sleeping while there is a backlog
+                if (messageList.retain() < BATCH_SIZE) {
+                    Thread.sleep(intervalMillis);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+}
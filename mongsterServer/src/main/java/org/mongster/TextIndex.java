@@ -0,0 +1,429 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mongster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.mongster.ContentExtractor.Extracted;
+import org.mongster.MongsterConfig.ContentExtraction;
+
+/**
+ * In-process inverted index over message subjects and text bodies, ranking
+ * matches the way the MongoDB text index built by {@link MongoMessageStore}
+ * does, closely enough for search results to agree.
+ * <p>
+ * Text is split into lower-case runs of letters and digits; there is no
+ * stemming and there are no stop words (the MongoDB index uses language
+ * {@code none}). A query matches messages containing any of its terms. Each
+ * term contributes {@code idf * (1 + ln tf)}, where subject occurrences count
+ * {@link #SUBJECT_WEIGHT} times; ties go to the most recently indexed
+ * message.</p>
+ * <p>
+ * Messages get consecutive internal ids as they are indexed, so posting
+ * lists stay sorted. Queries walk them together, skipping through the
+ * postings of common terms once those can no longer lift a message into the
+ * results (MaxScore), so a rare term in a query is cheap even when the
+ * query also holds a term found in every message.
+ * Removal only marks a message dead; postings are compacted once dead
+ * messages outnumber live ones.</p>
+ * <p>
+ * Not thread-safe - callers synchronize.</p>
+ */
+class TextIndex {
+
+    /** Weight of subject terms relative to body terms */
+    static final int SUBJECT_WEIGHT = 2;
+
+    /** Longer runs (encoded data, long URLs) are not indexed */
+    static final int MAX_TERM_LENGTH = 64;
+
+    /** Dead messages tolerated before postings are compacted */
+    private static final int MIN_COMPACTION = 1024;
+
+    private final ContentExtractor extractor;
+
+    private final Map<String, Postings> postings = new HashMap<String, Postings>();
+
+    /** Internal id of each indexed key */
+    private final Map<Long, Integer> ids = new HashMap<Long, Integer>();
+
+    /** Key of each internal id */
+    private long[] keys = new long[16];
+
+    private final BitSet live = new BitSet();
+
+    private int nextId = 0;
+    private int dead = 0;
+
+    /**
+     * @param extraction configured content extraction; bodies are only
+     * indexed if it extracts text
+     */
+    TextIndex(ContentExtraction extraction) {
+        extractor = new ContentExtractor(extraction == ContentExtraction.HEADERS_ONLY ?
+                                         ContentExtraction.HEADERS_ONLY : ContentExtraction.TEXT, false);
+    }
+
+    /**
+     * Indexes the subject and text body of a message.
+     *
+     * @param key key returned by {@link #search(String, int)} for this message
+     * @param parsed raw bytes and headers of the message
+     */
+    void add(long key, ParsedMessage parsed) {
+        final Extracted extracted = extractor.extract(parsed);
+        add(key, parsed.getHeader("Subject"), extracted == null ? null : extracted.body());
+    }
+
+    /**
+     * Indexes text under a key, replacing anything indexed under it before.
+     *
+     * @param key key returned by {@link #search(String, int)} for this text
+     * @param subject subject, or null
+     * @param body text body, or null
+     */
+    void add(long key, String subject, String body) {
+        remove(key);
+        final Map<String, int[]> frequencies = new HashMap<String, int[]>();
+        count(subject, SUBJECT_WEIGHT, frequencies);
+        count(body, 1, frequencies);
+        final int id = nextId++;
+        if (id == keys.length) {
+            keys = Arrays.copyOf(keys, id * 2);
+        }
+        keys[id] = key;
+        ids.put(key, id);
+        live.set(id);
+        for (Map.Entry<String, int[]> frequency : frequencies.entrySet()) {
+            Postings list = postings.get(frequency.getKey());
+            if (list == null) {
+                list = new Postings();
+                postings.put(frequency.getKey(), list);
+            }
+            list.add(id, frequency.getValue()[0]);
+        }
+    }
+
+    /**
+     * @param key key of the message to drop from the index; ignored if not indexed
+     */
+    void remove(long key) {
+        final Integer id = ids.remove(key);
+        if (id == null) {
+            return;
+        }
+        live.clear(id);
+        dead++;
+        if (dead > MIN_COMPACTION && dead > ids.size()) {
+            compact();
+        }
+    }
+
+    void clear() {
+        postings.clear();
+        ids.clear();
+        live.clear();
+        keys = new long[16];
+        nextId = 0;
+        dead = 0;
+    }
+
+    /**
+     * @return number of indexed messages
+     */
+    int size() {
+        return ids.size();
+    }
+
+    /**
+     * Returns the keys of the best matching messages, best first.
+     *
+     * @param query search terms
+     * @param limit maximum number of keys to return
+     * @return up to {@code limit} keys
+     */
+    List<Long> search(String query, int limit) {
+        final List<Cursor> found = new ArrayList<Cursor>();
+        for (String term : terms(query)) {
+            final Postings list = postings.get(term);
+            if (list != null) {
+                found.add(new Cursor(list, Math.log(1 + (double) ids.size() / list.size)));
+            }
+        }
+        if (found.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        // MaxScore: terms sorted by their highest possible contribution, with
+        // running totals. Once the best {@code limit} are known, a message
+        // holding only the first few terms cannot beat them, so those terms'
+        // postings are probed for candidates rather than walked. Postings are
+        // walked newest first, so a later candidate never wins a tie.
+        Collections.sort(found);
+        final Cursor[] cursors = found.toArray(new Cursor[found.size()]);
+        final double[] bound = new double[cursors.length];
+        for (int i = 0; i < cursors.length; i++) {
+            bound[i] = (i == 0 ? 0 : bound[i - 1]) + cursors[i].maxScore;
+        }
+        // Worst hit on top, so the queue keeps the best {@code limit}
+        final PriorityQueue<Hit> best = new PriorityQueue<Hit>(Math.min(limit, 1024) + 1);
+        double threshold = 0;
+        int essential = 0;
+        while (true) {
+            int id = -1;
+            for (int i = essential; i < cursors.length; i++) {
+                if (!cursors[i].done()) {
+                    id = Math.max(id, cursors[i].id());
+                }
+            }
+            if (id < 0) {
+                break;
+            }
+            double score = 0;
+            for (int i = cursors.length - 1; i >= essential; i--) {
+                if (!cursors[i].done() && cursors[i].id() == id) {
+                    score += cursors[i].score();
+                    cursors[i].advance();
+                }
+            }
+            for (int i = essential - 1; i >= 0 && score + bound[i] > threshold; i--) {
+                if (cursors[i].skipTo(id) && cursors[i].id() == id) {
+                    score += cursors[i].score();
+                }
+            }
+            if (!live.get(id) || (best.size() == limit && score <= threshold)) {
+                continue;
+            }
+            best.add(new Hit(id, score));
+            if (best.size() > limit) {
+                best.poll();
+            }
+            if (best.size() == limit) {
+                threshold = best.peek().score;
+                while (essential < cursors.length && bound[essential] <= threshold) {
+                    essential++;
+                }
+            }
+        }
+        final Long[] keysFound = new Long[best.size()];
+        for (int i = keysFound.length - 1; i >= 0; i--) {
+            keysFound[i] = keys[best.poll().id];
+        }
+        return Arrays.asList(keysFound);
+    }
+
+    /**
+     * Splits text into distinct index terms, in order of first occurrence.
+     *
+     * @param text text to split, may be null
+     * @return lower-case terms
+     */
+    static Set<String> terms(String text) {
+        final Set<String> terms = new LinkedHashSet<String>();
+        if (text != null) {
+            split(text, terms);
+        }
+        return terms;
+    }
+
+    private static void count(String text, int weight, Map<String, int[]> frequencies) {
+        if (text == null) {
+            return;
+        }
+        final List<String> found = new ArrayList<String>();
+        split(text, found);
+        for (String term : found) {
+            final int[] frequency = frequencies.get(term);
+            if (frequency == null) {
+                frequencies.put(term, new int[] {weight});
+            } else {
+                frequency[0] += weight;
+            }
+        }
+    }
+
+    private static void split(String text, Collection<String> terms) {
+        final int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            final int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > start && i - start <= MAX_TERM_LENGTH) {
+                terms.add(text.substring(start, i).toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Drops dead messages from the postings and renumbers the live ones.
+     */
+    private void compact() {
+        final int[] renumbered = new int[nextId];
+        int next = 0;
+        for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+            renumbered[id] = next;
+            keys[next] = keys[id];
+            ids.put(keys[next], next);
+            next++;
+        }
+        final Iterator<Postings> lists = postings.values().iterator();
+        while (lists.hasNext()) {
+            final Postings list = lists.next();
+            int kept = 0;
+            for (int i = 0; i < list.size; i++) {
+                if (live.get(list.ids[i])) {
+                    list.ids[kept] = renumbered[list.ids[i]];
+                    list.frequencies[kept] = list.frequencies[i];
+                    kept++;
+                }
+            }
+            list.size = kept;
+            if (kept == 0) {
+                lists.remove();
+            }
+        }
+        live.clear();
+        live.set(0, next);
+        nextId = next;
+        dead = 0;
+    }
+
+    /**
+     * Internal ids of the messages containing a term, ascending, with the
+     * weighted number of occurrences in each.
+     */
+    private static class Postings {
+        int[] ids = new int[2];
+        int[] frequencies = new int[2];
+        int size = 0;
+        /** Highest frequency ever added - kept through compaction as an upper bound */
+        int maxFrequency = 0;
+
+        void add(int id, int frequency) {
+            maxFrequency = Math.max(maxFrequency, frequency);
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            ids[size] = id;
+            frequencies[size] = frequency;
+            size++;
+        }
+    }
+
+    /**
+     * Position in one term's postings during a query.
+     */
+    private static class Cursor implements Comparable<Cursor> {
+        private final Postings list;
+        private final double idf;
+        /** Highest contribution to any message's score */
+        final double maxScore;
+        /** Walks from the newest posting down */
+        private int position;
+
+        Cursor(Postings list, double idf) {
+            this.list = list;
+            this.idf = idf;
+            this.maxScore = idf * (1 + Math.log(list.maxFrequency));
+            this.position = list.size - 1;
+        }
+
+        boolean done() {
+            return position < 0;
+        }
+
+        int id() {
+            return list.ids[position];
+        }
+
+        double score() {
+            return idf * (1 + Math.log(list.frequencies[position]));
+        }
+
+        void advance() {
+            position--;
+        }
+
+        /**
+         * Moves down to the last posting at or before {@code id}, galloping
+         * then binary searching.
+         *
+         * @return false if there is none
+         */
+        boolean skipTo(int id) {
+            if (done() || list.ids[position] <= id) {
+                return !done();
+            }
+            int high = position;
+            int step = 1;
+            while (high - step >= 0 && list.ids[high - step] > id) {
+                high -= step;
+                step *= 2;
+            }
+            int low = Math.max(high - step, -1);
+            // ids[high] > id; find the last index in (low, high) with ids <= id
+            while (high - low > 1) {
+                final int mid = (low + high) >>> 1;
+                if (list.ids[mid] > id) {
+                    high = mid;
+                } else {
+                    low = mid;
+                }
+            }
+            position = low;
+            return !done();
+        }
+
+        /** Lowest {@link #maxScore} first */
+        @Override
+        public int compareTo(Cursor other) {
+            return Double.compare(maxScore, other.maxScore);
+        }
+    }
+
+    private static class Hit implements Comparable<Hit> {
+        final int id;
+        final double score;
+
+        Hit(int id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        /** Lower score first, then older first */
+        @Override
+        public int compareTo(Hit other) {
+            final int byScore = Double.compare(score, other.score);
+            return byScore != 0 ? byScore : Integer.compare(id, other.id);
+        }
+    }
+}
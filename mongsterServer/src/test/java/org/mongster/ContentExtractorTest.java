@@ -0,0 +1,116 @@
+package org.mongster;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Properties;
+
+import javax.activation.DataHandler;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mongster.MongsterConfig.ContentExtraction;
+
+/**
+ * Tests extraction of text parts and attachment metadata at each extraction level.
+ */
+public class ContentExtractorTest {
+
+    private static final byte[] PDF = {'%', 'P', 'D', 'F', 0, 1, 2, (byte) 0xff};
+
+    @Test
+    public void testSinglePartText() throws Exception {
+        final Document doc = extract(ContentExtraction.TEXT, false, singlePart("hello", "plain"));
+        Assert.assertEquals("hello", doc.getString(ContentExtractor.BODY));
+        Assert.assertNull(doc.get(ContentExtractor.HTML));
+        final Document html = extract(ContentExtraction.TEXT, false, singlePart("<p>hello</p>", "html"));
+        Assert.assertEquals("<p>hello</p>", html.getString(ContentExtractor.BODY));
+        Assert.assertEquals("<p>hello</p>", html.getString(ContentExtractor.HTML));
+    }
+
+    @Test
+    public void testHeadersOnly() throws Exception {
+        Assert.assertTrue(extract(ContentExtraction.HEADERS_ONLY, false, multipart()).isEmpty());
+        Assert.assertTrue(extract(ContentExtraction.HEADERS_ONLY, false, singlePart("hello", "plain")).isEmpty());
+    }
+
+    @Test
+    public void testMultipartText() throws Exception {
+        final Document doc = extract(ContentExtraction.TEXT, false, multipart());
+        Assert.assertEquals("plain text", doc.getString(ContentExtractor.BODY));
+        Assert.assertEquals("<b>html text</b>", doc.getString(ContentExtractor.HTML));
+        Assert.assertNull(doc.get(ContentExtractor.ATTACHMENTS));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMultipartFull() throws Exception {
+        Document doc = extract(ContentExtraction.FULL, false, multipart());
+        Assert.assertEquals("plain text", doc.getString(ContentExtractor.BODY));
+        List<Document> attachments = (List<Document>) doc.get(ContentExtractor.ATTACHMENTS);
+        Assert.assertEquals(1, attachments.size());
+        Assert.assertEquals("report.pdf", attachments.get(0).getString("filename"));
+        Assert.assertEquals("application/pdf", attachments.get(0).getString("contentType"));
+        Assert.assertEquals("attachment", attachments.get(0).getString("disposition"));
+        Assert.assertNull(attachments.get(0).get("data"));
+
+        doc = extract(ContentExtraction.FULL, true, multipart());
+        attachments = (List<Document>) doc.get(ContentExtractor.ATTACHMENTS);
+        Assert.assertArrayEquals(PDF, ((Binary) attachments.get(0).get("data")).getData());
+    }
+
+    private static Document extract(ContentExtraction extraction, boolean content, byte[] data) {
+        final MongsterConfig config = new MongsterConfig();
+        config.setContentExtraction(extraction);
+        config.setAttachmentContentStored(content);
+        final Document doc = new Document();
+        new ContentExtractor(config).extract(ParsedMessage.parse(data), doc);
+        return doc;
+    }
+
+    private static byte[] singlePart(String text, String subtype) throws Exception {
+        final MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setSubject("barf");
+        message.setText(text, "UTF-8", subtype);
+        return bytes(message);
+    }
+
+    /**
+     * multipart/mixed holding multipart/alternative (plain, html) and a PDF attachment
+     */
+    private static byte[] multipart() throws Exception {
+        final MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setSubject("barf");
+        final MimeMultipart alternative = new MimeMultipart("alternative");
+        final MimeBodyPart plain = new MimeBodyPart();
+        plain.setText("plain text", "UTF-8");
+        alternative.addBodyPart(plain);
+        final MimeBodyPart html = new MimeBodyPart();
+        html.setText("<b>html text</b>", "UTF-8", "html");
+        alternative.addBodyPart(html);
+        final MimeBodyPart text = new MimeBodyPart();
+        text.setContent(alternative);
+        final MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(PDF, "application/pdf")));
+        attachment.setFileName("report.pdf");
+        attachment.setDisposition(MimeBodyPart.ATTACHMENT);
+        final MimeMultipart mixed = new MimeMultipart("mixed");
+        mixed.addBodyPart(text);
+        mixed.addBodyPart(attachment);
+        message.setContent(mixed);
+        return bytes(message);
+    }
+
+    private static byte[] bytes(MimeMessage message) throws Exception {
+        message.saveChanges();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,236 @@
+package org.mongster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mongster.MongsterConfig.EvictionPolicy;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Unit tests for InMemoryMessageStore.  These do not need a MongoDB server.
+ */
+public class InMemoryMessageStoreTest {
+
+    private Wiser wiser;
+    private MongsterConfig config;
+
+    @Before
+    public void setUp() {
+        wiser = new Wiser();
+        config = new MongsterConfig();
+    }
+
+    @Test
+    public void testUnbounded() throws Exception {
+        InMemoryMessageStore store = new InMemoryMessageStore(wiser, config);
+        for (int i = 0; i < 100; i++) {
+            store.add(message(i));
+        }
+        Assert.assertEquals(100, store.size());
+        Assert.assertEquals(0, store.evictedCount());
+        Assert.assertEquals("barf42", store.get(42).getMimeMessage().getSubject());
+    }
+
+    @Test
+    public void testFifoMaxMessages() throws Exception {
+        config.setInMemoryMaxMessages(5);
+        InMemoryMessageStore store = new InMemoryMessageStore(wiser, config);
+        for (int i = 0; i < 12; i++) {
+            store.add(message(i));
+        }
+        Assert.assertEquals(5, store.size());
+        Assert.assertEquals(7, store.evictedCount());
+        Assert.assertEquals("barf7", store.get(0).getMimeMessage().getSubject());
+        Assert.assertEquals("barf11", store.get(4).getMimeMessage().getSubject());
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        final int length = message(0).getData().length;
+        config.setInMemoryMaxBytes(3L * length + length / 2);
+        InMemoryMessageStore store = new InMemoryMessageStore(wiser, config);
+        for (int i = 0; i < 10; i++) {
+            store.add(message(i));
+        }
+        Assert.assertEquals(3, store.size());
+        Assert.assertEquals(3L * length, store.bytes());
+        Assert.assertEquals("barf9", store.get(2).getMimeMessage().getSubject());
+    }
+
+    @Test
+    public void testLru() throws Exception {
+        config.setInMemoryMaxMessages(3);
+        config.setEvictionPolicy(EvictionPolicy.LRU);
+        InMemoryMessageStore store = new InMemoryMessageStore(wiser, config);
+        store.add(message(0));
+        store.add(message(1));
+        store.add(message(2));
+        store.get(0); // barf1 is now least recently used
+        store.add(message(3));
+        Assert.assertEquals(3, store.size());
+        Assert.assertEquals("barf0", store.get(0).getMimeMessage().getSubject());
+        Assert.assertEquals("barf2", store.get(1).getMimeMessage().getSubject());
+        Assert.assertEquals("barf3", store.get(2).getMimeMessage().getSubject());
+    }
+
+    @Test
+    public void testScanDoesNotTouch() throws Exception {
+        config.setInMemoryMaxMessages(3);
+        config.setEvictionPolicy(EvictionPolicy.LRU);
+        InMemoryMessageStore store = new InMemoryMessageStore(wiser, config);
+        for (int i = 0; i < 3; i++) {
+            store.add(message(i));
+        }
+        final List<WiserMessage> found = store.scan(MessageQuery.header("From", "someone@somewhereelse.com"), 2);
+        Assert.assertEquals(2, found.size());
+        Assert.assertEquals("barf1", found.get(1).getMimeMessage().getSubject());
+        // barf0 is still least recently used
+        store.add(message(3));
+        Assert.assertEquals("barf1", store.get(0).getMimeMessage().getSubject());
+    }
+
+    @Test
+    public void testLruOrder() throws Exception {
+        config.setInMemoryMaxMessages(50);
+        config.setEvictionPolicy(EvictionPolicy.LRU);
+        InMemoryMessageStore store = new InMemoryMessageStore(wiser, config);
+        // Receipt order, and least recently used first
+        final List<Integer> held = new ArrayList<Integer>();
+        final List<Integer> recency = new ArrayList<Integer>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            if (held.size() == 50) {
+                held.remove(recency.remove(0));
+            }
+            store.add(message(i));
+            held.add(i);
+            recency.add(i);
+            final int index = random.nextInt(held.size());
+            Assert.assertEquals("barf" + held.get(index), store.get(index).getMimeMessage().getSubject());
+            recency.remove(held.get(index));
+            recency.add(held.get(index));
+        }
+        Assert.assertEquals(50, store.size());
+        Assert.assertEquals(950, store.evictedCount());
+        for (int i = 0; i < held.size(); i++) {
+            Assert.assertEquals("barf" + held.get(i), store.get(i).getMimeMessage().getSubject());
+        }
+        store.tail(10);
+        store.truncate(5);
+        Assert.assertEquals("barf" + held.get(40), store.get(0).getMimeMessage().getSubject());
+        Assert.assertEquals("barf" + held.get(44), store.get(4).getMimeMessage().getSubject());
+    }
+
+    @Test
+    public void testOffHeap() throws Exception {
+        config.setOffHeapPayloads(true);
+        config.setOffHeapSegmentBytes(1024);
+        config.setInMemoryMaxMessages(20);
+        InMemoryMessageStore store = new InMemoryMessageStore(wiser, config);
+        for (int i = 0; i < 50; i++) {
+            store.add(message(i));
+        }
+        Assert.assertEquals(20, store.size());
+        final WiserMessage first = store.get(0);
+        Assert.assertEquals("barf30", first.getMimeMessage().getSubject());
+        Assert.assertEquals("anyone@anywhere.com", first.getEnvelopeReceiver());
+        Assert.assertArrayEquals(message(30).getData(), first.getData());
+    }
+
+    @Test
+    public void testTruncateAndTail() throws Exception {
+        InMemoryMessageStore store = new InMemoryMessageStore(wiser, config);
+        for (int i = 0; i < 10; i++) {
+            store.add(message(i));
+        }
+        store.truncate(8);
+        store.tail(5);
+        Assert.assertEquals(5, store.size());
+        Assert.assertEquals("barf3", store.get(0).getMimeMessage().getSubject());
+        Assert.assertEquals("barf7", store.get(4).getMimeMessage().getSubject());
+        store.clear();
+        Assert.assertEquals(0, store.size());
+        Assert.assertEquals(0, store.bytes());
+    }
+
+    @Test
+    public void testTrim() throws Exception {
+        final int length = message(0).getData().length;
+        InMemoryMessageStore store = new InMemoryMessageStore(wiser, config);
+        for (int i = 0; i < 10; i++) {
+            store.add(message(i));
+        }
+        Assert.assertEquals(2, store.trim(Long.MIN_VALUE, 8, 0, 1000));
+        Assert.assertEquals(3, store.trim(Long.MIN_VALUE, 0, 5L * length, 1000));
+        Assert.assertEquals(5, store.size());
+        Assert.assertEquals("barf5", store.get(0).getMimeMessage().getSubject());
+        // At most limit messages per call
+        Assert.assertEquals(2, store.trim(Long.MAX_VALUE, 0, 0, 2));
+        Assert.assertEquals(3, store.trim(Long.MAX_VALUE, 0, 0, 1000));
+        Assert.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testSharedPayloads() throws Exception {
+        config.setPayloadDeduplication(true);
+        config.setInMemoryMaxMessages(4);
+        final int length = message(0).getData().length;
+        for (boolean offHeap : new boolean[] {false, true}) {
+            config.setOffHeapPayloads(offHeap);
+            InMemoryMessageStore store = new InMemoryMessageStore(wiser, config);
+            for (int i = 0; i < 3; i++) {
+                store.add(message(0));
+            }
+            store.add(message(1));
+            Assert.assertEquals(4, store.size());
+            Assert.assertEquals(2L * length, store.bytes());
+            if (!offHeap) {
+                Assert.assertSame(store.get(0).getData(), store.get(2).getData());
+            }
+            // Evicting two of the three copies keeps the shared payload
+            store.add(message(2));
+            store.add(message(3));
+            Assert.assertEquals(4L * length, store.bytes());
+            Assert.assertEquals("barf0", store.get(0).getMimeMessage().getSubject());
+            store.tail(3);
+            Assert.assertEquals(3L * length, store.bytes());
+            Assert.assertEquals("barf1", store.get(0).getMimeMessage().getSubject());
+            store.clear();
+            Assert.assertEquals(0, store.bytes());
+        }
+    }
+
+    @Test
+    public void testIndexedQueries() throws Exception {
+        config.setInMemoryMaxMessages(15);
+        InMemoryMessageStore store = new InMemoryMessageStore(wiser, config);
+        for (int i = 0; i < 20; i++) {
+            store.add(message(i));
+        }
+        Assert.assertEquals(15, store.count(MessageQuery.recipient("anyone@anywhere.com")));
+        Assert.assertEquals(0, store.count(MessageQuery.recipient("nobody@anywhere.com")));
+        Assert.assertEquals(0, store.count(MessageQuery.subjectPrefix("barf4"))); // evicted
+        Assert.assertEquals(10, store.count(MessageQuery.subjectPrefix("barf1")));
+        Assert.assertEquals("barf10", store.find(MessageQuery.subjectPrefix("barf1")).get(0).getMimeMessage().getSubject());
+        Assert.assertEquals(1, store.count(MessageQuery.header("subject", "barf12")));
+        Assert.assertEquals(15, store.count(MessageQuery.header("From", "someone@somewhereelse.com")));
+        store.tail(2);
+        Assert.assertEquals(2, store.count(MessageQuery.sender("someone@somewhereelse.com")));
+        store.clear();
+        Assert.assertEquals(0, store.count(MessageQuery.subjectPrefix("")));
+    }
+
+    private WiserMessage message(int i) {
+        final String data = "From: someone@somewhereelse.com\r\n" +
+            "To: anyone@anywhere.com\r\n" +
+            "Subject: barf" + i + "\r\n\r\n" +
+            "text" + i + "\r\n";
+        return Mongster.newWiserMessage(wiser, "someone@somewhereelse.com",
+                                       "anyone@anywhere.com", data.getBytes());
+    }
+}
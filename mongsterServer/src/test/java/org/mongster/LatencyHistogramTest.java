@@ -0,0 +1,38 @@
+package org.mongster;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for LatencyHistogram.  These do not need a MongoDB server.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        long previous = -1;
+        for (long value = 0; value < 1L << 40; value = value * 3 / 2 + 1) {
+            final int bucket = LatencyHistogram.bucket(value);
+            Assert.assertTrue(value <= LatencyHistogram.highestValue(bucket));
+            Assert.assertTrue(bucket == 0 || value > LatencyHistogram.highestValue(bucket - 1));
+            Assert.assertTrue(bucket >= previous);
+            previous = bucket;
+        }
+        Assert.assertTrue(LatencyHistogram.bucket(Long.MAX_VALUE) >= 0);
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.snapshot().getP99Micros());
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        final LatencySnapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(500, snapshot.getMeanMicros());
+        Assert.assertEquals(500, snapshot.getP50Micros(), 500 / 8);
+        Assert.assertEquals(990, snapshot.getP99Micros(), 990 / 8);
+        Assert.assertEquals(1000, snapshot.getMaxMicros());
+    }
+}
@@ -0,0 +1,114 @@
+package org.mongster;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mongster.Mongster.PersistedMessageList;
+import org.mongster.MongsterConfig.ContentExtraction;
+import org.mongster.MongsterConfig.StorageBackend;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Unit tests for MessageFeed ordering.  These do not need a MongoDB server.
+ */
+public class MessageFeedTest {
+
+    private final Wiser wiser = new Wiser();
+
+    @Test
+    public void testOrdering() throws Exception {
+        final MessageFeed feed = feed();
+        final MessageSubscription subscription = feed.subscribe(MessageListing.first(), Long.MAX_VALUE, 100);
+        feed.messageAdded(message("one"), 1);
+        // Held back until 0 arrives
+        Assert.assertNull(subscription.poll(50, TimeUnit.MILLISECONDS));
+        feed.messageAdded(message("zero"), 0);
+        assertNext(subscription, 0, "zero");
+        assertNext(subscription, 1, "one");
+        // Skipped numbers do not hold later messages back
+        feed.skip(2);
+        feed.messageAdded(message("three"), 3);
+        assertNext(subscription, 3, "three");
+        // Missing numbers are given up on
+        feed.messageAdded(message("five"), 5);
+        final long start = System.nanoTime();
+        assertNext(subscription, 5, "five");
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(MessageFeed.GAP_MILLIS / 2));
+        feed.messageAdded(message("four"), 4);
+        assertNext(subscription, 4, "four");
+        feed.reset(0);
+        feed.messageAdded(message("again"), 0);
+        assertNext(subscription, 0, "again");
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        final MessageFeed feed = feed();
+        final MessageSubscription subscription = feed.subscribe(
+            MessageListing.fromQueryString("subject=b&fields=subject,body&after=100"), Long.MAX_VALUE, 100);
+        feed.messageAdded(message("a"), 0);
+        feed.messageAdded(message("b"), 1);
+        final Document doc = subscription.poll(1, TimeUnit.SECONDS);
+        Assert.assertEquals(Long.valueOf(1), doc.getLong("sequenceNumber"));
+        Assert.assertEquals("text b", doc.getString("body").trim());
+        Assert.assertFalse(doc.containsKey("from"));
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        final MessageFeed feed = feed();
+        final MessageSubscription subscription = feed.subscribe(MessageListing.first(), Long.MAX_VALUE, 1);
+        feed.messageAdded(message("zero"), 0);
+        feed.messageAdded(message("one"), 1);
+        try {
+            subscription.poll(1, TimeUnit.SECONDS);
+            Assert.fail("Expecting IllegalStateException for dropped subscriber");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReadBack() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setStorageBackend(StorageBackend.MEMORY);
+        final PersistedMessageList list = new PersistedMessageList(wiser, config);
+        for (int i = 0; i < 5; i++) {
+            list.add(message("stored" + i));
+        }
+        final MessageSubscription subscription = list.subscribe(MessageListing.first().limit(2), 1);
+        list.add(message("new"));
+        for (int i = 2; i < 5; i++) {
+            assertNext(subscription, i, "stored" + i);
+        }
+        assertNext(subscription, 5, "new");
+        subscription.close();
+        Assert.assertNull(subscription.poll(1, TimeUnit.SECONDS));
+    }
+
+    private MessageFeed feed() {
+        final MongsterConfig config = new MongsterConfig();
+        config.setStorageBackend(StorageBackend.MEMORY);
+        final MessageFeed feed = new MessageFeed(new PersistedMessageList(wiser, config), ContentExtraction.TEXT);
+        feed.reset(0);
+        return feed;
+    }
+
+    private static void assertNext(MessageSubscription subscription, long seq, String subject)
+        throws InterruptedException {
+        final Document doc = subscription.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(doc);
+        Assert.assertEquals(Long.valueOf(seq), doc.getLong("sequenceNumber"));
+        Assert.assertEquals(subject, doc.getString("subject"));
+    }
+
+    private WiserMessage message(String subject) throws Exception {
+        final String data = "From: someone@somewhereelse.com\r\nSubject: " + subject +
+            "\r\n\r\ntext " + subject + "\r\n";
+        return Mongster.newWiserMessage(wiser, "someone@somewhereelse.com", "anyone@anywhere.com",
+                                        data.getBytes("ISO-8859-1"));
+    }
+}
@@ -0,0 +1,229 @@
+package org.mongster;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Tests replay, retry and recovery of the write-ahead journal against a heap
+ * backend that can be made to fail.
+ */
+public class MessageJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Wiser wiser;
+    private MongsterConfig config;
+    private FlakyStore backend;
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Before
+    public void setUp() throws Exception {
+        wiser = new Wiser();
+        config = new MongsterConfig();
+        config.setJournalDirectory(folder.getRoot().getPath());
+        config.setJournalSegmentBytes(4096);
+        config.setWriteBatchDelayMillis(5);
+        backend = new FlakyStore();
+    }
+
+    @Test
+    public void testReplayAndRetry() throws Exception {
+        final MessageJournal journal = open();
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(i, journal.append(message(i), sequence));
+        }
+        journal.flush();
+        Assert.assertEquals(50, backend.count());
+        Assert.assertEquals(0, journal.pending());
+
+        backend.down = true;
+        for (int i = 50; i < 60; i++) {
+            journal.append(message(i), sequence);
+        }
+        journal.flush(); // returns while the backend is failing
+        Assert.assertEquals(50, backend.count());
+        backend.down = false;
+        waitForReplay(journal);
+        Assert.assertEquals(60, backend.count());
+        Assert.assertEquals("barf59", backend.find(MessageQuery.subjectPrefix("barf59"), 1)
+                            .get(0).getMimeMessage().getSubject());
+        // Replayed segments are deleted
+        Assert.assertTrue(segments().length <= 2);
+        journal.shutdown();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        MessageJournal journal = open();
+        for (int i = 0; i < 5; i++) {
+            journal.append(message(i), sequence);
+        }
+        journal.flush();
+        backend.down = true;
+        for (int i = 5; i < 8; i++) {
+            journal.append(message(i), sequence);
+        }
+        journal.shutdown();
+        Assert.assertEquals(5, backend.count());
+
+        backend.down = false;
+        journal = open();
+        Assert.assertEquals(3, journal.recoveredPending());
+        Assert.assertEquals(7, journal.lastSequenceNumber());
+        waitForReplay(journal);
+        Assert.assertEquals(8, backend.count());
+        journal.shutdown();
+
+        // Lose the checkpoint - records already in the backend are skipped
+        Assert.assertTrue(new File(folder.getRoot(), MessageJournal.CHECKPOINT_FILE).delete());
+        journal = open();
+        Assert.assertEquals(0, journal.recoveredPending());
+        waitForReplay(journal);
+        Assert.assertEquals(8, backend.count());
+        journal.shutdown();
+    }
+
+    @Test
+    public void testTornWrite() throws Exception {
+        MessageJournal journal = open();
+        backend.down = true;
+        journal.append(message(0), sequence);
+        journal.append(message(1), sequence);
+        journal.shutdown();
+        // Corrupt the raw bytes of the second record
+        final File segment = segments()[0];
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        long offset = 0;
+        offset += 8 + file.readInt();
+        file.seek(offset + 40);
+        file.write(new byte[] {1, 2, 3});
+        file.close();
+
+        backend.down = false;
+        journal = open();
+        Assert.assertEquals(1, journal.recoveredPending());
+        Assert.assertEquals(0, journal.lastSequenceNumber());
+        journal.append(message(1), new AtomicLong(1));
+        waitForReplay(journal);
+        Assert.assertEquals(2, backend.count());
+        journal.shutdown();
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        final MessageJournal journal = open();
+        backend.down = true;
+        for (int i = 0; i < 5; i++) {
+            journal.append(message(i), sequence);
+        }
+        journal.clear();
+        Assert.assertEquals(0, journal.pending());
+        backend.down = false;
+        journal.append(message(5), sequence);
+        waitForReplay(journal);
+        Assert.assertEquals(1, backend.count());
+        journal.shutdown();
+    }
+
+    @Test
+    public void testOpenWhileDown() throws Exception {
+        MessageJournal journal = open();
+        backend.down = true;
+        for (int i = 0; i < 3; i++) {
+            journal.append(message(i), sequence);
+        }
+        journal.shutdown();
+        // Opening does not read the backend; the replay floor is set later
+        journal = new MessageJournal(wiser, backend, config, null);
+        Assert.assertEquals(3, journal.recoveredPending());
+        backend.down = false;
+        journal.setReplayFloor(backend.lastSequenceNumber());
+        journal.start();
+        waitForReplay(journal);
+        Assert.assertEquals(3, backend.count());
+        journal.shutdown();
+    }
+
+    @Test
+    public void testDrain() throws Exception {
+        final MessageJournal journal = open();
+        backend.down = true;
+        for (int i = 0; i < 3; i++) {
+            journal.append(message(i), sequence);
+        }
+        journal.flush();
+        Assert.assertEquals(3, journal.pending());
+        backend.down = false;
+        // Waits through the replayer's retry delay, unlike flush
+        Assert.assertTrue(journal.drain());
+        Assert.assertEquals(3, backend.count());
+        journal.shutdown();
+    }
+
+    private MessageJournal open() {
+        final MessageJournal journal = new MessageJournal(wiser, backend, config, null);
+        journal.setReplayFloor(backend.lastSequenceNumber());
+        journal.start();
+        return journal;
+    }
+
+    private static void waitForReplay(MessageJournal journal) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (journal.pending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, journal.pending());
+    }
+
+    private File[] segments() {
+        return folder.getRoot().listFiles(new java.io.FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(MessageJournal.SEGMENT_PREFIX);
+            }
+        });
+    }
+
+    private WiserMessage message(int i) {
+        final String data = "From: someone@somewhereelse.com\r\n" +
+            "To: anyone@anywhere.com\r\n" +
+            "Subject: barf" + i + "\r\n\r\n" +
+            "text" + i + "\r\n";
+        return Mongster.newWiserMessage(wiser, "someone@somewhereelse.com",
+                                       "anyone@anywhere.com", data.getBytes());
+    }
+
+    /**
+     * Heap store whose writes throw while {@code down} is true.
+     */
+    private static class FlakyStore extends HeapMessageStore {
+        volatile boolean down = false;
+
+        @Override
+        public void addAll(List<ReceivedMessage> batch) {
+            if (down) {
+                throw new IllegalStateException("backend down");
+            }
+            super.addAll(batch);
+        }
+
+        @Override
+        public long lastSequenceNumber() {
+            if (down) {
+                throw new IllegalStateException("backend down");
+            }
+            return super.lastSequenceNumber();
+        }
+    }
+}
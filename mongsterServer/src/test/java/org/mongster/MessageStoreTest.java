@@ -0,0 +1,220 @@
+package org.mongster;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mongster.MongsterConfig.StorageBackend;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Unit tests for the heap and file MessageStore backends.  These do not need
+ * a MongoDB server.
+ */
+public class MessageStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Wiser wiser;
+    private MongsterConfig config;
+
+    @Before
+    public void setUp() throws Exception {
+        wiser = new Wiser();
+        config = new MongsterConfig();
+        config.setFileStoreDirectory(folder.getRoot().getPath());
+    }
+
+    @Test
+    public void testHeapStore() throws Exception {
+        checkStore(new HeapMessageStore());
+    }
+
+    @Test
+    public void testFileStore() throws Exception {
+        checkStore(new FileMessageStore(wiser, config));
+    }
+
+    private void checkStore(MessageStore store) throws Exception {
+        for (int i = 0; i < 10; i++) {
+            store.add(message(i), ParsedMessage.parse(message(i).getData()), i);
+        }
+        // Batches from concurrent writers may arrive out of order
+        store.addAll(Arrays.asList(received(11), received(10)));
+        Assert.assertEquals(12, store.count());
+        Assert.assertEquals(11, store.lastSequenceNumber());
+        Assert.assertEquals(Long.valueOf(10), store.sequenceNumberAt(10));
+        Assert.assertNull(store.sequenceNumberAt(12));
+        Assert.assertEquals(3, store.count(MessageQuery.subjectPrefix("barf1")));
+        final List<WiserMessage> found = store.find(MessageQuery.header("Subject", "barf7"), 10);
+        Assert.assertEquals(1, found.size());
+        Assert.assertEquals("barf7", found.get(0).getMimeMessage().getSubject());
+        Assert.assertEquals("anyone@anywhere.com", found.get(0).getEnvelopeReceiver());
+        Assert.assertEquals(2, store.find(MessageQuery.sender("someone@somewhereelse.com"), 2).size());
+
+        MessagePage page = store.list(MessageListing.first().limit(5));
+        Assert.assertEquals(5, page.getMessages().size());
+        Assert.assertEquals("barf0", page.getMessages().get(0).getString("subject"));
+        Assert.assertEquals(Long.valueOf(4), page.getNextCursor());
+        page = store.list(MessageListing.first().limit(5).after(page.getNextCursor()));
+        Assert.assertEquals(Long.valueOf(9), page.getNextCursor());
+        page = store.list(MessageListing.first().limit(5).after(page.getNextCursor()));
+        Assert.assertEquals(2, page.getMessages().size());
+        Assert.assertNull(page.getNextCursor());
+        page = store.list(MessageListing.fromQueryString("?order=desc&subject=barf1&fields=subject"));
+        Assert.assertEquals(3, page.getMessages().size());
+        Assert.assertEquals("barf11", page.getMessages().get(0).getString("subject"));
+        Assert.assertEquals(2, page.getMessages().get(0).size());
+
+        store.removeBefore(4);
+        Assert.assertEquals(8, store.count());
+        Assert.assertEquals(4, store.baseSequenceNumber());
+        Assert.assertEquals(Long.valueOf(4), store.sequenceNumberAt(0));
+        store.removeFrom(9);
+        Assert.assertEquals(5, store.count());
+        Assert.assertEquals(8, store.lastSequenceNumber());
+        Assert.assertEquals(0, store.count(MessageQuery.subjectPrefix("barf1")));
+
+        store.clear();
+        Assert.assertEquals(0, store.count());
+        Assert.assertEquals(-1, store.lastSequenceNumber());
+        Assert.assertEquals(0, store.baseSequenceNumber());
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        config.setTextSearchEnabled(true);
+        checkSearch(new HeapMessageStore(config));
+        checkSearch(new FileMessageStore(wiser, config));
+    }
+
+    private void checkSearch(MessageStore store) throws Exception {
+        for (int i = 0; i < 12; i++) {
+            store.add(message(i), ParsedMessage.parse(message(i).getData()), i);
+        }
+        List<WiserMessage> found = store.search("barf3 text5", 10);
+        Assert.assertEquals(2, found.size());
+        Assert.assertEquals("barf3", found.get(0).getMimeMessage().getSubject());
+        Assert.assertEquals("barf5", found.get(1).getMimeMessage().getSubject());
+        store.removeBefore(4);
+        found = store.search("barf3 text5", 10);
+        Assert.assertEquals(1, found.size());
+        Assert.assertEquals("barf5", found.get(0).getMimeMessage().getSubject());
+        store.clear();
+        Assert.assertTrue(store.search("barf5", 10).isEmpty());
+    }
+
+    @Test
+    public void testFileStoreReopen() throws Exception {
+        config.setFileStoreSegmentBytes(1024);
+        FileMessageStore store = new FileMessageStore(wiser, config);
+        for (int i = 0; i < 5000; i++) {
+            store.add(message(i), null, i);
+        }
+        store.removeBefore(1000);
+        store.removeFrom(4000);
+        store = new FileMessageStore(wiser, config);
+        Assert.assertEquals(3000, store.count());
+        Assert.assertEquals(1000, store.baseSequenceNumber());
+        Assert.assertEquals(3999, store.lastSequenceNumber());
+        Assert.assertEquals("barf2500",
+            store.find(MessageQuery.header("Subject", "barf2500"), 1).get(0).getMimeMessage().getSubject());
+        // Segments holding only dropped messages are deleted
+        final String[] segments = folder.getRoot().list();
+        Assert.assertTrue(segments.length < 5000 / 4);
+        store.clear();
+        Assert.assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testFileStoreAppendAfterRemoveFrom() throws Exception {
+        config.setFileStoreSegmentBytes(1024);
+        FileMessageStore store = new FileMessageStore(wiser, config);
+        for (int i = 0; i < 100; i++) {
+            store.add(message(i), null, i);
+        }
+        // Numbering restarts below the names of segments still on disk
+        store.removeFrom(52);
+        for (int i = 52; i < 150; i++) {
+            store.add(message(i), null, i);
+        }
+        for (File segment : folder.getRoot().listFiles()) {
+            if (segment.getName().startsWith(FileMessageStore.SEGMENT_PREFIX)) {
+                Assert.assertTrue(segment.getName(), segment.length() <= 1024);
+            }
+        }
+        store = new FileMessageStore(wiser, config);
+        Assert.assertEquals(150, store.count());
+        Assert.assertEquals(149, store.lastSequenceNumber());
+        for (int i : new int[] {51, 52, 99, 149}) {
+            Assert.assertEquals("barf" + i,
+                store.find(MessageQuery.header("Subject", "barf" + i), 1).get(0).getMimeMessage().getSubject());
+        }
+    }
+
+    @Test
+    public void testMongsterWithFileStore() throws Exception {
+        config.setStorageBackend(StorageBackend.FILE);
+        config.setInMemory(false);
+        config.setSmtpPort(MongsterTest.PORT);
+        Mongster mongster = new Mongster(config);
+        mongster.start();
+        try {
+            mongster.clear();
+            final Properties props = new Properties();
+            props.setProperty("mail.smtp.host", "localhost");
+            props.setProperty("mail.smtp.port", Integer.toString(MongsterTest.PORT));
+            final Session session = Session.getInstance(props);
+            for (int i = 0; i < 3; i++) {
+                final MimeMessage message = new MimeMessage(session);
+                message.addRecipient(Message.RecipientType.TO, new InternetAddress("anyone@anywhere.com"));
+                message.setFrom(new InternetAddress("someone@somewhereelse.com"));
+                message.setSubject("barf" + i);
+                message.setText("text" + i);
+                Transport.send(message);
+            }
+            Assert.assertTrue(mongster.awaitMessages(3, 10, TimeUnit.SECONDS));
+            mongster.tail(2);
+            Assert.assertEquals(1, mongster.getBaseSequenceNumber());
+            Assert.assertEquals(1, mongster.findBySubjectPrefix("barf2").size());
+            Assert.assertEquals(0, mongster.getCountDrift());
+        } finally {
+            mongster.stop();
+        }
+        // Messages survive a restart
+        mongster = new Mongster(config);
+        Assert.assertEquals(2, mongster.countMatching(MessageQuery.recipient("anyone@anywhere.com")));
+        Assert.assertEquals(1, mongster.getBaseSequenceNumber());
+        Assert.assertTrue(new File(folder.getRoot(), FileMessageStore.INDEX_FILE).exists());
+    }
+
+    private ReceivedMessage received(int i) {
+        final WiserMessage message = message(i);
+        return new ReceivedMessage(message, ParsedMessage.parse(message.getData()), i);
+    }
+
+    private WiserMessage message(int i) {
+        final String data = "From: someone@somewhereelse.com\r\n" +
+            "To: anyone@anywhere.com\r\n" +
+            "Subject: barf" + i + "\r\n\r\n" +
+            "text" + i + "\r\n";
+        return Mongster.newWiserMessage(wiser, "someone@somewhereelse.com",
+                                       "anyone@anywhere.com", data.getBytes());
+    }
+}
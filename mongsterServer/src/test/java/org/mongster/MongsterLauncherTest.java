@@ -0,0 +1,223 @@
+package org.mongster;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mongster.MongsterConfig.StorageBackend;
+import org.subethamail.smtp.RejectException;
+
+/**
+ * Unit tests for MongsterLauncher, HealthServer and FeedServer.  These do not need a MongoDB server.
+ */
+public class MongsterLauncherTest {
+
+    public static final int PORT = 2569;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testConfigure() throws Exception {
+        final Map<String, String> settings = new LinkedHashMap<String, String>();
+        settings.put("smtpPort", "2525");
+        settings.put("storageBackend", "memory");
+        settings.put("asyncWrites", "true");
+        settings.put("retentionMaxBytes", "1000");
+        settings.put("smtpListeners", "localhost:2526, 2527");
+        settings.put("mongoUri", "mongodb://example.com:27018");
+        final MongsterConfig config = MongsterLauncher.configure(settings);
+        Assert.assertEquals(2525, config.getSmtpPort());
+        Assert.assertEquals(StorageBackend.MEMORY, config.getStorageBackend());
+        Assert.assertTrue(config.isAsyncWrites());
+        Assert.assertEquals(1000, config.getRetentionMaxBytes());
+        Assert.assertEquals(Arrays.asList("localhost:2526", "2527"), config.getSmtpListeners());
+        Assert.assertEquals("mongodb://example.com:27018", config.getMongoUri());
+    }
+
+    @Test
+    public void testInvalidSettings() throws Exception {
+        final Map<String, String> settings = new HashMap<String, String>();
+        settings.put("smtpPrt", "2525");
+        try {
+            MongsterLauncher.configure(settings);
+            Assert.fail("Expecting IllegalArgumentException for unknown setting");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        settings.clear();
+        settings.put("smtpPort", "twenty-five");
+        try {
+            MongsterLauncher.configure(settings);
+            Assert.fail("Expecting IllegalArgumentException for bad number");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPrecedence() throws Exception {
+        final File file = folder.newFile("mongster.properties");
+        final Properties props = new Properties();
+        props.setProperty("smtpPort", "1");
+        props.setProperty("mongoDatabase", "fromFile");
+        props.setProperty("mongoCollection", "fromFile");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            props.store(out, null);
+        } finally {
+            out.close();
+        }
+        final Map<String, String> env = new HashMap<String, String>();
+        env.put("MONGSTER_CONFIG", file.getPath());
+        env.put("MONGSTER_SMTP_PORT", "2");
+        env.put("MONGSTER_MONGO_COLLECTION", "fromEnv");
+        env.put("PATH", "/bin");
+        final MongsterConfig config = MongsterLauncher.configure(
+            MongsterLauncher.settings(new String[] {"--smtpPort", "3", "--inMemory=false"}, env));
+        Assert.assertEquals(3, config.getSmtpPort());
+        Assert.assertEquals("fromFile", config.getMongoDatabase());
+        Assert.assertEquals("fromEnv", config.getMongoCollection());
+        Assert.assertFalse(config.isInMemory());
+        Assert.assertEquals("MONGSTER_SMTP_MAX_CONNECTIONS", MongsterLauncher.envName("smtpMaxConnections"));
+    }
+
+    @Test
+    public void testHealth() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setStorageBackend(StorageBackend.MEMORY);
+        config.setSmtpPort(PORT);
+        final Mongster mongster = new Mongster(config);
+        final HealthServer health = new HealthServer(mongster, 0);
+        try {
+            Assert.assertEquals(503, status(health, "/health"));
+            Assert.assertEquals(503, status(health, "/ready"));
+            mongster.start();
+            Assert.assertEquals(200, status(health, "/health"));
+            Assert.assertEquals(200, status(health, "/ready"));
+            mongster.stop();
+            Assert.assertEquals(503, status(health, "/health"));
+        } finally {
+            health.stop();
+        }
+    }
+
+    @Test
+    public void testStartWithoutMongo() throws Exception {
+        startWithoutMongo();
+        startWithoutMongo("--journalEnabled", "true", "--journalDirectory", folder.newFolder().getPath());
+    }
+
+    private static void startWithoutMongo(String... settings) throws Exception {
+        final String[] args = Arrays.copyOf(new String[] {
+            "--smtpPort", Integer.toString(PORT),
+            "--mongoUri", "mongodb://localhost:1/?serverSelectionTimeoutMS=200&connectTimeoutMS=200"},
+            4 + settings.length);
+        System.arraycopy(settings, 0, args, 4, settings.length);
+        final long start = System.currentTimeMillis();
+        final Mongster mongster = MongsterLauncher.start(args);
+        try {
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+            Assert.assertTrue(mongster.isRunning());
+            Assert.assertFalse(mongster.isReady());
+            try {
+                deliver(mongster, "held");
+                Assert.fail("Expecting RejectException until the stored sequence is restored");
+            } catch (RejectException ex) {
+                Assert.assertEquals(451, ex.getCode());
+            }
+        } finally {
+            mongster.stop();
+        }
+    }
+
+    @Test
+    public void testFeed() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setStorageBackend(StorageBackend.MEMORY);
+        config.setSmtpPort(PORT);
+        final Mongster mongster = new Mongster(config);
+        mongster.start();
+        final FeedServer feed = new FeedServer(mongster, 0);
+        try {
+            deliver(mongster, "first");
+            deliver(mongster, "second");
+            final HttpURLConnection bad = (HttpURLConnection)
+                new URL("http://localhost:" + feed.getPort() + "/feed?since=x").openConnection();
+            Assert.assertEquals(400, bad.getResponseCode());
+            bad.disconnect();
+            final HttpURLConnection connection = (HttpURLConnection)
+                new URL("http://localhost:" + feed.getPort() + "/feed?since=0&fields=subject").openConnection();
+            connection.setRequestProperty("Last-Event-ID", "-1");
+            connection.setReadTimeout(10000);
+            try {
+                Assert.assertEquals(200, connection.getResponseCode());
+                Assert.assertTrue(connection.getContentType().startsWith("text/event-stream"));
+                final BufferedReader in = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+                // Last-Event-ID wins over since
+                assertEvent(in, 0, "first");
+                assertEvent(in, 1, "second");
+                deliver(mongster, "third");
+                assertEvent(in, 2, "third");
+                mongster.clear();
+                deliver(mongster, "fourth");
+                Assert.assertEquals("event: reset", nextLine(in));
+                Assert.assertEquals("data: {}", in.readLine());
+                assertEvent(in, 0, "fourth");
+            } finally {
+                connection.disconnect();
+            }
+        } finally {
+            feed.stop();
+            mongster.stop();
+        }
+    }
+
+    private static void deliver(Mongster mongster, String subject) throws Exception {
+        mongster.deliver("someone@somewhereelse.com", "anyone@anywhere.com", new ByteArrayInputStream(
+            ("Subject: " + subject + "\r\n\r\nbody\r\n").getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static void assertEvent(BufferedReader in, long id, String subject) throws Exception {
+        Assert.assertEquals("id: " + id, nextLine(in));
+        Assert.assertEquals("data: {\"subject\": \"" + subject + "\", \"sequenceNumber\": " + id + "}",
+                            in.readLine());
+    }
+
+    /**
+     * @return next line that is not blank or a comment
+     */
+    private static String nextLine(BufferedReader in) throws Exception {
+        String line = in.readLine();
+        while (line != null && (line.isEmpty() || line.startsWith(":"))) {
+            line = in.readLine();
+        }
+        return line;
+    }
+
+    private static int status(HealthServer health, String path) throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection)
+            new URL("http://localhost:" + health.getPort() + path).openConnection();
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
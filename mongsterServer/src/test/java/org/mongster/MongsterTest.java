@@ -3,35 +3,55 @@ package org.mongster;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import javax.activation.DataHandler;
 import javax.mail.Message;
 import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
 import javax.mail.util.ByteArrayDataSource;
+import javax.management.ObjectName;
 
 import org.apache.commons.codec.binary.Base64;
 import org.bson.Document;
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.mongster.Mongster;
+import org.mongster.Mongster.PersistedMessageList;
+import org.mongster.MongsterConfig.BackpressurePolicy;
+import org.mongster.MongsterConfig.NamespaceRouting;
+import org.mongster.MongsterConfig.StorageBackend;
+import org.subethamail.smtp.RejectException;
 import org.subethamail.wiser.WiserMessage;
 
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoQueryException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.WriteConcern;
 
 import static com.mongodb.client.model.Filters.*;
 import static com.mongodb.client.model.Sorts.*;
 
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
 
 /**
  * Unit tests for Mongster.  Most test cases are adapted from Wiser unit tests.
@@ -93,7 +113,7 @@ public class MongsterTest {
         String[] receivedHeaders = mongster.getMessages().get(0).getMimeMessage().getHeader("Received");
         Assert.assertEquals(1, receivedHeaders.length);
         MongoCollection<Document> coll = db.getCollection(MONGO_COLLECTION);
-        Assert.assertEquals(1,coll.count());
+        Assert.assertEquals(1,coll.countDocuments());
         Document doc = coll.find().first();
         Assert.assertTrue(doc.getString("received").indexOf("from") >= 0);
         Assert.assertTrue(doc.getString("from").indexOf("someone@somewhereelse.com") >= 0);
@@ -242,11 +262,11 @@ public class MongsterTest {
         sendMessageSequence(10);
         Assert.assertEquals(10, mongster.getMessages().size());
         MongoCollection<Document> coll = db.getCollection(MONGO_COLLECTION);
-        Assert.assertEquals(10,coll.count());
+        Assert.assertEquals(10,coll.countDocuments());
         mongster.clear();
         Assert.assertEquals(0, mongster.getMessages().size());
         coll = db.getCollection(MONGO_COLLECTION);
-        Assert.assertEquals(0,coll.count());
+        Assert.assertEquals(0,coll.countDocuments());
     }
     
     @Test
@@ -254,13 +274,13 @@ public class MongsterTest {
         sendMessageSequence(10);
         Assert.assertEquals(10, mongster.getMessages().size());
         MongoCollection<Document> coll = db.getCollection(MONGO_COLLECTION);
-        Assert.assertEquals(10,coll.count());
+        Assert.assertEquals(10,coll.countDocuments());
         mongster.truncate(5);
         final List<WiserMessage> messageList = mongster.getMessages();
         Assert.assertEquals(5, messageList.size());
         Assert.assertTrue(messageList.get(4).getMimeMessage().getSubject().equals("barf4"));
         coll = db.getCollection(MONGO_COLLECTION);
-        Assert.assertEquals(5,coll.count());
+        Assert.assertEquals(5,coll.countDocuments());
         Document doc  = coll.find(exists("sequenceNumber")).sort(descending("sequenceNumber")).first();
         Assert.assertTrue(doc.getString("subject").equals("barf4"));
     }
@@ -274,18 +294,40 @@ public class MongsterTest {
         Assert.assertEquals(5, messageList.size());
         Assert.assertTrue(messageList.get(4).getMimeMessage().getSubject().equals("barf9"));
         coll = db.getCollection(MONGO_COLLECTION);
-        Assert.assertEquals(5,coll.count());
+        Assert.assertEquals(5,coll.countDocuments());
         Document doc  = coll.find(exists("sequenceNumber")).sort(descending("sequenceNumber")).first();
         Assert.assertTrue(doc.getString("subject").equals("barf9"));
         long val = doc.getLong("sequenceNumber");
-        Assert.assertEquals(4, val );
+        Assert.assertEquals(9, val );
+        Assert.assertEquals(5, mongster.getBaseSequenceNumber());
+        Assert.assertEquals(4, val - mongster.getBaseSequenceNumber());
+        // Survivors are not renumbered and new messages continue the sequence
+        Assert.assertEquals(5, (long) coll.find(eq("subject", "barf5")).first().getLong("sequenceNumber"));
+        sendMessageSequence(1);
+        doc  = coll.find(exists("sequenceNumber")).sort(descending("sequenceNumber")).first();
+        Assert.assertEquals(10, (long) doc.getLong("sequenceNumber"));
+        mongster.tail(2);
+        Assert.assertEquals(2, coll.countDocuments());
+        Assert.assertEquals(9, mongster.getBaseSequenceNumber());
+    }
+    
+    @Test
+    public void testTruncateThenReceive() throws Exception {
+        sendMessageSequence(10);
+        mongster.truncate(5);
+        sendMessageSequence(1);
+        MongoCollection<Document> coll = db.getCollection(MONGO_COLLECTION);
+        Assert.assertEquals(6, coll.countDocuments());
+        Document doc  = coll.find(exists("sequenceNumber")).sort(descending("sequenceNumber")).first();
+        Assert.assertEquals(5, (long) doc.getLong("sequenceNumber"));
+        Assert.assertEquals("barf0", doc.getString("subject"));
     }
     
     @Test
     public void testDecodeMongoMimeMessage() throws Exception {
         sendMessageSequence(1);
         MongoCollection<Document> coll = db.getCollection(MONGO_COLLECTION);
-        Assert.assertEquals(1,coll.count());
+        Assert.assertEquals(1,coll.countDocuments());
         Document doc  = coll.find().first();
         Base64 codec = new Base64();
         MimeMessage mimeMessage = new MimeMessage(Session.getDefaultInstance(new Properties()),
@@ -296,6 +338,763 @@ public class MongsterTest {
         Assert.assertTrue(mimeMessage.getAllRecipients()[0].toString().equals("anyone@anywhere.com"));
     }
     
+    @Test
+    public void testMultipartContent() throws Exception {
+        final MimeMessage message = new MimeMessage(session);
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("anyone@anywhere.com"));
+        message.setFrom(new InternetAddress("someone@somewhereelse.com"));
+        message.setSubject("multipart");
+        final MimeMultipart multipart = new MimeMultipart();
+        final MimeBodyPart text = new MimeBodyPart();
+        text.setText("see attached");
+        multipart.addBodyPart(text);
+        final MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(new byte[] {1, 2, 3}, "image/png")));
+        attachment.setFileName("pixel.png");
+        multipart.addBodyPart(attachment);
+        message.setContent(multipart);
+        Transport.send(message);
+        Document doc = db.getCollection(MONGO_COLLECTION).find().first();
+        Assert.assertEquals("see attached", doc.getString("body"));
+        Assert.assertEquals("pixel.png", ((Document) ((List<?>) doc.get("attachments")).get(0)).getString("filename"));
+    }
+
+    @Test
+    public void testAsyncWrites() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setAsyncWrites(true);
+        config.setWriteBatchSize(3);
+        restart(config);
+        sendMessageSequence(10);
+        Assert.assertEquals(10, mongster.getMessages().size());
+        mongster.flush();
+        MongoCollection<Document> coll = db.getCollection(MONGO_COLLECTION);
+        Assert.assertEquals(10, coll.countDocuments());
+        Document doc  = coll.find(exists("sequenceNumber")).sort(descending("sequenceNumber")).first();
+        Assert.assertTrue(doc.getString("subject").equals("barf9"));
+        Assert.assertEquals(9, (long) doc.getLong("sequenceNumber"));
+        mongster.tail(5);
+        Assert.assertEquals(5, coll.countDocuments());
+    }
+
+    @Test
+    public void testJournal() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setInMemory(false);
+        config.setJournalEnabled(true);
+        config.setJournalDirectory(Files.createTempDirectory("mongster-journal").toString());
+        restart(config);
+        sendMessageSequence(10);
+        mongster.flush();
+        MongoCollection<Document> coll = db.getCollection(MONGO_COLLECTION);
+        Assert.assertEquals(10, coll.countDocuments());
+        Document doc  = coll.find(exists("sequenceNumber")).sort(descending("sequenceNumber")).first();
+        Assert.assertEquals("barf9", doc.getString("subject"));
+        mongster.tail(5);
+        Assert.assertEquals(0, mongster.getCountDrift());
+        mongster.stop();
+        mongster = new Mongster(config);
+        Assert.assertEquals(5, mongster.countMatching(MessageQuery.recipient("anyone@anywhere.com")));
+        Assert.assertEquals(0, mongster.getCountDrift());
+        mongster.start();
+    }
+
+    @Test
+    public void testRetention() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setRetentionMaxMessages(5);
+        config.setRetentionMaxAgeMillis(3600 * 1000);
+        config.setRetentionIntervalMillis(20);
+        restart(config);
+        final long ready = System.currentTimeMillis() + 5000;
+        while (!mongster.isReady() && System.currentTimeMillis() < ready) {
+            Thread.sleep(20);
+        }
+        Assert.assertTrue(mongster.isReady());
+        MongoCollection<Document> coll = db.getCollection(MONGO_COLLECTION);
+        Document ttl = null;
+        for (Document index : coll.listIndexes()) {
+            if (new Document("receivedAt", 1).equals(index.get("key"))) {
+                ttl = index;
+            }
+        }
+        Assert.assertNotNull(ttl);
+        Assert.assertEquals(3600, ((Number) ttl.get("expireAfterSeconds")).longValue());
+        sendMessageSequence(10);
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ((coll.countDocuments() > 5 || mongster.getMessages().size() > 5) &&
+               System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(5, coll.countDocuments());
+        Assert.assertEquals(5, mongster.getMessages().size());
+        Assert.assertEquals(0, mongster.getCountDrift());
+        Assert.assertEquals(5, mongster.getBaseSequenceNumber());
+        // Survivors are not renumbered
+        Assert.assertEquals(5, (long) coll.find(eq("subject", "barf5")).first().getLong("sequenceNumber"));
+        Assert.assertNotNull(coll.find(eq("subject", "barf5")).first().getDate("receivedAt"));
+    }
+
+    @Test
+    public void testMultipleListeners() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setSmtpListeners("localhost:" + (PORT + 1));
+        config.setSmtpMaxConnections(10);
+        config.setSessionExecutor(MongsterConfig.SessionExecutor.VIRTUAL);
+        restart(config);
+        Assert.assertEquals(2, mongster.getServers().size());
+        Assert.assertEquals(PORT + 1, mongster.getServers().get(1).getPort());
+        Assert.assertEquals(10, mongster.getServers().get(1).getMaxConnections());
+        sendMessageSequence(2);
+        final Session session = this.session;
+        try {
+            Properties props = new Properties();
+            props.setProperty("mail.smtp.host", "localhost");
+            props.setProperty("mail.smtp.port", Integer.toString(PORT + 1));
+            this.session = Session.getInstance(props);
+            sendMessageSequence(3);
+        } finally {
+            this.session = session;
+        }
+        Assert.assertEquals(5, mongster.getMessages().size());
+        Assert.assertEquals(5, db.getCollection(MONGO_COLLECTION).countDocuments());
+    }
+
+    @Test
+    public void testListMessages() throws Exception {
+        sendMessageSequence(7);
+        MessagePage page = mongster.list(MessageListing.first().limit(3));
+        Assert.assertEquals(3, page.getMessages().size());
+        Assert.assertEquals("barf0", page.getMessages().get(0).getString("subject"));
+        Assert.assertEquals("text0", page.getMessages().get(0).getString("body").trim());
+        Assert.assertFalse(page.getMessages().get(0).containsKey("bytes64"));
+        Assert.assertEquals(Long.valueOf(2), page.getNextCursor());
+        page = mongster.list(MessageListing.first().limit(3).after(page.getNextCursor()));
+        Assert.assertEquals("barf3", page.getMessages().get(0).getString("subject"));
+        page = mongster.list(MessageListing.first().limit(3).after(page.getNextCursor()));
+        Assert.assertEquals(1, page.getMessages().size());
+        Assert.assertNull(page.getNextCursor());
+        page = mongster.list(MessageListing.fromQueryString("limit=2&order=desc&fields=subject,bytes64"));
+        Assert.assertEquals("barf6", page.getMessages().get(0).getString("subject"));
+        Assert.assertFalse(page.getMessages().get(0).containsKey("bytes64"));
+        Assert.assertFalse(page.getMessages().get(0).containsKey("body"));
+        Assert.assertEquals(Long.valueOf(5), page.getNextCursor());
+        Assert.assertTrue(page.toJson().endsWith("\"nextCursor\": 5}"));
+        page = mongster.list(MessageListing.fromQueryString("recipient=anyone%40anywhere.com&subject=barf4"));
+        Assert.assertEquals(1, page.getMessages().size());
+    }
+
+    @Test
+    public void testSubscribe() throws Exception {
+        sendMessageSequence(3);
+        final MessageSubscription all = mongster.subscribe(MessageListing.fromQueryString("limit=2&fields=subject,body"), -1);
+        final MessageSubscription recent = mongster.subscribe(MessageListing.first().fields("subject"));
+        final MessageSubscription matching = mongster.subscribe(MessageListing.fromQueryString("subject=barf1"), 0);
+        try {
+            sendMessageSequence(2);
+            // Stored messages (read back from MongoDB) first, then new ones
+            for (int i = 0; i < 5; i++) {
+                final Document doc = all.poll(5, TimeUnit.SECONDS);
+                Assert.assertEquals(Long.valueOf(i), doc.getLong("sequenceNumber"));
+                Assert.assertEquals("barf" + i % 3, doc.getString("subject"));
+                Assert.assertEquals("text" + i % 3, doc.getString("body").trim());
+            }
+            Assert.assertNull(all.poll(100, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(Long.valueOf(3), recent.poll(5, TimeUnit.SECONDS).getLong("sequenceNumber"));
+            Assert.assertEquals(Long.valueOf(4), recent.poll(5, TimeUnit.SECONDS).getLong("sequenceNumber"));
+            Assert.assertEquals(Long.valueOf(1), matching.poll(5, TimeUnit.SECONDS).getLong("sequenceNumber"));
+            Assert.assertEquals(Long.valueOf(4), matching.poll(5, TimeUnit.SECONDS).getLong("sequenceNumber"));
+            // Numbering restarts after a clear
+            mongster.clear();
+            sendMessageSequence(1);
+            Assert.assertEquals(Long.valueOf(0), all.poll(5, TimeUnit.SECONDS).getLong("sequenceNumber"));
+        } finally {
+            all.close();
+            recent.close();
+            matching.close();
+        }
+        Assert.assertNull(all.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMongoClientOptions() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setMongoClientOptions(MongoClientOptions.builder()
+            .connectionsPerHost(5).writeConcern(WriteConcern.UNACKNOWLEDGED).build());
+        Assert.assertEquals("localhost:27017", config.getMongoClientURI().getHosts().get(0));
+        Assert.assertEquals(5, config.getMongoClientURI().getOptions().getConnectionsPerHost());
+        config.setMongoUri("mongodb://localhost:" + MONGO_PORT + "/?w=1&minPoolSize=2&compressors=zlib");
+        Assert.assertEquals(WriteConcern.W1, config.getMongoClientURI().getOptions().getWriteConcern());
+        Assert.assertEquals(2, config.getMongoClientURI().getOptions().getMinConnectionsPerHost());
+        restart(config);
+        sendMessageSequence(3);
+        Assert.assertEquals(3, db.getCollection(MONGO_COLLECTION).countDocuments());
+    }
+
+    @Test
+    public void testMongoPortHonored() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setMongoPort(1);
+        config.setMongoClientOptions(MongoClientOptions.builder().serverSelectionTimeout(200).build());
+        // Startup does not wait for MongoDB
+        final Mongster unreachable = new Mongster(config);
+        try {
+            unreachable.list(MessageListing.first());
+            Assert.fail("Expecting connection failure on port 1");
+        } catch (MongoTimeoutException ex) {
+            // expected
+        }
+        Assert.assertFalse(unreachable.namespace("").list().isReady());
+    }
+
+    @Test
+    public void testNamespaceRouting() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setNamespaceRouting(NamespaceRouting.RECIPIENT_PREFIX);
+        config.setMetricsEnabled(true);
+        restart(config);
+        mongster.namespace("suite1").clear();
+        mongster.namespace("Suite2").clear();
+        sendTo("suite1+a@anywhere.com", 3);
+        sendTo("suite2+b@anywhere.com", 2);
+        sendTo("anyone@anywhere.com", 1);
+        // Receive latency is booked to the namespace the message was routed to
+        Assert.assertEquals(3, mongster.namespace("suite1").getMetrics().snapshot().getReceiveLatency().getCount());
+        Assert.assertEquals(1, mongster.getMetrics().snapshot().getReceiveLatency().getCount());
+        Assert.assertEquals(3, mongster.namespace("suite1").size());
+        Assert.assertEquals(2, mongster.namespace("suite2").size());
+        Assert.assertEquals(1, mongster.getMessages().size());
+        Assert.assertEquals(Arrays.asList("", "suite1", "suite2"), new ArrayList<String>(mongster.getNamespaces()));
+        Assert.assertEquals(3, db.getCollection(MONGO_COLLECTION + "_suite1").countDocuments());
+        Assert.assertEquals(1, db.getCollection(MONGO_COLLECTION).countDocuments());
+        Assert.assertTrue(mongster.namespace("suite2").awaitMessages(2, 0, TimeUnit.SECONDS));
+        // Each namespace has its own sequence numbers and is cleared on its own
+        Document doc = db.getCollection(MONGO_COLLECTION + "_suite2").find()
+            .sort(descending("sequenceNumber")).first();
+        Assert.assertEquals(1, (long) doc.getLong("sequenceNumber"));
+        mongster.namespace("suite1").tail(1);
+        Assert.assertEquals(2, mongster.namespace("suite1").getBaseSequenceNumber());
+        mongster.namespace("suite1").clear();
+        Assert.assertEquals(0, db.getCollection(MONGO_COLLECTION + "_suite1").countDocuments());
+        Assert.assertEquals(2, db.getCollection(MONGO_COLLECTION + "_suite2").countDocuments());
+        Assert.assertEquals(1, mongster.getMessages().size());
+        mongster.namespace("suite2").clear();
+    }
+
+    @Test
+    public void testReservedNamespace() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setNamespaceRouting(NamespaceRouting.RECIPIENT_PREFIX);
+        restart(config);
+        sendTo("anyone@anywhere.com", 3);
+        mongster.tail(2);
+        // Would be messages_state and messages_a_payloads, collections other namespaces use
+        for (String recipient : new String[] {"state+x@anywhere.com", "A_Payloads+x@anywhere.com"}) {
+            try {
+                mongster.deliver("someone@somewhereelse.com", recipient,
+                                 new ByteArrayInputStream("Subject: reserved\r\n\r\nbody\r\n".getBytes("ISO-8859-1")));
+                Assert.fail("Expected a RejectException for " + recipient);
+            } catch (RejectException ex) {
+                Assert.assertEquals(553, ex.getCode());
+            }
+        }
+        try {
+            mongster.namespace("State");
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        Assert.assertEquals(Arrays.asList(""), new ArrayList<String>(mongster.getNamespaces()));
+        Assert.assertEquals(1, db.getCollection(MONGO_COLLECTION + MongoMessageStore.STATE_COLLECTION_SUFFIX)
+                            .find().first().getLong(MongoMessageStore.BASE_SEQUENCE_NUMBER).longValue());
+        Assert.assertEquals(2, mongster.getMessages().size());
+    }
+
+    @Test
+    public void testConcurrentStripedWrites() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setAsyncWrites(true);
+        config.setWriterThreads(3);
+        restart(config);
+        final Thread[] senders = new Thread[4];
+        final Exception[] failure = new Exception[1];
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        sendMessageSequence(5);
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            senders[i].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        Assert.assertNull(failure[0]);
+        Assert.assertEquals(20, mongster.getMessages().size());
+        mongster.flush();
+        MongoCollection<Document> coll = db.getCollection(MONGO_COLLECTION);
+        Assert.assertEquals(20, coll.countDocuments());
+        Assert.assertEquals(20, coll.distinct("sequenceNumber", Long.class).into(new ArrayList<Long>()).size());
+        mongster.tail(10);
+        Assert.assertEquals(10, mongster.getMessages().size());
+        Assert.assertEquals(10, coll.countDocuments());
+    }
+
+    @Test
+    public void testBinaryRawStorage() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setRawStorage(MongsterConfig.RawStorage.BINARY);
+        config.setGridFsThreshold(1500);
+        restart(config);
+        sendMessageSequence(1);
+        MimeMessage message = new MimeMessage(this.session);
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("anyone@anywhere.com"));
+        message.setFrom(new InternetAddress("someone@somewhereelse.com"));
+        message.setSubject("big");
+        final char[] text = new char[3000];
+        Arrays.fill(text, 'x');
+        message.setText(new String(text));
+        Transport.send(message);
+
+        MongoCollection<Document> coll = db.getCollection(MONGO_COLLECTION);
+        Document small = coll.find(eq("subject", "barf0")).first();
+        Assert.assertNull(small.get("bytes64"));
+        Assert.assertNull(small.get("rawFileId"));
+        MimeMessage mimeMessage = new MimeMessage(session, new ByteArrayInputStream(mongster.getRawBytes(small)));
+        Assert.assertEquals("barf0", mimeMessage.getSubject());
+
+        Document big = coll.find(eq("subject", "big")).first();
+        Assert.assertNull(big.get("raw"));
+        Assert.assertNotNull(big.get("rawFileId"));
+        Assert.assertEquals(1, db.getCollection(MONGO_COLLECTION + ".files").countDocuments());
+        mimeMessage = new MimeMessage(session, new ByteArrayInputStream(mongster.getRawBytes(big)));
+        Assert.assertEquals(new String(text), mimeMessage.getContent().toString().trim());
+
+        mongster.truncate(1);
+        Assert.assertEquals(0, db.getCollection(MONGO_COLLECTION + ".files").countDocuments());
+    }
+
+    @Test
+    public void testReadBase64RawBytes() throws Exception {
+        sendMessageSequence(1);
+        Document doc = db.getCollection(MONGO_COLLECTION).find().first();
+        MimeMessage mimeMessage = new MimeMessage(session, new ByteArrayInputStream(mongster.getRawBytes(doc)));
+        Assert.assertEquals("barf0", mimeMessage.getSubject());
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        sendMessageSequence(12);
+        checkQueries();
+        final MongsterConfig config = new MongsterConfig();
+        config.setInMemory(false);
+        restart(config);
+        sendMessageSequence(12);
+        checkQueries();
+    }
+
+    private void checkQueries() throws Exception {
+        Assert.assertEquals(12, mongster.findByRecipient("anyone@anywhere.com").size());
+        Assert.assertEquals(0, mongster.findByRecipient("nobody@anywhere.com").size());
+        final List<WiserMessage> found = mongster.findBySubjectPrefix("barf1");
+        Assert.assertEquals(3, found.size());
+        Assert.assertEquals("barf1", found.get(0).getMimeMessage().getSubject());
+        Assert.assertEquals("barf11", found.get(2).getMimeMessage().getSubject());
+        Assert.assertEquals(1, mongster.findByHeader("Subject", "barf7").size());
+        Assert.assertEquals(12, mongster.countMatching(MessageQuery.sender("someone@somewhereelse.com")));
+        Assert.assertEquals(0, mongster.countMatching(MessageQuery.subjectPrefix("barf.")));
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        try {
+            mongster.search("barf", 10);
+            Assert.fail("Text search is not enabled");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        final MongsterConfig config = new MongsterConfig();
+        config.setTextSearchEnabled(true);
+        restart(config);
+        sendMessageSequence(12);
+        checkSearch();
+        mongster.tail(6);
+        Assert.assertTrue(mongster.search("barf3", 10).isEmpty());
+
+        // Heap backend
+        config.setInMemory(false);
+        config.setStorageBackend(StorageBackend.MEMORY);
+        restart(config);
+        sendMessageSequence(12);
+        checkSearch();
+
+        // MongoDB text index
+        config.setStorageBackend(StorageBackend.MONGO);
+        restart(config);
+        sendMessageSequence(12);
+        final long ready = System.currentTimeMillis() + 5000;
+        while (!mongster.isReady() && System.currentTimeMillis() < ready) {
+            Thread.sleep(20);
+        }
+        boolean text = false;
+        for (Document index : db.getCollection(MONGO_COLLECTION).listIndexes()) {
+            text |= MongoMessageStore.TEXT_INDEX.equals(index.getString("name"));
+        }
+        Assert.assertTrue(text);
+        try {
+            checkSearch();
+        } catch (MongoQueryException ex) {
+            Assume.assumeNoException("MongoDB server does not support $text", ex);
+        }
+    }
+
+    private void checkSearch() throws Exception {
+        // Subject matches rank above body matches
+        List<WiserMessage> found = mongster.search("barf3 TEXT5", 10);
+        Assert.assertEquals(2, found.size());
+        Assert.assertEquals("barf3", found.get(0).getMimeMessage().getSubject());
+        Assert.assertEquals("barf5", found.get(1).getMimeMessage().getSubject());
+        Assert.assertEquals(1, mongster.search("barf3 TEXT5", 1).size());
+        Assert.assertTrue(mongster.search("barf12", 10).isEmpty());
+    }
+
+    @Test
+    public void testAwaitMessage() throws Exception {
+        sendMessageSequence(2);
+        Assert.assertNotNull(mongster.awaitMessage(MessageQuery.subjectPrefix("barf1"), 0, TimeUnit.SECONDS));
+        Assert.assertNull(mongster.awaitMessage(MessageQuery.subjectPrefix("barf2"), 100, TimeUnit.MILLISECONDS));
+        final Thread sender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    sendMessageSequence(3);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        sender.start();
+        final WiserMessage message = mongster.awaitMessage(new MessageMatcher() {
+            @Override
+            public boolean matches(WiserMessage message) {
+                return message.getData().length > 0 && new String(message.getData()).contains("barf2");
+            }
+        }, 10, TimeUnit.SECONDS);
+        sender.join();
+        Assert.assertNotNull(message);
+        Assert.assertEquals("barf2", message.getMimeMessage().getSubject());
+    }
+
+    @Test
+    public void testAwaitMessages() throws Exception {
+        Assert.assertFalse(mongster.awaitMessages(1, 100, TimeUnit.MILLISECONDS));
+        sendInBackground(4);
+        Assert.assertTrue(mongster.awaitMessages(4, 10, TimeUnit.SECONDS));
+        Assert.assertTrue(mongster.awaitMatching(MessageQuery.subjectPrefix("barf"), 4, 0, TimeUnit.SECONDS));
+        final MongsterConfig config = new MongsterConfig();
+        config.setInMemory(false);
+        config.setAsyncWrites(true);
+        restart(config);
+        sendInBackground(3);
+        Assert.assertTrue(mongster.awaitMatching(new MessageMatcher() {
+            @Override
+            public boolean matches(WiserMessage message) {
+                return new String(message.getData()).contains("text2");
+            }
+        }, 1, 10, TimeUnit.SECONDS));
+        Assert.assertTrue(mongster.awaitMatching(message -> new String(message.getData()).contains("text1"),
+                                                 1, Duration.ofSeconds(10)));
+        Assert.assertTrue(mongster.awaitMessages(3, 10, TimeUnit.SECONDS));
+        Assert.assertTrue(mongster.awaitMessages(3, Duration.ZERO));
+        Assert.assertNotNull(mongster.awaitMessage(message -> new String(message.getData()).contains("text0"),
+                                                   Duration.ZERO));
+        Assert.assertEquals(3, db.getCollection(MONGO_COLLECTION).countDocuments());
+    }
+
+    @Test
+    public void testStopWriters() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setAsyncWrites(true);
+        config.setWriterThreads(3);
+        restart(config);
+        sendMessageSequence(3);
+        mongster.stop();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            Assert.assertFalse(thread.getName(), thread.getName().startsWith("mongster-writer-") && thread.isAlive());
+        }
+        Assert.assertEquals(3, db.getCollection(MONGO_COLLECTION).countDocuments());
+        mongster = new Mongster(config);
+        mongster.start();
+    }
+
+    @Test
+    public void testRejectedNotCounted() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setAsyncWrites(true);
+        config.setBackpressurePolicy(BackpressurePolicy.REJECT);
+        restart(config);
+        sendMessageSequence(2);
+        final PersistedMessageList list = mongster.namespace("").list();
+        // A stopped writer rejects with 451
+        list.close();
+        try {
+            mongster.deliver("someone@somewhereelse.com", "anyone@anywhere.com",
+                             new ByteArrayInputStream("Subject: rejected\r\n\r\nbody\r\n".getBytes("ISO-8859-1")));
+            Assert.fail("Expected a RejectException");
+        } catch (RejectException ex) {
+            Assert.assertEquals(451, ex.getCode());
+        }
+        Assert.assertEquals(2, list.storedCount());
+        Assert.assertEquals(0, mongster.getCountDrift());
+    }
+
+    @Test
+    public void testHeapBackendNotCopied() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setStorageBackend(StorageBackend.MEMORY);
+        config.setAsyncWrites(true);
+        // Applies to the in-memory copy, which the heap backend does not need
+        config.setInMemoryMaxMessages(2);
+        restart(config);
+        sendMessageSequence(5);
+        Assert.assertEquals(5, mongster.getMessages().size());
+        Assert.assertEquals("barf3", mongster.getMessages().get(3).getMimeMessage().getSubject());
+        Assert.assertEquals(1, mongster.find(MessageQuery.subjectPrefix("barf4")).size());
+        Assert.assertNotNull(mongster.awaitMessage(message -> message.getEnvelopeSender() != null, Duration.ZERO));
+        mongster.tail(4);
+        mongster.truncate(2);
+        Assert.assertEquals(2, mongster.getMessages().size());
+        Assert.assertEquals("barf1", mongster.getMessages().get(0).getMimeMessage().getSubject());
+        Assert.assertEquals(0, mongster.getCountDrift());
+    }
+
+    @Test
+    public void testFailedBatchNotCounted() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setAsyncWrites(true);
+        config.setMetricsEnabled(true);
+        restart(config);
+        final MongoCollection<Document> coll = db.getCollection(MONGO_COLLECTION);
+        coll.createIndex(new Document("xgap", 1), new IndexOptions().unique(true).sparse(true).name("gap"));
+        try {
+            deliverRaw("X-Gap: a\r\nSubject: 0\r\n\r\nbody\r\n");
+            mongster.flush();
+            // Accepted, then refused by the server
+            deliverRaw("X-Gap: a\r\nSubject: 1\r\n\r\nbody\r\n");
+            deliverRaw("Subject: 2\r\n\r\nbody\r\n");
+            mongster.flush();
+            Assert.assertEquals(2, mongster.namespace("").list().storedCount());
+            Assert.assertEquals(2, mongster.getMessages().size());
+            Assert.assertEquals("2", mongster.getMessages().get(1).getMimeMessage().getSubject());
+            Assert.assertEquals(0, mongster.getCountDrift());
+            Assert.assertEquals(1, mongster.getMetrics().snapshot().getMongoErrors());
+        } finally {
+            coll.dropIndex("gap");
+        }
+    }
+
+    @Test
+    public void testDroppedNotCounted() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setStorageBackend(StorageBackend.FILE);
+        config.setFileStoreDirectory(Files.createTempDirectory("mongster-store").toString());
+        config.setAsyncWrites(true);
+        config.setWriteQueueCapacity(1);
+        config.setWriteBatchSize(1);
+        config.setBackpressurePolicy(BackpressurePolicy.DROP_OLDEST);
+        config.setMetricsEnabled(true);
+        restart(config);
+        final PersistedMessageList list = mongster.namespace("").list();
+        // The writer waits on the store's lock, so at most one message is queued
+        synchronized (list.backend) {
+            for (int i = 0; i < 5; i++) {
+                deliverRaw("Subject: " + i + "\r\n\r\nbody\r\n");
+            }
+        }
+        mongster.flush();
+        final long dropped = mongster.getMetrics().snapshot().getMessagesDropped();
+        Assert.assertTrue(dropped >= 3);
+        Assert.assertEquals(5 - dropped, list.storedCount());
+        Assert.assertEquals(5 - dropped, mongster.getMessages().size());
+        Assert.assertEquals("4", mongster.getMessages().get((int) (4 - dropped)).getMimeMessage().getSubject());
+        Assert.assertEquals(0, mongster.getCountDrift());
+    }
+
+    @Test
+    public void testTruncateWithGap() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setInMemory(false);
+        restart(config);
+        final MongoCollection<Document> coll = db.getCollection(MONGO_COLLECTION);
+        coll.createIndex(new Document("xgap", 1), new IndexOptions().unique(true).sparse(true).name("gap"));
+        try {
+            deliverRaw("X-Gap: a\r\nSubject: 0\r\n\r\nbody\r\n");
+            try {
+                // Takes sequence number 1 but fails to insert
+                deliverRaw("X-Gap: a\r\nSubject: 1\r\n\r\nbody\r\n");
+                Assert.fail("Expected a duplicate key error");
+            } catch (MongoWriteException ex) {
+                // expected
+            }
+            for (int i = 2; i < 5; i++) {
+                deliverRaw("Subject: " + i + "\r\n\r\nbody\r\n");
+            }
+            Assert.assertEquals(4, mongster.namespace("").list().storedCount());
+            // Stored sequence numbers are 0, 2, 3, 4
+            mongster.truncate(3);
+            Assert.assertEquals(3, coll.countDocuments());
+            Assert.assertEquals(3, (long) coll.find().sort(descending("sequenceNumber")).first().getLong("sequenceNumber"));
+            mongster.tail(2);
+            Assert.assertEquals(2, mongster.getBaseSequenceNumber());
+            Assert.assertEquals(2, coll.countDocuments());
+            Assert.assertEquals(0, mongster.getCountDrift());
+        } finally {
+            coll.dropIndex("gap");
+        }
+    }
+
+    @Test
+    public void testCountDrift() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setInMemory(false);
+        restart(config);
+        sendMessageSequence(6);
+        Assert.assertEquals(0, mongster.getCountDrift());
+        mongster.tail(4);
+        mongster.truncate(3);
+        Assert.assertEquals(0, mongster.getCountDrift());
+        Assert.assertTrue(mongster.awaitMessages(3, 0, TimeUnit.SECONDS));
+        Assert.assertFalse(mongster.awaitMessages(4, 0, TimeUnit.SECONDS));
+        MongoCollection<Document> coll = db.getCollection(MONGO_COLLECTION);
+        coll.insertOne(new Document("subject", "sneaky"));
+        Assert.assertEquals(-1, mongster.getCountDrift());
+        // Reconciled with the collection on startup
+        mongster.stop();
+        mongster = new Mongster(config);
+        Assert.assertEquals(0, mongster.getCountDrift());
+        mongster.start();
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Assert.assertNull(mongster.getMetrics());
+        final MongsterConfig config = new MongsterConfig();
+        config.setMetricsEnabled(true);
+        config.setAsyncWrites(true);
+        restart(config);
+        sendMessageSequence(5);
+        mongster.flush();
+        mongster.tail(3);
+        final MetricsSnapshot snapshot = mongster.getMetrics().snapshot();
+        Assert.assertEquals(5, snapshot.getMessagesReceived());
+        Assert.assertTrue(snapshot.getBytesReceived() > 0);
+        Assert.assertEquals(5, snapshot.getReceiveLatency().getCount());
+        Assert.assertEquals(5, snapshot.getBuildLatency().getCount());
+        Assert.assertTrue(snapshot.getInsertLatency().getCount() > 0);
+        Assert.assertEquals(1, snapshot.getTailLatency().getCount());
+        Assert.assertEquals(3, snapshot.getInMemoryMessages());
+        Assert.assertEquals(0, snapshot.getMongoErrors());
+        final ObjectName name = new ObjectName("org.mongster:type=Metrics,name=\"mongster.messages\"");
+        Assert.assertEquals(5L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "MessagesReceived"));
+        mongster.stop();
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        mongster = new Mongster(config);
+        mongster.start();
+    }
+
+    @Test
+    public void testPayloadDeduplication() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setInMemory(false);
+        config.setPayloadDeduplication(true);
+        restart(config);
+        final MimeMessage message = new MimeMessage(this.session);
+        message.setFrom(new InternetAddress("someone@somewhereelse.com"));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("one@anywhere.com"));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("two@anywhere.com"));
+        message.addRecipient(Message.RecipientType.CC, new InternetAddress("three@anywhere.com"));
+        message.setSubject("shared");
+        message.setText("one payload");
+        Transport.send(message);
+        sendMessageSequence(1);
+        mongster.flush();
+
+        final MongoCollection<Document> payloads =
+            db.getCollection(MONGO_COLLECTION + PayloadStore.COLLECTION_SUFFIX);
+        Assert.assertEquals(2, payloads.countDocuments());
+        final List<Document> docs = db.getCollection(MONGO_COLLECTION).find()
+            .sort(new Document(MongoMessageStore.SEQUENCE_NUMBER, 1)).into(new ArrayList<Document>());
+        Assert.assertEquals(4, docs.size());
+        Assert.assertEquals(docs.get(0).getString(PayloadStore.PAYLOAD_ID), docs.get(2).getString(PayloadStore.PAYLOAD_ID));
+        Assert.assertFalse(docs.get(0).containsKey(RawContentStore.BYTES64));
+        Assert.assertEquals("one payload", docs.get(1).getString(ContentExtractor.BODY).trim());
+        Assert.assertEquals("shared", new MimeMessage(session,
+            new ByteArrayInputStream(mongster.getRawBytes(docs.get(1)))).getSubject());
+        final List<WiserMessage> found = mongster.find(MessageQuery.subjectPrefix("shared"));
+        Assert.assertEquals(3, found.size());
+        Assert.assertEquals("three@anywhere.com", found.get(2).getEnvelopeReceiver());
+        Assert.assertEquals("shared", found.get(2).getMimeMessage().getSubject());
+
+        // The shared payload goes with the last message using it
+        mongster.tail(2);
+        Assert.assertEquals(2, payloads.countDocuments());
+        mongster.tail(1);
+        Assert.assertEquals(1, payloads.countDocuments());
+        Assert.assertEquals("barf0", mongster.find(MessageQuery.subjectPrefix("barf")).get(0).getMimeMessage().getSubject());
+        mongster.clear();
+        Assert.assertEquals(0, payloads.countDocuments());
+    }
+
+    /**
+     * Sends {@code numMessages} messages from another thread after a short delay.
+     */
+    private void sendInBackground(final int numMessages) {
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    sendMessageSequence(numMessages);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }.start();
+    }
+
+    private void deliverRaw(String data) throws Exception {
+        mongster.deliver("someone@somewhereelse.com", "anyone@anywhere.com",
+                         new ByteArrayInputStream(data.getBytes("ISO-8859-1")));
+    }
+
+    /**
+     * Replaces the Mongster started in {@link #setUp()} with one using the given config.
+     */
+    private void restart(MongsterConfig config) {
+        mongster.stop();
+        config.setSmtpPort(PORT);
+        mongster = new Mongster(config);
+        mongster.start();
+        mongster.clear();
+    }
+
+    private void sendTo(String recipient, int numMessages) throws Exception {
+        for (int i = 0; i < numMessages; i++) {
+            MimeMessage message = new MimeMessage(this.session);
+            message.addRecipient(Message.RecipientType.TO, new InternetAddress(recipient));
+            message.setFrom(new InternetAddress("someone@somewhereelse.com"));
+            message.setSubject("barf" + i);
+            message.setText("text" + i);
+            Transport.send(message);
+        }
+    }
+
     private void sendMessageSequence(int numMessages) throws Exception {
         for (int i = 0; i < numMessages; i++) {
             MimeMessage message = new MimeMessage(this.session);
@@ -0,0 +1,118 @@
+package org.mongster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import javax.mail.Header;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.bson.Document;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for ParsedMessage.  These do not need a MongoDB server.
+ */
+public class ParsedMessageTest {
+
+    private final Session session = Session.getInstance(new Properties());
+
+    @Test
+    public void testHeadersMatchMimeMessage() throws Exception {
+        final String raw = "Received: from localhost\r\n" +
+            "\tby mongster; Mon, 1 Jan 2015 00:00:00 -0000\r\n" +
+            "From: someone@somewhereelse.com\r\n" +
+            "To: anyone@anywhere.com,\r\n" +
+            " anyone2@anywhere.com\r\n" +
+            "Subject:   barf\r\n" +
+            "X-Empty:\r\n" +
+            "\r\n" +
+            "body\r\n";
+        final ParsedMessage parsed = ParsedMessage.read(new ByteArrayInputStream(raw.getBytes("ISO-8859-1")));
+        final MimeMessage mimeMessage = new MimeMessage(session, new ByteArrayInputStream(raw.getBytes("ISO-8859-1")));
+        @SuppressWarnings("unchecked")
+        final Enumeration<Header> expected = mimeMessage.getAllHeaders();
+        int i = 0;
+        while (expected.hasMoreElements()) {
+            final Header header = expected.nextElement();
+            Assert.assertEquals(header.getName(), parsed.getHeaderName(i));
+            Assert.assertEquals(header.getValue(), parsed.getHeaderValue(i));
+            i++;
+        }
+        Assert.assertEquals(i, parsed.getHeaderCount());
+        Assert.assertEquals(mimeMessage.getContent(), parsed.getTextBody());
+        Assert.assertArrayEquals(raw.getBytes("ISO-8859-1"), parsed.getData());
+    }
+
+    @Test
+    public void testRepeatedHeaders() throws Exception {
+        final String raw = "Received: from a\r\n\tby b\r\n" +
+            "Received: from c\n\tby d\n" +
+            "Message-ID: <1@x>\r\n" +
+            "Received: from e\r\n" +
+            "\r\n" +
+            "body\r\n";
+        final ParsedMessage parsed = ParsedMessage.parse(raw.getBytes("ISO-8859-1"));
+        Assert.assertEquals(Arrays.asList("from a\r\n\tby b", "from c\r\n\tby d", "from e"),
+                            parsed.getHeaders("received"));
+        final Document doc = new Document();
+        parsed.appendHeaders(doc);
+        Assert.assertEquals(Arrays.asList("messageid", "received"),
+                            new ArrayList<String>(new TreeSet<String>(doc.keySet())));
+        Assert.assertEquals(parsed.getHeaders("Received"), doc.get("received"));
+        Assert.assertEquals("<1@x>", doc.get("messageid"));
+        // Header names are shared between messages
+        Assert.assertSame(parsed.getHeaderName(0),
+                          ParsedMessage.parse(raw.getBytes("ISO-8859-1")).getHeaderName(0));
+    }
+
+    @Test
+    public void testEncodedTextBodies() throws Exception {
+        final String[] charsets = {"UTF-8", "ISO-8859-1", "iso-2022-jp"};
+        final String[] encodings = {"8bit", "quoted-printable", "base64"};
+        final String body = "\u00a4uro ma\u00f1ana \u3042\u3044\r\n";
+        for (String charset : charsets) {
+            for (String encoding : encodings) {
+                final MimeMessage message = new MimeMessage(session);
+                message.addRecipient(Message.RecipientType.TO, new InternetAddress("anyone@anywhere.com"));
+                message.setFrom(new InternetAddress("someone@somewhereelse.com"));
+                message.setSubject("hello");
+                message.setText(body, charset);
+                message.setHeader("Content-Transfer-Encoding", encoding);
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                message.writeTo(out);
+                final byte[] raw = out.toByteArray();
+                final Object expected = new MimeMessage(session, new ByteArrayInputStream(raw)).getContent();
+                Assert.assertEquals(expected, ParsedMessage.parse(raw).getTextBody());
+            }
+        }
+    }
+
+    @Test
+    public void testSmallReads() throws Exception {
+        final String raw = "Subject: barf\r\nTo: anyone@anywhere.com\r\n\r\ntext";
+        final ParsedMessage parsed = ParsedMessage.read(new ByteArrayInputStream(raw.getBytes("ISO-8859-1")) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        });
+        Assert.assertEquals("barf", parsed.getHeader("subject"));
+        Assert.assertEquals("anyone@anywhere.com", parsed.getHeader("To"));
+        Assert.assertEquals("text", parsed.getTextBody());
+    }
+
+    @Test
+    public void testMultipartIsNotText() throws Exception {
+        final String raw = "Content-Type: multipart/mixed; boundary=xx\r\n\r\n--xx\r\n\r\nhi\r\n--xx--\r\n";
+        Assert.assertNull(ParsedMessage.parse(raw.getBytes("ISO-8859-1")).getTextBody());
+    }
+}
@@ -0,0 +1,104 @@
+package org.mongster;
+
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mongster.MongsterConfig.RawStorage;
+import org.subethamail.wiser.Wiser;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+
+/**
+ * Unit tests for PayloadStore.
+ *
+ * NOTE: there must be a MongoDB server running on localhost for these
+ * test cases to run.
+ */
+public class PayloadStoreTest {
+
+    private static final String COLLECTION = "payloadStore";
+
+    private Wiser wiser;
+    private MongoClient mongoClient;
+    private MongoDatabase db;
+    private PayloadStore payloads;
+
+    @Before
+    public void setUp() throws Exception {
+        wiser = new Wiser();
+        mongoClient = new MongoClient(MongsterTest.MONGO_HOST);
+        db = mongoClient.getDatabase(MongsterTest.MONGO_DATABASE);
+        final MongsterConfig config = new MongsterConfig();
+        config.setRawStorage(RawStorage.BINARY);
+        config.setGridFsThreshold(16);
+        payloads = new PayloadStore(db, COLLECTION, new RawContentStore(mongoClient, config));
+        payloads.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        payloads.clear();
+        payloads.collection().drop();
+        mongoClient.close();
+    }
+
+    @Test
+    public void testSharedPayload() throws Exception {
+        payloads.save(Arrays.asList(received("one", 0), received("one", 1), received("two", 2)));
+        payloads.save(Arrays.asList(received("one", 3)));
+        Assert.assertEquals(2, payloads.collection().countDocuments());
+        Assert.assertArrayEquals(data("one"), payloads.read(payloadId("one")));
+        payloads.removeBefore(3);
+        Assert.assertEquals(1, payloads.collection().countDocuments());
+        Assert.assertArrayEquals(data("one"), payloads.read(payloadId("one")));
+        // Messages 0 and 1 still use it
+        payloads.removeFrom(3);
+        Assert.assertArrayEquals(data("one"), payloads.read(payloadId("one")));
+        payloads.removeBefore(3);
+        Assert.assertNull(payloads.read(payloadId("one")));
+    }
+
+    /**
+     * A duplicate key error on one payload must not remove the GridFS file
+     * of another payload inserted by the same bulk write.
+     */
+    @Test
+    public void testDuplicateKeyKeepsInsertedFiles() throws Exception {
+        // A unique index stands in for a concurrent insert of the second payload
+        payloads.collection().createIndex(new Document(PayloadStore.FIRST_SEQUENCE_NUMBER, 1),
+                                          new IndexOptions().unique(true));
+        payloads.collection().insertOne(new Document("_id", "other").append(PayloadStore.FIRST_SEQUENCE_NUMBER, 7L));
+        try {
+            payloads.save(Arrays.asList(received("inserted", 1), received("clashing", 7)));
+            Assert.fail("Expected a duplicate key error");
+        } catch (MongoBulkWriteException ex) {
+            // expected, also on the retry
+        }
+        Assert.assertNotNull(payloads.collection().find(new Document("_id", payloadId("inserted")))
+                             .first().getObjectId(RawContentStore.RAW_FILE_ID));
+        Assert.assertArrayEquals(data("inserted"), payloads.read(payloadId("inserted")));
+        Assert.assertNull(payloads.read(payloadId("clashing")));
+    }
+
+    private ReceivedMessage received(String body, long seq) throws Exception {
+        final byte[] data = data(body);
+        return new ReceivedMessage(Mongster.newWiserMessage(wiser, "someone@somewhereelse.com",
+                                                            "anyone@anywhere.com", data),
+                                   ParsedMessage.parse(data), seq);
+    }
+
+    private static String payloadId(String body) throws Exception {
+        return ParsedMessage.parse(data(body)).getPayloadId();
+    }
+
+    private static byte[] data(String body) throws Exception {
+        return ("Subject: payload\r\n\r\n" + body + " - long enough for GridFS\r\n").getBytes("ISO-8859-1");
+    }
+}
@@ -0,0 +1,236 @@
+package org.mongster;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import javax.activation.DataHandler;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.bson.BsonSerializationException;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mongster.MongsterConfig.RawStorage;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Checks that documents encoded by {@link RawMessageEncoder} match the
+ * documents built by {@link MongoMessageStore#toDocument(WiserMessage, ParsedMessage, long)},
+ * field for field and in the same order.
+ *
+ * NOTE: {@link #testStoredDocuments()} needs a MongoDB server on localhost.
+ */
+public class RawMessageEncoderTest {
+
+    private static final String DOCUMENT_COLLECTION = "rawEncodingDocument";
+    private static final String RAW_COLLECTION = "rawEncodingRaw";
+
+    private Wiser wiser;
+    private MongoClient mongoClient;
+    private MongoDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        wiser = new Wiser();
+        mongoClient = new MongoClient(MongsterTest.MONGO_HOST);
+        db = mongoClient.getDatabase(MongsterTest.MONGO_DATABASE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.getCollection(DOCUMENT_COLLECTION).drop();
+        db.getCollection(RAW_COLLECTION).drop();
+        db.getCollection(RAW_COLLECTION + ".files").drop();
+        db.getCollection(RAW_COLLECTION + ".chunks").drop();
+        mongoClient.close();
+    }
+
+    @Test
+    public void testSameDocument() throws Exception {
+        for (RawStorage rawStorage : RawStorage.values()) {
+            final MongoMessageStore store = store(RAW_COLLECTION, rawStorage, true);
+            final List<WiserMessage> messages = messages();
+            for (int i = 0; i < messages.size(); i++) {
+                final WiserMessage message = messages.get(i);
+                final Document expected = store.toDocument(message, parse(message), i);
+                final Document actual = store.toRawDocument(message, parse(message), i).decode(new DocumentCodec());
+                Assert.assertEquals("_id", actual.keySet().iterator().next());
+                Assert.assertTrue(actual.get("_id") instanceof ObjectId);
+                Assert.assertTrue(actual.get(MongoMessageStore.RECEIVED_AT) instanceof Date);
+                assertSameFields(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testRepeatedHeaders() throws Exception {
+        final MongoMessageStore store = store(RAW_COLLECTION, RawStorage.BINARY, true);
+        final WiserMessage message = messages().get(3);
+        final Document doc = store.toRawDocument(message, parse(message), 0).decode(new DocumentCodec());
+        final List<?> received = (List<?>) doc.get("received");
+        Assert.assertEquals(2, received.size());
+        Assert.assertTrue(received.get(0).toString().startsWith("from first"));
+        Assert.assertTrue(received.get(1).toString().startsWith("from second"));
+    }
+
+    @Test
+    public void testFailedEncode() throws Exception {
+        final MongsterConfig config = new MongsterConfig();
+        config.setMongoCollection(RAW_COLLECTION);
+        config.setRawStorage(RawStorage.BINARY);
+        config.setGridFsThreshold(1024);
+        config.setRawBsonEncoding(true);
+        final MongoMessageStore store = new MongoMessageStore(wiser, config, null, mongoClient);
+        final StringBuilder big = new StringBuilder("Subject: big\r\n\r\n");
+        while (big.length() < RawMessageEncoder.MAX_DOCUMENT_SIZE + 1024) {
+            big.append("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa\r\n");
+        }
+        final WiserMessage tooBig = message(big.toString().getBytes("ISO-8859-1"), "someone@somewhereelse.com");
+        try {
+            // The raw bytes go to GridFS before the body makes the document too large
+            store.toRawDocument(tooBig, parse(tooBig), 0);
+            Assert.fail("Expecting the document to be too large");
+        } catch (BsonSerializationException ex) {
+            // expected
+        }
+        Assert.assertEquals(0, db.getCollection(RAW_COLLECTION + ".files").countDocuments());
+        // Nothing of the failed document is left in this thread's buffer
+        final WiserMessage message = messages().get(0);
+        assertSameFields(store.toDocument(message, parse(message), 1),
+                         store.toRawDocument(message, parse(message), 1).decode(new DocumentCodec()));
+    }
+
+    @Test
+    public void testStoredDocuments() throws Exception {
+        final MongoMessageStore documentStore = store(DOCUMENT_COLLECTION, RawStorage.BINARY, false);
+        final MongoMessageStore rawStore = store(RAW_COLLECTION, RawStorage.BINARY, true);
+        documentStore.clear();
+        rawStore.clear();
+        final List<WiserMessage> messages = messages();
+        final List<ReceivedMessage> batch = new ArrayList<ReceivedMessage>();
+        for (int i = 0; i < messages.size(); i++) {
+            final WiserMessage message = messages.get(i);
+            documentStore.add(message, parse(message), i);
+            batch.add(new ReceivedMessage(message, parse(message), messages.size() + i));
+        }
+        documentStore.addAll(batch);
+        for (int i = 0; i < messages.size(); i++) {
+            rawStore.add(messages.get(i), parse(messages.get(i)), i);
+        }
+        rawStore.addAll(batch);
+
+        final List<Document> expected = stored(DOCUMENT_COLLECTION);
+        final List<Document> actual = stored(RAW_COLLECTION);
+        Assert.assertEquals(2 * messages.size(), actual.size());
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSameFields(expected.get(i), actual.get(i));
+        }
+        Assert.assertEquals(documentStore.find(MessageQuery.header("Received", "from second.example.com"), 10).size(),
+                            rawStore.find(MessageQuery.header("Received", "from second.example.com"), 10).size());
+    }
+
+    /**
+     * Compares documents field by field in order, skipping the generated
+     * {@code _id} and {@code receivedAt} values.
+     */
+    private static void assertSameFields(Document expected, Document actual) {
+        Assert.assertEquals(fields(expected), fields(actual));
+        for (String field : fields(expected)) {
+            Assert.assertEquals(field, expected.get(field), actual.get(field));
+        }
+    }
+
+    private static List<String> fields(Document doc) {
+        final List<String> fields = new ArrayList<String>(doc.keySet());
+        fields.remove("_id");
+        fields.remove(MongoMessageStore.RECEIVED_AT);
+        return fields;
+    }
+
+    private List<Document> stored(String collection) {
+        return db.getCollection(collection).find()
+            .sort(new Document(MongoMessageStore.SEQUENCE_NUMBER, 1)).into(new ArrayList<Document>());
+    }
+
+    private MongoMessageStore store(String collection, RawStorage rawStorage, boolean rawBsonEncoding) {
+        final MongsterConfig config = new MongsterConfig();
+        config.setMongoCollection(collection);
+        config.setRawStorage(rawStorage);
+        config.setAttachmentContentStored(true);
+        config.setRawBsonEncoding(rawBsonEncoding);
+        return new MongoMessageStore(wiser, config, null, mongoClient);
+    }
+
+    private static ParsedMessage parse(WiserMessage message) {
+        return ParsedMessage.parse(message.getData());
+    }
+
+    /**
+     * Plain text, html, multipart with an attachment, repeated headers and a
+     * header clashing with a fixed field.
+     */
+    private List<WiserMessage> messages() throws Exception {
+        final List<WiserMessage> messages = new ArrayList<WiserMessage>();
+        messages.add(message(singlePart("hello", "plain"), "someone@somewhereelse.com"));
+        messages.add(message(singlePart("<p>héllo</p>", "html"), "someone@somewhereelse.com"));
+        messages.add(message(multipart(), null));
+        messages.add(message(("Received: from first.example.com\r\n\tby localhost\r\n" +
+            "Subject: repeated\r\n" +
+            "Received: from second.example.com\r\n" +
+            "X-Tag: a\r\nx-tag: b\r\n\r\nbody\r\n").getBytes("ISO-8859-1"), "someone@somewhereelse.com"));
+        messages.add(message(("Subject: clash\r\nBody: header\r\n\r\nbody\r\n").getBytes("ISO-8859-1"),
+                             "someone@somewhereelse.com"));
+        return messages;
+    }
+
+    private WiserMessage message(byte[] data, String sender) {
+        return Mongster.newWiserMessage(wiser, sender, "anyone@anywhere.com", data);
+    }
+
+    private static byte[] singlePart(String text, String subtype) throws Exception {
+        final MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setSubject("barf");
+        message.setText(text, "UTF-8", subtype);
+        return bytes(message);
+    }
+
+    private static byte[] multipart() throws Exception {
+        final MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setSubject("barf");
+        final MimeMultipart mixed = new MimeMultipart("mixed");
+        final MimeBodyPart text = new MimeBodyPart();
+        text.setText("plain text", "UTF-8");
+        mixed.addBodyPart(text);
+        final MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(new byte[] {1, 2, 3}, "application/pdf")));
+        attachment.setFileName("report.pdf");
+        attachment.setDisposition(MimeBodyPart.ATTACHMENT);
+        mixed.addBodyPart(attachment);
+        message.setContent(mixed);
+        return bytes(message);
+    }
+
+    private static byte[] bytes(MimeMessage message) throws Exception {
+        message.saveChanges();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,152 @@
+package org.mongster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mongster.MongsterConfig.ContentExtraction;
+
+/**
+ * Unit tests for the in-process full-text index.
+ */
+public class TextIndexTest {
+
+    @Test
+    public void testTerms() {
+        Assert.assertEquals(Arrays.asList("order", "ord", "12345", "shipped"),
+                            new ArrayList<String>(TextIndex.terms("Order ORD-12345 shipped; order.")));
+        Assert.assertTrue(TextIndex.terms(null).isEmpty());
+        final char[] longRun = new char[TextIndex.MAX_TERM_LENGTH + 1];
+        Arrays.fill(longRun, 'a');
+        Assert.assertTrue(TextIndex.terms(new String(longRun)).isEmpty());
+    }
+
+    @Test
+    public void testRanking() {
+        final TextIndex index = new TextIndex(ContentExtraction.TEXT);
+        index.add(1, "weekly report", "nothing to see");
+        index.add(2, "your order", "order ORD-777 has shipped");
+        index.add(3, "ORD-777 shipped", "see body");
+        index.add(4, "another order", "ORD-778 is pending");
+        // Subject terms count double; message 4 only has "ord"
+        Assert.assertEquals(Arrays.asList(3L, 2L, 4L), index.search("ord-777", 10));
+        Assert.assertEquals(Arrays.asList(2L, 4L, 3L), index.search("order 777", 10));
+        Assert.assertEquals(Arrays.asList(2L), index.search("order 777", 1));
+        Assert.assertEquals(Collections.emptyList(), index.search("missing", 10));
+        Assert.assertEquals(Collections.emptyList(), index.search("...", 10));
+        // Equal scores: most recent first
+        Assert.assertEquals(Arrays.asList(3L, 1L), index.search("see", 10));
+    }
+
+    @Test
+    public void testRareTerms() {
+        final TextIndex index = new TextIndex(ContentExtraction.TEXT);
+        index.add(1, null, "alpha beta");
+        index.add(2, null, "alpha");
+        index.add(3, null, "alpha");
+        index.add(4, null, "beta gamma");
+        Assert.assertEquals(Arrays.asList(4L, 3L, 2L, 1L), index.search("alpha gamma", 10));
+    }
+
+    @Test
+    public void testAgainstScan() {
+        final Random random = new Random(17);
+        final TextIndex index = new TextIndex(ContentExtraction.TEXT);
+        final Map<String, Integer> df = new HashMap<String, Integer>();
+        final List<Map<String, Integer>> tfs = new ArrayList<Map<String, Integer>>();
+        for (int i = 0; i < 2000; i++) {
+            final String subject = "w" + random.nextInt(50) + (random.nextInt(4) == 0 ? " common" : "");
+            final String body = "common w" + random.nextInt(300) + " w" + random.nextInt(300) + " w" + random.nextInt(20);
+            index.add(i, subject, body);
+            final Map<String, Integer> tf = new HashMap<String, Integer>();
+            for (String term : subject.split(" ")) {
+                tf.put(term, (tf.containsKey(term) ? tf.get(term) : 0) + TextIndex.SUBJECT_WEIGHT);
+            }
+            for (String term : body.split(" ")) {
+                tf.put(term, (tf.containsKey(term) ? tf.get(term) : 0) + 1);
+            }
+            for (String term : tf.keySet()) {
+                df.put(term, (df.containsKey(term) ? df.get(term) : 0) + 1);
+            }
+            tfs.add(tf);
+        }
+        for (int q = 0; q < 200; q++) {
+            final String query = "w" + random.nextInt(300) + " common" + (q % 2 == 0 ? " w" + random.nextInt(50) : "");
+            final int limit = 1 + random.nextInt(20);
+            Assert.assertEquals(query, scan(tfs, df, query, limit), index.search(query, limit));
+        }
+    }
+
+    /**
+     * Scores every document the slow way: same formula, ties to the latest.
+     */
+    private static List<Long> scan(List<Map<String, Integer>> tfs, Map<String, Integer> df, String query, int limit) {
+        final List<double[]> scored = new ArrayList<double[]>();
+        for (int i = 0; i < tfs.size(); i++) {
+            double score = 0;
+            for (String term : TextIndex.terms(query)) {
+                final Integer tf = tfs.get(i).get(term);
+                if (tf != null) {
+                    score += Math.log(1 + (double) tfs.size() / df.get(term)) * (1 + Math.log(tf));
+                }
+            }
+            if (score > 0) {
+                scored.add(new double[] {score, i});
+            }
+        }
+        Collections.sort(scored, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                return Math.abs(a[0] - b[0]) > 1e-9 ? Double.compare(b[0], a[0]) : Double.compare(b[1], a[1]);
+            }
+        });
+        final List<Long> keys = new ArrayList<Long>();
+        for (int i = 0; i < Math.min(limit, scored.size()); i++) {
+            keys.add((long) scored.get(i)[1]);
+        }
+        return keys;
+    }
+
+    @Test
+    public void testRemove() {
+        final TextIndex index = new TextIndex(ContentExtraction.TEXT);
+        final int count = 5000;
+        for (int i = 0; i < count; i++) {
+            index.add(i, "message " + i, i % 2 == 0 ? "even" : "odd");
+        }
+        // Enough removals to compact the postings
+        for (int i = 0; i < count - 10; i++) {
+            index.remove(i);
+        }
+        index.remove(-1);
+        Assert.assertEquals(10, index.size());
+        Assert.assertEquals(Arrays.asList(4998L, 4996L, 4994L, 4992L, 4990L), index.search("even", 10));
+        Assert.assertEquals(Arrays.asList(4995L), index.search("4995", 10));
+        Assert.assertTrue(index.search("17", 10).isEmpty());
+        index.add(4995, "replaced", null);
+        Assert.assertTrue(index.search("4995", 10).isEmpty());
+        Assert.assertEquals(Arrays.asList(4995L), index.search("replaced", 10));
+        index.clear();
+        Assert.assertEquals(0, index.size());
+        Assert.assertTrue(index.search("even", 10).isEmpty());
+    }
+
+    @Test
+    public void testMessageBody() throws Exception {
+        final String data = "Subject: hello\r\nContent-Type: text/plain\r\n\r\ntracking 4711\r\n";
+        TextIndex index = new TextIndex(ContentExtraction.FULL);
+        index.add(7, ParsedMessage.parse(data.getBytes("ISO-8859-1")));
+        Assert.assertEquals(Arrays.asList(7L), index.search("4711", 10));
+        index = new TextIndex(ContentExtraction.HEADERS_ONLY);
+        index.add(7, ParsedMessage.parse(data.getBytes("ISO-8859-1")));
+        Assert.assertTrue(index.search("4711", 10).isEmpty());
+        Assert.assertEquals(Arrays.asList(7L), index.search("hello", 10));
+    }
+}
@@ -9,13 +9,14 @@ var routes = require('./routes/index');
 var app = express();
 var router = express.Router();
 
-var Mail = require('./models/db.js').mailModel;
 var java = require("java");
-java.classpath.push('./mongster-0.1-SNAPSHOT-jar-with-dependencies.jar');
+// The standalone jar built by 'mvn compile assembly:single' in mongsterServer
+java.classpath.push(path.join(__dirname, '../mongsterServer/target/mongster-0.1-SNAPSHOT-jar-with-dependencies.jar'));
 
-var Mongster = java.import('org.mongster.Mongster');
-var smtpServer = new Mongster();
-smtpServer.startSync();
+// Mongster settings come from the command line (node app.js --smtpPort=2525),
+// MONGSTER_* environment variables or a --config properties file
+var MongsterLauncher = java.import('org.mongster.MongsterLauncher');
+var smtpServer = MongsterLauncher.startSync(java.newArray('java.lang.String', process.argv.slice(2)));
 
 // view engine setup
 app.set('views', path.join(__dirname, 'views'));
@@ -31,8 +32,9 @@ app.use(cookieParser());
 app.use(express.static(path.join(__dirname, 'public')));
 
 app.use('/', router);
-app.get('/', routes.index(Mail));
-app.get('/messages.json', routes.get(Mail));
+app.get('/', routes.index(smtpServer));
+app.get('/messages.json', routes.get(smtpServer));
+app.get('/feed', routes.feed(smtpServer));
 
 app.post('/clear', routes.clear(smtpServer));
 
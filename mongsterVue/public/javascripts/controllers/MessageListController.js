@@ -2,29 +2,62 @@ var mongsterVueApp = angular.module('mongsterVueApp', ['ui.bootstrap']);
 mongsterVueApp.controller('MessageListController', ['$scope','$http', function($scope, $http) {
   
   $scope.messages = [];
+  $scope.nextCursor = null;
 
-  $scope.setMessages = function(messages) {
+  $scope.setMessages = function(messages, nextCursor) {
     $scope.messages = messages;
+    $scope.nextCursor = nextCursor;
   };
 
+  // Reloads the first (newest) page, then follows new messages
   $scope.updateList = function() {
     $http.get('/messages.json').success(function(data) {
-      $scope.messages = data.messages;
+      $scope.setMessages(data.messages, data.nextCursor);
+      $scope.follow();
     });
   };
 
-  setInterval(function() {
-    $scope.updateList();
-    $scope.$apply();
-  }, 30 * 1000); // update every 30 seconds
+  // Appends the next page of older messages
+  $scope.loadMore = function() {
+    $http.get('/messages.json?after=' + $scope.nextCursor).success(function(data) {
+      $scope.messages = $scope.messages.concat(data.messages);
+      $scope.nextCursor = data.nextCursor;
+    });
+  };
+
+  // Newest sequence number shown, -1 if none
+  $scope.newest = function() {
+    return $scope.messages.length ? $scope.messages[0].sequenceNumber : -1;
+  };
+
+  // Prepends new messages as the server publishes them instead of reloading
+  // the list; the browser reconnects with the last event id after an error
+  var feed = null;
+  $scope.follow = function() {
+    if (feed) {
+      feed.close();
+    }
+    feed = new EventSource('/feed?since=' + $scope.newest());
+    feed.onmessage = function(event) {
+      $scope.$apply(function() {
+        $scope.messages.unshift(JSON.parse(event.data));
+      });
+    };
+    feed.addEventListener('reset', function() {
+      // Sequence numbers restarted after a clear
+      $scope.$apply(function() {
+        $scope.setMessages([], null);
+      });
+    });
+  };
 
   $scope.updateList();
 
   $scope.clear = function() {
     $http.post('/clear').success(function(data) {
       console.log("Cleared");
-      $scope.updateList();
-      $scope.$apply();
+      $scope.setMessages([], null);
+      $scope.follow();
     });
   };
 
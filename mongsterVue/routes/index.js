@@ -1,27 +1,149 @@
+var java = require('java');
+
 /**
- * Loads messages array with all messages and renders 'index'
- * with messages in scope.
+ * Fields shown in the message list. Raw message bytes are never listed.
  */
-exports.index = function(Mail) {
-  return function(req, res) {
-    Mail.find({}, function(error, messages) {
+var LIST_FIELDS = 'date,subject,to,cc,from,replyto,body';
+
+/**
+ * How often an idle feed checks for new messages, and how long it stays
+ * silent before sending a keep-alive comment.
+ */
+var FEED_POLL_MILLIS = 250;
+var FEED_KEEP_ALIVE_MILLIS = 15000;
+
+/**
+ * Returns one page of messages from Mongster as a JSON string. The query
+ * string parameters (limit, after, order, recipient, sender, subject, header,
+ * fields) are those of org.mongster.MessageListing; the list view's fields,
+ * newest first, are used unless given.
+ */
+function listPage(smtpServer, query, callback) {
+  var params = query ? query.split('&') : [];
+  if (!/(^|&)fields=/.test(query)) {
+    params.push('fields=' + LIST_FIELDS);
+  }
+  if (!/(^|&)order=/.test(query)) {
+    params.push('order=desc');
+  }
+  var listing;
+  try {
+    listing = java.callStaticMethodSync('org.mongster.MessageListing', 'fromQueryString', params.join('&'));
+  } catch (error) {
+    return callback(error);
+  }
+  smtpServer.list(listing, function(error, page) {
+    if (error) {
+      return callback(error);
+    }
+    page.toJson(callback);
+  });
+}
+
+/**
+ * Renders 'index' with the first page of messages in scope.
+ */
+exports.index = function(smtpServer) {
+  return function(req, res, next) {
+    listPage(smtpServer, '', function(error, json) {
+      if (error) {
+        return next(error);
+      }
+      var page = JSON.parse(json);
       res.render('index', {
         title: 'mongsterVue',
-        messages : messages
+        messages : page.messages,
+        nextCursor : page.nextCursor
       });
     });
   };
 };
 
 /**
- * Dumps all messages to response stream as json.
+ * Sends one page of messages as json: {messages : [...], nextCursor : n}.
+ * Pass nextCursor back as the 'after' parameter to get the next page.
  */
-exports.get = function(Mail) {
+exports.get = function(smtpServer) {
   return function(req, res) {
-    Mail.find({}, function(error, messages) {
-      res.json({messages : messages});
+    var at = req.url.indexOf('?');
+    listPage(smtpServer, at < 0 ? '' : req.url.substring(at + 1), function(error, json) {
+      if (error) {
+        return res.status(400).json({error : error.message});
+      }
+      res.type('json').send(json);
     });
-  }
+  };
+};
+
+/**
+ * Streams messages as server-sent events: those stored after the 'since'
+ * sequence number (or the Last-Event-ID of a reconnecting browser), then
+ * new ones as they arrive. Without either, only new messages are sent.
+ * Other parameters filter as for /messages.json; events are oldest first.
+ */
+exports.feed = function(smtpServer) {
+  var TimeUnit = java.import('java.util.concurrent.TimeUnit');
+  var Subscription = java.import('org.mongster.MessageSubscription');
+  return function(req, res) {
+    var at = req.url.indexOf('?');
+    var query = at < 0 ? '' : req.url.substring(at + 1);
+    var params = query ? query.split('&').filter(function(param) {
+      return !/^(since|order|after)=/.test(param);
+    }) : [];
+    if (!/(^|&)fields=/.test(query)) {
+      params.push('fields=' + LIST_FIELDS);
+    }
+    var since = parseInt(req.get('Last-Event-ID') || req.query.since, 10);
+    var subscription;
+    try {
+      var listing = java.callStaticMethodSync('org.mongster.MessageListing', 'fromQueryString', params.join('&'));
+      subscription = isNaN(since) ? smtpServer.subscribeSync(listing) :
+        smtpServer.subscribeSync(listing, java.newLong(since));
+    } catch (error) {
+      return res.status(400).json({error : error.message});
+    }
+    var last = isNaN(since) ? -1 : since;
+    var open = true;
+    req.on('close', function() {
+      open = false;
+      subscription.closeSync();
+    });
+    res.writeHead(200, {
+      'Content-Type' : 'text/event-stream',
+      'Cache-Control' : 'no-cache'
+    });
+    res.write(': mongster feed\n\n');
+    var idleSince = Date.now();
+    (function next() {
+      // Polls without waiting, so a feed only holds a node-java worker thread
+      // while stored messages are read back; a null document means none yet
+      subscription.poll(java.newLong(0), TimeUnit.MILLISECONDS, function(error, doc) {
+        if (!open) {
+          return;
+        }
+        if (error) {
+          // Fell behind or stopped; the browser reconnects with its Last-Event-ID
+          return res.end();
+        }
+        if (!doc) {
+          if (Date.now() - idleSince >= FEED_KEEP_ALIVE_MILLIS) {
+            res.write(': keep-alive\n\n');
+            idleSince = Date.now();
+          }
+          return setTimeout(next, FEED_POLL_MILLIS);
+        }
+        var json = Subscription.toJsonSync(doc);
+        var seq = JSON.parse(json).sequenceNumber;
+        if (seq <= last) {
+          res.write('event: reset\ndata: {}\n\n');
+        }
+        last = seq;
+        res.write('id: ' + seq + '\ndata: ' + json + '\n\n');
+        idleSince = Date.now();
+        next();
+      });
+    })();
+  };
 };
 
 exports.clear = function(smtpServer) {